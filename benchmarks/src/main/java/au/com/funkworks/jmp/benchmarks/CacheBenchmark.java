@@ -0,0 +1,135 @@
+package au.com.funkworks.jmp.benchmarks;
+
+import java.io.File;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import au.com.funkworks.jmp.MiniProfilerFilter;
+import au.com.funkworks.jmp.cache.MappedFileCacheImpl;
+import au.com.funkworks.jmp.cache.RingBufferCacheImpl;
+import au.com.funkworks.jmp.cache.TailRetentionCacheImpl;
+import au.com.funkworks.jmp.codec.ProfileCodec;
+import au.com.funkworks.jmp.interfaces.CacheProfilerService;
+import au.com.funkworks.jmp.stats.EndpointStats;
+
+/**
+ * {@link CacheProfilerService} put and get throughput of the bundled stores,
+ * from 1 to 64 threads.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class CacheBenchmark {
+
+	private static final int PREFILLED = RingBufferCacheImpl.DEFAULT_CAPACITY;
+	private static final int SEGMENT_SIZE = 64 * 1024 * 1024;
+
+	@Param({ "ring", "mapped", "tail" })
+	public String store;
+
+	private CacheProfilerService cache;
+	private MappedFileCacheImpl mapped;
+	private File directory;
+	private Map<String, Object> data;
+
+	private final AtomicLong ids = new AtomicLong(PREFILLED);
+
+	@Setup
+	public void setup() throws Exception {
+		if ("mapped".equals(store)) {
+			directory = File.createTempFile("jmp-bench", "");
+			directory.delete();
+			mapped = new MappedFileCacheImpl(directory, SEGMENT_SIZE, 4, MappedFileCacheImpl.DEFAULT_MAX_AGE_MILLIS);
+			cache = mapped;
+		} else if ("tail".equals(store)) {
+			cache = new TailRetentionCacheImpl(new RingBufferCacheImpl(), TailRetentionCacheImpl.DEFAULT_GRACE_CAPACITY, TailRetentionCacheImpl.DEFAULT_GRACE_SECONDS, 0, 95, new EndpointStats());
+		} else {
+			cache = new RingBufferCacheImpl();
+		}
+
+		data = ProfileCodec.toRequestData(Profiles.compact(50));
+		for (int i = 1; i <= PREFILLED; i++) {
+			cache.put(key(i), data);
+		}
+	}
+
+	@TearDown
+	public void tearDown() throws Exception {
+		if (mapped != null) {
+			mapped.close();
+			for (File f : directory.listFiles()) {
+				f.delete();
+			}
+			directory.delete();
+		}
+	}
+
+	@Benchmark
+	@Threads(1)
+	public void put_1() {
+		put();
+	}
+
+	@Benchmark
+	@Threads(8)
+	public void put_8() {
+		put();
+	}
+
+	@Benchmark
+	@Threads(64)
+	public void put_64() {
+		put();
+	}
+
+	@Benchmark
+	@Threads(1)
+	public Map<String, Object> get_1() {
+		return get();
+	}
+
+	@Benchmark
+	@Threads(8)
+	public Map<String, Object> get_8() {
+		return get();
+	}
+
+	@Benchmark
+	@Threads(64)
+	public Map<String, Object> get_64() {
+		return get();
+	}
+
+	private void put() {
+		cache.put(key(ids.incrementAndGet()), data);
+	}
+
+	private Map<String, Object> get() {
+		// a recent profile, the way the UI asks for them
+		long newest = ids.get();
+		return cache.get(key(newest - ThreadLocalRandom.current().nextInt(PREFILLED / 2)));
+	}
+
+	private static String key(long id) {
+		return String.format(MiniProfilerFilter.CACHE_KEY_FORMAT_STRING, "bench-" + id);
+	}
+}
@@ -0,0 +1,98 @@
+package au.com.funkworks.jmp.benchmarks;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.mock.web.MockFilterConfig;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+
+import au.com.funkworks.jmp.MiniProfiler;
+import au.com.funkworks.jmp.MiniProfilerFilter;
+import au.com.funkworks.jmp.Step;
+
+/**
+ * The cost of {@link MiniProfilerFilter#doFilter} on top of the request it
+ * wraps: for a request that isn't profiled, and for one that is (with the
+ * profile stored asynchronously or on the request thread).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class FilterBenchmark {
+
+	@Param({ "true", "false" })
+	public String asyncStore;
+
+	private MiniProfilerFilter filter;
+
+	/** The application: a couple of profiled steps. */
+	private final FilterChain chain = new FilterChain() {
+		public void doFilter(ServletRequest request, ServletResponse response) throws IOException, ServletException {
+			Step step = MiniProfiler.step("load");
+			Step query = MiniProfiler.step("query");
+			query.close();
+			step.close();
+		}
+	};
+
+	@Setup
+	public void setup() throws ServletException {
+		MockFilterConfig config = new MockFilterConfig();
+		config.addInitParameter("restrictToURLs", "^/app/");
+		config.addInitParameter("asyncStore", asyncStore);
+		filter = new MiniProfilerFilter();
+		filter.init(config);
+	}
+
+	@TearDown
+	public void tearDown() {
+		filter.destroy();
+	}
+
+	/** The request without the filter, for reference. */
+	@Benchmark
+	public MockHttpServletResponse baseline() throws Exception {
+		MockHttpServletResponse response = new MockHttpServletResponse();
+		chain.doFilter(request("/app/page"), response);
+		return response;
+	}
+
+	@Benchmark
+	public MockHttpServletResponse notProfiled() throws Exception {
+		MockHttpServletResponse response = new MockHttpServletResponse();
+		filter.doFilter(request("/static/site.css"), response, chain);
+		return response;
+	}
+
+	@Benchmark
+	public MockHttpServletResponse profiled() throws Exception {
+		MockHttpServletResponse response = new MockHttpServletResponse();
+		filter.doFilter(request("/app/page"), response, chain);
+		return response;
+	}
+
+	private static MockHttpServletRequest request(String uri) {
+		return new MockHttpServletRequest("GET", uri);
+	}
+}
@@ -0,0 +1,41 @@
+package au.com.funkworks.jmp.benchmarks;
+
+import au.com.funkworks.jmp.MiniProfiler;
+import au.com.funkworks.jmp.Profile;
+import au.com.funkworks.jmp.Step;
+import au.com.funkworks.jmp.codec.CompactProfile;
+import au.com.funkworks.jmp.codec.ProfileCodec;
+
+/**
+ * Builds profiles of a given size for the benchmarks.
+ */
+final class Profiles {
+
+	private Profiles() {
+	}
+
+	/**
+	 * Capture a profile with (about) the given number of nodes, two levels
+	 * deep, the way a page making lots of queries looks.
+	 */
+	static Profile capture(int nodes) {
+		int fanout = Math.max(1, (int) Math.ceil(Math.sqrt(nodes)));
+		MiniProfiler.start();
+		int made = 1;
+		for (int i = 0; made < nodes; i++) {
+			Step step = MiniProfiler.step("component " + (i % 50));
+			made++;
+			for (int j = 0; j < fanout - 1 && made < nodes; j++) {
+				Step child = MiniProfiler.step(j % 3 == 0 ? "select * from things where id = ?" : "render fragment " + (j % 20));
+				made++;
+				child.close();
+			}
+			step.close();
+		}
+		return MiniProfiler.stop();
+	}
+
+	static CompactProfile compact(int nodes) {
+		return ProfileCodec.encode(capture(nodes), "/app/page?id=42", System.currentTimeMillis());
+	}
+}
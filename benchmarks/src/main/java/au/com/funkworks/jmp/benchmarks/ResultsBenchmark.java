@@ -0,0 +1,78 @@
+package au.com.funkworks.jmp.benchmarks;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.mock.web.MockServletConfig;
+
+import au.com.funkworks.jmp.JMPFactory;
+import au.com.funkworks.jmp.MiniProfilerFilter;
+import au.com.funkworks.jmp.MiniProfilerServlet;
+import au.com.funkworks.jmp.codec.CompactProfile;
+import au.com.funkworks.jmp.codec.ProfileCodec;
+
+/**
+ * Serializing profiles for the UI: the {@code results} action of
+ * {@link MiniProfilerServlet} (plain and gzipped) and
+ * {@link MiniProfilerServlet#getAppstatsDataFor(CompactProfile)}, over a
+ * small and a 10k node profile.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class ResultsBenchmark {
+
+	private static final String REQUEST_ID = "bench-1";
+
+	@Param({ "20", "10000" })
+	public int nodes;
+
+	@Param({ "false", "true" })
+	public boolean gzip;
+
+	private MiniProfilerServlet servlet;
+	private CompactProfile profile;
+
+	@Setup
+	public void setup() throws Exception {
+		MockServletConfig config = new MockServletConfig();
+		servlet = new MiniProfilerServlet();
+		servlet.init(config);
+
+		profile = Profiles.compact(nodes);
+		JMPFactory.getCacheProfilerService(config).put(String.format(MiniProfilerFilter.CACHE_KEY_FORMAT_STRING, REQUEST_ID), ProfileCodec.toRequestData(profile));
+	}
+
+	@Benchmark
+	public int results() throws Exception {
+		MockHttpServletRequest request = new MockHttpServletRequest("GET", "/java_mini_profile/results");
+		request.addParameter("ids", REQUEST_ID);
+		if (gzip) {
+			request.addHeader("Accept-Encoding", "gzip");
+		}
+		MockHttpServletResponse response = new MockHttpServletResponse();
+		servlet.service(request, response);
+		return response.getContentAsByteArray().length;
+	}
+
+	@Benchmark
+	public Map<String, Object> appstats() {
+		return servlet.getAppstatsDataFor(profile);
+	}
+}
@@ -0,0 +1,113 @@
+package au.com.funkworks.jmp.benchmarks;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+import javax.servlet.ServletException;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.springframework.mock.web.MockFilterConfig;
+
+import au.com.funkworks.jmp.MiniProfilerFilter;
+import au.com.funkworks.jmp.matching.UrlPatternMatcher;
+
+/**
+ * {@link MiniProfilerFilter#shouldProfile(String)} with realistic
+ * {@code restrictToURLs} pattern sets, against the compiled matcher on its
+ * own and a plain loop over the patterns (how it used to be done).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class ShouldProfileBenchmark {
+
+	private static final String[] PATTERN_POOL = { "^/admin/", "^/api/v1/", "^/api/v2/", "\\.do", "^/reports/[0-9]+", "/checkout/", "^/search", "\\.jsp$", "^/account/(orders|profile)", "^/static/" };
+
+	private static final String[] URLS = { "/admin/users/17", "/api/v1/things/42", "/api/v3/things", "/login.do", "/reports/2011/summary", "/shop/checkout/confirm", "/search?q=x", "/index.jsp", "/account/orders/99", "/images/logo.png", "/favicon.ico", "/app/dashboard" };
+
+	@Param({ "5", "50" })
+	public int patternCount;
+
+	private MiniProfilerFilter filter;
+	private UrlPatternMatcher matcher;
+	private List<Pattern> patterns;
+
+	@Setup
+	public void setup() throws ServletException {
+		List<String> sources = new ArrayList<String>();
+		for (int i = 0; i < patternCount; i++) {
+			String source = PATTERN_POOL[i % PATTERN_POOL.length];
+			if (i >= PATTERN_POOL.length) {
+				// make the repeats distinct, the way real sets differ per area
+				source = source.startsWith("^/") ? "^/area" + i + source.substring(1) : "/area" + i + source;
+			}
+			sources.add(source);
+		}
+
+		StringBuilder param = new StringBuilder();
+		patterns = new ArrayList<Pattern>();
+		for (String source : sources) {
+			if (param.length() > 0) {
+				param.append(',');
+			}
+			param.append(source);
+			patterns.add(Pattern.compile(source));
+		}
+		matcher = UrlPatternMatcher.compile(sources);
+
+		MockFilterConfig config = new MockFilterConfig();
+		config.addInitParameter("restrictToURLs", param.toString());
+		filter = new MiniProfilerFilter();
+		filter.init(config);
+	}
+
+	@TearDown
+	public void tearDown() {
+		filter.destroy();
+	}
+
+	@Benchmark
+	public void shouldProfile(Blackhole bh) {
+		for (String url : URLS) {
+			bh.consume(filter.shouldProfile(url));
+		}
+	}
+
+	@Benchmark
+	public void compiledMatcher(Blackhole bh) {
+		for (String url : URLS) {
+			bh.consume(matcher.matches(url));
+		}
+	}
+
+	@Benchmark
+	public void patternLoop(Blackhole bh) {
+		for (String url : URLS) {
+			boolean matches = false;
+			for (Pattern p : patterns) {
+				if (p.matcher(url).find()) {
+					matches = true;
+					break;
+				}
+			}
+			bh.consume(matches);
+		}
+	}
+}
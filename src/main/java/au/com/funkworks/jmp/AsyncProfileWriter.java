@@ -0,0 +1,313 @@
+package au.com.funkworks.jmp;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import au.com.funkworks.jmp.codec.CompactProfile;
+import au.com.funkworks.jmp.codec.ProfileCodec;
+import au.com.funkworks.jmp.codec.ProfileLimits;
+import au.com.funkworks.jmp.codec.ProfileSegments;
+import au.com.funkworks.jmp.events.ProfileEventChannels;
+import au.com.funkworks.jmp.interfaces.CacheProfilerService;
+
+/**
+ * Hands completed profiles off the request thread.
+ * <p>
+ * The filter only enqueues the raw captured profile onto a bounded queue; a
+ * background thread drains the queue in batches, encodes each profile,
+ * formats its cache key and puts it into the {@link CacheProfilerService}.
+ * When the queue is full the configured {@link OverflowPolicy} decides what
+ * happens, so a slow store can never hold up user requests.
+ * <p>
+ * Profiles are drained straight into the published in-flight batch (which
+ * the queue does before it lets go of them), so a profile that hasn't been
+ * stored yet can always be found in one or the other by
+ * {@link #getPending(String)}.
+ * <p>
+ * Once a profile is stored, the {@link ProfileStoreListener}s are told about
+ * it, and its id is published to the page's event channel
+ * (if it came with one).
+ */
+public class AsyncProfileWriter {
+
+	private static final Logger logger = LoggerFactory.getLogger(AsyncProfileWriter.class);
+
+	public static final int DEFAULT_QUEUE_SIZE = 1024;
+	public static final int DEFAULT_BATCH_SIZE = 64;
+
+	/**
+	 * What to do with a profile when the queue is full.
+	 */
+	public enum OverflowPolicy {
+		/** Drop the profile being submitted. */
+		DROP_NEWEST,
+		/** Drop the oldest queued profile to make room. */
+		DROP_OLDEST,
+		/** Store the profile on the submitting (request) thread. */
+		CALLER_RUNS
+	}
+
+	private final CacheProfilerService cacheProfilerService;
+	private final BlockingQueue<CapturedProfile> queue;
+	private final int batchSize;
+	private final OverflowPolicy overflowPolicy;
+	private final ProfileEventChannels eventChannels;
+	private final List<ProfileStoreListener> storeListeners;
+
+	private final AtomicLong enqueued = new AtomicLong();
+	private final AtomicLong dropped = new AtomicLong();
+	private final AtomicLong flushed = new AtomicLong();
+	private final AtomicLong failed = new AtomicLong();
+
+	/** The batch currently being stored by the drainer (for lookups). */
+	private volatile List<CapturedProfile> inFlight = new CopyOnWriteArrayList<CapturedProfile>();
+
+	private final Thread drainer;
+	private volatile boolean running = true;
+
+	/** Whether the drainer is (about to be) parked, waiting for profiles. */
+	private volatile boolean idle;
+
+	/**
+	 * @param eventChannels
+	 *            The channels to publish stored profiles to, or {@code null}.
+	 * @param storeListeners
+	 *            The listeners to tell about stored profiles.
+	 */
+	public AsyncProfileWriter(CacheProfilerService cacheProfilerService, int queueSize, int batchSize, OverflowPolicy overflowPolicy, ProfileEventChannels eventChannels,
+			List<ProfileStoreListener> storeListeners) {
+		this.cacheProfilerService = cacheProfilerService;
+		this.eventChannels = eventChannels;
+		this.storeListeners = storeListeners;
+		this.queue = new ArrayBlockingQueue<CapturedProfile>(queueSize);
+		this.batchSize = Math.max(1, batchSize);
+		this.overflowPolicy = overflowPolicy;
+
+		drainer = new Thread(new Runnable() {
+			public void run() {
+				drain();
+			}
+		}, "mini-profiler-writer");
+		drainer.setDaemon(true);
+		drainer.start();
+	}
+
+	/**
+	 * Queue a completed profile for storage. This is the only work done on
+	 * the request thread.
+	 */
+	public void submit(CapturedProfile captured) {
+		if (queue.offer(captured)) {
+			enqueued.incrementAndGet();
+			if (idle) {
+				LockSupport.unpark(drainer);
+			}
+			return;
+		}
+		switch (overflowPolicy) {
+		case DROP_OLDEST:
+			while (!queue.offer(captured)) {
+				if (queue.poll() != null) {
+					dropped.incrementAndGet();
+				}
+			}
+			enqueued.incrementAndGet();
+			break;
+		case CALLER_RUNS:
+			enqueued.incrementAndGet();
+			store(captured);
+			break;
+		default:
+			dropped.incrementAndGet();
+		}
+	}
+
+	/**
+	 * Look for a profile that has been submitted but not stored yet.
+	 *
+	 * @param requestId
+	 *            The id of the profiled request.
+	 * @return The profile, or {@code null} if it isn't pending.
+	 */
+	public CompactProfile getPending(String requestId) {
+		// profiles move from the queue to the in-flight batch, so look in
+		// that order
+		Iterator<CapturedProfile> it = queue.iterator();
+		while (it.hasNext()) {
+			CapturedProfile captured = it.next();
+			if (captured.requestId.equals(requestId)) {
+				return captured.encode();
+			}
+		}
+		for (CapturedProfile captured : inFlight) {
+			if (captured.requestId.equals(requestId)) {
+				return captured.encode();
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Stop the drainer, storing whatever is still queued.
+	 */
+	public void shutdown() {
+		running = false;
+		drainer.interrupt();
+		try {
+			drainer.join(5000);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	public long getEnqueuedCount() {
+		return enqueued.get();
+	}
+
+	public long getDroppedCount() {
+		return dropped.get();
+	}
+
+	public long getFlushedCount() {
+		return flushed.get();
+	}
+
+	public long getFailedCount() {
+		return failed.get();
+	}
+
+	public int getQueueSize() {
+		return queue.size();
+	}
+
+	private void drain() {
+		while (running || !queue.isEmpty()) {
+			List<CapturedProfile> batch = new CopyOnWriteArrayList<CapturedProfile>();
+			// publish the batch before anything is taken off the queue into it
+			inFlight = batch;
+			if (queue.drainTo(batch, batchSize) == 0) {
+				idle = true;
+				if (running && queue.isEmpty()) {
+					LockSupport.parkNanos(TimeUnit.SECONDS.toNanos(1));
+				}
+				idle = false;
+				continue;
+			}
+			for (CapturedProfile captured : batch) {
+				store(captured);
+			}
+		}
+		inFlight = new CopyOnWriteArrayList<CapturedProfile>();
+	}
+
+	private void store(CapturedProfile captured) {
+		try {
+			CompactProfile profile = captured.encode();
+			Map<String, Object> requestData = ProfileCodec.toRequestData(profile);
+			cacheProfilerService.put(String.format(MiniProfilerFilter.CACHE_KEY_FORMAT_STRING, captured.requestId), requestData);
+			flushed.incrementAndGet();
+			for (ProfileStoreListener listener : storeListeners) {
+				listener.profileStored(captured.requestURI, profile);
+			}
+			if (eventChannels != null && captured.channelId != null) {
+				eventChannels.publish(captured.channelId, captured.requestId);
+			}
+		} catch (RuntimeException e) {
+			failed.incrementAndGet();
+			logger.warn("Could not store profile for request " + captured.requestId, e);
+		}
+	}
+
+	/**
+	 * A completed profile as captured on the request thread, before any
+	 * encoding.
+	 */
+	public static class CapturedProfile {
+
+		private final String requestId;
+		private final String requestURI;
+		private final String queryString;
+		private final long timestamp;
+		private final Profile profile;
+		private final ProfileSegments segments;
+		private final String channelId;
+		private final ProfileLimits limits;
+
+		/** The encoded profile, once it has been. */
+		private volatile CompactProfile encoded;
+
+		/**
+		 * @param channelId
+		 *            The event channel of the page that made the request, or
+		 *            {@code null}.
+		 * @param limits
+		 *            The limits to apply to the size of the profile when it is
+		 *            encoded.
+		 */
+		public CapturedProfile(String requestId, String requestURI, String queryString, long timestamp, Profile profile, String channelId, ProfileLimits limits) {
+			this.requestId = requestId;
+			this.requestURI = requestURI;
+			this.queryString = queryString;
+			this.timestamp = timestamp;
+			this.profile = profile;
+			this.segments = null;
+			this.channelId = channelId;
+			this.limits = limits;
+		}
+
+		/**
+		 * The profile of an asynchronous request, made up of the profiles of
+		 * its dispatches.
+		 */
+		public CapturedProfile(String requestId, String requestURI, String queryString, long timestamp, ProfileSegments segments, String channelId, ProfileLimits limits) {
+			this.requestId = requestId;
+			this.requestURI = requestURI;
+			this.queryString = queryString;
+			this.timestamp = timestamp;
+			this.profile = null;
+			this.segments = segments;
+			this.channelId = channelId;
+			this.limits = limits;
+		}
+
+		public String getRequestId() {
+			return requestId;
+		}
+
+		public String getRequestURI() {
+			return requestURI;
+		}
+
+		public String getChannelId() {
+			return channelId;
+		}
+
+		/**
+		 * Encode the profile, only the first time it is asked for (a pending
+		 * profile may be looked up many times before it is stored).
+		 */
+		CompactProfile encode() {
+			CompactProfile result = encoded;
+			if (result == null) {
+				String requestURL = requestURI + ((queryString != null) ? "?" + queryString : "");
+				if (segments != null) {
+					result = ProfileCodec.encode(segments, requestURL, timestamp, limits);
+				} else {
+					result = ProfileCodec.encode(profile, requestURL, timestamp, limits);
+				}
+				encoded = result;
+			}
+			return result;
+		}
+	}
+}
@@ -0,0 +1,393 @@
+package au.com.funkworks.jmp;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.io.Writer;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+
+/**
+ * A response wrapper that injects the profiler UI includes just before the
+ * closing {@code </body>} tag of an HTML page, as the page streams out.
+ * <p>
+ * Nothing is buffered apart from a partial match of {@code </body>} (at most
+ * six characters), so the time to first byte and the memory used don't
+ * depend on the size of the page, and flushes pass straight through.
+ * Responses that aren't {@code text/html} when they are first written to, or
+ * that are already content-encoded, pass through untouched.
+ * <p>
+ * The injected includes change the length of an HTML page, so any
+ * {@code Content-Length} is held back until the response is first written
+ * to (or flushed, or finished), when its content type is known. It is then
+ * dropped for HTML and passed on for anything else.
+ */
+public class IncludesInjectingResponseWrapper extends HttpServletResponseWrapper {
+
+	private static final char[] BODY_END = "</body>".toCharArray();
+
+	private static final String CONTENT_LENGTH = "Content-Length";
+	private static final String CONTENT_ENCODING = "Content-Encoding";
+
+	private final IncludesTemplate.Includes includes;
+
+	private boolean contentEncoded;
+
+	/** The Content-Length held back until it is known whether to drop it. */
+	private String heldContentLength;
+
+	/** Whether the response has been found to be HTML (or not) yet. */
+	private boolean lengthDecided;
+	private boolean dropContentLength;
+
+	private InjectingOutputStream outputStream;
+	private InjectingWriter injectingWriter;
+	private PrintWriter writer;
+
+	public IncludesInjectingResponseWrapper(HttpServletResponse response, IncludesTemplate.Includes includes) {
+		super(response);
+		this.includes = includes;
+	}
+
+	@Override
+	public ServletOutputStream getOutputStream() throws IOException {
+		if (outputStream == null) {
+			outputStream = new InjectingOutputStream(super.getOutputStream());
+		}
+		return outputStream;
+	}
+
+	@Override
+	public PrintWriter getWriter() throws IOException {
+		if (writer == null) {
+			injectingWriter = new InjectingWriter(super.getWriter());
+			writer = new PrintWriter(injectingWriter);
+		}
+		return writer;
+	}
+
+	@Override
+	public void flushBuffer() throws IOException {
+		shouldInject();
+		if (writer != null) {
+			writer.flush();
+		} else if (outputStream != null) {
+			outputStream.flush();
+		}
+		super.flushBuffer();
+	}
+
+	@Override
+	public void reset() {
+		super.reset();
+		resetMatchers();
+		contentEncoded = false;
+		heldContentLength = null;
+		lengthDecided = false;
+		dropContentLength = false;
+	}
+
+	@Override
+	public void resetBuffer() {
+		super.resetBuffer();
+		resetMatchers();
+	}
+
+	@Override
+	public void setContentLength(int len) {
+		setContentLengthLong(len);
+	}
+
+	/**
+	 * Servlet 3.1 adds this to the response, so it is overridden there (and
+	 * only called there).
+	 */
+	public void setContentLengthLong(long len) {
+		filterHeader(CONTENT_LENGTH, String.valueOf(len));
+	}
+
+	@Override
+	public void setHeader(String name, String value) {
+		if (!filterHeader(name, value)) {
+			super.setHeader(name, value);
+		}
+	}
+
+	@Override
+	public void addHeader(String name, String value) {
+		if (!filterHeader(name, value)) {
+			super.addHeader(name, value);
+		}
+	}
+
+	@Override
+	public void setIntHeader(String name, int value) {
+		if (!filterHeader(name, String.valueOf(value))) {
+			super.setIntHeader(name, value);
+		}
+	}
+
+	@Override
+	public void addIntHeader(String name, int value) {
+		if (!filterHeader(name, String.valueOf(value))) {
+			super.addIntHeader(name, value);
+		}
+	}
+
+	/**
+	 * Write out anything held back by a partial match. Called by the filter
+	 * once the request has been processed.
+	 */
+	public void finish() throws IOException {
+		shouldInject();
+		if (injectingWriter != null) {
+			writer.flush();
+			injectingWriter.release();
+		}
+		if (outputStream != null) {
+			outputStream.release();
+		}
+	}
+
+	/**
+	 * Whether a header should be dropped or held back (and track the content
+	 * encoding).
+	 */
+	private boolean filterHeader(String name, String value) {
+		if (CONTENT_ENCODING.equalsIgnoreCase(name)) {
+			contentEncoded = true;
+			return false;
+		}
+		if (!CONTENT_LENGTH.equalsIgnoreCase(name)) {
+			return false;
+		}
+		if (!lengthDecided) {
+			heldContentLength = value;
+		} else if (!dropContentLength) {
+			super.setHeader(CONTENT_LENGTH, value);
+		}
+		return true;
+	}
+
+	/**
+	 * Whether to inject the includes, now that the content type has to be
+	 * known. Sets any held back Content-Length, unless the includes will
+	 * change it.
+	 */
+	private boolean shouldInject() {
+		boolean inject = isHtml() && !contentEncoded;
+		if (!lengthDecided) {
+			lengthDecided = true;
+			dropContentLength = inject;
+			if (heldContentLength != null && !inject) {
+				super.setHeader(CONTENT_LENGTH, heldContentLength);
+			}
+			heldContentLength = null;
+		}
+		return inject;
+	}
+
+	private boolean isHtml() {
+		String contentType = getContentType();
+		return contentType != null && contentType.regionMatches(true, 0, "text/html", 0, 9);
+	}
+
+	private void resetMatchers() {
+		if (injectingWriter != null) {
+			injectingWriter.reset();
+		}
+		if (outputStream != null) {
+			outputStream.reset();
+		}
+	}
+
+	private static boolean matches(int c, int matched) {
+		if (c >= 'A' && c <= 'Z') {
+			c += 'a' - 'A';
+		}
+		return c == BODY_END[matched];
+	}
+
+	/**
+	 * Injects into character output.
+	 */
+	private class InjectingWriter extends Writer {
+
+		private final Writer out;
+		private final char[] held = new char[BODY_END.length];
+		private int matched;
+
+		/** Whether the includes have been injected, or never will be. */
+		private boolean done;
+		private boolean decided;
+
+		InjectingWriter(Writer out) {
+			this.out = out;
+		}
+
+		@Override
+		public void write(char[] cbuf, int off, int len) throws IOException {
+			if (!decided) {
+				decided = true;
+				done = !shouldInject();
+			}
+			if (done) {
+				out.write(cbuf, off, len);
+				return;
+			}
+
+			int end = off + len;
+			int runStart = off;
+			for (int i = off; i < end; i++) {
+				char c = cbuf[i];
+				if (matches(c, matched)) {
+					if (matched == 0) {
+						out.write(cbuf, runStart, i - runStart);
+					}
+					held[matched++] = c;
+					runStart = i + 1;
+					if (matched == BODY_END.length) {
+						includes.writeTo(out);
+						out.write(held, 0, matched);
+						matched = 0;
+						done = true;
+						out.write(cbuf, i + 1, end - i - 1);
+						return;
+					}
+				} else if (matched > 0) {
+					out.write(held, 0, matched);
+					matched = 0;
+					if (matches(c, 0)) {
+						held[matched++] = c;
+						runStart = i + 1;
+					} else {
+						runStart = i;
+					}
+				}
+			}
+			if (runStart < end) {
+				out.write(cbuf, runStart, end - runStart);
+			}
+		}
+
+		@Override
+		public void flush() throws IOException {
+			out.flush();
+		}
+
+		@Override
+		public void close() throws IOException {
+			release();
+			out.close();
+		}
+
+		void release() throws IOException {
+			if (matched > 0) {
+				out.write(held, 0, matched);
+				matched = 0;
+			}
+		}
+
+		void reset() {
+			matched = 0;
+			done = false;
+			decided = false;
+		}
+	}
+
+	/**
+	 * Injects into byte output. {@code </body>} is plain ASCII, so it can be
+	 * matched byte by byte in any ASCII compatible encoding (such as UTF-8).
+	 */
+	private class InjectingOutputStream extends ServletOutputStream {
+
+		private final OutputStream out;
+		private final byte[] held = new byte[BODY_END.length];
+		private final byte[] single = new byte[1];
+		private int matched;
+
+		private boolean done;
+		private boolean decided;
+
+		InjectingOutputStream(OutputStream out) {
+			this.out = out;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			single[0] = (byte) b;
+			write(single, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			if (!decided) {
+				decided = true;
+				done = !shouldInject();
+			}
+			if (done) {
+				out.write(b, off, len);
+				return;
+			}
+
+			int end = off + len;
+			int runStart = off;
+			for (int i = off; i < end; i++) {
+				byte c = b[i];
+				if (matches(c, matched)) {
+					if (matched == 0) {
+						out.write(b, runStart, i - runStart);
+					}
+					held[matched++] = c;
+					runStart = i + 1;
+					if (matched == BODY_END.length) {
+						out.write(includes.toString().getBytes(getCharacterEncoding()));
+						out.write(held, 0, matched);
+						matched = 0;
+						done = true;
+						out.write(b, i + 1, end - i - 1);
+						return;
+					}
+				} else if (matched > 0) {
+					out.write(held, 0, matched);
+					matched = 0;
+					if (matches(c, 0)) {
+						held[matched++] = c;
+						runStart = i + 1;
+					} else {
+						runStart = i;
+					}
+				}
+			}
+			if (runStart < end) {
+				out.write(b, runStart, end - runStart);
+			}
+		}
+
+		@Override
+		public void flush() throws IOException {
+			out.flush();
+		}
+
+		@Override
+		public void close() throws IOException {
+			release();
+			out.close();
+		}
+
+		void release() throws IOException {
+			if (matched > 0) {
+				out.write(held, 0, matched);
+				matched = 0;
+			}
+		}
+
+		void reset() {
+			matched = 0;
+			done = false;
+			decided = false;
+		}
+	}
+}
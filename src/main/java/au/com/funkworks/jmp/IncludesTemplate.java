@@ -0,0 +1,126 @@
+package au.com.funkworks.jmp;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The UI includes ({@code mini_profiler.html}) compiled once into constant
+ * segments, with a slot for the request id between each of them.
+ * <p>
+ * Rendering for a request just creates a small {@link Includes} object; the
+ * segments are written straight to the page's writer when it is printed.
+ */
+public class IncludesTemplate {
+
+	public static final String REQUEST_ID_PLACEHOLDER = "@@requestId@@";
+
+	public static final String JS_START = "<!-- miniprofiler js start -->";
+	public static final String JS_END = "<!-- miniprofiler js end -->";
+
+	/** The constant text around each request id slot. */
+	private final String[] segments;
+
+	private final int length;
+
+	private IncludesTemplate(String[] segments) {
+		this.segments = segments;
+		int total = 0;
+		for (String segment : segments) {
+			total += segment.length();
+		}
+		this.length = total;
+	}
+
+	/**
+	 * Compile a template.
+	 * 
+	 * @param template
+	 *            The template text (with all other replacements already done).
+	 * @param loadJS
+	 *            Whether to keep the block between {@link #JS_START} and
+	 *            {@link #JS_END}.
+	 * @return The compiled template.
+	 */
+	public static IncludesTemplate compile(String template, boolean loadJS) {
+		if (!loadJS) {
+			int startIndex = template.indexOf(JS_START);
+			int endIndex = template.indexOf(JS_END);
+			if (startIndex >= 0 && endIndex > startIndex) {
+				template = template.substring(0, startIndex) + template.substring(endIndex + JS_END.length());
+			}
+		}
+
+		List<String> segments = new ArrayList<String>();
+		int start = 0;
+		int slot;
+		while ((slot = template.indexOf(REQUEST_ID_PLACEHOLDER, start)) >= 0) {
+			segments.add(template.substring(start, slot));
+			start = slot + REQUEST_ID_PLACEHOLDER.length();
+		}
+		segments.add(template.substring(start));
+		return new IncludesTemplate(segments.toArray(new String[segments.size()]));
+	}
+
+	/**
+	 * Get the includes for a request.
+	 */
+	public Includes render(String requestId) {
+		return new Includes(this, requestId);
+	}
+
+	/**
+	 * Write the template for a request.
+	 */
+	public void writeTo(Writer out, String requestId) throws IOException {
+		out.write(segments[0]);
+		for (int i = 1; i < segments.length; i++) {
+			out.write(requestId);
+			out.write(segments[i]);
+		}
+	}
+
+	/**
+	 * The length of the rendered template for a request id.
+	 */
+	public int length(String requestId) {
+		return length + (segments.length - 1) * requestId.length();
+	}
+
+	/**
+	 * The includes for a single request. Either write them to the page with
+	 * {@link #writeTo(Writer)} (see the {@code jmp:includes} tag), or print
+	 * them as a string.
+	 */
+	public static class Includes {
+
+		private final IncludesTemplate template;
+		private final String requestId;
+
+		Includes(IncludesTemplate template, String requestId) {
+			this.template = template;
+			this.requestId = requestId;
+		}
+
+		public String getRequestId() {
+			return requestId;
+		}
+
+		public void writeTo(Writer out) throws IOException {
+			template.writeTo(out, requestId);
+		}
+
+		@Override
+		public String toString() {
+			StringWriter out = new StringWriter(template.length(requestId));
+			try {
+				writeTo(out);
+			} catch (IOException e) {
+				// can't happen with a StringWriter
+			}
+			return out.toString();
+		}
+	}
+}
@@ -1,36 +1,159 @@
 package au.com.funkworks.jmp;
 
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 import javax.servlet.FilterConfig;
 import javax.servlet.ServletConfig;
 import javax.servlet.ServletContext;
 import javax.servlet.ServletException;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.util.StringUtils;
 import org.springframework.web.context.support.WebApplicationContextUtils;
 
-import au.com.funkworks.jmp.cache.NativeEhCacheCacheImpl;
+import au.com.funkworks.jmp.aggregate.CallTreeAggregator;
+import au.com.funkworks.jmp.auth.AuthDecisionCache;
+import au.com.funkworks.jmp.cache.MappedFileCacheImpl;
+import au.com.funkworks.jmp.cache.RingBufferCacheImpl;
+import au.com.funkworks.jmp.cache.TailRetentionCacheImpl;
+import au.com.funkworks.jmp.cluster.ClusterProfileResolver;
+import au.com.funkworks.jmp.cluster.HttpPeerFetcher;
+import au.com.funkworks.jmp.codec.ProfileLimits;
+import au.com.funkworks.jmp.codec.RepeatedCalls;
+import au.com.funkworks.jmp.events.ProfileEventChannels;
+import au.com.funkworks.jmp.export.HttpSpanSender;
+import au.com.funkworks.jmp.export.RollingFileSpanSender;
+import au.com.funkworks.jmp.export.SpanSender;
+import au.com.funkworks.jmp.export.TraceExporter;
+import au.com.funkworks.jmp.export.ZipkinSpanEncoder;
 import au.com.funkworks.jmp.interfaces.CacheProfilerService;
 import au.com.funkworks.jmp.interfaces.UserProfilerService;
+import au.com.funkworks.jmp.matching.UrlDecisionCache;
+import au.com.funkworks.jmp.overhead.ProfilerOverhead;
+import au.com.funkworks.jmp.sampling.RequestSampler;
+import au.com.funkworks.jmp.stats.EndpointStats;
+import au.com.funkworks.jmp.stats.RepeatedCallStats;
 
 public class JMPFactory {
 	
+	private static final Logger logger = LoggerFactory.getLogger(JMPFactory.class);
+	
 	private static final Object lock = new Object();
 	private static CacheProfilerService cacheProfilerService;
+	private static boolean cacheProfilerServiceIsBean;
 	private static UserProfilerService userProfilerService;
+	private static RequestSampler requestSampler;
+	private static AsyncProfileWriter asyncProfileWriter;
+	private static EndpointStats endpointStats;
+	private static UrlDecisionCache urlDecisionCache;
+	private static AuthDecisionCache authDecisionCache;
+	private static ProfileEventChannels profileEventChannels;
+	private static ClusterProfileResolver clusterProfileResolver;
+	private static ProfilerOverhead profilerOverhead;
+	/** The name the overhead MBean was registered under, if it was. */
+	private static ObjectName profilerOverheadName;
+	private static CallTreeAggregator callTreeAggregator;
+	private static RepeatedCallStats repeatedCallStats;
+	private static TraceExporter traceExporter;
 	
 	private static final String USER_LOOKUP_CLASS_PARAM = "userLookupClass";
 	private static final String USER_LOOKUP_CLASS_SPRINGBEAN_PARAM = "userProfilerService-spring-bean-name";
 	
 	private static final String CACHE_LOOKUP_CLASS_PARAM = "cacheLookupClass";
 	private static final String CACHE_LOOKUP_CLASS_SPRINGBEAN_PARAM = "cacheProfilerService-spring-bean-name";
+	private static final String CACHE_CAPACITY_PARAM = "cacheCapacity";
+
+	private static final String MAPPED_STORE_DIRECTORY_PARAM = "mappedStoreDirectory";
+	private static final String MAPPED_STORE_MAX_MB_PARAM = "mappedStoreMaxMB";
+	private static final String MAPPED_STORE_SEGMENTS_PARAM = "mappedStoreSegments";
+	private static final String MAPPED_STORE_MAX_AGE_MINUTES_PARAM = "mappedStoreMaxAgeMinutes";
+
+	private static final String RETENTION_PARAM = "retention";
+	private static final String RETAIN_SLOWER_THAN_MILLIS_PARAM = "retainSlowerThanMillis";
+	private static final String RETAIN_ABOVE_PERCENTILE_PARAM = "retainAbovePercentile";
+	private static final String GRACE_CAPACITY_PARAM = "graceCapacity";
+	private static final String GRACE_SECONDS_PARAM = "graceSeconds";
+
+	private static final String SAMPLE_RATE_PARAM = "sampleRate";
+	private static final String SAMPLE_RATES_PARAM = "sampleRates";
+	private static final String MAX_PROFILES_PER_SECOND_PARAM = "maxProfilesPerSecond";
+
+	private static final String ASYNC_STORE_PARAM = "asyncStore";
+	private static final String ASYNC_QUEUE_SIZE_PARAM = "asyncQueueSize";
+	private static final String ASYNC_BATCH_SIZE_PARAM = "asyncBatchSize";
+	private static final String ASYNC_OVERFLOW_POLICY_PARAM = "asyncOverflowPolicy";
+
+	private static final String STATS_MAX_ENDPOINTS_PARAM = "statsMaxEndpoints";
+
+	private static final String URL_DECISION_CACHE_SIZE_PARAM = "urlDecisionCacheSize";
+
+	private static final String AUTH_CACHE_TTL_SECONDS_PARAM = "authCacheTtlSeconds";
+	private static final String AUTH_CACHE_MAX_ENTRIES_PARAM = "authCacheMaxEntries";
+
+	private static final String EVENT_STREAM_PARAM = "eventStream";
+	private static final String EVENT_MAX_CHANNELS_PARAM = "eventMaxChannels";
+	private static final String EVENT_MAX_STREAMS_PARAM = "eventMaxStreams";
+	private static final String EVENT_STREAM_SECONDS_PARAM = "eventStreamSeconds";
+	private static final String EVENT_COALESCE_MILLIS_PARAM = "eventCoalesceMillis";
+
+	private static final String NODE_ID_PARAM = "nodeId";
+	private static final String PEERS_PARAM = "peers";
+	private static final String PEER_TIMEOUT_MILLIS_PARAM = "peerTimeoutMillis";
+	private static final String PEER_CACHE_SIZE_PARAM = "peerCacheSize";
+	private static final String PEER_FETCH_THREADS_PARAM = "peerFetchThreads";
+
+	private static final String AGGREGATE_PARAM = "aggregate";
+	private static final String AGGREGATE_SLOT_SECONDS_PARAM = "aggregateSlotSeconds";
+	private static final String AGGREGATE_SLOTS_PARAM = "aggregateSlots";
+	private static final String AGGREGATE_MAX_NODES_PARAM = "aggregateMaxNodes";
+	private static final String AGGREGATE_MAX_ENDPOINTS_PARAM = "aggregateMaxEndpoints";
+
+	private static final String REPEATED_CALL_THRESHOLD_PARAM = "repeatedCallThreshold";
+
+	private static final String TRACE_EXPORT_URL_PARAM = "traceExportURL";
+	private static final String TRACE_EXPORT_TIMEOUT_MILLIS_PARAM = "traceExportTimeoutMillis";
+	private static final String TRACE_EXPORT_FILE_PARAM = "traceExportFile";
+	private static final String TRACE_EXPORT_FILE_MAX_BYTES_PARAM = "traceExportFileMaxBytes";
+	private static final String TRACE_EXPORT_FILE_COUNT_PARAM = "traceExportFileCount";
+	private static final String TRACE_SERVICE_NAME_PARAM = "traceServiceName";
+	private static final String TRACE_EXPORT_QUEUE_SIZE_PARAM = "traceExportQueueSize";
+	private static final String TRACE_EXPORT_BATCH_SPANS_PARAM = "traceExportBatchSpans";
+	private static final String TRACE_EXPORT_FLUSH_MILLIS_PARAM = "traceExportFlushMillis";
+	private static final String TRACE_EXPORT_MAX_RETRIES_PARAM = "traceExportMaxRetries";
+	private static final String TRACE_EXPORT_BACKOFF_MILLIS_PARAM = "traceExportBackoffMillis";
+	private static final String DEFAULT_TRACE_SERVICE_NAME = "java-mini-profiler";
+	
+	private static final String MAX_PROFILE_STEPS_PARAM = "maxProfileSteps";
+	private static final String MIN_STEP_MICROS_PARAM = "minStepMicros";
+	private static final String COALESCE_RUN_LENGTH_PARAM = "coalesceRunLength";
+	
+	private static final String TRACK_ALLOCATIONS_PARAM = "trackAllocations";
+	private static final String JMX_PARAM = "jmx";
+	private static final String OVERHEAD_MBEAN_NAME = "au.com.funkworks.jmp:type=ProfilerOverhead";
 
 	public static CacheProfilerService getCacheProfilerService(ServletConfig config) throws Exception {
 		synchronized (lock) {
 			if (cacheProfilerService == null) {				
 				String cacheService = config.getInitParameter(CACHE_LOOKUP_CLASS_PARAM);
 				String cacheSpringService = config.getInitParameter(CACHE_LOOKUP_CLASS_SPRINGBEAN_PARAM);
+				String cacheCapacity = config.getInitParameter(CACHE_CAPACITY_PARAM);
 				
-				setupCacheProfilerService(cacheService ,cacheSpringService, config.getServletContext());				
+				setupCacheProfilerService(cacheService ,cacheSpringService, cacheCapacity, config.getServletContext());
+				setupMappedStore(config.getInitParameter(MAPPED_STORE_DIRECTORY_PARAM), config.getInitParameter(MAPPED_STORE_MAX_MB_PARAM), 
+						config.getInitParameter(MAPPED_STORE_SEGMENTS_PARAM), config.getInitParameter(MAPPED_STORE_MAX_AGE_MINUTES_PARAM));
+				setupRetention(config.getInitParameter(RETENTION_PARAM), config.getInitParameter(RETAIN_SLOWER_THAN_MILLIS_PARAM), config.getInitParameter(RETAIN_ABOVE_PERCENTILE_PARAM), 
+						config.getInitParameter(GRACE_CAPACITY_PARAM), config.getInitParameter(GRACE_SECONDS_PARAM), config.getInitParameter(STATS_MAX_ENDPOINTS_PARAM));				
 			}
 			return cacheProfilerService;
 		}
@@ -40,23 +163,98 @@ public class JMPFactory {
 			if (cacheProfilerService == null) {				
 				String cacheService = config.getInitParameter(CACHE_LOOKUP_CLASS_PARAM);
 				String cacheSpringService = config.getInitParameter(CACHE_LOOKUP_CLASS_SPRINGBEAN_PARAM);
+				String cacheCapacity = config.getInitParameter(CACHE_CAPACITY_PARAM);
 				
-				setupCacheProfilerService(cacheService ,cacheSpringService, config.getServletContext());
+				setupCacheProfilerService(cacheService ,cacheSpringService, cacheCapacity, config.getServletContext());
+				setupMappedStore(config.getInitParameter(MAPPED_STORE_DIRECTORY_PARAM), config.getInitParameter(MAPPED_STORE_MAX_MB_PARAM), 
+						config.getInitParameter(MAPPED_STORE_SEGMENTS_PARAM), config.getInitParameter(MAPPED_STORE_MAX_AGE_MINUTES_PARAM));
+				setupRetention(config.getInitParameter(RETENTION_PARAM), config.getInitParameter(RETAIN_SLOWER_THAN_MILLIS_PARAM), config.getInitParameter(RETAIN_ABOVE_PERCENTILE_PARAM), 
+						config.getInitParameter(GRACE_CAPACITY_PARAM), config.getInitParameter(GRACE_SECONDS_PARAM), config.getInitParameter(STATS_MAX_ENDPOINTS_PARAM));
 			}
 			return cacheProfilerService;
 		}		
 	}	
-	private static void setupCacheProfilerService(String cacheService, String cacheSpringService, ServletContext servletContext) throws Exception {
+	private static void setupCacheProfilerService(String cacheService, String cacheSpringService, String cacheCapacity, ServletContext servletContext) throws Exception {
 		if (StringUtils.hasLength(cacheService)) {
 			Class<?> cls = Class.forName(cacheService);
 			cacheProfilerService = (CacheProfilerService)cls.newInstance();						
 		} else if (StringUtils.hasLength(cacheSpringService)) {
 			cacheProfilerService  = (CacheProfilerService)WebApplicationContextUtils.getWebApplicationContext(servletContext).getBean(cacheSpringService);
+			cacheProfilerServiceIsBean = true;
 		} else {
-			cacheProfilerService = new NativeEhCacheCacheImpl();
+			int capacity = StringUtils.hasLength(cacheCapacity) ? Integer.parseInt(cacheCapacity.trim()) : RingBufferCacheImpl.DEFAULT_CAPACITY;
+			cacheProfilerService = new RingBufferCacheImpl(capacity);
 		}			
 	}
 	
+	/**
+	 * Use a {@link MappedFileCacheImpl} instead of the default ring buffer,
+	 * if the {@code mappedStoreDirectory} parameter is set (and no other store
+	 * was configured). It takes disk space and address space, so its size
+	 * ({@code mappedStoreMaxMB}, split into {@code mappedStoreSegments}
+	 * files, plus one more that is created ahead of time) has to be given
+	 * too.
+	 */
+	private static void setupMappedStore(String directory, String maxMB, String segmentCount, String maxAgeMinutes) throws Exception {
+		if (!StringUtils.hasLength(directory) || !(cacheProfilerService instanceof RingBufferCacheImpl)) {
+			return;
+		}
+		if (!StringUtils.hasLength(maxMB)) {
+			throw new ServletException(MAPPED_STORE_MAX_MB_PARAM + " is required with " + MAPPED_STORE_DIRECTORY_PARAM);
+		}
+		int segments = StringUtils.hasLength(segmentCount) ? Integer.parseInt(segmentCount.trim()) : MappedFileCacheImpl.DEFAULT_MAX_SEGMENTS;
+		long segmentSize = Long.parseLong(maxMB.trim()) * 1024 * 1024 / Math.max(1, segments);
+		if (segmentSize > Integer.MAX_VALUE) {
+			throw new ServletException(MAPPED_STORE_MAX_MB_PARAM + " is too large for " + segments + " segments");
+		}
+		cacheProfilerService = new MappedFileCacheImpl(
+				new File(directory.trim()), 
+				(int) segmentSize, 
+				segments, 
+				StringUtils.hasLength(maxAgeMinutes) ? Long.parseLong(maxAgeMinutes.trim()) * 60 * 1000 : MappedFileCacheImpl.DEFAULT_MAX_AGE_MILLIS);
+	}
+	
+	/**
+	 * Wrap the cache service for tail-based retention, if the
+	 * {@code retention} parameter is set to {@code tail}.
+	 */
+	private static void setupRetention(String retention, String slowerThanMillis, String abovePercentile, String graceCapacity, String graceSeconds, String maxEndpoints) {
+		if (!StringUtils.hasLength(retention) || !"tail".equalsIgnoreCase(retention.trim())) {
+			return;
+		}
+		long threshold = StringUtils.hasLength(slowerThanMillis) ? Long.parseLong(slowerThanMillis.trim()) : 0;
+		double percentile = StringUtils.hasLength(abovePercentile) ? Double.parseDouble(abovePercentile.trim()) : 0;
+		if (threshold <= 0 && percentile <= 0) {
+			percentile = 95;
+		}
+		cacheProfilerService = new TailRetentionCacheImpl(
+				cacheProfilerService, 
+				StringUtils.hasLength(graceCapacity) ? Integer.parseInt(graceCapacity.trim()) : TailRetentionCacheImpl.DEFAULT_GRACE_CAPACITY, 
+				StringUtils.hasLength(graceSeconds) ? Long.parseLong(graceSeconds.trim()) : TailRetentionCacheImpl.DEFAULT_GRACE_SECONDS, 
+				threshold, 
+				percentile, 
+				createEndpointStats(maxEndpoints));
+	}
+	
+	/**
+	 * Close the cache service if it can be closed (like the mapped store,
+	 * which has a maintenance thread and open mappings), unless it is a
+	 * Spring bean, whose lifecycle is Spring's.
+	 */
+	public static void shutdownCacheProfilerService() {
+		synchronized (lock) {
+			if (cacheProfilerService instanceof Closeable && !cacheProfilerServiceIsBean) {
+				try {
+					((Closeable) cacheProfilerService).close();
+				} catch (IOException e) {
+					logger.warn("Could not close the profile store", e);
+				}
+			}
+			cacheProfilerService = null;
+			cacheProfilerServiceIsBean = false;
+		}
+	}
+	
 	public static UserProfilerService getUserProfilerService(FilterConfig config) throws Exception  {
 		synchronized (lock) {
 			if (userProfilerService == null) {																
@@ -76,4 +274,483 @@ public class JMPFactory {
 		}		
 	}
 	
+	/**
+	 * Get the request sampler configured for the filter, or {@code null} if
+	 * none of the sampling parameters are set (in which case every eligible
+	 * request is profiled).
+	 */
+	public static RequestSampler getRequestSampler(FilterConfig config) {
+		synchronized (lock) {
+			if (requestSampler == null) {
+				String sampleRate = config.getInitParameter(SAMPLE_RATE_PARAM);
+				String sampleRates = config.getInitParameter(SAMPLE_RATES_PARAM);
+				String maxPerSecond = config.getInitParameter(MAX_PROFILES_PER_SECOND_PARAM);
+				
+				if (StringUtils.hasLength(sampleRate) || StringUtils.hasLength(sampleRates) || StringUtils.hasLength(maxPerSecond)) {
+					requestSampler = new RequestSampler(
+							RequestSampler.parseRules(sampleRates), 
+							StringUtils.hasLength(sampleRate) ? Double.parseDouble(sampleRate.trim()) : 1.0, 
+							StringUtils.hasLength(maxPerSecond) ? Double.parseDouble(maxPerSecond.trim()) : 0);
+				}
+			}
+			return requestSampler;
+		}
+	}
+	
+	/**
+	 * Get the request sampler set up by the filter (if any).
+	 */
+	public static RequestSampler getRequestSampler() {
+		synchronized (lock) {
+			return requestSampler;
+		}
+	}
+	
+	/**
+	 * Get the writer that stores profiles off the request thread, if the
+	 * {@code asyncStore} parameter is set to true, otherwise {@code null} and
+	 * profiles are stored on the request thread. It is opt-in because a
+	 * profile is only in the store a little after its request has finished
+	 * (though the servlet finds it in the writer's queue meanwhile).
+	 */
+	public static AsyncProfileWriter getAsyncProfileWriter(FilterConfig config) throws Exception {
+		synchronized (lock) {
+			if (asyncProfileWriter == null) {
+				String asyncStore = config.getInitParameter(ASYNC_STORE_PARAM);
+				if (!StringUtils.hasLength(asyncStore) || !Boolean.parseBoolean(asyncStore.trim())) {
+					return null;
+				}
+				String queueSize = config.getInitParameter(ASYNC_QUEUE_SIZE_PARAM);
+				String batchSize = config.getInitParameter(ASYNC_BATCH_SIZE_PARAM);
+				String overflowPolicy = config.getInitParameter(ASYNC_OVERFLOW_POLICY_PARAM);
+				
+				asyncProfileWriter = new AsyncProfileWriter(
+						getCacheProfilerService(config), 
+						StringUtils.hasLength(queueSize) ? Integer.parseInt(queueSize.trim()) : AsyncProfileWriter.DEFAULT_QUEUE_SIZE,
+						StringUtils.hasLength(batchSize) ? Integer.parseInt(batchSize.trim()) : AsyncProfileWriter.DEFAULT_BATCH_SIZE,
+						StringUtils.hasLength(overflowPolicy) ? AsyncProfileWriter.OverflowPolicy.valueOf(overflowPolicy.trim().toUpperCase()) : AsyncProfileWriter.OverflowPolicy.DROP_NEWEST,
+						getProfileEventChannels(config),
+						getProfileStoreListeners(config));
+			}
+			return asyncProfileWriter;
+		}
+	}
+	
+	/**
+	 * Get the async profile writer set up by the filter (if any).
+	 */
+	public static AsyncProfileWriter getAsyncProfileWriter() {
+		synchronized (lock) {
+			return asyncProfileWriter;
+		}
+	}
+	
+	/**
+	 * Stop the async profile writer (if any), storing whatever is queued.
+	 */
+	public static void shutdownAsyncProfileWriter() {
+		synchronized (lock) {
+			if (asyncProfileWriter != null) {
+				asyncProfileWriter.shutdown();
+				asyncProfileWriter = null;
+			}
+		}
+	}
+	
+	/**
+	 * Get everything that is told about stored profiles.
+	 */
+	public static List<ProfileStoreListener> getProfileStoreListeners(FilterConfig config) {
+		synchronized (lock) {
+			List<ProfileStoreListener> listeners = new ArrayList<ProfileStoreListener>();
+			listeners.add(getRepeatedCallStats(config));
+			CallTreeAggregator callTrees = getCallTreeAggregator(config);
+			if (callTrees != null) {
+				listeners.add(callTrees);
+			}
+			TraceExporter exporter = getTraceExporter(config);
+			if (exporter != null) {
+				listeners.add(exporter);
+			}
+			return listeners;
+		}
+	}
+	
+	public static RepeatedCallStats getRepeatedCallStats(FilterConfig config) {
+		synchronized (lock) {
+			if (repeatedCallStats == null) {
+				String threshold = config.getInitParameter(REPEATED_CALL_THRESHOLD_PARAM);
+				String maxEndpoints = config.getInitParameter(STATS_MAX_ENDPOINTS_PARAM);
+				
+				repeatedCallStats = new RepeatedCallStats(
+						StringUtils.hasLength(threshold) ? Integer.parseInt(threshold.trim()) : RepeatedCalls.DEFAULT_THRESHOLD,
+						StringUtils.hasLength(maxEndpoints) ? Integer.parseInt(maxEndpoints.trim()) : RepeatedCallStats.DEFAULT_MAX_ENDPOINTS);
+			}
+			return repeatedCallStats;
+		}
+	}
+	
+	public static RepeatedCallStats getRepeatedCallStats() {
+		synchronized (lock) {
+			return repeatedCallStats;
+		}
+	}
+	
+	/**
+	 * Get the aggregate call trees, or {@code null} unless they have been
+	 * turned on (with the {@code aggregate} parameter).
+	 */
+	public static CallTreeAggregator getCallTreeAggregator(FilterConfig config) {
+		synchronized (lock) {
+			if (callTreeAggregator == null) {
+				String aggregate = config.getInitParameter(AGGREGATE_PARAM);
+				if (!StringUtils.hasLength(aggregate) || !Boolean.parseBoolean(aggregate.trim())) {
+					return null;
+				}
+				String slotSeconds = config.getInitParameter(AGGREGATE_SLOT_SECONDS_PARAM);
+				String slots = config.getInitParameter(AGGREGATE_SLOTS_PARAM);
+				String maxNodes = config.getInitParameter(AGGREGATE_MAX_NODES_PARAM);
+				String maxEndpoints = config.getInitParameter(AGGREGATE_MAX_ENDPOINTS_PARAM);
+				
+				callTreeAggregator = new CallTreeAggregator(
+						StringUtils.hasLength(slotSeconds) ? Long.parseLong(slotSeconds.trim()) * 1000 : CallTreeAggregator.DEFAULT_SLOT_MILLIS,
+						StringUtils.hasLength(slots) ? Integer.parseInt(slots.trim()) : CallTreeAggregator.DEFAULT_SLOT_COUNT,
+						StringUtils.hasLength(maxNodes) ? Integer.parseInt(maxNodes.trim()) : CallTreeAggregator.DEFAULT_MAX_NODES,
+						StringUtils.hasLength(maxEndpoints) ? Integer.parseInt(maxEndpoints.trim()) : CallTreeAggregator.DEFAULT_MAX_ENDPOINTS);
+			}
+			return callTreeAggregator;
+		}
+	}
+	
+	/**
+	 * Get the aggregate call trees set up by the filter (if any).
+	 */
+	public static CallTreeAggregator getCallTreeAggregator() {
+		synchronized (lock) {
+			return callTreeAggregator;
+		}
+	}
+	
+	/**
+	 * Get the exporter that sends stored profiles to a trace collector (or a
+	 * local file), or {@code null} if neither {@code traceExportURL} nor
+	 * {@code traceExportFile} is set.
+	 */
+	public static TraceExporter getTraceExporter(FilterConfig config) {
+		synchronized (lock) {
+			if (traceExporter == null) {
+				String url = config.getInitParameter(TRACE_EXPORT_URL_PARAM);
+				String file = config.getInitParameter(TRACE_EXPORT_FILE_PARAM);
+				SpanSender sender;
+				if (StringUtils.hasLength(url)) {
+					try {
+						String timeoutMillis = config.getInitParameter(TRACE_EXPORT_TIMEOUT_MILLIS_PARAM);
+						sender = new HttpSpanSender(new URL(url.trim()), 
+								StringUtils.hasLength(timeoutMillis) ? Integer.parseInt(timeoutMillis.trim()) : HttpSpanSender.DEFAULT_TIMEOUT_MILLIS);
+					} catch (MalformedURLException e) {
+						throw new IllegalArgumentException("Invalid " + TRACE_EXPORT_URL_PARAM + ": " + url, e);
+					}
+				} else if (StringUtils.hasLength(file)) {
+					String maxBytes = config.getInitParameter(TRACE_EXPORT_FILE_MAX_BYTES_PARAM);
+					String fileCount = config.getInitParameter(TRACE_EXPORT_FILE_COUNT_PARAM);
+					sender = new RollingFileSpanSender(new File(file.trim()), 
+							StringUtils.hasLength(maxBytes) ? Long.parseLong(maxBytes.trim()) : RollingFileSpanSender.DEFAULT_MAX_BYTES,
+							StringUtils.hasLength(fileCount) ? Integer.parseInt(fileCount.trim()) : RollingFileSpanSender.DEFAULT_MAX_FILES);
+				} else {
+					return null;
+				}
+				String serviceName = config.getInitParameter(TRACE_SERVICE_NAME_PARAM);
+				if (!StringUtils.hasLength(serviceName)) {
+					serviceName = config.getServletContext().getServletContextName();
+				}
+				String queueSize = config.getInitParameter(TRACE_EXPORT_QUEUE_SIZE_PARAM);
+				String batchSpans = config.getInitParameter(TRACE_EXPORT_BATCH_SPANS_PARAM);
+				String flushMillis = config.getInitParameter(TRACE_EXPORT_FLUSH_MILLIS_PARAM);
+				String maxRetries = config.getInitParameter(TRACE_EXPORT_MAX_RETRIES_PARAM);
+				String backoffMillis = config.getInitParameter(TRACE_EXPORT_BACKOFF_MILLIS_PARAM);
+				
+				traceExporter = new TraceExporter(sender, 
+						new ZipkinSpanEncoder(StringUtils.hasLength(serviceName) ? serviceName.trim() : DEFAULT_TRACE_SERVICE_NAME),
+						StringUtils.hasLength(queueSize) ? Integer.parseInt(queueSize.trim()) : TraceExporter.DEFAULT_QUEUE_SIZE,
+						StringUtils.hasLength(batchSpans) ? Integer.parseInt(batchSpans.trim()) : TraceExporter.DEFAULT_MAX_BATCH_SPANS,
+						StringUtils.hasLength(flushMillis) ? Long.parseLong(flushMillis.trim()) : TraceExporter.DEFAULT_FLUSH_MILLIS,
+						StringUtils.hasLength(maxRetries) ? Integer.parseInt(maxRetries.trim()) : TraceExporter.DEFAULT_MAX_RETRIES,
+						StringUtils.hasLength(backoffMillis) ? Long.parseLong(backoffMillis.trim()) : TraceExporter.DEFAULT_BACKOFF_MILLIS);
+			}
+			return traceExporter;
+		}
+	}
+	
+	/**
+	 * Get the trace exporter set up by the filter (if any).
+	 */
+	public static TraceExporter getTraceExporter() {
+		synchronized (lock) {
+			return traceExporter;
+		}
+	}
+	
+	/**
+	 * Stop the trace exporter (if any), sending whatever is queued.
+	 */
+	public static void shutdownTraceExporter() {
+		synchronized (lock) {
+			if (traceExporter != null) {
+				traceExporter.shutdown();
+				traceExporter = null;
+			}
+		}
+	}
+	
+	/**
+	 * Get the limits applied to the size of captured profiles. Each limit is
+	 * off (0) unless it is configured, so profiles are captured in full by
+	 * default.
+	 */
+	public static ProfileLimits getProfileLimits(FilterConfig config) {
+		String maxSteps = config.getInitParameter(MAX_PROFILE_STEPS_PARAM);
+		String minStepMicros = config.getInitParameter(MIN_STEP_MICROS_PARAM);
+		String coalesceRunLength = config.getInitParameter(COALESCE_RUN_LENGTH_PARAM);
+		return new ProfileLimits(
+				StringUtils.hasLength(maxSteps) ? Integer.parseInt(maxSteps.trim()) : 0,
+				StringUtils.hasLength(minStepMicros) ? Long.parseLong(minStepMicros.trim()) * 1000 : 0,
+				StringUtils.hasLength(coalesceRunLength) ? Integer.parseInt(coalesceRunLength.trim()) : 0);
+	}
+	
+	/**
+	 * Get the per endpoint latency statistics recorded by the filter.
+	 */
+	public static EndpointStats getEndpointStats(FilterConfig config) {
+		synchronized (lock) {
+			return createEndpointStats(config.getInitParameter(STATS_MAX_ENDPOINTS_PARAM));
+		}
+	}
+	
+	private static EndpointStats createEndpointStats(String maxEndpoints) {
+		if (endpointStats == null) {
+			endpointStats = new EndpointStats(StringUtils.hasLength(maxEndpoints) ? Integer.parseInt(maxEndpoints.trim()) : EndpointStats.DEFAULT_MAX_ENDPOINTS);
+		}
+		return endpointStats;
+	}
+	
+	/**
+	 * Get the per endpoint latency statistics set up by the filter (if any).
+	 */
+	public static EndpointStats getEndpointStats() {
+		synchronized (lock) {
+			return endpointStats;
+		}
+	}
+	
+	/**
+	 * Get the cache of per URL profiling decisions used by the filter.
+	 */
+	public static UrlDecisionCache getUrlDecisionCache(FilterConfig config) {
+		synchronized (lock) {
+			if (urlDecisionCache == null) {
+				String cacheSize = config.getInitParameter(URL_DECISION_CACHE_SIZE_PARAM);
+				urlDecisionCache = new UrlDecisionCache(StringUtils.hasLength(cacheSize) ? Integer.parseInt(cacheSize.trim()) : UrlDecisionCache.DEFAULT_CAPACITY);
+			}
+			return urlDecisionCache;
+		}
+	}
+	
+	/**
+	 * Get the cache of per URL profiling decisions set up by the filter (if
+	 * any).
+	 */
+	public static UrlDecisionCache getUrlDecisionCache() {
+		synchronized (lock) {
+			return urlDecisionCache;
+		}
+	}
+	
+	/**
+	 * Get the cache of per session authorization decisions used by a
+	 * restricted filter, or {@code null} if caching is turned off (the
+	 * {@code authCacheTtlSeconds} parameter is 0). The
+	 * {@link au.com.funkworks.jmp.auth.AuthDecisionSessionListener} has to be
+	 * registered in the web.xml for decisions to be dropped when sessions end.
+	 */
+	public static AuthDecisionCache getAuthDecisionCache(FilterConfig config) {
+		synchronized (lock) {
+			if (authDecisionCache == null) {
+				String ttlSeconds = config.getInitParameter(AUTH_CACHE_TTL_SECONDS_PARAM);
+				String maxEntries = config.getInitParameter(AUTH_CACHE_MAX_ENTRIES_PARAM);
+				long ttl = StringUtils.hasLength(ttlSeconds) ? Long.parseLong(ttlSeconds.trim()) : AuthDecisionCache.DEFAULT_TTL_SECONDS;
+				if (ttl <= 0) {
+					return null;
+				}
+				authDecisionCache = new AuthDecisionCache(ttl, StringUtils.hasLength(maxEntries) ? Integer.parseInt(maxEntries.trim()) : AuthDecisionCache.DEFAULT_MAX_ENTRIES);
+			}
+			return authDecisionCache;
+		}
+	}
+	
+	/**
+	 * Get the cache of per session authorization decisions set up by the
+	 * filter (if any).
+	 */
+	public static AuthDecisionCache getAuthDecisionCache() {
+		synchronized (lock) {
+			return authDecisionCache;
+		}
+	}
+	
+	/**
+	 * Get the channels that push completed profiles to pages, if the
+	 * {@code eventStream} parameter is set to true, otherwise {@code null}
+	 * (and pages poll for results). It is opt-in because each open stream
+	 * ties up a request thread for up to {@code eventStreamSeconds}.
+	 */
+	public static ProfileEventChannels getProfileEventChannels(FilterConfig config) {
+		synchronized (lock) {
+			if (profileEventChannels == null) {
+				String eventStream = config.getInitParameter(EVENT_STREAM_PARAM);
+				if (!StringUtils.hasLength(eventStream) || !Boolean.parseBoolean(eventStream.trim())) {
+					return null;
+				}
+				String maxChannels = config.getInitParameter(EVENT_MAX_CHANNELS_PARAM);
+				String maxStreams = config.getInitParameter(EVENT_MAX_STREAMS_PARAM);
+				String streamSeconds = config.getInitParameter(EVENT_STREAM_SECONDS_PARAM);
+				String coalesceMillis = config.getInitParameter(EVENT_COALESCE_MILLIS_PARAM);
+				
+				profileEventChannels = new ProfileEventChannels(
+						StringUtils.hasLength(maxChannels) ? Integer.parseInt(maxChannels.trim()) : ProfileEventChannels.DEFAULT_MAX_CHANNELS,
+						StringUtils.hasLength(maxStreams) ? Integer.parseInt(maxStreams.trim()) : ProfileEventChannels.DEFAULT_MAX_STREAMS,
+						StringUtils.hasLength(streamSeconds) ? Long.parseLong(streamSeconds.trim()) * 1000 : ProfileEventChannels.DEFAULT_STREAM_MILLIS,
+						StringUtils.hasLength(coalesceMillis) ? Long.parseLong(coalesceMillis.trim()) : ProfileEventChannels.DEFAULT_COALESCE_MILLIS);
+			}
+			return profileEventChannels;
+		}
+	}
+	
+	/**
+	 * Get the event channels set up by the filter (if any).
+	 */
+	public static ProfileEventChannels getProfileEventChannels() {
+		synchronized (lock) {
+			return profileEventChannels;
+		}
+	}
+	
+	/**
+	 * Get the resolver that qualifies request ids with this node's id, and
+	 * fetches profiles captured by the other nodes listed in the
+	 * {@code peers} parameter ({@code nodeId=servletURL,...}), from at most
+	 * {@code peerFetchThreads} of them at once.
+	 */
+	public static ClusterProfileResolver getClusterProfileResolver(FilterConfig config) {
+		synchronized (lock) {
+			if (clusterProfileResolver == null) {
+				String nodeId = config.getInitParameter(NODE_ID_PARAM);
+				String peers = config.getInitParameter(PEERS_PARAM);
+				String timeoutMillis = config.getInitParameter(PEER_TIMEOUT_MILLIS_PARAM);
+				String cacheSize = config.getInitParameter(PEER_CACHE_SIZE_PARAM);
+				String fetchThreads = config.getInitParameter(PEER_FETCH_THREADS_PARAM);
+				
+				int timeout = StringUtils.hasLength(timeoutMillis) ? Integer.parseInt(timeoutMillis.trim()) : ClusterProfileResolver.DEFAULT_TIMEOUT_MILLIS;
+				if (timeout <= 0) {
+					timeout = ClusterProfileResolver.DEFAULT_TIMEOUT_MILLIS;
+				}
+				clusterProfileResolver = new ClusterProfileResolver(
+						StringUtils.hasLength(nodeId) ? nodeId.trim() : ClusterProfileResolver.defaultNodeId(),
+						StringUtils.hasLength(peers) ? new HttpPeerFetcher(HttpPeerFetcher.parsePeers(peers), timeout) : null,
+						timeout,
+						StringUtils.hasLength(cacheSize) ? Integer.parseInt(cacheSize.trim()) : ClusterProfileResolver.DEFAULT_CACHE_SIZE,
+						StringUtils.hasLength(fetchThreads) ? Integer.parseInt(fetchThreads.trim()) : ClusterProfileResolver.DEFAULT_FETCH_THREADS);
+			}
+			return clusterProfileResolver;
+		}
+	}
+	
+	/**
+	 * Get the cluster profile resolver set up by the filter (if any).
+	 */
+	public static ClusterProfileResolver getClusterProfileResolver() {
+		synchronized (lock) {
+			return clusterProfileResolver;
+		}
+	}
+	
+	/**
+	 * Stop the cluster profile resolver (if any).
+	 */
+	public static void shutdownClusterProfileResolver() {
+		synchronized (lock) {
+			if (clusterProfileResolver != null) {
+				clusterProfileResolver.shutdown();
+				clusterProfileResolver = null;
+			}
+		}
+	}
+	
+	/**
+	 * Get the tracker of the profiler's own overhead, registering it as an
+	 * MBean (unless the {@code jmx} parameter is set to false).
+	 * <p>
+	 * The MBean is named after the web application's context path, so that
+	 * each application on a server gets its own. A name that is already taken
+	 * is left alone, and a failed registration is only logged: the tracker
+	 * works without it.
+	 */
+	public static ProfilerOverhead getProfilerOverhead(FilterConfig config) throws Exception {
+		synchronized (lock) {
+			if (profilerOverhead == null) {
+				String trackAllocations = config.getInitParameter(TRACK_ALLOCATIONS_PARAM);
+				String jmx = config.getInitParameter(JMX_PARAM);
+				
+				profilerOverhead = new ProfilerOverhead(getCacheProfilerService(config), StringUtils.hasLength(trackAllocations) && Boolean.parseBoolean(trackAllocations.trim()));
+				if (!StringUtils.hasLength(jmx) || Boolean.parseBoolean(jmx.trim())) {
+					registerProfilerOverhead(config.getServletContext());
+				}
+			}
+			return profilerOverhead;
+		}
+	}
+	
+	private static void registerProfilerOverhead(ServletContext context) {
+		String contextPath = context.getContextPath();
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			ObjectName name = new ObjectName(OVERHEAD_MBEAN_NAME + ",context=" + ObjectName.quote(StringUtils.hasLength(contextPath) ? contextPath : "/"));
+			if (server.isRegistered(name)) {
+				logger.warn("Not registering the profiler overhead MBean, {} is already registered", name);
+				return;
+			}
+			server.registerMBean(profilerOverhead, name);
+			profilerOverheadName = name;
+		} catch (JMException e) {
+			logger.warn("Could not register the profiler overhead MBean", e);
+		} catch (SecurityException e) {
+			logger.warn("Could not register the profiler overhead MBean", e);
+		}
+	}
+	
+	/**
+	 * Get the overhead tracker set up by the filter (if any).
+	 */
+	public static ProfilerOverhead getProfilerOverhead() {
+		synchronized (lock) {
+			return profilerOverhead;
+		}
+	}
+	
+	/**
+	 * Unregister the overhead MBean (if we registered it).
+	 */
+	public static void shutdownProfilerOverhead() {
+		synchronized (lock) {
+			if (profilerOverheadName != null) {
+				try {
+					ManagementFactory.getPlatformMBeanServer().unregisterMBean(profilerOverheadName);
+				} catch (JMException e) {
+					// already gone
+				}
+				profilerOverheadName = null;
+			}
+			profilerOverhead = null;
+		}
+	}
+	
 }
@@ -22,12 +22,12 @@
 package au.com.funkworks.jmp;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.atomic.AtomicLong;
-import java.util.regex.Pattern;
 
 import javax.servlet.Filter;
 import javax.servlet.FilterChain;
@@ -42,13 +42,37 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.util.StringUtils;
 
+import au.com.funkworks.jmp.AsyncProfileWriter.CapturedProfile;
+import au.com.funkworks.jmp.async.AsyncProfileContext;
+import au.com.funkworks.jmp.async.AsyncProfiling;
+import au.com.funkworks.jmp.auth.AuthDecisionCache;
+import au.com.funkworks.jmp.cluster.ClusterProfileResolver;
+import au.com.funkworks.jmp.codec.CompactProfile;
+import au.com.funkworks.jmp.codec.ProfileCodec;
+import au.com.funkworks.jmp.codec.ProfileLimits;
+import au.com.funkworks.jmp.codec.ProfileSegments;
+import au.com.funkworks.jmp.events.ProfileEventChannels;
 import au.com.funkworks.jmp.interfaces.CacheProfilerService;
 import au.com.funkworks.jmp.interfaces.UserProfilerService;
+import au.com.funkworks.jmp.matching.UrlDecisionCache;
+import au.com.funkworks.jmp.matching.UrlPatternMatcher;
+import au.com.funkworks.jmp.overhead.ProfilerOverhead;
+import au.com.funkworks.jmp.overhead.ProfilerOverhead.Phase;
+import au.com.funkworks.jmp.sampling.RequestSampler;
+import au.com.funkworks.jmp.stats.EndpointStats;
 
 
 /**
  * A Servlet filter that enables the {@link MiniProfiler} under certain
  * conditions (which are configurable)
+ * <p>
+ * In a Servlet 3 container, requests that go asynchronous are profiled until
+ * they complete, time out or fail, rather than until the first dispatch
+ * returns. The profiler is bound to a thread, so each dispatch is profiled
+ * separately and the pieces are merged when the request finishes; work done
+ * on the application's own threads shows up as the root's self time. For
+ * this the filter has to be mapped with {@code <async-supported>} and the
+ * {@code ASYNC} dispatcher.
  */
 public class MiniProfilerFilter implements Filter {
 	
@@ -60,7 +84,7 @@ public class MiniProfilerFilter implements Filter {
 	private static final String REQUEST_ID_ATTRIBUTE = "mini_profile_request_id";
 	private static final String REQUEST_BASE_URL = "mini_profile_base_url";
 			
-	private static final String INCLUDES_ATTRIBUTE = "mini_profile_includes";
+	public static final String INCLUDES_ATTRIBUTE = "mini_profile_includes";
 
 	private static final String PROFILE_SERVLET_URL_KEY = "servletURL";
 	private static final String RESTRICT_TO_ADMINS_KEY = "restrictToAdmins";
@@ -69,9 +93,11 @@ public class MiniProfilerFilter implements Filter {
 	
 	private static final String HTML_ID_PREFIX_KEY = "htmlIdPrefix";
 	
-	private static final String JS_START = "<!-- miniprofiler js start -->";
-	private static final String JS_END = "<!-- miniprofiler js end -->";
 	private static final String LOAD_JS = "loadJS";
+	private static final String INJECT_INCLUDES = "injectIncludes";
+	private static final String SERVER_TIMING = "serverTiming";
+	private static final String SERVER_TIMING_METRICS = "serverTimingMetrics";
+	private static final String SERVER_TIMING_BREAKDOWN = "serverTimingBreakdown";
 	
 	
 	
@@ -79,6 +105,20 @@ public class MiniProfilerFilter implements Filter {
 	 * Whether to load js or not - useful if doing funky js lazy loading
 	 */
 	private boolean loadJS = true;
+
+	/**
+	 * Whether to inject the includes before {@code </body>} of HTML pages,
+	 * rather than leaving it to the page to print the includes attribute.
+	 */
+	private boolean injectIncludes = false;
+
+	/**
+	 * How to format the {@code Server-Timing} header of profiled responses,
+	 * or {@code null} if it is turned off (unless {@code serverTiming} is
+	 * set to true, since the header is visible to anyone who can see the
+	 * response).
+	 */
+	private ServerTiming serverTiming;
 	
 	//private static final String DATA_EXPIRY_KEY = "dataExpiry";
 
@@ -95,11 +135,15 @@ public class MiniProfilerFilter implements Filter {
 	private Set<String> restrictedEmails = new HashSet<String>();
 
 	/**
-	 * The set of regex patterns that the filter will be restricted to. Note
+	 * The regex patterns that the filter will be restricted to (compiled into
+	 * a single matcher), or {@code null} if it isn't restricted by URL. Note
 	 * that the filter's mapping in the web.xml will also affect the set of URLs
 	 * that the filter will run on.
 	 */
-	private Set<Pattern> restrictedURLs = new HashSet<Pattern>();
+	private UrlPatternMatcher restrictedURLs;
+
+	/** Cached results of the URL checks in {@link #shouldProfile(String)}. */
+	private UrlDecisionCache urlDecisions;
 
 	/**
 	 * The URL that the {@link MiniProfilerServlet} is mapped to.
@@ -128,14 +172,63 @@ public class MiniProfilerFilter implements Filter {
 	/** Map of string replacements that will be done on loaded resources. */
 	private Map<String, String> resourceReplacements = new HashMap<String, String>();
 
+	/** The UI includes, compiled at init. */
+	private IncludesTemplate includesTemplate;
+
 	private UserProfilerService userProfilerService;
+
+	/**
+	 * Cached per session results of the user checks, or {@code null} if the
+	 * filter isn't restricted (or caching is turned off).
+	 */
+	private AuthDecisionCache authDecisions;
 	private CacheProfilerService cacheProfilerService;
 
 	/**
-	 * A counter used to generate request ids that are then used to construct
-	 * memcache keys for the profiling data.
+	 * Decides which eligible requests are actually profiled, or {@code null}
+	 * if every eligible request should be profiled.
 	 */
-	private AtomicLong counter;
+	private RequestSampler requestSampler;
+
+	/**
+	 * Stores completed profiles off the request thread, or {@code null} if
+	 * they are stored synchronously.
+	 */
+	private AsyncProfileWriter asyncProfileWriter;
+
+	/** Latency distributions of profiled requests, per endpoint. */
+	private EndpointStats endpointStats;
+
+	/** Told about every stored profile. */
+	private List<ProfileStoreListener> storeListeners;
+
+	/** The limits applied to the size of profiles as they are encoded. */
+	private ProfileLimits profileLimits;
+
+	/** The time (and allocations) the filter itself adds to requests. */
+	private ProfilerOverhead overhead;
+
+	/**
+	 * Pushes completed profiles to the pages that made the requests, or
+	 * {@code null} if pages poll for them.
+	 */
+	private ProfileEventChannels eventChannels;
+
+	/**
+	 * Generates the (node-qualified) request ids that are then used to
+	 * construct memcache keys for the profiling data.
+	 */
+	private ClusterProfileResolver clusterProfileResolver;
+
+	/** Whether the container supports the Servlet 3 async API. */
+	private boolean asyncSupported;
+
+	/** Finishes the profiles of asynchronous requests. */
+	private final AsyncProfileContext.Completion asyncCompletion = new AsyncProfileContext.Completion() {
+		public void complete(AsyncProfileContext context, String outcome) {
+			completeAsync(context, outcome);
+		}
+	};
 	
 	public void init(FilterConfig config) throws ServletException {
 		
@@ -168,20 +261,41 @@ public class MiniProfilerFilter implements Filter {
 			logger.debug("Not loading js - please load jquery tmpl and miniprofiler js");
 		}
 		
+		String injectIncludesStr = config.getInitParameter(INJECT_INCLUDES);
+		if (StringUtils.hasLength(injectIncludesStr) && Boolean.parseBoolean(injectIncludesStr.trim())) {
+			injectIncludes = true;
+			logger.debug("Injecting includes into HTML responses");
+		}
+		
+		String serverTimingStr = config.getInitParameter(SERVER_TIMING);
+		if (StringUtils.hasLength(serverTimingStr) && Boolean.parseBoolean(serverTimingStr.trim())) {
+			String metrics = config.getInitParameter(SERVER_TIMING_METRICS);
+			String breakdown = config.getInitParameter(SERVER_TIMING_BREAKDOWN);
+			serverTiming = new ServerTiming(
+					StringUtils.hasLength(breakdown) ? ServerTiming.Breakdown.valueOf(breakdown.trim().toUpperCase()) : ServerTiming.Breakdown.STEPS,
+					StringUtils.hasLength(metrics) ? Integer.parseInt(metrics.trim()) : ServerTiming.DEFAULT_MAX_METRICS);
+			logger.debug("Adding Server-Timing headers to profiled responses");
+		}
+		
 		//String configDataExpiry = config.getInitParameter(DATA_EXPIRY_KEY);
 		//if (!isEmpty(configDataExpiry)) {
 		//	dataExpiry = Integer.parseInt(configDataExpiry);
 		//}
 		String configRestrictToURLs = config.getInitParameter(RESTRICT_TO_URLS_KEY);
 		if (StringUtils.hasLength(configRestrictToURLs)) {
+			List<String> urlPatterns = new ArrayList<String>();
 			for (String urlPattern : configRestrictToURLs.split(",")) {
 				urlPattern = urlPattern.trim();
 				if (StringUtils.hasLength(urlPattern)) {
-					restrictedURLs.add(Pattern.compile(urlPattern));
+					urlPatterns.add(urlPattern);
 				}
 			}
-			logger.debug("Restricted to urls only: {}", restrictedURLs);
+			if (!urlPatterns.isEmpty()) {
+				restrictedURLs = UrlPatternMatcher.compile(urlPatterns);
+			}
+			logger.debug("Restricted to urls only: {}", urlPatterns);
 		}
+		urlDecisions = JMPFactory.getUrlDecisionCache(config);
 		String configHtmlIdPrefix = config.getInitParameter(HTML_ID_PREFIX_KEY);
 		if (StringUtils.hasLength(configHtmlIdPrefix)) {
 			htmlIdPrefix = configHtmlIdPrefix.trim();
@@ -190,30 +304,57 @@ public class MiniProfilerFilter implements Filter {
 		
 		try {
 			cacheProfilerService = JMPFactory.getCacheProfilerService(config);
+			asyncProfileWriter = JMPFactory.getAsyncProfileWriter(config);
+			overhead = JMPFactory.getProfilerOverhead(config);
 		} catch (Exception e) {
 			throw new ServletException(e);
 		}
 		
+		endpointStats = JMPFactory.getEndpointStats(config);
+		eventChannels = JMPFactory.getProfileEventChannels(config);
+		storeListeners = JMPFactory.getProfileStoreListeners(config);
+		profileLimits = JMPFactory.getProfileLimits(config);
+		logger.debug("Profile limits: {}", profileLimits);
+		requestSampler = JMPFactory.getRequestSampler(config);
+		if (requestSampler != null) {
+			logger.debug("Sampling enabled: {}", requestSampler.getStats());
+		}
+		
 		// only required if restricted
 		if (restricted) {		
 			try {				
 				userProfilerService = JMPFactory.getUserProfilerService(config);								
+				authDecisions = JMPFactory.getAuthDecisionCache(config);
 			} catch (Exception e) {
 				throw new ServletException(e);
 			}			
 		}
 	
-		counter = new AtomicLong(1);
+		clusterProfileResolver = JMPFactory.getClusterProfileResolver(config);
+		asyncSupported = AsyncProfileContext.isAsyncSupported();
+		logger.debug("Async request support: {}", asyncSupported);
 		resourceLoader = new MiniProfilerResourceLoader();
 		resourceReplacements.put("@@baseURL@@", servletURL);
 		resourceReplacements.put("@@prefix@@", htmlIdPrefix);
+		resourceReplacements.put("@@eventStream@@", String.valueOf(eventChannels != null));
+		resourceLoader.addVersionReplacements(resourceReplacements);
+		String includes = resourceLoader.getResource("mini_profiler.html", resourceReplacements);
+		if (includes != null) {
+			includesTemplate = IncludesTemplate.compile(includes, loadJS);
+		} else {
+			logger.warn("Could not load the profiler includes template");
+		}
 		
 		logger.debug("Init'ed mini-profiler filter");
 	}
 
 	
 	public void destroy() {
-		// Nothing to destroy
+		JMPFactory.shutdownAsyncProfileWriter();
+		JMPFactory.shutdownTraceExporter();
+		JMPFactory.shutdownClusterProfileResolver();
+		JMPFactory.shutdownProfilerOverhead();
+		JMPFactory.shutdownCacheProfilerService();
 	}
 
 	/**
@@ -224,72 +365,186 @@ public class MiniProfilerFilter implements Filter {
 		HttpServletRequest req = (HttpServletRequest) servletRequest;
 		HttpServletResponse res = (HttpServletResponse) servletResponse;
 		
-		if (shouldProfile(req.getRequestURI())) {
-			String requestId = String.valueOf(counter.incrementAndGet());
+		if (asyncSupported) {
+			AsyncProfileContext asyncContext = AsyncProfiling.getDispatchContext(req);
+			if (asyncContext != null) {
+				doAsyncDispatch(asyncContext, servletRequest, servletResponse, chain);
+				return;
+			}
+		}
+
+		long phaseStart = System.nanoTime();
+		long allocatedBefore = overhead.allocatedBytes();
+		boolean profiled = shouldProfile(req) && shouldSample(req.getRequestURI());
+		overhead.record(Phase.SHOULD_PROFILE, System.nanoTime() - phaseStart);
+
+		if (profiled) {
+			String requestId = clusterProfileResolver.nextRequestId();
 
 
 			req.setAttribute(REQUEST_ID_ATTRIBUTE, requestId);
 			res.addHeader(REQUEST_ID_HEADER, requestId);
 
+			phaseStart = System.nanoTime();
 			addIncludes(req);
+			overhead.record(Phase.ADD_INCLUDES, System.nanoTime() - phaseStart);
 
 			Profile profile = null;
 			long startTime = System.currentTimeMillis();
+			long startNanos = System.nanoTime();
+			HttpServletResponse profiledResponse = res;
+			ServerTimingResponseWrapper timingResponse = null;
+			if (serverTiming != null) {
+				String te = req.getHeader("TE");
+				timingResponse = new ServerTimingResponseWrapper(res, startNanos, te != null && te.toLowerCase().contains("trailers"));
+				profiledResponse = timingResponse;
+			}
+			IncludesInjectingResponseWrapper injectingResponse = null;
+			Object includes = req.getAttribute(INCLUDES_ATTRIBUTE);
+			if (injectIncludes && includes instanceof IncludesTemplate.Includes) {
+				injectingResponse = new IncludesInjectingResponseWrapper(profiledResponse, (IncludesTemplate.Includes) includes);
+				profiledResponse = injectingResponse;
+			}
+			
 			MiniProfiler.start();
+			long captureNanos = System.nanoTime() - startNanos;
+			long allocatedAppStart = overhead.allocatedBytes();
+			long allocatedAppEnd;
 			try {
-				chain.doFilter(servletRequest, res);
+				chain.doFilter(servletRequest, profiledResponse);
 			} finally {
+				allocatedAppEnd = overhead.allocatedBytes();
+				phaseStart = System.nanoTime();
 				profile = MiniProfiler.stop();
 			}
+			boolean asyncStarted = asyncSupported && AsyncProfiling.isAsyncStarted(req);
+			if (timingResponse != null && !asyncStarted && profile != null) {
+				// before the injected includes are flushed, committing the response
+				timingResponse.finish(serverTiming.format(profile));
+			}
+			if (injectingResponse != null && !asyncStarted) {
+				// an async response is still being written, completeAsync finishes it
+				injectingResponse.finish();
+			}
+
+			String channelId = eventChannels != null ? req.getHeader(ProfileEventChannels.CHANNEL_HEADER) : null;
+			if (!ProfileEventChannels.isValidChannelId(channelId)) {
+				channelId = null;
+			}
+			if (asyncStarted) {
+				// finished by the listener, once the request is
+				AsyncProfileContext asyncContext = new AsyncProfileContext(requestId, req.getRequestURI(), req.getQueryString(), startTime, startNanos, channelId,
+						injectingResponse);
+				asyncContext.addSegment(profile, startNanos);
+				AsyncProfiling.track(req, asyncContext, asyncCompletion);
+				overhead.record(Phase.CAPTURE, captureNanos + System.nanoTime() - phaseStart);
+				return;
+			}
+			endpointStats.record(req.getRequestURI(), phaseStart - startNanos);
+			CapturedProfile captured = new CapturedProfile(requestId, req.getRequestURI(), req.getQueryString(), startTime, profile, channelId, profileLimits);
+			overhead.record(Phase.CAPTURE, captureNanos + System.nanoTime() - phaseStart);
 
-			Map<String, Object> requestData = new HashMap<String, Object>();
-			requestData.put("requestURL", req.getRequestURI() + ((req.getQueryString() != null) ? "?" + req.getQueryString() : ""));
-			requestData.put("timestamp", startTime);
-			requestData.put("profile", profile);
-			cacheProfilerService.put(String.format(CACHE_KEY_FORMAT_STRING, requestId), requestData);
+			phaseStart = System.nanoTime();
+			store(captured);
+			overhead.record(Phase.STORE, System.nanoTime() - phaseStart);
+			overhead.recordProfiledRequest(allocatedBefore, allocatedAppStart, allocatedAppEnd, overhead.allocatedBytes());
 		} else {
 			chain.doFilter(servletRequest, servletResponse);
 		}
 	}
 
+	/**
+	 * Profile an async dispatch of a request that is being profiled, adding
+	 * the dispatch's profile to the request's.
+	 */
+	private void doAsyncDispatch(AsyncProfileContext context, ServletRequest servletRequest, ServletResponse servletResponse, FilterChain chain) throws IOException,
+			ServletException {
+		long startNanos = System.nanoTime();
+		MiniProfiler.start();
+		overhead.record(Phase.CAPTURE, System.nanoTime() - startNanos);
+		try {
+			chain.doFilter(servletRequest, servletResponse);
+		} finally {
+			long phaseStart = System.nanoTime();
+			context.addSegment(MiniProfiler.stop(), startNanos);
+			overhead.record(Phase.CAPTURE, System.nanoTime() - phaseStart);
+		}
+	}
+
+	/**
+	 * Store the merged profile of an asynchronous request that has
+	 * completed, timed out or failed.
+	 */
+	private void completeAsync(AsyncProfileContext context, String outcome) {
+		ProfileSegments segments = context.finish(outcome);
+		if (segments == null) {
+			return;
+		}
+		IncludesInjectingResponseWrapper injectingResponse = context.getInjectingResponse();
+		if (injectingResponse != null) {
+			try {
+				injectingResponse.finish();
+			} catch (IOException e) {
+				logger.debug("Could not finish the response of request {}", context.getRequestId());
+			}
+		}
+		endpointStats.record(context.getRequestURI(), segments.getDuration());
+
+		long phaseStart = System.nanoTime();
+		store(new CapturedProfile(context.getRequestId(), context.getRequestURI(), context.getQueryString(), context.getTimestamp(), segments, context.getChannelId(), profileLimits));
+		overhead.record(Phase.STORE, System.nanoTime() - phaseStart);
+	}
+
+	/**
+	 * Store a completed profile (off the request thread, if there is an
+	 * {@link AsyncProfileWriter}), and let the page that made the request know
+	 * about it.
+	 */
+	private void store(CapturedProfile captured) {
+		if (asyncProfileWriter != null) {
+			asyncProfileWriter.submit(captured);
+		} else {
+			CompactProfile profile = captured.encode();
+			cacheProfilerService.put(String.format(CACHE_KEY_FORMAT_STRING, captured.getRequestId()), ProfileCodec.toRequestData(profile));
+			for (ProfileStoreListener listener : storeListeners) {
+				listener.profileStored(captured.getRequestURI(), profile);
+			}
+			if (captured.getChannelId() != null) {
+				eventChannels.publish(captured.getChannelId(), captured.getRequestId());
+			}
+		}
+	}
+
 	/**
 	 * Adds the UI includes to a request attribute (named
-	 * {@link #REQUEST_ID_ATTRIBUTE})
+	 * {@link #INCLUDES_ATTRIBUTE}). The attribute is an
+	 * {@link IncludesTemplate.Includes}, which can be printed as-is or written
+	 * straight to the page with the {@code jmp:includes} tag.
 	 * 
 	 * @param req
 	 *            The current HTTP request.
 	 */
 	private void addIncludes(HttpServletRequest req) {
-		String result = null;
 		String requestId = (String) req.getAttribute(MiniProfilerFilter.REQUEST_ID_ATTRIBUTE);
-		if (requestId != null) {
-			String includesTemplate = resourceLoader.getResource("mini_profiler.html", resourceReplacements);
-									
-			if (includesTemplate != null) {
-				
-				result = includesTemplate.replace("@@requestId@@", requestId);
-				
-				// check if we need to strip out js
-				if (!loadJS) {
-					int startIndex = result.indexOf(JS_START);
-					int endIndex = result.indexOf(JS_END);
-					
-					String contentsStart = result.substring(0, startIndex);
-					String contentsEnd = result.substring(endIndex + JS_END.length(), result.length());
-					
-					result = contentsStart + contentsEnd;					
-				}
-				
-				
-			}
-		}
-		if (StringUtils.hasLength(result)) {
+		if (requestId != null && includesTemplate != null) {
 			req.setAttribute(REQUEST_BASE_URL, servletURL);
 			req.setAttribute(REQUEST_ID_ATTRIBUTE, requestId);
-			req.setAttribute(INCLUDES_ATTRIBUTE, result);
+			req.setAttribute(INCLUDES_ATTRIBUTE, includesTemplate.render(requestId));
 		}
 	}
 
+	/**
+	 * Whether an eligible request should actually be profiled given the
+	 * sampling configuration. Unsampled requests skip all profiler work.
+	 * 
+	 * @param url
+	 *            The URL to check.
+	 * @return Whether the request has been sampled.
+	 */
+	private boolean shouldSample(String url) {
+		return requestSampler == null || requestSampler.sample(url);
+	}
+
 	/**
 	 * Whether the specified URL should be profiled given the current
 	 * configuration of the filter.
@@ -299,42 +554,80 @@ public class MiniProfilerFilter implements Filter {
 	 * @return Whether the URL should be profiled.
 	 */
 	public boolean shouldProfile(String url) {
-		// Don't profile requests to to results servlet
-		if (url.startsWith(servletURL)) {
+		return isURLAllowed(url) && (!restricted || isUserAllowed());
+	}
+
+	/**
+	 * Whether the specified request should be profiled given the current
+	 * configuration of the filter. When the filter is restricted, the user
+	 * checks are cached per session and principal (or per principal).
+	 * 
+	 * @param req
+	 *            The request to check.
+	 * @return Whether the request should be profiled.
+	 */
+	public boolean shouldProfile(HttpServletRequest req) {
+		if (!isURLAllowed(req.getRequestURI())) {
 			return false;
 		}
+		if (!restricted) {
+			return true;
+		}
 
-		if (!restrictedURLs.isEmpty()) {
-			boolean matches = false;
-			for (Pattern p : restrictedURLs) {
-				if (p.matcher(url).find()) {
-					matches = true;
-				}
-			}
-			if (!matches) {
-				return false;
-			}
+		String key = authDecisions != null ? AuthDecisionCache.keyFor(req) : null;
+		if (key == null) {
+			return isUserAllowed();
+		}
+		Boolean allowed = authDecisions.get(key);
+		if (allowed == null) {
+			allowed = isUserAllowed();
+			authDecisions.put(key, allowed);
 		}
+		return allowed;
+	}
 
-		if (restricted) {
-			if (userProfilerService.isUserLoggedIn()) {
-				
-				// restricted to admins
-				if (restrictedToAdmins) {
-					return userProfilerService.isUserAdmin();
-				}			
-				
-				// restricted to emails
-				String email = userProfilerService.getLoggedInUserEmail();
-				if (email == null || !restrictedEmails.contains(email)) {
-					return false;
-				}
-				
-			} else {
-				return false;
-			}
+	/**
+	 * Whether the specified URL may be profiled, using the cached decision
+	 * if there is one.
+	 */
+	private boolean isURLAllowed(String url) {
+		Boolean urlAllowed = urlDecisions.get(url);
+		if (urlAllowed == null) {
+			urlAllowed = shouldProfileURL(url);
+			urlDecisions.put(url, urlAllowed);
+		}
+		return urlAllowed;
+	}
+
+	/**
+	 * Whether the current user may be profiled, asking the
+	 * {@link UserProfilerService}.
+	 */
+	private boolean isUserAllowed() {
+		if (userProfilerService.isUserLoggedIn()) {
+			
+			// restricted to admins
+			if (restrictedToAdmins) {
+				return userProfilerService.isUserAdmin();
+			}			
+			
+			// restricted to emails
+			String email = userProfilerService.getLoggedInUserEmail();
+			return email != null && restrictedEmails.contains(email);
+		}
+		return false;
+	}
+
+	/**
+	 * Whether the specified URL is eligible for profiling, going by the URL
+	 * alone (the results of this are cached).
+	 */
+	private boolean shouldProfileURL(String url) {
+		// Don't profile requests to to results servlet
+		if (url.startsWith(servletURL)) {
+			return false;
 		}
-		return true;
+		return restrictedURLs == null || restrictedURLs.matches(url);
 	}
 
 }
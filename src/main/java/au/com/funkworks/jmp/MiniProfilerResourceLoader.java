@@ -34,9 +34,24 @@ import java.util.concurrent.ConcurrentHashMap;
  */
 public class MiniProfilerResourceLoader {
 	
+	/**
+	 * A single script made of all of the profiler UI scripts, so that the
+	 * page only needs one (fingerprinted) request for them.
+	 */
+	public static final String BUNDLE_RESOURCE = "mini_profiler.bundle.js";
+
+	/** The scripts that make up {@link #BUNDLE_RESOURCE}, in order. */
+	private static final String[] BUNDLED_SCRIPTS = { "jquery.tmpl.min.js", "mini_profiler.js" };
+
+	/** The resources that are served to the browser. */
+	public static final String[] STATIC_RESOURCES = { "jquery-1.6.2.min.js", "jquery.tmpl.min.js", "mini_profiler.js", "mini_profiler.css", "mini_profiler.html", BUNDLE_RESOURCE };
+
 	/** Map used to store the cached resources */
 	private ConcurrentHashMap<String, String> cache = new ConcurrentHashMap<String, String>();
 
+	/** Map used to store the prepared resources */
+	private ConcurrentHashMap<String, PreparedResource> preparedCache = new ConcurrentHashMap<String, PreparedResource>();
+
 	/**
 	 * Get the specified resource (if it exists) and perform the specified
 	 * string replacements on it.
@@ -51,7 +66,18 @@ public class MiniProfilerResourceLoader {
 	 */
 	public String getResource(String resource, Map<String, String> replacements) {
 		String result = cache.get(resource);
-		if (result == null) {
+		if (result == null && BUNDLE_RESOURCE.equals(resource)) {
+			StringBuilder bundle = new StringBuilder();
+			for (String script : BUNDLED_SCRIPTS) {
+				String contents = getResource(script, replacements);
+				if (contents == null) {
+					return null;
+				}
+				bundle.append(contents).append(";\n");
+			}
+			result = bundle.toString();
+			cache.putIfAbsent(resource, result);
+		} else if (result == null) {
 			try {
 				InputStream is = MiniProfilerResourceLoader.class.getResourceAsStream(resource);
 				try {
@@ -73,4 +99,40 @@ public class MiniProfilerResourceLoader {
 		}
 		return result;
 	}
+
+	/**
+	 * Get the specified resource ready to be served (see
+	 * {@link #getResource(String, Map)}).
+	 * 
+	 * @return The prepared resource, or {@code null} if it could not be
+	 *         loaded.
+	 */
+	public PreparedResource getPreparedResource(String resource, Map<String, String> replacements) {
+		PreparedResource result = preparedCache.get(resource);
+		if (result == null) {
+			String contents = getResource(resource, replacements);
+			if (contents != null) {
+				result = new PreparedResource(resource, contents);
+				preparedCache.putIfAbsent(resource, result);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Add the content fingerprints of the bundled scripts and the stylesheet
+	 * ({@code @@bundleVersion@@} and {@code @@cssVersion@@}) to a map of
+	 * replacements, so that templates can link to URLs that never change
+	 * for a given version of the resources.
+	 * 
+	 * @param replacements
+	 *            The replacements the resources are loaded with, which the
+	 *            fingerprints will be added to.
+	 */
+	public void addVersionReplacements(Map<String, String> replacements) {
+		PreparedResource bundle = getPreparedResource(BUNDLE_RESOURCE, replacements);
+		PreparedResource css = getPreparedResource("mini_profiler.css", replacements);
+		replacements.put("@@bundleVersion@@", bundle != null ? bundle.getVersion() : "");
+		replacements.put("@@cssVersion@@", css != null ? css.getVersion() : "");
+	}
 }
@@ -21,17 +21,19 @@
  */
 package au.com.funkworks.jmp;
 
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
-import java.io.PrintWriter;
-import java.text.DecimalFormat;
-import java.text.SimpleDateFormat;
+import java.io.OutputStream;
+import java.io.Writer;
 import java.util.ArrayList;
-import java.util.Calendar;
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPOutputStream;
 
 import javax.servlet.ServletConfig;
 import javax.servlet.ServletException;
@@ -39,20 +41,55 @@ import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
+import org.codehaus.jackson.JsonEncoding;
+import org.codehaus.jackson.JsonFactory;
 import org.codehaus.jackson.JsonGenerationException;
+import org.codehaus.jackson.JsonGenerator;
 import org.codehaus.jackson.map.JsonMappingException;
 import org.codehaus.jackson.map.ObjectMapper;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.springframework.util.StringUtils;
 
+import au.com.funkworks.jmp.aggregate.CallTreeAggregator;
+import au.com.funkworks.jmp.auth.AuthDecisionCache;
+import au.com.funkworks.jmp.cache.TailRetentionCacheImpl;
+import au.com.funkworks.jmp.cluster.ClusterProfileResolver;
+import au.com.funkworks.jmp.cluster.ProfileExport;
+import au.com.funkworks.jmp.codec.CompactProfile;
+import au.com.funkworks.jmp.codec.ProfileCodec;
+import au.com.funkworks.jmp.codec.RepeatedCalls;
+import au.com.funkworks.jmp.codec.TagRollups;
+import au.com.funkworks.jmp.events.ProfileEventChannels;
+import au.com.funkworks.jmp.export.TraceExporter;
 import au.com.funkworks.jmp.interfaces.CacheProfilerService;
+import au.com.funkworks.jmp.matching.UrlDecisionCache;
+import au.com.funkworks.jmp.overhead.ProfilerOverhead;
+import au.com.funkworks.jmp.overhead.ProfilerOverhead.Phase;
+import au.com.funkworks.jmp.sampling.RequestSampler;
+import au.com.funkworks.jmp.stats.EndpointStats;
+import au.com.funkworks.jmp.stats.RepeatedCallStats;
+import au.com.funkworks.jmp.stats.UrlNormalizer;
 
 /**
  * Servlet that:
  * <ul>
  * <li>Returns profile information for a set of requests (in JSON format).
- * <li>Serves the static resources that make up the profiler UI.
+ * <li>Streams profile information to a page as its requests complete
+ * (server-sent events).
+ * <li>Exports profiles to the other nodes of a cluster (and fetches theirs).
+ * <li>Serves the static resources that make up the profiler UI (gzipped,
+ * with ETags and fingerprinted URLs).
+ * <li>Reports the sampling (and cached URL) decisions made by
+ * {@link MiniProfilerFilter}.
+ * <li>Reports the counters of the {@link AsyncProfileWriter} (and event
+ * channels).
+ * <li>Reports latency percentiles of profiled requests per endpoint.
+ * <li>Lists the slow requests kept by tail-based retention.
+ * <li>Reports the profiler's own overhead.
+ * <li>Lists the endpoints with the most repeated calls (such as N+1
+ * queries).
+ * <li>Exports aggregate call trees of profiled requests (as JSON, or as
+ * collapsed stacks for flame graph tools).
  * </ul>
  */
 public class MiniProfilerServlet extends HttpServlet {
@@ -65,8 +102,36 @@ public class MiniProfilerServlet extends HttpServlet {
 
 	private static final String RESOURCE_CACHE_HOURS_KEY = "resourceCacheHours";
 
+	private static final String TREE_DEPTH_KEY = "treeDepth";
+
 	private static final String servletURL = "/java_mini_profile/";
 
+	/** How long (a year) fingerprinted resource URLs can be cached for. */
+	private static final int IMMUTABLE_MAX_AGE_SECONDS = 365 * 24 * 3600;
+
+	/** How long the browser waits before reconnecting an event stream. */
+	private static final int EVENT_RETRY_MILLIS = 1000;
+
+	/**
+	 * The number of levels of a profile tree sent at once by default: a
+	 * step and its children.
+	 */
+	private static final int DEFAULT_TREE_DEPTH = 2;
+
+	/** The most endpoints listed by the repeated calls report by default. */
+	private static final int DEFAULT_REPEATED_LIMIT = 20;
+
+	/** How often an idle event stream is written to. */
+	private static final long EVENT_HEARTBEAT_MILLIS = 15000;
+
+	/** Shared (thread-safe once configured) mapper for all JSON output. */
+	private static final ObjectMapper jsonMapper = new ObjectMapper();
+
+	private static final JsonFactory jsonFactory = jsonMapper.getJsonFactory();
+
+	/** Turns the {@code endpoint} parameter into a literal pattern. */
+	private static final UrlNormalizer endpointNormalizer = new UrlNormalizer();
+
 	/**
 	 * The prefix for all HTML element ids/classes used in the profiler UI. This
 	 * must be the same value as the {@code htmlIdPrefix} field in
@@ -80,6 +145,13 @@ public class MiniProfilerServlet extends HttpServlet {
 	 */
 	private int resourceCacheHours = 0;
 
+	/**
+	 * The number of levels of a profile tree sent with the results, and with
+	 * each subtree the UI expands. Deeper steps are left out (with their
+	 * count) until they are asked for.
+	 */
+	private int treeDepth = DEFAULT_TREE_DEPTH;
+
 	/**
 	 * The loader that will load the static resources for the profiler UI from
 	 * files in the classpath.
@@ -89,9 +161,18 @@ public class MiniProfilerServlet extends HttpServlet {
 	/** Map of string replacements that will be done on loaded resources. */
 	private Map<String, String> resourceReplacements = new HashMap<String, String>();
 
+	/** The static resources that can be served, prepared at init. */
+	private Map<String, PreparedResource> resources = new HashMap<String, PreparedResource>();
+
 	/** The cache Service */
 	private CacheProfilerService cacheProfilerService;
 
+	/** The tracker of the profiler's own overhead (set up by the filter), if any. */
+	private ProfilerOverhead overhead;
+
+	/** The repeated call statistics (set up by the filter), if any. */
+	private RepeatedCallStats repeatedCallStats;
+
 	@Override
 	public void init(ServletConfig config) throws ServletException {
 		logger.debug("Init'ing mini-profiler servlet");
@@ -106,206 +187,748 @@ public class MiniProfilerServlet extends HttpServlet {
 			resourceCacheHours = Integer.parseInt(configResourceCacheHours);
 			logger.debug("Resource cache hours set to {}", resourceCacheHours);
 		}
+		String configTreeDepth = config.getInitParameter(TREE_DEPTH_KEY);
+		if (!isEmpty(configTreeDepth)) {
+			treeDepth = Integer.parseInt(configTreeDepth.trim());
+		}
 
 		try {
 			cacheProfilerService = JMPFactory.getCacheProfilerService(config);
 		} catch (Exception e) {
 			throw new ServletException(e);
 		}
+		overhead = JMPFactory.getProfilerOverhead();
+		repeatedCallStats = JMPFactory.getRepeatedCallStats();
 
 		resourceLoader = new MiniProfilerResourceLoader();
 		resourceReplacements.put("@@prefix@@", htmlIdPrefix);
 		resourceReplacements.put("@@baseURL@@", servletURL);
 		resourceReplacements.put("@@prefix@@", htmlIdPrefix);
+		resourceLoader.addVersionReplacements(resourceReplacements);
+		for (String resource : MiniProfilerResourceLoader.STATIC_RESOURCES) {
+			PreparedResource prepared = resourceLoader.getPreparedResource(resource, resourceReplacements);
+			if (prepared != null) {
+				resources.put(resource, prepared);
+			} else {
+				logger.warn("Could not load profiler resource {}", resource);
+			}
+		}
 		logger.debug("Init'ed mini-profiler servlet");
 	}
 
 	@Override
 	protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
 		String requestURI = req.getRequestURI();
+		long start = System.nanoTime();
 		if (requestURI.endsWith("results")) {
 			doResults(req, resp);
+			if (overhead != null) {
+				overhead.record(Phase.RESULTS, System.nanoTime() - start);
+			}
 		} else if (requestURI.endsWith("resource")) {
 			doResource(req, resp);
+			if (overhead != null) {
+				overhead.record(Phase.RESOURCE, System.nanoTime() - start);
+			}
+		} else if (requestURI.endsWith("sampling")) {
+			doSampling(req, resp);
+		} else if (requestURI.endsWith("writer")) {
+			doWriter(req, resp);
+		} else if (requestURI.endsWith("stats")) {
+			doStats(req, resp);
+		} else if (requestURI.endsWith("events")) {
+			doEvents(req, resp);
+		} else if (requestURI.endsWith("export")) {
+			doExport(req, resp);
+		} else if (requestURI.endsWith("interesting")) {
+			doInteresting(req, resp);
+		} else if (requestURI.endsWith("overhead")) {
+			doOverhead(req, resp);
+		} else if (requestURI.endsWith("aggregate")) {
+			doAggregate(req, resp);
+		} else if (requestURI.endsWith("repeated")) {
+			doRepeated(req, resp);
+		} else if (requestURI.endsWith("subtree")) {
+			doSubtree(req, resp);
 		}
 	}
 
 	/**
 	 * Serve one of the static resources for the profiler UI.
+	 * <p>
+	 * Resources are prepared at init, so this only picks the plain or gzipped
+	 * bytes and sets the caching headers. Requests for a fingerprinted URL
+	 * ({@code v} matching the resource's version) can be cached forever,
+	 * everything else is revalidated with its ETag.
 	 */
 	private void doResource(HttpServletRequest req, HttpServletResponse resp) throws IOException {
-		boolean success = true;
-		String resource = (String) req.getParameter("id");
-
-		if (!isEmpty(resource)) {
-			if (resource.endsWith(".js")) {
-				resp.setContentType("text/javascript");
-			} else if (resource.endsWith(".css")) {
-				resp.setContentType("text/css");
-			} else if (resource.endsWith(".html")) {
-				resp.setContentType("text/html");
-			} else {
-				resp.setContentType("text/plain");
-			}
+		String resource = req.getParameter("id");
+		PreparedResource prepared = !isEmpty(resource) ? resources.get(resource) : null;
+		if (prepared == null) {
+			resp.sendError(404);
+			return;
+		}
 
-			String contents = resourceLoader.getResource(resource, resourceReplacements);
-			if (contents != null) {
-				if (resourceCacheHours > 0) {
-					Calendar c = Calendar.getInstance();
-					c.add(Calendar.HOUR, resourceCacheHours);
-					resp.setHeader("Cache-Control", "public, must-revalidate");
-					resp.setHeader("Expires", new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz").format(c.getTime()));
-				} else {
-					resp.setHeader("Cache-Control", "no-cache");
-				}
+		boolean gzipped = prepared.getGzippedBytes() != null && acceptsGzip(req);
+		resp.setContentType(prepared.getContentType());
+		resp.setHeader("ETag", prepared.getEtag(gzipped));
+		resp.addHeader("Vary", "Accept-Encoding");
+
+		if (prepared.getVersion().equals(req.getParameter("v"))) {
+			resp.setHeader("Cache-Control", "public, max-age=" + IMMUTABLE_MAX_AGE_SECONDS);
+			resp.setDateHeader("Expires", System.currentTimeMillis() + IMMUTABLE_MAX_AGE_SECONDS * 1000L);
+		} else if (resourceCacheHours > 0) {
+			resp.setHeader("Cache-Control", "public, max-age=" + (resourceCacheHours * 3600));
+			resp.setDateHeader("Expires", System.currentTimeMillis() + resourceCacheHours * 3600 * 1000L);
+		} else {
+			resp.setHeader("Cache-Control", "no-cache");
+		}
 
-				PrintWriter w = resp.getWriter();
-				w.print(contents);
-			} else {
-				success = false;
-			}
+		if (prepared.matches(req.getHeader("If-None-Match"))) {
+			resp.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+			return;
 		}
-		if (!success) {
-			resp.sendError(404);
+
+		byte[] bytes = gzipped ? prepared.getGzippedBytes() : prepared.getBytes();
+		if (gzipped) {
+			resp.setHeader("Content-Encoding", "gzip");
 		}
+		resp.setContentLength(bytes.length);
+		resp.getOutputStream().write(bytes);
 	}
 
 	/**
 	 * Generate the results for a set of requests in JSON format.
+	 * <p>
+	 * The profiles are streamed straight from their flattened form to the
+	 * response, without building any intermediate maps. Only the top
+	 * {@link #treeDepth} levels of each tree are sent; the UI fetches deeper
+	 * steps with {@link #doSubtree} as they are expanded.
 	 */
 	private void doResults(HttpServletRequest req, HttpServletResponse resp) throws IOException, JsonGenerationException, JsonMappingException {
-		Map<String, Object> result = new HashMap<String, Object>();
+		resp.setContentType("application/json");
+		resp.setHeader("Cache-Control", "no-cache");
+
+		OutputStream out = openJsonStream(req, resp);
+		JsonGenerator json = jsonFactory.createJsonGenerator(out, JsonEncoding.UTF8);
+		json.writeStartObject();
 
 		String requestIds = req.getParameter("ids");
 		if (!isEmpty(requestIds)) {
-			List<Map<String, Object>> requests = new ArrayList<Map<String, Object>>();
+			json.writeBooleanField("ok", true);
+			json.writeArrayFieldStart("requests");
+			List<String> ids = new ArrayList<String>();
 			for (String requestId : requestIds.split(",")) {
-				requestId = requestId.trim();
+				ids.add(requestId.trim());
+			}
+			Map<String, CompactProfile> remote = resolveRemote(ids);
+			for (String requestId : ids) {
+				CompactProfile profile = remote.get(requestId);
+				writeRequest(json, requestId, profile != null ? profile : getProfile(requestId));
+			}
+			json.writeEndArray();
+		} else {
+			json.writeBooleanField("ok", false);
+		}
 
-				Map<String, Object> requestData = cacheProfilerService.get(String.format(MiniProfilerFilter.CACHE_KEY_FORMAT_STRING, requestId));
-				if (requestData != null) {
-					Map<String, Object> request = new HashMap<String, Object>();
-					request.put("id", requestId);
-					request.put("redirect", requestData.get("redirect"));
-					request.put("requestURL", requestData.get("requestURL"));
-					request.put("timestamp", requestData.get("timestamp"));
+		json.writeEndObject();
+		json.close();
+		out.close();
+	}
 
-					Profile rootProfile = (Profile) requestData.get("profile");
-					request.put("profile", rootProfile);
+	/**
+	 * Generate the subtree under a step of a request's profile (the step
+	 * with the {@code node} id, and {@code depth} levels, including itself)
+	 * in JSON format.
+	 */
+	private void doSubtree(HttpServletRequest req, HttpServletResponse resp) throws IOException, JsonGenerationException, JsonMappingException {
+		String requestId = req.getParameter("id");
+		String nodeParam = req.getParameter("node");
+		String depthParam = req.getParameter("depth");
+		if (isEmpty(requestId) || isEmpty(nodeParam)) {
+			resp.sendError(HttpServletResponse.SC_BAD_REQUEST, "Missing id or node");
+			return;
+		}
+		int node;
+		int depth = treeDepth;
+		try {
+			node = Integer.parseInt(nodeParam.trim());
+			if (!isEmpty(depthParam)) {
+				depth = Integer.parseInt(depthParam.trim());
+			}
+		} catch (NumberFormatException e) {
+			resp.sendError(HttpServletResponse.SC_BAD_REQUEST, "Invalid node or depth");
+			return;
+		}
+		requestId = requestId.trim();
+		CompactProfile profile = getProfile(requestId);
+		if (profile == null) {
+			profile = resolveRemote(Collections.singletonList(requestId)).get(requestId);
+		}
 
-					Map<String, Object> appstatsMap = getAppstatsDataFor(rootProfile);
-					request.put("appstats", appstatsMap != null ? appstatsMap : null);
+		resp.setContentType("application/json");
+		resp.setHeader("Cache-Control", "no-cache");
+		OutputStream out = openJsonStream(req, resp);
+		JsonGenerator json = jsonFactory.createJsonGenerator(out, JsonEncoding.UTF8);
+		json.writeStartObject();
+		boolean found = profile != null && node >= 0 && node < profile.getNodeCount();
+		json.writeBooleanField("ok", found);
+		if (found) {
+			json.writeStringField("id", requestId);
+			json.writeFieldName("node");
+			writeProfileTree(json, profile, profile.getRepeatedCalls().markRepeated(profile, getRepeatedCallThreshold()), node, depth);
+		}
+		json.writeEndObject();
+		json.close();
+		out.close();
+	}
 
-					requests.add(request);
+	/**
+	 * Stream the profiles of a page's requests as server-sent events, as
+	 * they are stored.
+	 * <p>
+	 * Each event carries every profile that completed within the coalescing
+	 * window, in the same JSON format as {@code results}. The stream is held
+	 * open for a bounded time (this ties up a request thread) and then
+	 * closed, and the browser reconnects by itself. When the channels are
+	 * turned off or all stream slots are taken the request is refused, and
+	 * the page falls back to polling.
+	 */
+	private void doEvents(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+		ProfileEventChannels channels = JMPFactory.getProfileEventChannels();
+		String channelId = req.getParameter("channel");
+		if (channels == null || !ProfileEventChannels.isValidChannelId(channelId)) {
+			resp.sendError(HttpServletResponse.SC_NOT_FOUND);
+			return;
+		}
+		ProfileEventChannels.Channel channel = channels.getChannel(channelId);
+		if (channel == null || !channels.openStream()) {
+			resp.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+			return;
+		}
+		try {
+			resp.setContentType("text/event-stream");
+			resp.setCharacterEncoding("UTF-8");
+			resp.setHeader("Cache-Control", "no-cache");
+
+			OutputStream out = resp.getOutputStream();
+			out.write(("retry: " + EVENT_RETRY_MILLIS + "\n\n").getBytes("UTF-8"));
+			out.flush();
+
+			long end = System.currentTimeMillis() + channels.getStreamMillis();
+			long left;
+			while ((left = end - System.currentTimeMillis()) > 0) {
+				List<String> requestIds = channel.await(Math.min(left, EVENT_HEARTBEAT_MILLIS), channels.getCoalesceMillis());
+				if (requestIds.isEmpty()) {
+					// a comment, so a closed connection is noticed
+					out.write(":\n\n".getBytes("UTF-8"));
+				} else {
+					out.write("event: profiles\ndata: ".getBytes("UTF-8"));
+					JsonGenerator json = jsonFactory.createJsonGenerator(out, JsonEncoding.UTF8);
+					json.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+					json.writeStartObject();
+					json.writeBooleanField("ok", true);
+					json.writeArrayFieldStart("requests");
+					for (String requestId : requestIds) {
+						writeRequest(json, requestId, getProfile(requestId));
+					}
+					json.writeEndArray();
+					json.writeEndObject();
+					json.close();
+					out.write("\n\n".getBytes("UTF-8"));
 				}
+				out.flush();
 			}
-			result.put("ok", true);
-			result.put("requests", requests);
-		} else {
-			result.put("ok", false);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			channels.closeStream();
 		}
+	}
 
-		resp.setContentType("application/json");
+	/**
+	 * Export the profiles this node has for a set of requests, in the binary
+	 * {@link ProfileExport} format, for the other nodes of a cluster.
+	 */
+	private void doExport(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+		resp.setContentType("application/octet-stream");
 		resp.setHeader("Cache-Control", "no-cache");
 
-		ObjectMapper jsonMapper = new ObjectMapper();
-		jsonMapper.writeValue(resp.getOutputStream(), result);
-	}	
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(resp.getOutputStream()));
+		String requestIds = req.getParameter("ids");
+		if (!isEmpty(requestIds)) {
+			for (String requestId : requestIds.split(",")) {
+				requestId = requestId.trim();
+				CompactProfile profile = getProfile(requestId);
+				if (profile != null) {
+					ProfileExport.write(requestId, profile, out);
+				}
+			}
+		}
+		ProfileExport.end(out);
+		out.close();
+	}
 
-	public Map<String, Object> getAppstatsDataFor(Profile rootProfile) {
-		Map<String, Object> appstatsMap = null;
+	/**
+	 * List the requests whose profiles were kept by tail-based retention
+	 * (newest first) in JSON format.
+	 */
+	private void doInteresting(HttpServletRequest req, HttpServletResponse resp) throws IOException, JsonGenerationException, JsonMappingException {
+		Map<String, Object> result = new HashMap<String, Object>();
 
-		appstatsMap = new HashMap<String, Object>();
-		//appstatsMap.put("totalTime", appstats.getDurationMilliseconds());
-		Map<String, Map<String, Object>> rpcInfoMap = new LinkedHashMap<String, Map<String, Object>>();
-		
-		Map<String, CallStat> map = getCallStats(rootProfile.getChildren());
-		Iterator<String> iter = map.keySet().iterator();
-		while (iter.hasNext()) {
-			String tag = (String) iter.next();
-			
-			CallStat cs = map.get(tag);
-			
-			Map<String, Object> rpcInfo = new LinkedHashMap<String, Object>();
-			rpcInfoMap.put(tag, rpcInfo);
-						
-			rpcInfo.put("totalCalls", cs.getCalls());
-			
-			DecimalFormat df = new DecimalFormat("#.##");
-			rpcInfo.put("totalTime", df.format(cs.getTotalTime()/1000000.0));
+		result.put("ok", true);
+		result.put("enabled", cacheProfilerService instanceof TailRetentionCacheImpl);
+		if (cacheProfilerService instanceof TailRetentionCacheImpl) {
+			TailRetentionCacheImpl retention = (TailRetentionCacheImpl) cacheProfilerService;
+			result.put("kept", retention.getKeptCount());
+			result.put("discarded", retention.getDiscardedCount());
+			result.put("requests", retention.getInteresting());
 		}
-		
-		appstatsMap.put("rpcStats", !rpcInfoMap.isEmpty() ? rpcInfoMap : null);
 
-		return appstatsMap;
+		writeJson(req, resp, result);
 	}
-	
-	private Map<String, CallStat> getCallStats(List<Profile> calls) {				
-		Map<String, CallStat> map = new HashMap<String, CallStat>();
-		
-		for (Profile prof : calls) {
-			if (StringUtils.hasLength(prof.getTag())) {				
-				CallStat cs = map.get(prof.getTag());				
-				if (cs == null) {
-					cs = new CallStat(prof.getTag());
-					map.put(prof.getTag(), cs);
+
+	/**
+	 * List the endpoints with the most repeated calls, optionally only the
+	 * {@code endpoint} (a trailing {@code *} matches a prefix), up to
+	 * {@code limit} of them.
+	 */
+	private void doRepeated(HttpServletRequest req, HttpServletResponse resp) throws IOException, JsonGenerationException, JsonMappingException {
+		String endpoint = req.getParameter("endpoint");
+		Pattern endpointPattern = isEmpty(endpoint) ? null : endpointNormalizer.toPattern(endpoint.trim());
+		String limit = req.getParameter("limit");
+		int maxEndpoints = DEFAULT_REPEATED_LIMIT;
+		try {
+			if (!isEmpty(limit)) {
+				maxEndpoints = Integer.parseInt(limit.trim());
+			}
+		} catch (NumberFormatException e) {
+			resp.sendError(HttpServletResponse.SC_BAD_REQUEST, "Invalid limit");
+			return;
+		}
+
+		Map<String, Object> result = new HashMap<String, Object>();
+		result.put("ok", repeatedCallStats != null);
+		if (repeatedCallStats != null) {
+			result.put("threshold", repeatedCallStats.getThreshold());
+			result.put("endpoints", repeatedCallStats.summarize(endpointPattern, maxEndpoints));
+		}
+
+		writeJson(req, resp, result);
+	}
+
+	/**
+	 * Export the aggregate call tree of the {@code endpoint} (all of them if
+	 * it is missing, a trailing {@code *} matches a prefix) over the last
+	 * {@code window} seconds (the whole ring if it is missing). With
+	 * {@code format=collapsed} the tree is written as collapsed stacks,
+	 * otherwise as JSON.
+	 */
+	private void doAggregate(HttpServletRequest req, HttpServletResponse resp) throws IOException, JsonGenerationException, JsonMappingException {
+		CallTreeAggregator callTrees = JMPFactory.getCallTreeAggregator();
+		if (callTrees == null) {
+			Map<String, Object> result = new HashMap<String, Object>();
+			result.put("ok", true);
+			result.put("enabled", false);
+			writeJson(req, resp, result);
+			return;
+		}
+
+		String endpoint = req.getParameter("endpoint");
+		Pattern endpointPattern = isEmpty(endpoint) ? null : endpointNormalizer.toPattern(endpoint.trim());
+		String window = req.getParameter("window");
+		long windowMillis = Long.MAX_VALUE / 2;
+		if (!isEmpty(window)) {
+			try {
+				windowMillis = Long.parseLong(window.trim()) * 1000;
+			} catch (NumberFormatException e) {
+				resp.sendError(HttpServletResponse.SC_BAD_REQUEST, "Invalid window");
+				return;
+			}
+		}
+		CallTreeAggregator.Aggregate aggregate = callTrees.aggregate(endpointPattern, windowMillis);
+
+		if ("collapsed".equals(req.getParameter("format"))) {
+			resp.setContentType("text/plain; charset=UTF-8");
+			resp.setHeader("Cache-Control", "no-cache");
+			Writer out = resp.getWriter();
+			aggregate.getRoot().writeCollapsed(out);
+			out.flush();
+			return;
+		}
+
+		Map<String, Object> result = new HashMap<String, Object>();
+		result.put("ok", true);
+		result.put("enabled", true);
+		result.put("requests", aggregate.getRequestCount());
+		result.put("endpoints", aggregate.getEndpoints());
+		result.put("windowSeconds", aggregate.getWindowMillis() / 1000);
+		result.put("tree", aggregate.getRoot().toMap());
+		result.put("stats", callTrees.getStats());
+
+		writeJson(req, resp, result);
+	}
+
+	/**
+	 * Report the profiler's own overhead in JSON format.
+	 */
+	private void doOverhead(HttpServletRequest req, HttpServletResponse resp) throws IOException, JsonGenerationException, JsonMappingException {
+		Map<String, Object> result = new HashMap<String, Object>();
+
+		result.put("ok", true);
+		result.put("enabled", overhead != null);
+		if (overhead != null) {
+			result.put("overhead", overhead.getStats());
+		}
+
+		writeJson(req, resp, result);
+	}
+
+	/**
+	 * Report the sampling counters in JSON format.
+	 */
+	private void doSampling(HttpServletRequest req, HttpServletResponse resp) throws IOException, JsonGenerationException, JsonMappingException {
+		Map<String, Object> result = new HashMap<String, Object>();
+
+		RequestSampler sampler = JMPFactory.getRequestSampler();
+		result.put("ok", true);
+		result.put("enabled", sampler != null);
+		if (sampler != null) {
+			result.put("sampling", sampler.getStats());
+		}
+		UrlDecisionCache urlDecisions = JMPFactory.getUrlDecisionCache();
+		if (urlDecisions != null) {
+			result.put("urlDecisions", urlDecisions.getStats());
+		}
+		AuthDecisionCache authDecisions = JMPFactory.getAuthDecisionCache();
+		if (authDecisions != null) {
+			result.put("authDecisions", authDecisions.getStats());
+		}
+
+		writeJson(req, resp, result);
+	}
+
+	/**
+	 * Report the async profile writer counters in JSON format.
+	 */
+	private void doWriter(HttpServletRequest req, HttpServletResponse resp) throws IOException, JsonGenerationException, JsonMappingException {
+		Map<String, Object> result = new HashMap<String, Object>();
+
+		AsyncProfileWriter writer = JMPFactory.getAsyncProfileWriter();
+		result.put("ok", true);
+		result.put("enabled", writer != null);
+		if (writer != null) {
+			Map<String, Object> counters = new LinkedHashMap<String, Object>();
+			counters.put("enqueued", writer.getEnqueuedCount());
+			counters.put("dropped", writer.getDroppedCount());
+			counters.put("flushed", writer.getFlushedCount());
+			counters.put("failed", writer.getFailedCount());
+			counters.put("queued", writer.getQueueSize());
+			result.put("writer", counters);
+		}
+		ProfileEventChannels eventChannels = JMPFactory.getProfileEventChannels();
+		if (eventChannels != null) {
+			result.put("eventChannels", eventChannels.getStats());
+		}
+		ClusterProfileResolver resolver = JMPFactory.getClusterProfileResolver();
+		if (resolver != null) {
+			result.put("cluster", resolver.getStats());
+		}
+		TraceExporter exporter = JMPFactory.getTraceExporter();
+		if (exporter != null) {
+			result.put("traceExporter", exporter.getStats());
+		}
+
+		writeJson(req, resp, result);
+	}
+
+	/**
+	 * Report the latency percentiles (in ms) and counts of profiled requests
+	 * per endpoint, over the last 1, 5 and 15 minutes, in JSON format.
+	 */
+	private void doStats(HttpServletRequest req, HttpServletResponse resp) throws IOException, JsonGenerationException, JsonMappingException {
+		Map<String, Object> result = new HashMap<String, Object>();
+
+		EndpointStats stats = JMPFactory.getEndpointStats();
+		result.put("ok", stats != null);
+		if (stats != null) {
+			result.put("endpoints", stats.summarize());
+		}
+
+		writeJson(req, resp, result);
+	}
+
+	/**
+	 * Write the profile of a request (if it is available) as one of the
+	 * {@code requests} of a results response.
+	 */
+	private void writeRequest(JsonGenerator json, String requestId, CompactProfile profile) throws IOException {
+		if (profile != null) {
+			json.writeStartObject();
+			json.writeStringField("id", requestId);
+			json.writeStringField("requestURL", profile.getRequestURL());
+			json.writeNumberField("timestamp", profile.getTimestamp());
+			int threshold = getRepeatedCallThreshold();
+			json.writeFieldName("profile");
+			writeProfileTree(json, profile, profile.getRepeatedCalls().markRepeated(profile, threshold), 0, treeDepth);
+			json.writeFieldName("appstats");
+			writeAppstats(json, profile);
+			json.writeFieldName("repeated");
+			writeRepeatedCalls(json, profile, threshold);
+			json.writeEndObject();
+		}
+	}
+
+	/**
+	 * Fetch the profiles of requests captured by other nodes.
+	 */
+	private Map<String, CompactProfile> resolveRemote(List<String> requestIds) {
+		ClusterProfileResolver resolver = JMPFactory.getClusterProfileResolver();
+		if (resolver == null) {
+			return Collections.emptyMap();
+		}
+		return resolver.resolveRemote(requestIds);
+	}
+
+	/**
+	 * Get the profile of a request captured by this node.
+	 */
+	private CompactProfile getProfile(String requestId) {
+		String key = String.format(MiniProfilerFilter.CACHE_KEY_FORMAT_STRING, requestId);
+		CompactProfile profile = ProfileCodec.fromRequestData(cacheProfilerService.get(key));
+		if (profile == null) {
+			AsyncProfileWriter writer = JMPFactory.getAsyncProfileWriter();
+			if (writer != null) {
+				profile = writer.getPending(requestId);
+				if (profile == null) {
+					// it may have been stored between the two lookups
+					profile = ProfileCodec.fromRequestData(cacheProfilerService.get(key));
 				}
-				cs.setCalls(cs.getCalls()+1);
-				cs.setTotalTime(cs.getTotalTime() + prof.getDuration());				
 			}
-			
-			
-			// recursive
-			Map<String, CallStat> rec = getCallStats(prof.getChildren()); 
-			
-			// collate the maps
-			Iterator<String> iter = rec.keySet().iterator();
-			while (iter.hasNext()) {
-				String tag = (String) iter.next();
-				if (map.containsKey(tag)) {
-					CallStat csnew      = rec.get(tag);
-					CallStat csexisting = map.get(tag);
-					
-					csexisting.setCalls(csexisting.getCalls() + csnew.getCalls());
-					csexisting.setTotalTime(csexisting.getTotalTime() + csnew.getTotalTime());					
-				} else {
-					map.put(tag, rec.get(tag));
+		}
+		return profile;
+	}
+
+	/**
+	 * Write (part of) the nested profile tree (in the shape the UI expects)
+	 * from the flattened form. Every node has the number of its children, so
+	 * the UI can tell which ones were left out.
+	 * <p>
+	 * Nodes are stored in pre-order, so a node's subtree is the run of nodes
+	 * after it up to the first one whose parent comes before it. The depths,
+	 * self times and child counts are only worked out for that subtree.
+	 *
+	 * @param repeated
+	 *            Which steps to mark as repeated calls.
+	 * @param root
+	 *            The node to start from.
+	 * @param maxDepth
+	 *            The number of levels to write (including the root), or 0
+	 *            for all of them.
+	 */
+	private void writeProfileTree(JsonGenerator json, CompactProfile profile, boolean[] repeated, int root, int maxDepth) throws IOException {
+		int count = profile.getNodeCount();
+		if (count == 0) {
+			json.writeNull();
+			return;
+		}
+		int end = root + 1;
+		while (end < count && profile.getParent(end) >= root) {
+			end++;
+		}
+		int rootDepth = 0;
+		for (int parent = profile.getParent(root); parent >= 0; parent = profile.getParent(parent)) {
+			rootDepth++;
+		}
+
+		// indexed from the root
+		int size = end - root;
+		int[] depths = new int[size];
+		long[] self = new long[size];
+		int[] childCounts = new int[size];
+		depths[0] = rootDepth;
+		self[0] = profile.getDuration(root);
+		for (int n = 1; n < size; n++) {
+			int parent = profile.getParent(root + n) - root;
+			depths[n] = depths[parent] + 1;
+			self[n] = profile.getDuration(root + n);
+			self[parent] -= self[n];
+			childCounts[parent]++;
+		}
+		int lastDepth = maxDepth > 0 ? rootDepth + maxDepth - 1 : Integer.MAX_VALUE;
+
+		int previous = -1;
+		for (int n = 0; n < size; n++) {
+			if (depths[n] > lastDepth) {
+				continue;
+			}
+			if (previous >= 0) {
+				// close every open node that isn't this node's parent
+				for (int open = depths[previous]; open >= depths[n]; open--) {
+					json.writeEndArray();
+					json.writeEndObject();
 				}
 			}
-						
+			previous = n;
+			int i = root + n;
+			json.writeStartObject();
+			json.writeNumberField("id", i);
+			json.writeStringField("name", profile.getName(i));
+			json.writeStringField("tag", profile.getTag(i));
+			json.writeNumberField("depth", depths[n]);
+			json.writeNumberField("offset", profile.getOffset(i));
+			json.writeNumberField("duration", profile.getDuration(i));
+			json.writeNumberField("self", self[n]);
+			json.writeBooleanField("repeated", repeated[i]);
+			json.writeNumberField("count", profile.getCount(i));
+			if (profile.getCount(i) > 1) {
+				json.writeNumberField("max", profile.getMaxDuration(i));
+			}
+			json.writeNumberField("childCount", childCounts[n]);
+			json.writeArrayFieldStart("children");
+		}
+		for (int open = depths[previous]; open >= rootDepth; open--) {
+			json.writeEndArray();
+			json.writeEndObject();
 		}
-		
-		return map;
 	}
-	
-	private class CallStat { 
-		
-		private String tag;
-		private Integer calls = 0;
-		private Long totalTime = 0L;
-		
-		public CallStat(String tag) {
-			this.tag = tag;
+
+	/**
+	 * Write the call stats that were rolled up when the profile was captured.
+	 */
+	private void writeAppstats(JsonGenerator json, CompactProfile profile) throws IOException {
+		TagRollups rollups = profile.getRollups();
+
+		json.writeStartObject();
+		json.writeFieldName("rpcStats");
+		if (rollups.isEmpty()) {
+			json.writeNull();
+		} else {
+			json.writeStartObject();
+			for (int i = 0; i < rollups.size(); i++) {
+				json.writeObjectFieldStart(profile.getString(rollups.getTagIndex(i)));
+				json.writeNumberField("totalCalls", rollups.getCalls(i));
+				json.writeNumberField("totalTime", toMillis(rollups.getTotalTime(i)));
+				json.writeNumberField("selfTime", toMillis(rollups.getSelfTime(i)));
+				json.writeNumberField("minTime", toMillis(rollups.getMinTime(i)));
+				json.writeNumberField("maxTime", toMillis(rollups.getMaxTime(i)));
+				json.writeEndObject();
+			}
+			json.writeEndObject();
 		}
-		
-		@SuppressWarnings("unused")
-		public String getTag() {
-			return tag;
+		json.writeEndObject();
+	}
+
+	/**
+	 * Write the steps that were repeated under the same parent at least
+	 * {@code threshold} times (most time first).
+	 */
+	private void writeRepeatedCalls(JsonGenerator json, CompactProfile profile, int threshold) throws IOException {
+		RepeatedCalls repeated = profile.getRepeatedCalls();
+
+		json.writeStartArray();
+		for (int g = 0; g < repeated.size(); g++) {
+			if (repeated.getCount(g) < threshold) {
+				continue;
+			}
+			json.writeStartObject();
+			json.writeStringField("step", profile.getString(repeated.getKeyIndex(g)));
+			json.writeBooleanField("byTag", repeated.isByTag(g));
+			json.writeNumberField("count", repeated.getCount(g));
+			json.writeNumberField("totalTime", toMillis(repeated.getTotalTime(g)));
+			json.writeNumberField("maxTime", toMillis(repeated.getMaxTime(g)));
+			json.writeNumberField("parentId", repeated.getOwner(g));
+			json.writeStringField("parent", profile.getName(repeated.getOwner(g)));
+			json.writeEndObject();
 		}
-		
-		public Integer getCalls() {
-			return calls;
+		json.writeEndArray();
+	}
+
+	/**
+	 * The number of runs under one parent from which a step is reported as a
+	 * repeated call (as configured on the filter).
+	 */
+	private int getRepeatedCallThreshold() {
+		return repeatedCallStats != null ? repeatedCallStats.getThreshold() : RepeatedCalls.DEFAULT_THRESHOLD;
+	}
+
+	/**
+	 * Write a JSON response, compressed if the client accepts it.
+	 */
+	private void writeJson(HttpServletRequest req, HttpServletResponse resp, Object result) throws IOException, JsonGenerationException, JsonMappingException {
+		resp.setContentType("application/json");
+		resp.setHeader("Cache-Control", "no-cache");
+
+		OutputStream out = openJsonStream(req, resp);
+		jsonMapper.writeValue(out, result);
+		out.close();
+	}
+
+	/**
+	 * Get the stream to write a JSON response to, gzipping it if the client
+	 * accepts gzip encoding.
+	 */
+	private OutputStream openJsonStream(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+		resp.addHeader("Vary", "Accept-Encoding");
+		if (acceptsGzip(req)) {
+			resp.setHeader("Content-Encoding", "gzip");
+			return new GZIPOutputStream(resp.getOutputStream(), 8192);
 		}
-		public void setCalls(Integer calls) {
-			this.calls = calls;
+		return resp.getOutputStream();
+	}
+
+	private static boolean acceptsGzip(HttpServletRequest req) {
+		String acceptEncoding = req.getHeader("Accept-Encoding");
+		if (acceptEncoding == null) {
+			return false;
 		}
-		public Long getTotalTime() {
-			return totalTime;
+		for (String coding : acceptEncoding.split(",")) {
+			String[] parts = coding.trim().split(";");
+			if (parts[0].trim().equalsIgnoreCase("gzip")) {
+				// honour an explicit "gzip;q=0"
+				return parts.length < 2 || !parts[1].trim().matches("q\\s*=\\s*0(\\.0*)?");
+			}
 		}
-		public void setTotalTime(Long totalTime) {
-			this.totalTime = totalTime;
+		return false;
+	}
+
+	/**
+	 * Convert nanoseconds to milliseconds, rounded to 2 decimal places.
+	 */
+	private static double toMillis(long nanos) {
+		return Math.round(nanos / 10000.0) / 100.0;
+	}
+
+	/**
+	 * Get the per tag call stats of a profile tree, in the shape the UI
+	 * expects.
+	 */
+	public Map<String, Object> getAppstatsDataFor(Profile rootProfile) {
+		return getAppstatsDataFor(ProfileCodec.encode(rootProfile, null, 0));
+	}
+
+	/**
+	 * Get the per tag call stats of a captured profile, from its rollups.
+	 */
+	public Map<String, Object> getAppstatsDataFor(CompactProfile profile) {
+		Map<String, Object> appstatsMap = new HashMap<String, Object>();
+		Map<String, Map<String, Object>> rpcInfoMap = new LinkedHashMap<String, Map<String, Object>>();
+		
+		TagRollups rollups = profile.getRollups();
+		for (int i = 0; i < rollups.size(); i++) {
+			Map<String, Object> rpcInfo = new LinkedHashMap<String, Object>();
+			rpcInfoMap.put(profile.getString(rollups.getTagIndex(i)), rpcInfo);
+						
+			rpcInfo.put("totalCalls", rollups.getCalls(i));
+			rpcInfo.put("totalTime", toMillis(rollups.getTotalTime(i)));
+			rpcInfo.put("selfTime", toMillis(rollups.getSelfTime(i)));
+			rpcInfo.put("minTime", toMillis(rollups.getMinTime(i)));
+			rpcInfo.put("maxTime", toMillis(rollups.getMaxTime(i)));
 		}
 		
+		appstatsMap.put("rpcStats", !rpcInfoMap.isEmpty() ? rpcInfoMap : null);
+
+		return appstatsMap;
 	}
 
 	/**
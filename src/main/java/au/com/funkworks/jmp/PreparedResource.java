@@ -0,0 +1,132 @@
+package au.com.funkworks.jmp;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * A static resource of the profiler UI, ready to be served: template
+ * replacements applied, encoded to bytes, gzipped and content hashed.
+ */
+public class PreparedResource {
+
+	private final String name;
+	private final String contentType;
+	private final byte[] bytes;
+
+	/** The gzipped bytes, or {@code null} if gzipping doesn't make them smaller. */
+	private final byte[] gzippedBytes;
+
+	/** A hash of the contents, used as the fingerprint in resource URLs. */
+	private final String version;
+
+	private final String etag;
+	private final String gzippedEtag;
+
+	public PreparedResource(String name, String contents) {
+		this.name = name;
+		this.contentType = contentTypeFor(name);
+		this.bytes = utf8(contents);
+		byte[] gzipped = gzip(bytes);
+		this.gzippedBytes = gzipped.length < bytes.length ? gzipped : null;
+		this.version = hash(bytes);
+		this.etag = "\"" + version + "\"";
+		this.gzippedEtag = "\"" + version + "-gz\"";
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public String getContentType() {
+		return contentType;
+	}
+
+	public byte[] getBytes() {
+		return bytes;
+	}
+
+	public byte[] getGzippedBytes() {
+		return gzippedBytes;
+	}
+
+	public String getVersion() {
+		return version;
+	}
+
+	/**
+	 * The strong ETag of one of the representations of this resource.
+	 */
+	public String getEtag(boolean gzipped) {
+		return gzipped ? gzippedEtag : etag;
+	}
+
+	/**
+	 * Whether an {@code If-None-Match} header matches either representation
+	 * of this resource.
+	 */
+	public boolean matches(String ifNoneMatch) {
+		if (ifNoneMatch == null) {
+			return false;
+		}
+		for (String tag : ifNoneMatch.split(",")) {
+			tag = tag.trim();
+			if (tag.startsWith("W/")) {
+				tag = tag.substring(2);
+			}
+			if (tag.equals("*") || tag.equals(etag) || tag.equals(gzippedEtag)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static String contentTypeFor(String name) {
+		if (name.endsWith(".js")) {
+			return "text/javascript; charset=UTF-8";
+		} else if (name.endsWith(".css")) {
+			return "text/css; charset=UTF-8";
+		} else if (name.endsWith(".html")) {
+			return "text/html; charset=UTF-8";
+		}
+		return "text/plain; charset=UTF-8";
+	}
+
+	private static byte[] utf8(String s) {
+		try {
+			return s.getBytes("UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException("UTF-8 not supported");
+		}
+	}
+
+	private static byte[] gzip(byte[] bytes) {
+		try {
+			ByteArrayOutputStream out = new ByteArrayOutputStream(bytes.length / 2 + 64);
+			GZIPOutputStream gzip = new GZIPOutputStream(out);
+			gzip.write(bytes);
+			gzip.close();
+			return out.toByteArray();
+		} catch (IOException e) {
+			// can't happen with an in-memory stream
+			throw new IllegalStateException(e.getMessage());
+		}
+	}
+
+	private static String hash(byte[] bytes) {
+		try {
+			byte[] digest = MessageDigest.getInstance("SHA-1").digest(bytes);
+			StringBuilder hex = new StringBuilder();
+			for (int i = 0; i < 8; i++) {
+				hex.append(Character.forDigit((digest[i] >> 4) & 0xF, 16));
+				hex.append(Character.forDigit(digest[i] & 0xF, 16));
+			}
+			return hex.toString();
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("SHA-1 not supported");
+		}
+	}
+}
@@ -0,0 +1,22 @@
+package au.com.funkworks.jmp;
+
+import au.com.funkworks.jmp.codec.CompactProfile;
+
+/**
+ * Told about every profile as it is stored, so that it can be folded into
+ * statistics across requests (without having to read it back from the
+ * {@link au.com.funkworks.jmp.interfaces.CacheProfilerService}).
+ * <p>
+ * Called on the {@link AsyncProfileWriter}'s thread, or on the request thread
+ * when profiles are stored synchronously.
+ */
+public interface ProfileStoreListener {
+
+	/**
+	 * @param requestURI
+	 *            The request URI (without the query string).
+	 * @param profile
+	 *            The stored profile.
+	 */
+	void profileStored(String requestURI, CompactProfile profile);
+}
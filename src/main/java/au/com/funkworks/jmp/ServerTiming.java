@@ -0,0 +1,178 @@
+package au.com.funkworks.jmp;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Formats a profile as a W3C {@code Server-Timing} header value: the total
+ * time of the request, followed by the longest top level steps (or the tags
+ * that took the most time), longest first. For example:
+ *
+ * <pre>
+ * total;dur=123.45, sql;dur=67.8;desc="sql", render;dur=40.12;desc="render view"
+ * </pre>
+ *
+ * Steps with the same name are added together. Metric names are the step
+ * names (or tags) made into header tokens, with the original name as the
+ * description.
+ */
+public class ServerTiming {
+
+	public static final String HEADER = "Server-Timing";
+
+	public static final int DEFAULT_MAX_METRICS = 5;
+
+	/** What the metrics after the total are made of. */
+	public enum Breakdown {
+		/** The top level steps. */
+		STEPS,
+		/** The tags, each counted once however deeply nested. */
+		TAGS
+	}
+
+	private static final int MAX_NAME_LENGTH = 32;
+	private static final int MAX_DESC_LENGTH = 64;
+
+	private static final Comparator<Map.Entry<String, Long>> BY_DURATION = new Comparator<Map.Entry<String, Long>>() {
+		public int compare(Map.Entry<String, Long> a, Map.Entry<String, Long> b) {
+			return b.getValue().compareTo(a.getValue());
+		}
+	};
+
+	private final Breakdown breakdown;
+	private final int maxMetrics;
+
+	/**
+	 * @param breakdown
+	 *            What to break the total down by.
+	 * @param maxMetrics
+	 *            The most metrics to list after the total.
+	 */
+	public ServerTiming(Breakdown breakdown, int maxMetrics) {
+		this.breakdown = breakdown;
+		this.maxMetrics = Math.max(0, maxMetrics);
+	}
+
+	/**
+	 * Format the timing of a completed profile.
+	 */
+	public String format(Profile profile) {
+		StringBuilder header = new StringBuilder(128);
+		appendMetric(header, "total", profile.getDuration(), null);
+		if (maxMetrics == 0) {
+			return header.toString();
+		}
+		Map<String, Long> durations = breakdown == Breakdown.TAGS ? sumTags(profile) : sumTopLevelSteps(profile);
+		List<Map.Entry<String, Long>> metrics = new ArrayList<Map.Entry<String, Long>>(durations.entrySet());
+		Collections.sort(metrics, BY_DURATION);
+		Set<String> usedNames = new HashSet<String>();
+		usedNames.add("total");
+		for (Map.Entry<String, Long> metric : metrics.subList(0, Math.min(maxMetrics, metrics.size()))) {
+			String name = toToken(metric.getKey());
+			for (int i = 2; usedNames.contains(name); i++) {
+				name = toToken(metric.getKey()) + "-" + i;
+			}
+			usedNames.add(name);
+			header.append(", ");
+			appendMetric(header, name, metric.getValue(), metric.getKey());
+		}
+		return header.toString();
+	}
+
+	/**
+	 * Format the time taken until a response was committed, for when the
+	 * profile isn't finished in time for the header.
+	 */
+	public static String formatTimeToFirstByte(long nanos) {
+		StringBuilder header = new StringBuilder(48);
+		appendMetric(header, "ttfb", nanos, "Time until the response was committed");
+		return header.toString();
+	}
+
+	private static Map<String, Long> sumTopLevelSteps(Profile profile) {
+		Map<String, Long> durations = new LinkedHashMap<String, Long>();
+		List<Profile> children = profile.getChildren();
+		if (children != null) {
+			for (Profile child : children) {
+				add(durations, child.getName(), child.getDuration());
+			}
+		}
+		return durations;
+	}
+
+	/**
+	 * Sum the durations of tagged steps, not counting steps nested in a step
+	 * with the same tag (an iterative walk, since profiles can be deep).
+	 */
+	private static Map<String, Long> sumTags(Profile profile) {
+		Map<String, Long> durations = new LinkedHashMap<String, Long>();
+		// the tags that each step is nested in
+		Map<Profile, List<String>> enclosing = new IdentityHashMap<Profile, List<String>>();
+		List<Profile> stack = new ArrayList<Profile>();
+		List<String> none = Collections.emptyList();
+		enclosing.put(profile, none);
+		stack.add(profile);
+		while (!stack.isEmpty()) {
+			Profile node = stack.remove(stack.size() - 1);
+			List<String> tags = enclosing.remove(node);
+			String tag = node.getTag();
+			if (tag != null && tag.length() > 0 && node != profile && !tags.contains(tag)) {
+				add(durations, tag, node.getDuration());
+				tags = new ArrayList<String>(tags);
+				tags.add(tag);
+			}
+			List<Profile> children = node.getChildren();
+			if (children != null) {
+				for (Profile child : children) {
+					enclosing.put(child, tags);
+					stack.add(child);
+				}
+			}
+		}
+		return durations;
+	}
+
+	private static void add(Map<String, Long> durations, String name, long nanos) {
+		if (name == null) {
+			name = "";
+		}
+		Long total = durations.get(name);
+		durations.put(name, total == null ? nanos : total + nanos);
+	}
+
+	private static void appendMetric(StringBuilder header, String name, long nanos, String desc) {
+		header.append(name).append(";dur=").append(Math.round(nanos / 10000.0) / 100.0);
+		if (desc != null) {
+			header.append(";desc=\"");
+			for (int i = 0; i < desc.length() && i < MAX_DESC_LENGTH; i++) {
+				char c = desc.charAt(i);
+				if (c == '"' || c == '\\') {
+					header.append('\\').append(c);
+				} else {
+					header.append(c >= 0x20 && c < 0x7F ? c : '?');
+				}
+			}
+			header.append('"');
+		}
+	}
+
+	/**
+	 * Make a name into a header token (letters, digits and some punctuation).
+	 */
+	private static String toToken(String name) {
+		StringBuilder token = new StringBuilder(Math.min(name.length(), MAX_NAME_LENGTH));
+		for (int i = 0; i < name.length() && token.length() < MAX_NAME_LENGTH; i++) {
+			char c = name.charAt(i);
+			boolean tokenChar = (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || "!#$%&'*+-.^_`|~".indexOf(c) >= 0;
+			token.append(tokenChar ? c : '_');
+		}
+		return token.length() > 0 ? token.toString() : "step";
+	}
+}
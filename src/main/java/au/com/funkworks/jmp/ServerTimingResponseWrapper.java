@@ -0,0 +1,276 @@
+package au.com.funkworks.jmp;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Collections;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A response wrapper that adds a {@code Server-Timing} header to a profiled
+ * response.
+ * <p>
+ * Most responses fit in the container's buffer, so they haven't been
+ * committed by the time the request has been processed, and the filter can
+ * add the full header (see {@link #finish(String)}). When the application
+ * commits the response earlier (by flushing it, sending an error or a
+ * redirect, or writing more than the buffer holds) the profile isn't
+ * finished yet, so a {@code ttfb} metric with the time until the commit is
+ * added just before it instead. The full header is then sent as a trailer,
+ * if the container supports them (Servlet 4, found by reflection) and the
+ * client asked for them with {@code TE: trailers}.
+ * <p>
+ * The buffer overflow is tracked by counting what is written, taking a
+ * character to be (at least) a byte, so a writer of multi-byte text can
+ * overflow the buffer a little before it is noticed; such responses just
+ * lose the {@code ttfb} metric.
+ */
+public class ServerTimingResponseWrapper extends HttpServletResponseWrapper {
+
+	private static final Logger logger = LoggerFactory.getLogger(ServerTimingResponseWrapper.class);
+
+	/** {@code HttpServletResponse.setTrailerFields(Supplier)}, if available. */
+	private static final Method SET_TRAILER_FIELDS;
+	private static final Class<?> SUPPLIER;
+
+	static {
+		Method setTrailerFields = null;
+		Class<?> supplier = null;
+		try {
+			supplier = Class.forName("java.util.function.Supplier");
+			setTrailerFields = HttpServletResponse.class.getMethod("setTrailerFields", supplier);
+		} catch (ClassNotFoundException e) {
+			// before Java 8
+		} catch (NoSuchMethodException e) {
+			// before Servlet 4
+		}
+		SET_TRAILER_FIELDS = setTrailerFields;
+		SUPPLIER = supplier;
+	}
+
+	private final long startNanos;
+
+	/** Whether a Server-Timing header has been added. */
+	private boolean headerAdded;
+
+	/** The full header to send as a trailer, once it is known. */
+	private volatile String trailer;
+
+	private long written;
+
+	private CountingOutputStream outputStream;
+	private PrintWriter writer;
+
+	/**
+	 * @param startNanos
+	 *            When the request started (from {@link System#nanoTime()}).
+	 * @param trailers
+	 *            Whether the client accepts trailers.
+	 */
+	public ServerTimingResponseWrapper(HttpServletResponse response, long startNanos, boolean trailers) {
+		super(response);
+		this.startNanos = startNanos;
+		if (trailers && SET_TRAILER_FIELDS != null) {
+			declareTrailer(response);
+		}
+	}
+
+	/**
+	 * Add the full timing of the request: as a header if the response hasn't
+	 * been committed yet, otherwise as a trailer (if possible). Called by the
+	 * filter once the request has been processed.
+	 *
+	 * @param timing
+	 *            The formatted {@code Server-Timing} value.
+	 */
+	public void finish(String timing) {
+		if (!isCommitted()) {
+			setHeader(ServerTiming.HEADER, timing);
+			headerAdded = true;
+		} else {
+			trailer = timing;
+		}
+	}
+
+	@Override
+	public ServletOutputStream getOutputStream() throws IOException {
+		if (outputStream == null) {
+			outputStream = new CountingOutputStream(super.getOutputStream());
+		}
+		return outputStream;
+	}
+
+	@Override
+	public PrintWriter getWriter() throws IOException {
+		if (writer == null) {
+			writer = new PrintWriter(new CountingWriter(super.getWriter()));
+		}
+		return writer;
+	}
+
+	@Override
+	public void flushBuffer() throws IOException {
+		beforeCommit();
+		if (writer != null) {
+			writer.flush();
+		}
+		super.flushBuffer();
+	}
+
+	@Override
+	public void sendError(int sc) throws IOException {
+		beforeCommit();
+		super.sendError(sc);
+	}
+
+	@Override
+	public void sendError(int sc, String msg) throws IOException {
+		beforeCommit();
+		super.sendError(sc, msg);
+	}
+
+	@Override
+	public void sendRedirect(String location) throws IOException {
+		beforeCommit();
+		super.sendRedirect(location);
+	}
+
+	@Override
+	public void reset() {
+		super.reset();
+		headerAdded = false;
+		written = 0;
+	}
+
+	@Override
+	public void resetBuffer() {
+		super.resetBuffer();
+		written = 0;
+	}
+
+	/**
+	 * Add the time until the commit, if the response is about to be
+	 * committed before the full timing is known.
+	 */
+	private void beforeCommit() {
+		if (!headerAdded && !isCommitted()) {
+			addHeader(ServerTiming.HEADER, ServerTiming.formatTimeToFirstByte(System.nanoTime() - startNanos));
+			headerAdded = true;
+		}
+	}
+
+	/**
+	 * Note that some output is about to be written, in case it overflows the
+	 * buffer (committing the response).
+	 */
+	private void beforeWrite(int len) {
+		written += len;
+		if (!headerAdded && written >= getBufferSize()) {
+			beforeCommit();
+		}
+	}
+
+	private void declareTrailer(HttpServletResponse response) {
+		Object supplier = Proxy.newProxyInstance(ServerTimingResponseWrapper.class.getClassLoader(), new Class<?>[] { SUPPLIER }, new InvocationHandler() {
+			public Object invoke(Object proxy, Method method, Object[] args) {
+				if ("get".equals(method.getName())) {
+					String timing = trailer;
+					return timing != null ? Collections.singletonMap(ServerTiming.HEADER, timing) : Collections.<String, String> emptyMap();
+				} else if ("hashCode".equals(method.getName())) {
+					return System.identityHashCode(proxy);
+				} else if ("equals".equals(method.getName())) {
+					return proxy == args[0];
+				}
+				return "ServerTimingTrailer";
+			}
+		});
+		try {
+			SET_TRAILER_FIELDS.invoke(response, supplier);
+		} catch (Exception e) {
+			// the container won't send trailers (e.g. an HTTP/1.0 client)
+			logger.debug("Could not declare the Server-Timing trailer: {}", e.toString());
+		}
+	}
+
+	/**
+	 * Tracks how much binary output has been written.
+	 */
+	private class CountingOutputStream extends ServletOutputStream {
+
+		private final OutputStream out;
+
+		CountingOutputStream(OutputStream out) {
+			this.out = out;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			beforeWrite(1);
+			out.write(b);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			beforeWrite(len);
+			out.write(b, off, len);
+		}
+
+		@Override
+		public void flush() throws IOException {
+			beforeCommit();
+			out.flush();
+		}
+
+		@Override
+		public void close() throws IOException {
+			beforeCommit();
+			out.close();
+		}
+	}
+
+	/**
+	 * Tracks how much character output has been written.
+	 */
+	private class CountingWriter extends Writer {
+
+		private final Writer out;
+
+		CountingWriter(Writer out) {
+			this.out = out;
+		}
+
+		@Override
+		public void write(char[] cbuf, int off, int len) throws IOException {
+			beforeWrite(len);
+			out.write(cbuf, off, len);
+		}
+
+		@Override
+		public void write(String str, int off, int len) throws IOException {
+			beforeWrite(len);
+			out.write(str, off, len);
+		}
+
+		@Override
+		public void flush() throws IOException {
+			beforeCommit();
+			out.flush();
+		}
+
+		@Override
+		public void close() throws IOException {
+			beforeCommit();
+			out.close();
+		}
+	}
+}
@@ -0,0 +1,277 @@
+package au.com.funkworks.jmp.aggregate;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+import au.com.funkworks.jmp.ProfileStoreListener;
+import au.com.funkworks.jmp.codec.CompactProfile;
+import au.com.funkworks.jmp.stats.EndpointStats;
+import au.com.funkworks.jmp.stats.UrlNormalizer;
+
+/**
+ * Aggregate call trees of profiled requests, per endpoint, over a sliding
+ * window of time.
+ * <p>
+ * Each profile is merged into its endpoint's tree for the current time slot
+ * as it is stored (a trie merge by step name), so the trees are built up
+ * incrementally and reading a window only merges the (bounded) trees of its
+ * slots, however many requests went into them. Slots are arranged in a ring
+ * and cleared the first time they are written to in a new period, like the
+ * {@link au.com.funkworks.jmp.stats.SlidingWindowHistogram}.
+ * <p>
+ * Memory is bounded by the number of endpoints and the number of nodes in
+ * each slot's tree. Steps that would grow a full tree are left out, and
+ * their time is added to their parent's self time, so the totals (and
+ * flame graph widths) stay right.
+ */
+public class CallTreeAggregator implements ProfileStoreListener {
+
+	public static final long DEFAULT_SLOT_MILLIS = 60 * 1000L;
+	public static final int DEFAULT_SLOT_COUNT = 15;
+	public static final int DEFAULT_MAX_NODES = 1000;
+	public static final int DEFAULT_MAX_ENDPOINTS = 100;
+
+	private final long slotMillis;
+	private final int slotCount;
+	private final int maxNodes;
+	private final int maxEndpoints;
+
+	private final UrlNormalizer normalizer = new UrlNormalizer();
+
+	private final ConcurrentHashMap<String, EndpointTrees> endpoints = new ConcurrentHashMap<String, EndpointTrees>();
+
+	private final AtomicLong recorded = new AtomicLong();
+	private final AtomicLong truncated = new AtomicLong();
+
+	/**
+	 * @param slotMillis
+	 *            The length of each slot in milliseconds.
+	 * @param slotCount
+	 *            The number of slots (the longest window that can be read).
+	 * @param maxNodes
+	 *            The most nodes in the tree of any one endpoint and slot.
+	 * @param maxEndpoints
+	 *            The most endpoints to keep trees for.
+	 */
+	public CallTreeAggregator(long slotMillis, int slotCount, int maxNodes, int maxEndpoints) {
+		this.slotMillis = slotMillis;
+		this.slotCount = slotCount;
+		this.maxNodes = maxNodes;
+		this.maxEndpoints = maxEndpoints;
+	}
+
+	public void profileStored(String requestURI, CompactProfile profile) {
+		record(requestURI, profile);
+	}
+
+	/**
+	 * Merge a stored profile into its endpoint's tree.
+	 *
+	 * @param uri
+	 *            The request URI (without the query string).
+	 * @param profile
+	 *            The profile of the request.
+	 */
+	public void record(String uri, CompactProfile profile) {
+		record(uri, profile, System.currentTimeMillis());
+	}
+
+	public void record(String uri, CompactProfile profile, long nowMillis) {
+		int count = profile.getNodeCount();
+		if (count == 0) {
+			return;
+		}
+		long[] self = profile.computeSelfTimes();
+		CallTreeNode[] nodes = new CallTreeNode[count];
+		int dropped = 0;
+
+		EndpointTrees trees = treesFor(uri);
+		synchronized (trees) {
+			Slot slot = trees.slotFor(nowMillis / slotMillis);
+			slot.root.record(profile.getDuration(0), 0);
+			for (int i = 0; i < count; i++) {
+				CallTreeNode parent = i == 0 ? slot.root : nodes[profile.getParent(i)];
+				if (parent == null) {
+					// an ancestor was left out
+					continue;
+				}
+				String name = profile.getName(i);
+				CallTreeNode node = parent.getChild(name);
+				if (node == null) {
+					if (slot.nodes >= maxNodes) {
+						parent.addSelf(profile.getDuration(i));
+						dropped++;
+						continue;
+					}
+					node = parent.addChild(name);
+					slot.nodes++;
+				}
+				node.record(profile.getCount(i), profile.getDuration(i), self[i], profile.getMaxDuration(i));
+				nodes[i] = node;
+			}
+		}
+		recorded.incrementAndGet();
+		if (dropped > 0) {
+			truncated.addAndGet(dropped);
+		}
+	}
+
+	/**
+	 * Merge the trees of the endpoints matching a pattern over a window.
+	 *
+	 * @param endpointPattern
+	 *            The endpoint patterns (as grouped by {@link UrlNormalizer})
+	 *            to include, or {@code null} for all of them.
+	 * @param windowMillis
+	 *            How far back to go (rounded up to whole slots, and capped
+	 *            at the ring size).
+	 * @return The merged tree.
+	 */
+	public Aggregate aggregate(Pattern endpointPattern, long windowMillis) {
+		return aggregate(endpointPattern, windowMillis, System.currentTimeMillis());
+	}
+
+	public Aggregate aggregate(Pattern endpointPattern, long windowMillis, long nowMillis) {
+		long period = nowMillis / slotMillis;
+		long slots = Math.max(1, Math.min(slotCount, (windowMillis + slotMillis - 1) / slotMillis));
+
+		CallTreeNode root = new CallTreeNode("");
+		List<String> matched = new ArrayList<String>();
+		for (Map.Entry<String, EndpointTrees> entry : endpoints.entrySet()) {
+			if (endpointPattern != null && !endpointPattern.matcher(entry.getKey()).matches()) {
+				continue;
+			}
+			boolean merged = false;
+			EndpointTrees trees = entry.getValue();
+			synchronized (trees) {
+				for (Slot slot : trees.slots) {
+					if (slot.period > period - slots && slot.period <= period) {
+						root.merge(slot.root);
+						merged = true;
+					}
+				}
+			}
+			if (merged) {
+				matched.add(entry.getKey());
+			}
+		}
+		Collections.sort(matched);
+		return new Aggregate(root, matched, slots * slotMillis);
+	}
+
+	/**
+	 * Get the counters, suitable for JSON output.
+	 */
+	public Map<String, Object> getStats() {
+		Map<String, Object> stats = new LinkedHashMap<String, Object>();
+		stats.put("recorded", recorded.get());
+		stats.put("truncatedSteps", truncated.get());
+		stats.put("endpoints", endpoints.size());
+		stats.put("slotSeconds", slotMillis / 1000);
+		stats.put("slots", slotCount);
+		stats.put("maxNodes", maxNodes);
+		return stats;
+	}
+
+	/**
+	 * Get the trees for a URI's endpoint, creating them if required.
+	 */
+	private EndpointTrees treesFor(String uri) {
+		String endpoint = normalizer.normalize(uri);
+		EndpointTrees trees = endpoints.get(endpoint);
+		if (trees == null) {
+			if (endpoints.size() >= maxEndpoints) {
+				endpoint = EndpointStats.OTHER_ENDPOINT;
+			}
+			trees = endpoints.get(endpoint);
+			if (trees == null) {
+				EndpointTrees created = new EndpointTrees(slotCount);
+				trees = endpoints.putIfAbsent(endpoint, created);
+				if (trees == null) {
+					trees = created;
+				}
+			}
+		}
+		return trees;
+	}
+
+	/**
+	 * A merged call tree.
+	 */
+	public static class Aggregate {
+
+		private final CallTreeNode root;
+		private final List<String> endpoints;
+		private final long windowMillis;
+
+		Aggregate(CallTreeNode root, List<String> endpoints, long windowMillis) {
+			this.root = root;
+			this.endpoints = endpoints;
+			this.windowMillis = windowMillis;
+		}
+
+		/**
+		 * The synthetic root of the tree, whose children are the root steps
+		 * of the requests.
+		 */
+		public CallTreeNode getRoot() {
+			return root;
+		}
+
+		/** The number of requests merged. */
+		public long getRequestCount() {
+			return root.getCount();
+		}
+
+		/** The endpoints that had requests in the window. */
+		public List<String> getEndpoints() {
+			return endpoints;
+		}
+
+		/** The window actually read (in whole slots). */
+		public long getWindowMillis() {
+			return windowMillis;
+		}
+	}
+
+	/**
+	 * The ring of slots of an endpoint.
+	 */
+	private static class EndpointTrees {
+
+		private final Slot[] slots;
+
+		EndpointTrees(int slotCount) {
+			slots = new Slot[slotCount];
+			for (int i = 0; i < slotCount; i++) {
+				slots[i] = new Slot();
+			}
+		}
+
+		/**
+		 * Get the slot for a period, clearing it if it holds an older one.
+		 */
+		Slot slotFor(long period) {
+			Slot slot = slots[(int) (period % slots.length)];
+			if (slot.period != period) {
+				slot.period = period;
+				slot.root = new CallTreeNode("");
+				slot.nodes = 0;
+			}
+			return slot;
+		}
+	}
+
+	private static class Slot {
+
+		private long period = -1;
+		private CallTreeNode root = new CallTreeNode("");
+		private int nodes;
+	}
+}
@@ -0,0 +1,209 @@
+package au.com.funkworks.jmp.aggregate;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A node of an aggregate call tree: the steps with the same name on the
+ * same path, merged across many requests.
+ * <p>
+ * Not thread-safe; trees are guarded by their owner.
+ */
+public class CallTreeNode {
+
+	/** Orders nodes by total time, longest first. */
+	private static final Comparator<CallTreeNode> BY_TOTAL = new Comparator<CallTreeNode>() {
+		public int compare(CallTreeNode a, CallTreeNode b) {
+			return a.totalNanos < b.totalNanos ? 1 : (a.totalNanos == b.totalNanos ? 0 : -1);
+		}
+	};
+
+	private final String name;
+
+	private long count;
+	private long totalNanos;
+	private long selfNanos;
+	private long maxNanos;
+
+	/** The children by name, or {@code null} if there are none. */
+	private Map<String, CallTreeNode> children;
+
+	public CallTreeNode(String name) {
+		this.name = name;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	/** The number of times the step was run. */
+	public long getCount() {
+		return count;
+	}
+
+	public long getTotalNanos() {
+		return totalNanos;
+	}
+
+	public long getSelfNanos() {
+		return selfNanos;
+	}
+
+	/** The duration (in nanoseconds) of the longest single run. */
+	public long getMaxNanos() {
+		return maxNanos;
+	}
+
+	public Collection<CallTreeNode> getChildren() {
+		if (children == null) {
+			return Collections.emptyList();
+		}
+		return children.values();
+	}
+
+	CallTreeNode getChild(String childName) {
+		return children != null ? children.get(childName) : null;
+	}
+
+	CallTreeNode addChild(String childName) {
+		if (children == null) {
+			children = new LinkedHashMap<String, CallTreeNode>();
+		}
+		CallTreeNode child = new CallTreeNode(childName);
+		children.put(childName, child);
+		return child;
+	}
+
+	/**
+	 * Record one run of the step.
+	 */
+	void record(long duration, long self) {
+		record(1, duration, self, duration);
+	}
+
+	/**
+	 * Record a number of (coalesced) runs of the step.
+	 *
+	 * @param max
+	 *            The duration of the longest run.
+	 */
+	void record(int runs, long duration, long self, long max) {
+		count += runs;
+		totalNanos += duration;
+		selfNanos += self;
+		if (max > maxNanos) {
+			maxNanos = max;
+		}
+	}
+
+	/**
+	 * Add time to the step's self time (for descendants that were left out
+	 * of the tree).
+	 */
+	void addSelf(long nanos) {
+		selfNanos += nanos;
+	}
+
+	/**
+	 * Merge another tree (whose root is taken to be this node) into this
+	 * one, with a single iterative walk.
+	 */
+	void merge(CallTreeNode other) {
+		List<CallTreeNode> targets = new ArrayList<CallTreeNode>();
+		List<CallTreeNode> sources = new ArrayList<CallTreeNode>();
+		targets.add(this);
+		sources.add(other);
+		while (!sources.isEmpty()) {
+			CallTreeNode target = targets.remove(targets.size() - 1);
+			CallTreeNode source = sources.remove(sources.size() - 1);
+			target.count += source.count;
+			target.totalNanos += source.totalNanos;
+			target.selfNanos += source.selfNanos;
+			target.maxNanos = Math.max(target.maxNanos, source.maxNanos);
+			for (CallTreeNode sourceChild : source.getChildren()) {
+				CallTreeNode targetChild = target.getChild(sourceChild.name);
+				if (targetChild == null) {
+					targetChild = target.addChild(sourceChild.name);
+				}
+				targets.add(targetChild);
+				sources.add(sourceChild);
+			}
+		}
+	}
+
+	/**
+	 * Convert the tree to maps and lists, suitable for JSON output. Durations
+	 * are in milliseconds, and children are ordered by total time.
+	 */
+	public Map<String, Object> toMap() {
+		Map<String, Object> map = new LinkedHashMap<String, Object>();
+		map.put("name", name);
+		map.put("count", count);
+		map.put("total", toMillis(totalNanos));
+		map.put("self", toMillis(selfNanos));
+		map.put("max", toMillis(maxNanos));
+
+		List<CallTreeNode> sorted = new ArrayList<CallTreeNode>(getChildren());
+		Collections.sort(sorted, BY_TOTAL);
+		List<Map<String, Object>> childMaps = new ArrayList<Map<String, Object>>(sorted.size());
+		for (CallTreeNode child : sorted) {
+			childMaps.add(child.toMap());
+		}
+		map.put("children", childMaps);
+		return map;
+	}
+
+	/**
+	 * Write the tree in the collapsed stack format read by flame graph tools:
+	 * one line per path, its step names joined by {@code ;}, followed by the
+	 * self time (in microseconds) of the last step. This node itself is taken
+	 * to be a synthetic root, and is left out of the paths.
+	 */
+	public void writeCollapsed(Writer out) throws IOException {
+		List<CallTreeNode> nodes = new ArrayList<CallTreeNode>();
+		List<String> paths = new ArrayList<String>();
+		for (CallTreeNode child : getChildren()) {
+			nodes.add(child);
+			paths.add(frame(child.name));
+		}
+		while (!nodes.isEmpty()) {
+			CallTreeNode node = nodes.remove(nodes.size() - 1);
+			String path = paths.remove(paths.size() - 1);
+			long micros = node.selfNanos / 1000;
+			if (micros > 0) {
+				out.write(path);
+				out.write(' ');
+				out.write(Long.toString(micros));
+				out.write('\n');
+			}
+			for (CallTreeNode child : node.getChildren()) {
+				nodes.add(child);
+				paths.add(path + ";" + frame(child.name));
+			}
+		}
+	}
+
+	/**
+	 * Make a step name safe to use as a frame of a collapsed stack.
+	 */
+	private static String frame(String name) {
+		if (name.length() == 0) {
+			return "(unnamed)";
+		}
+		return name.replace(';', ':').replace('\n', ' ').replace('\r', ' ');
+	}
+
+	/**
+	 * Convert nanoseconds to milliseconds, rounded to 2 decimal places.
+	 */
+	private static double toMillis(long nanos) {
+		return Math.round(nanos / 10000.0) / 100.0;
+	}
+}
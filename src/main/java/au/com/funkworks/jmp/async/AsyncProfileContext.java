@@ -0,0 +1,142 @@
+package au.com.funkworks.jmp.async;
+
+import javax.servlet.ServletRequest;
+
+import au.com.funkworks.jmp.IncludesInjectingResponseWrapper;
+import au.com.funkworks.jmp.Profile;
+import au.com.funkworks.jmp.codec.ProfileSegments;
+
+/**
+ * The profiling state of an asynchronous request, carried from dispatch to
+ * dispatch (and across container threads) in a request attribute.
+ * <p>
+ * Each dispatch adds the profile of its own thread as a segment; the
+ * request is finished exactly once, when it completes, times out or fails.
+ * <p>
+ * This class doesn't depend on the Servlet 3 API, so it is safe to load in
+ * any container.
+ */
+public class AsyncProfileContext {
+
+	/** The request attribute that holds the context. */
+	public static final String ATTRIBUTE = "mini_profile_async_context";
+
+	/**
+	 * Called when an asynchronous request has finished.
+	 */
+	public interface Completion {
+
+		/**
+		 * @param context
+		 *            The finished request's context.
+		 * @param outcome
+		 *            How the request ended abnormally ({@code "timeout"} or
+		 *            {@code "error"}), or {@code null} if it completed.
+		 */
+		void complete(AsyncProfileContext context, String outcome);
+	}
+
+	/**
+	 * Whether the container supports the Servlet 3 async API (and so
+	 * whether {@link AsyncProfiling} can be used). Doesn't load any Servlet 3
+	 * classes.
+	 */
+	public static boolean isAsyncSupported() {
+		try {
+			ServletRequest.class.getMethod("isAsyncStarted");
+			return true;
+		} catch (NoSuchMethodException e) {
+			return false;
+		}
+	}
+
+	private final String requestId;
+	private final String requestURI;
+	private final String queryString;
+	private final long timestamp;
+	private final long startNanos;
+	private final String channelId;
+	private final IncludesInjectingResponseWrapper injectingResponse;
+
+	private final ProfileSegments segments = new ProfileSegments();
+	private boolean finished;
+
+	/**
+	 * @param timestamp
+	 *            The time (in milliseconds) at which the request started.
+	 * @param startNanos
+	 *            The {@code System.nanoTime()} at which the request started.
+	 * @param channelId
+	 *            The event channel of the page that made the request, or
+	 *            {@code null}.
+	 * @param injectingResponse
+	 *            The response wrapper injecting the UI includes, or
+	 *            {@code null}.
+	 */
+	public AsyncProfileContext(String requestId, String requestURI, String queryString, long timestamp, long startNanos, String channelId,
+			IncludesInjectingResponseWrapper injectingResponse) {
+		this.requestId = requestId;
+		this.requestURI = requestURI;
+		this.queryString = queryString;
+		this.timestamp = timestamp;
+		this.startNanos = startNanos;
+		this.channelId = channelId;
+		this.injectingResponse = injectingResponse;
+	}
+
+	/**
+	 * Add the profile of a dispatch.
+	 *
+	 * @param segment
+	 *            The profile of the dispatch's thread.
+	 * @param dispatchStartNanos
+	 *            The {@code System.nanoTime()} at which the dispatch started.
+	 */
+	public synchronized void addSegment(Profile segment, long dispatchStartNanos) {
+		if (!finished) {
+			segments.add(segment, dispatchStartNanos - startNanos);
+		}
+	}
+
+	/**
+	 * Mark the request as finished.
+	 *
+	 * @param outcome
+	 *            How the request ended abnormally, or {@code null}.
+	 * @return The segments of the request, or {@code null} if it had already
+	 *         finished.
+	 */
+	public synchronized ProfileSegments finish(String outcome) {
+		if (finished) {
+			return null;
+		}
+		finished = true;
+		segments.end(System.nanoTime() - startNanos, outcome);
+		return segments;
+	}
+
+	public String getRequestId() {
+		return requestId;
+	}
+
+	public String getRequestURI() {
+		return requestURI;
+	}
+
+	public String getQueryString() {
+		return queryString;
+	}
+
+	/** The time (in milliseconds) at which the request started. */
+	public long getTimestamp() {
+		return timestamp;
+	}
+
+	public String getChannelId() {
+		return channelId;
+	}
+
+	public IncludesInjectingResponseWrapper getInjectingResponse() {
+		return injectingResponse;
+	}
+}
@@ -0,0 +1,38 @@
+package au.com.funkworks.jmp.async;
+
+import java.io.IOException;
+
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+
+/**
+ * Finishes the profile of an asynchronous request when it completes, times
+ * out or fails (whichever is seen first).
+ */
+class AsyncProfileListener implements AsyncListener {
+
+	private final AsyncProfileContext context;
+	private final AsyncProfileContext.Completion completion;
+
+	AsyncProfileListener(AsyncProfileContext context, AsyncProfileContext.Completion completion) {
+		this.context = context;
+		this.completion = completion;
+	}
+
+	public void onComplete(AsyncEvent event) throws IOException {
+		completion.complete(context, null);
+	}
+
+	public void onTimeout(AsyncEvent event) throws IOException {
+		completion.complete(context, "timeout");
+	}
+
+	public void onError(AsyncEvent event) throws IOException {
+		completion.complete(context, "error");
+	}
+
+	public void onStartAsync(AsyncEvent event) throws IOException {
+		// listeners are dropped when a dispatch starts async mode again
+		event.getAsyncContext().addListener(this);
+	}
+}
@@ -0,0 +1,58 @@
+package au.com.funkworks.jmp.async;
+
+import javax.servlet.DispatcherType;
+import javax.servlet.ServletRequest;
+
+/**
+ * The filter's use of the Servlet 3 async API.
+ * <p>
+ * Everything that touches the Servlet 3 API is kept in this class (and
+ * {@link AsyncProfileListener}), which the filter only loads once
+ * {@link AsyncProfileContext#isAsyncSupported()} has said that the
+ * container supports it, so the filter still runs in Servlet 2.5
+ * containers.
+ */
+public class AsyncProfiling {
+
+	private AsyncProfiling() {
+	}
+
+	/**
+	 * Whether the request has been put into asynchronous mode.
+	 */
+	public static boolean isAsyncStarted(ServletRequest request) {
+		return request.isAsyncStarted();
+	}
+
+	/**
+	 * Get the profiling context of an asynchronous request being
+	 * re-dispatched.
+	 *
+	 * @return The context, or {@code null} if this isn't the async dispatch
+	 *         of a profiled request.
+	 */
+	public static AsyncProfileContext getDispatchContext(ServletRequest request) {
+		if (request.getDispatcherType() != DispatcherType.ASYNC) {
+			return null;
+		}
+		Object context = request.getAttribute(AsyncProfileContext.ATTRIBUTE);
+		return context instanceof AsyncProfileContext ? (AsyncProfileContext) context : null;
+	}
+
+	/**
+	 * Carry a profile across the dispatches of a request that has been put
+	 * into asynchronous mode, and finish it when the request does.
+	 *
+	 * @param request
+	 *            The request, which must be in asynchronous mode.
+	 * @param context
+	 *            The request's profiling context.
+	 * @param completion
+	 *            Called (once) when the request completes, times out or
+	 *            fails.
+	 */
+	public static void track(ServletRequest request, AsyncProfileContext context, AsyncProfileContext.Completion completion) {
+		request.setAttribute(AsyncProfileContext.ATTRIBUTE, context);
+		request.getAsyncContext().addListener(new AsyncProfileListener(context, completion));
+	}
+}
@@ -0,0 +1,178 @@
+package au.com.funkworks.jmp.auth;
+
+import java.security.Principal;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpSession;
+
+/**
+ * Caches whether the user behind a session (or auth principal) is allowed to
+ * be profiled, so a restricted filter doesn't have to ask the
+ * {@code UserProfilerService} on every request.
+ * <p>
+ * A session's decision is cached together with the principal it was made
+ * for, so logging in (or out) within a session gets a new decision.
+ * <p>
+ * Decisions expire after a fixed time to live, and can be dropped explicitly
+ * (e.g. by {@link AuthDecisionSessionListener} when a session ends). The
+ * cache is bounded: when it is full, expired decisions are swept out, and if
+ * that doesn't free any room an arbitrary decision is evicted.
+ */
+public class AuthDecisionCache {
+
+	public static final long DEFAULT_TTL_SECONDS = 60;
+	public static final int DEFAULT_MAX_ENTRIES = 10000;
+
+	private final ConcurrentHashMap<String, Decision> decisions = new ConcurrentHashMap<String, Decision>();
+	private final long ttlNanos;
+	private final int maxEntries;
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong evictions = new AtomicLong();
+
+	public AuthDecisionCache(long ttlSeconds, int maxEntries) {
+		this.ttlNanos = TimeUnit.SECONDS.toNanos(ttlSeconds);
+		this.maxEntries = Math.max(1, maxEntries);
+	}
+
+	/**
+	 * Get the cached decision for a session or principal.
+	 * 
+	 * @return The decision, or {@code null} if it isn't cached (or has
+	 *         expired).
+	 */
+	public Boolean get(String key) {
+		Decision decision = decisions.get(key);
+		if (decision != null && System.nanoTime() - decision.expires < 0) {
+			hits.incrementAndGet();
+			return decision.allowed;
+		}
+		misses.incrementAndGet();
+		return null;
+	}
+
+	/**
+	 * Cache the decision for a session or principal.
+	 */
+	public void put(String key, boolean allowed) {
+		if (decisions.size() >= maxEntries && !decisions.containsKey(key)) {
+			makeRoom();
+		}
+		decisions.put(key, new Decision(allowed, System.nanoTime() + ttlNanos));
+	}
+
+	/**
+	 * Drop the decision for a session or principal, e.g. when it logs out
+	 * or its roles change.
+	 */
+	public void invalidate(String key) {
+		decisions.remove(key);
+	}
+
+	/**
+	 * Drop the decisions cached for a session, under whichever principals.
+	 * This looks through all the cached decisions, so it is meant for when a
+	 * session ends rather than for every request.
+	 */
+	public void invalidateSession(String sessionId) {
+		String prefix = sessionKey(sessionId, "");
+		Iterator<String> it = decisions.keySet().iterator();
+		while (it.hasNext()) {
+			if (it.next().startsWith(prefix)) {
+				it.remove();
+			}
+		}
+	}
+
+	/**
+	 * Drop every cached decision.
+	 */
+	public void invalidateAll() {
+		decisions.clear();
+	}
+
+	public int size() {
+		return decisions.size();
+	}
+
+	/**
+	 * Get the cache counters, e.g. for reporting as JSON.
+	 */
+	public Map<String, Object> getStats() {
+		Map<String, Object> stats = new HashMap<String, Object>();
+		stats.put("size", decisions.size());
+		stats.put("maxEntries", maxEntries);
+		stats.put("ttlSeconds", TimeUnit.NANOSECONDS.toSeconds(ttlNanos));
+		stats.put("hits", hits.get());
+		stats.put("misses", misses.get());
+		stats.put("evictions", evictions.get());
+		return stats;
+	}
+
+	/**
+	 * Get the key a request's decision is cached under: its session and
+	 * principal if it has a session, otherwise its authenticated principal.
+	 * 
+	 * @return The key, or {@code null} if the request is anonymous and
+	 *         sessionless (so its decision can't be cached).
+	 */
+	public static String keyFor(HttpServletRequest req) {
+		HttpSession session = req.getSession(false);
+		Principal principal = req.getUserPrincipal();
+		if (session != null) {
+			return sessionKey(session.getId(), principal != null ? principal.getName() : "");
+		}
+		if (principal != null) {
+			return principalKey(principal.getName());
+		}
+		return null;
+	}
+
+	/**
+	 * @param principalName
+	 *            The session's principal, or an empty string if it is
+	 *            anonymous.
+	 */
+	public static String sessionKey(String sessionId, String principalName) {
+		return "s:" + sessionId + ":" + principalName;
+	}
+
+	public static String principalKey(String principalName) {
+		return "p:" + principalName;
+	}
+
+	private void makeRoom() {
+		long now = System.nanoTime();
+		Iterator<Decision> it = decisions.values().iterator();
+		while (it.hasNext()) {
+			if (now - it.next().expires >= 0) {
+				it.remove();
+				evictions.incrementAndGet();
+			}
+		}
+		it = decisions.values().iterator();
+		while (decisions.size() >= maxEntries && it.hasNext()) {
+			it.next();
+			it.remove();
+			evictions.incrementAndGet();
+		}
+	}
+
+	private static class Decision {
+
+		private final boolean allowed;
+		private final long expires;
+
+		Decision(boolean allowed, long expires) {
+			this.allowed = allowed;
+			this.expires = expires;
+		}
+	}
+}
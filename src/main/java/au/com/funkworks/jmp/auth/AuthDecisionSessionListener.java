@@ -0,0 +1,37 @@
+package au.com.funkworks.jmp.auth;
+
+import javax.servlet.http.HttpSessionEvent;
+import javax.servlet.http.HttpSessionListener;
+
+import au.com.funkworks.jmp.JMPFactory;
+
+/**
+ * Drops the cached profiling authorization decisions of a session when the
+ * session ends.
+ * <p>
+ * The jmp taglib descriptor declares it, but containers only pick that up
+ * when they scan the taglib (which many skip, or don't do at all without
+ * JSP). So when the filter is restricted and the auth cache is on, it has to
+ * be added to the web.xml:
+ * 
+ * <pre>
+ * &lt;listener&gt;
+ *     &lt;listener-class&gt;au.com.funkworks.jmp.auth.AuthDecisionSessionListener&lt;/listener-class&gt;
+ * &lt;/listener&gt;
+ * </pre>
+ * 
+ * Without it, the decisions of ended sessions are only dropped once they
+ * expire ({@code authCacheTtlSeconds}).
+ */
+public class AuthDecisionSessionListener implements HttpSessionListener {
+
+	public void sessionCreated(HttpSessionEvent event) {
+	}
+
+	public void sessionDestroyed(HttpSessionEvent event) {
+		AuthDecisionCache cache = JMPFactory.getAuthDecisionCache();
+		if (cache != null) {
+			cache.invalidateSession(event.getSession().getId());
+		}
+	}
+}
@@ -0,0 +1,13 @@
+package au.com.funkworks.jmp.cache;
+
+/**
+ * Size and eviction counts of a profile store, for reporting.
+ */
+public interface CacheStatistics {
+
+	/** The number of profiles currently stored. */
+	long getSize();
+
+	/** The number of profiles pushed out to make room (or expired). */
+	long getEvictionCount();
+}
@@ -0,0 +1,685 @@
+package au.com.funkworks.jmp.cache;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import au.com.funkworks.jmp.codec.ProfileCodec;
+import au.com.funkworks.jmp.interfaces.CacheProfilerService;
+
+/**
+ * A {@link CacheProfilerService} that keeps profiles in memory-mapped segment
+ * files, for long retention without GC pressure.
+ * <p>
+ * Profiles are appended (in the {@link ProfileCodec} binary form) to the
+ * current segment. Writers reserve space with a single atomic add on the
+ * segment's write position and then copy their record into the mapped
+ * buffer, so concurrent request threads never take a lock; only the writer
+ * that fills a segment rolls over to the next one. An in-memory index maps
+ * each key to the segment and offset of its record, and reads decode
+ * straight from the mapped buffer.
+ * <p>
+ * A background thread keeps the next segment created and mapped ahead of
+ * time, so the writer that rolls over normally just switches to it (it only
+ * creates the segment itself if the background thread hasn't caught up).
+ * <p>
+ * Whole segments are deleted once they are older than the maximum age or
+ * once there are more than the maximum number of segments. Age is checked
+ * on every read; expired segments are cleaned up by the background thread
+ * after every roll and at least once a {@link #EXPIRY_INTERVAL_MILLIS}
+ * (rolling the current segment too once it is too old), so request threads
+ * never scan the index or delete files. Existing segment files are
+ * re-indexed on startup, so profiles survive a redeploy.
+ * <p>
+ * Readers and writers hold a reference to the segment they use, and a
+ * segment is only unmapped (and its file deleted) once the last of them
+ * lets go, so the mappings don't outlive the segments.
+ * <p>
+ * If the next segment can't be created (a full disk, or a failed mapping)
+ * profiles are dropped, and creating it is retried after
+ * {@link #ROLL_RETRY_MILLIS}, rather than failing or blocking requests.
+ * <p>
+ * Record layout: {@code [int length][int state][short keyLength][key][payload]},
+ * where the state is written last to mark the record as committed.
+ */
+public class MappedFileCacheImpl implements CacheProfilerService, CacheStatistics, Closeable {
+
+	private static final Logger logger = LoggerFactory.getLogger(MappedFileCacheImpl.class);
+
+	public static final int DEFAULT_MAX_SEGMENTS = 8;
+	public static final long DEFAULT_MAX_AGE_MILLIS = 6 * 60 * 60 * 1000L;
+
+	/** How often expired segments are looked for (when nothing rolls). */
+	public static final long EXPIRY_INTERVAL_MILLIS = 60 * 1000L;
+
+	/** How long to wait before trying to create a segment again. */
+	public static final long ROLL_RETRY_MILLIS = 10 * 1000L;
+
+	/** The longest a writer waits for another one to roll the segment. */
+	private static final long ROLL_WAIT_MILLIS = 1000L;
+
+	private static final String SEGMENT_SUFFIX = ".seg";
+
+	private static final int SEGMENT_MAGIC = 0x4A4D5053; // "JMPS"
+	private static final int SEGMENT_HEADER_SIZE = 16; // magic, unused, created time
+	private static final int RECORD_HEADER_SIZE = 10; // length, state, key length
+	private static final int COMMITTED = 0x434D4954; // "CMIT"
+
+	/** {@code sun.misc.Unsafe.invokeCleaner(ByteBuffer)}, on Java 9 and later. */
+	private static final Method INVOKE_CLEANER;
+	private static final Object UNSAFE;
+
+	static {
+		Method invokeCleaner = null;
+		Object unsafe = null;
+		try {
+			Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+			invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+			Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+			theUnsafe.setAccessible(true);
+			unsafe = theUnsafe.get(null);
+		} catch (Exception e) {
+			// before Java 9
+			invokeCleaner = null;
+		}
+		INVOKE_CLEANER = invokeCleaner;
+		UNSAFE = unsafe;
+	}
+
+	private final File directory;
+	private final int segmentSize;
+	private final int maxSegments;
+	private final long maxAgeMillis;
+
+	/** Segments by id. */
+	private final ConcurrentHashMap<Integer, Segment> segments = new ConcurrentHashMap<Integer, Segment>();
+
+	/** Key to record location (segment id in the high word, offset in the low). */
+	private final ConcurrentHashMap<String, Long> index = new ConcurrentHashMap<String, Long>();
+
+	/** Number of profiles dropped with their (expired) segment. */
+	private final AtomicLong evictions = new AtomicLong();
+
+	/** The segment currently being appended to. */
+	private final AtomicReference<Segment> current = new AtomicReference<Segment>();
+
+	/** Guards creating segments and {@link #spare}. */
+	private final Object segmentLock = new Object();
+
+	/** The segment created ahead of time to follow the current one. */
+	private Segment spare;
+
+	/** Until when rolling is off, after creating a segment failed. */
+	private volatile long rollRetryAt;
+
+	/** Creates the spare segment and expires old ones. */
+	private final Thread maintainer;
+
+	private volatile boolean closed;
+
+	/**
+	 * @param directory
+	 *            The directory that holds the segment files.
+	 * @param segmentSize
+	 *            The size (in bytes) of each segment file.
+	 * @param maxSegments
+	 *            The maximum number of segment files to keep.
+	 * @param maxAgeMillis
+	 *            How long (in milliseconds) to keep a segment after it was
+	 *            created, or a value <= 0 to only roll by size.
+	 */
+	public MappedFileCacheImpl(File directory, int segmentSize, int maxSegments, long maxAgeMillis) throws IOException {
+		if (directory == null) {
+			throw new IllegalArgumentException("directory is required");
+		}
+		if (segmentSize <= SEGMENT_HEADER_SIZE + RECORD_HEADER_SIZE) {
+			throw new IllegalArgumentException("segmentSize is too small");
+		}
+		if (maxSegments < 1) {
+			throw new IllegalArgumentException("maxSegments must be >= 1");
+		}
+		this.directory = directory;
+		this.segmentSize = segmentSize;
+		this.maxSegments = maxSegments;
+		this.maxAgeMillis = maxAgeMillis;
+
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("Could not create profile store directory " + directory);
+		}
+		int lastId = recover();
+		current.set(createSegment(lastId + 1));
+		expireSegments();
+
+		maintainer = new Thread(new Runnable() {
+			public void run() {
+				maintain();
+			}
+		}, "mini-profiler-store-maintenance");
+		maintainer.setDaemon(true);
+		maintainer.start();
+	}
+
+	public void put(String key, Map<String, Object> data) {
+		byte[] keyBytes = utf8(key);
+		byte[] payload = ProfileCodec.toBytes(data);
+		int length = RECORD_HEADER_SIZE + keyBytes.length + payload.length;
+		if (keyBytes.length > Short.MAX_VALUE || SEGMENT_HEADER_SIZE + length > segmentSize) {
+			logger.warn("Profile {} is too large for the store ({} bytes), dropping it", key, length);
+			return;
+		}
+
+		while (true) {
+			Segment segment = current.get();
+			if (!segment.acquire()) {
+				if (current.get() == segment) {
+					// the store has been closed
+					return;
+				}
+				// rolled and expired since
+				continue;
+			}
+			try {
+				int offset = segment.reserve(length);
+				if (offset < 0) {
+					if (!roll(segment)) {
+						logger.debug("No segment to store profile {} in, dropping it", key);
+						return;
+					}
+					continue;
+				}
+
+				ByteBuffer buffer = segment.buffer.duplicate();
+				buffer.position(offset);
+				buffer.putInt(length);
+				buffer.putInt(0);
+				buffer.putShort((short) keyBytes.length);
+				buffer.put(keyBytes);
+				buffer.put(payload);
+				buffer.putInt(offset + 4, COMMITTED);
+
+				index.put(key, location(segment.id, offset));
+				return;
+			} finally {
+				segment.release();
+			}
+		}
+	}
+
+	public Map<String, Object> get(String key) {
+		Long location = index.get(key);
+		if (location == null) {
+			return null;
+		}
+		Segment segment = segments.get(segmentId(location));
+		if (segment == null || isTooOld(segment, System.currentTimeMillis()) || !segment.acquire()) {
+			// the segment has expired since
+			index.remove(key, location);
+			return null;
+		}
+		try {
+			ByteBuffer buffer = segment.buffer.duplicate();
+			int offset = offset(location);
+			int length = buffer.getInt(offset);
+			if (buffer.getInt(offset + 4) != COMMITTED) {
+				return null;
+			}
+			int keyLength = buffer.getShort(offset + 8);
+			buffer.position(offset + RECORD_HEADER_SIZE + keyLength);
+			buffer.limit(offset + length);
+			return ProfileCodec.toRequestData(ProfileCodec.read(buffer));
+		} catch (IOException e) {
+			logger.warn("Could not read profile " + key, e);
+			return null;
+		} finally {
+			segment.release();
+		}
+	}
+
+	/**
+	 * The number of profiles currently indexed.
+	 */
+	public int size() {
+		return index.size();
+	}
+
+	public long getSize() {
+		return index.size();
+	}
+
+	public long getEvictionCount() {
+		return evictions.get();
+	}
+
+	/**
+	 * Force all segments to disk and unmap them (once they are no longer in
+	 * use). The store can't be used afterwards.
+	 */
+	public void close() {
+		closed = true;
+		LockSupport.unpark(maintainer);
+		try {
+			maintainer.join(ROLL_WAIT_MILLIS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		synchronized (segmentLock) {
+			// nothing was written to it, so it isn't worth keeping
+			if (spare != null) {
+				segments.remove(spare.id);
+				spare.retire(true);
+				spare = null;
+			}
+		}
+		for (Integer id : new ArrayList<Integer>(segments.keySet())) {
+			Segment segment = segments.remove(id);
+			if (segment != null) {
+				segment.retire(false);
+			}
+		}
+		index.clear();
+	}
+
+	/**
+	 * Move on from a full (or too old) segment. Only the writer that seals
+	 * the segment switches to the next one, everyone else waits (for a
+	 * while) for it to appear.
+	 *
+	 * @return Whether there is a new segment to write to.
+	 */
+	private boolean roll(Segment full) {
+		if (System.currentTimeMillis() < rollRetryAt) {
+			return current.get() != full;
+		}
+		if (full.sealed.compareAndSet(false, true)) {
+			try {
+				current.set(nextSegment(full.id + 1));
+			} catch (IOException e) {
+				rollRetryAt = System.currentTimeMillis() + ROLL_RETRY_MILLIS;
+				full.sealed.set(false);
+				logger.warn("Could not create profile segment, dropping profiles for " + ROLL_RETRY_MILLIS + " ms: " + e.getMessage());
+				return false;
+			}
+			// have the next one created, and old ones expired
+			LockSupport.unpark(maintainer);
+			return true;
+		}
+		long deadline = System.currentTimeMillis() + ROLL_WAIT_MILLIS;
+		while (current.get() == full) {
+			if (!full.sealed.get() || System.currentTimeMillis() > deadline) {
+				// the roll failed (or is stuck)
+				return current.get() != full;
+			}
+			Thread.yield();
+		}
+		return true;
+	}
+
+	/**
+	 * Take the spare segment to follow the current one, or create it if the
+	 * maintenance thread hasn't yet.
+	 */
+	private Segment nextSegment(int id) throws IOException {
+		synchronized (segmentLock) {
+			Segment next = spare;
+			spare = null;
+			if (next != null && next.id == id) {
+				// it is only in use from now on
+				next.created = System.currentTimeMillis();
+				next.buffer.putLong(8, next.created);
+				return next;
+			}
+			if (next != null) {
+				segments.remove(next.id);
+				next.retire(true);
+			}
+			return createSegment(id);
+		}
+	}
+
+	/**
+	 * The maintenance thread: creates the spare segment, rolls the current
+	 * segment once it is too old and expires old segments, after every roll
+	 * and at least once a {@link #EXPIRY_INTERVAL_MILLIS}.
+	 */
+	private void maintain() {
+		while (!closed) {
+			try {
+				createSpare();
+				Segment active = current.get();
+				if (isTooOld(active, System.currentTimeMillis()) && active.writePosition.get() > SEGMENT_HEADER_SIZE) {
+					roll(active);
+					createSpare();
+				}
+				expireSegments();
+			} catch (RuntimeException e) {
+				logger.warn("Profile store maintenance failed", e);
+			}
+			LockSupport.parkNanos(EXPIRY_INTERVAL_MILLIS * 1000000L);
+		}
+	}
+
+	private void createSpare() {
+		synchronized (segmentLock) {
+			int id = current.get().id + 1;
+			if (closed || (spare != null && spare.id == id) || System.currentTimeMillis() < rollRetryAt) {
+				return;
+			}
+			try {
+				spare = createSegment(id);
+			} catch (IOException e) {
+				logger.warn("Could not create the next profile segment ahead of time: " + e.getMessage());
+			}
+		}
+	}
+
+	private boolean isTooOld(Segment segment, long now) {
+		return maxAgeMillis > 0 && now - segment.created > maxAgeMillis;
+	}
+
+	/**
+	 * Delete segments that are too old, or that take us over the maximum
+	 * number of segments (oldest first). The current segment (and the spare
+	 * one, which doesn't count towards the maximum) is never deleted. Only
+	 * called by the maintenance thread (and before it is started), so writers
+	 * never wait for it.
+	 */
+	private void expireSegments() {
+		Segment active = current.get();
+		List<Integer> ids = new ArrayList<Integer>(segments.keySet());
+		Collections.sort(ids);
+		long now = System.currentTimeMillis();
+		int remaining = 0;
+		for (Integer id : ids) {
+			if (id <= active.id) {
+				remaining++;
+			}
+		}
+		for (Integer id : ids) {
+			Segment segment = segments.get(id);
+			if (segment == null || id >= active.id) {
+				continue;
+			}
+			boolean tooMany = remaining > maxSegments;
+			if (!tooMany && !isTooOld(segment, now)) {
+				break;
+			}
+			segments.remove(id);
+			remaining--;
+			removeIndexEntries(segment.id);
+			segment.retire(true);
+		}
+	}
+
+	private void removeIndexEntries(int segmentId) {
+		Iterator<Long> it = index.values().iterator();
+		while (it.hasNext()) {
+			if (segmentId(it.next()) == segmentId) {
+				it.remove();
+				evictions.incrementAndGet();
+			}
+		}
+	}
+
+	/**
+	 * Map and re-index the segment files left by a previous run.
+	 *
+	 * @return The highest segment id found, or 0.
+	 */
+	private int recover() {
+		File[] files = directory.listFiles(new FilenameFilter() {
+			public boolean accept(File dir, String name) {
+				return name.endsWith(SEGMENT_SUFFIX);
+			}
+		});
+		int lastId = 0;
+		if (files == null) {
+			return lastId;
+		}
+		Arrays.sort(files);
+		for (File file : files) {
+			try {
+				int id = Integer.parseInt(file.getName().substring(0, file.getName().length() - SEGMENT_SUFFIX.length()));
+				Segment segment = openSegment(file, id);
+				if (segment == null) {
+					logger.warn("Ignoring unrecognised profile segment {}", file);
+					continue;
+				}
+				segments.put(id, segment);
+				lastId = Math.max(lastId, id);
+				int recovered = reindex(segment);
+				logger.debug("Recovered {} profiles from segment {}", recovered, file);
+			} catch (Exception e) {
+				logger.warn("Could not recover profile segment " + file, e);
+			}
+		}
+		return lastId;
+	}
+
+	private int reindex(Segment segment) {
+		ByteBuffer buffer = segment.buffer.duplicate();
+		int offset = SEGMENT_HEADER_SIZE;
+		int count = 0;
+		while (offset + RECORD_HEADER_SIZE <= segmentSize) {
+			int length = buffer.getInt(offset);
+			if (length < RECORD_HEADER_SIZE || offset + length > segment.buffer.capacity()) {
+				break;
+			}
+			if (buffer.getInt(offset + 4) == COMMITTED) {
+				int keyLength = buffer.getShort(offset + 8);
+				byte[] key = new byte[keyLength];
+				buffer.position(offset + RECORD_HEADER_SIZE);
+				buffer.get(key);
+				index.put(fromUtf8(key), location(segment.id, offset));
+				count++;
+			}
+			offset += length;
+		}
+		// recovered segments are read-only
+		segment.writePosition.set(segment.buffer.capacity());
+		segment.sealed.set(true);
+		return count;
+	}
+
+	private Segment createSegment(int id) throws IOException {
+		File file = new File(directory, String.format("%010d%s", id, SEGMENT_SUFFIX));
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		boolean created = false;
+		try {
+			raf.setLength(segmentSize);
+			MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+			long now = System.currentTimeMillis();
+			buffer.putInt(0, SEGMENT_MAGIC);
+			buffer.putLong(8, now);
+			Segment segment = new Segment(id, file, buffer, now);
+			segments.put(id, segment);
+			created = true;
+			return segment;
+		} finally {
+			// the mapping stays valid after the file is closed
+			raf.close();
+			if (!created && !file.delete()) {
+				logger.debug("Could not delete partial profile segment {}", file);
+			}
+		}
+	}
+
+	private Segment openSegment(File file, int id) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			if (raf.length() < SEGMENT_HEADER_SIZE) {
+				return null;
+			}
+			MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, raf.length());
+			if (buffer.getInt(0) != SEGMENT_MAGIC) {
+				return null;
+			}
+			return new Segment(id, file, buffer, buffer.getLong(8));
+		} finally {
+			raf.close();
+		}
+	}
+
+	private static long location(int segmentId, int offset) {
+		return ((long) segmentId << 32) | (offset & 0xFFFFFFFFL);
+	}
+
+	private static int segmentId(long location) {
+		return (int) (location >>> 32);
+	}
+
+	private static int offset(long location) {
+		return (int) location;
+	}
+
+	private static byte[] utf8(String s) {
+		try {
+			return s.getBytes("UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException("UTF-8 not supported");
+		}
+	}
+
+	private static String fromUtf8(byte[] bytes) {
+		try {
+			return new String(bytes, "UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException("UTF-8 not supported");
+		}
+	}
+
+	/**
+	 * Unmap a buffer now, rather than whenever it is garbage collected (which
+	 * may be never for a buffer in the old generation), so that expired
+	 * segments actually give back their space. Uses
+	 * {@code Unsafe.invokeCleaner} on Java 9 and later, and the buffer's
+	 * cleaner before that; if neither is available the buffer is left to the
+	 * garbage collector.
+	 */
+	private static void unmap(MappedByteBuffer buffer) {
+		try {
+			if (INVOKE_CLEANER != null) {
+				INVOKE_CLEANER.invoke(UNSAFE, buffer);
+			} else {
+				Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+				cleanerMethod.setAccessible(true);
+				Object cleaner = cleanerMethod.invoke(buffer);
+				if (cleaner != null) {
+					cleaner.getClass().getMethod("clean").invoke(cleaner);
+				}
+			}
+		} catch (Exception e) {
+			logger.debug("Could not unmap profile segment: {}", e.toString());
+		}
+	}
+
+	/**
+	 * A single mapped segment file.
+	 */
+	private static class Segment {
+
+		private final int id;
+		private final File file;
+		private final MappedByteBuffer buffer;
+		private volatile long created;
+
+		private final AtomicInteger writePosition = new AtomicInteger(SEGMENT_HEADER_SIZE);
+		private final AtomicBoolean sealed = new AtomicBoolean();
+
+		/**
+		 * The readers and writers using the segment, plus one for the store
+		 * until the segment is retired; 0 once it has been unmapped.
+		 */
+		private final AtomicInteger references = new AtomicInteger(1);
+		private volatile boolean deleteOnRelease;
+
+		Segment(int id, File file, MappedByteBuffer buffer, long created) {
+			this.id = id;
+			this.file = file;
+			this.buffer = buffer;
+			this.created = created;
+		}
+
+		/**
+		 * Reserve space for a record.
+		 *
+		 * @return The offset of the reserved space, or -1 if the segment is
+		 *         full.
+		 */
+		int reserve(int length) {
+			while (true) {
+				int position = writePosition.get();
+				if (position + length > buffer.capacity()) {
+					return -1;
+				}
+				if (writePosition.compareAndSet(position, position + length)) {
+					return position;
+				}
+			}
+		}
+
+		/**
+		 * Take a reference to the segment, unless it has been unmapped.
+		 */
+		boolean acquire() {
+			while (true) {
+				int count = references.get();
+				if (count == 0) {
+					return false;
+				}
+				if (references.compareAndSet(count, count + 1)) {
+					return true;
+				}
+			}
+		}
+
+		void release() {
+			if (references.decrementAndGet() == 0) {
+				if (!deleteOnRelease) {
+					try {
+						buffer.force();
+					} catch (Exception e) {
+						// the file may already have been deleted
+					}
+				}
+				unmap(buffer);
+				if (deleteOnRelease && !file.delete()) {
+					logger.warn("Could not delete expired profile segment {}", file);
+				}
+			}
+		}
+
+		/**
+		 * Drop the store's reference, once the segment is no longer listed.
+		 *
+		 * @param delete
+		 *            Whether to delete the file once it is unmapped.
+		 */
+		void retire(boolean delete) {
+			deleteOnRelease = delete;
+			release();
+		}
+	}
+}
@@ -7,9 +7,10 @@ import net.sf.ehcache.CacheManager;
 import net.sf.ehcache.Element;
 import net.sf.ehcache.config.CacheConfiguration;
 import net.sf.ehcache.store.MemoryStoreEvictionPolicy;
+import au.com.funkworks.jmp.codec.ProfileCodec;
 import au.com.funkworks.jmp.interfaces.CacheProfilerService;
 
-public class NativeEhCacheCacheImpl implements CacheProfilerService {
+public class NativeEhCacheCacheImpl implements CacheProfilerService, CacheStatistics {
 
 	private Cache cache;
 
@@ -29,19 +30,30 @@ public class NativeEhCacheCacheImpl implements CacheProfilerService {
 		manager.addCache(cache);  
 	}
 	
+	/**
+	 * Profiles are stored in their encoded form so that overflowing to disk
+	 * writes a single byte array rather than serializing the profile.
+	 */
 	public void put(String key, Map<String, Object> data) {
-		Element elem = new Element(key, data);
+		Element elem = new Element(key, ProfileCodec.toBytes(data));
 		cache.put(elem);		
 	}
 	
 	
-	@SuppressWarnings("unchecked")
 	public Map<String, Object> get(String key) {		
 		Element elem = cache.get(key);
 		if (elem != null) {
-			return (Map<String, Object>)elem.getValue();
+			return ProfileCodec.fromBytes((byte[])elem.getValue());
 		}
 		return null;
 	}
+
+	public long getSize() {
+		return cache.getSize();
+	}
+
+	public long getEvictionCount() {
+		return cache.getLiveCacheStatistics().getEvictedCount();
+	}
 	
 }
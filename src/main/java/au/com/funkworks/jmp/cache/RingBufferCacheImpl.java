@@ -0,0 +1,153 @@
+package au.com.funkworks.jmp.cache;
+
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import au.com.funkworks.jmp.interfaces.CacheProfilerService;
+
+/**
+ * A fixed-capacity, in-memory {@link CacheProfilerService} backed by a ring
+ * buffer.
+ * <p>
+ * Request ids handed out by the filter increase monotonically, so the slot
+ * for a profile is simply {@code id % capacity} and a new profile overwrites
+ * the one stored {@code capacity} requests earlier. There is no eviction
+ * bookkeeping, no per-entry wrapper object and no disk tier: puts and gets
+ * are O(1) and only touch the slot being read or written.
+ * <p>
+ * Each slot is guarded by a sequence number (odd while a write is in
+ * progress). Writers to the same slot take turns by spinning on it, and
+ * readers retry until they see the same even sequence before and after
+ * reading, so they never see a key paired with another request's data. A
+ * write only holds the slot for two field stores, so the spinning is short.
+ */
+public class RingBufferCacheImpl implements CacheProfilerService, CacheStatistics {
+
+	public static final int DEFAULT_CAPACITY = 5000;
+
+	private final int capacity;
+
+	/** Per slot write sequence, odd while the slot is being written. */
+	private final AtomicLongArray sequences;
+	private final AtomicReferenceArray<String> keys;
+	private final AtomicReferenceArray<Map<String, Object>> values;
+
+	/** Number of stored profiles that have been overwritten. */
+	private final AtomicLong evictions = new AtomicLong();
+
+	/** Number of slots that hold a profile. */
+	private final AtomicLong filled = new AtomicLong();
+
+	public RingBufferCacheImpl() {
+		this(DEFAULT_CAPACITY);
+	}
+
+	public RingBufferCacheImpl(int capacity) {
+		if (capacity <= 0) {
+			throw new IllegalArgumentException("capacity must be > 0");
+		}
+		this.capacity = capacity;
+		sequences = new AtomicLongArray(capacity);
+		keys = new AtomicReferenceArray<String>(capacity);
+		values = new AtomicReferenceArray<Map<String, Object>>(capacity);
+	}
+
+	public void put(String key, Map<String, Object> data) {
+		long id = idOf(key);
+		int slot = slotFor(key, id);
+
+		long seq = acquire(slot);
+		try {
+			String existing = keys.get(slot);
+			if (existing != null) {
+				// a slow writer must not clobber a newer profile in the same slot
+				if (id >= 0 && idOf(existing) > id) {
+					return;
+				}
+				if (!existing.equals(key)) {
+					evictions.incrementAndGet();
+				}
+			} else {
+				filled.incrementAndGet();
+			}
+			keys.set(slot, key);
+			values.set(slot, data);
+		} finally {
+			sequences.set(slot, seq + 2);
+		}
+	}
+
+	public Map<String, Object> get(String key) {
+		int slot = slotFor(key, idOf(key));
+		while (true) {
+			long before = sequences.get(slot);
+			if ((before & 1) == 0) {
+				String storedKey = keys.get(slot);
+				Map<String, Object> data = values.get(slot);
+				if (sequences.get(slot) == before) {
+					return key.equals(storedKey) ? data : null;
+				}
+			}
+			Thread.yield();
+		}
+	}
+
+	public int getCapacity() {
+		return capacity;
+	}
+
+	public long getSize() {
+		return filled.get();
+	}
+
+	public long getEvictionCount() {
+		return evictions.get();
+	}
+
+	/**
+	 * Take the slot for writing, returning the (even) sequence it held.
+	 */
+	private long acquire(int slot) {
+		while (true) {
+			long seq = sequences.get(slot);
+			if ((seq & 1) == 0 && sequences.compareAndSet(slot, seq, seq + 1)) {
+				return seq;
+			}
+			Thread.yield();
+		}
+	}
+
+	private int slotFor(String key, long id) {
+		if (id >= 0) {
+			return (int) (id % capacity);
+		}
+		return (key.hashCode() & 0x7fffffff) % capacity;
+	}
+
+	/**
+	 * Get the numeric request id at the end of a cache key (see
+	 * {@code MiniProfilerFilter.CACHE_KEY_FORMAT_STRING}), or -1 if the key
+	 * doesn't end in a number.
+	 */
+	static long idOf(String key) {
+		int end = key.length();
+		int start = end;
+		while (start > 0 && end - start < 18) {
+			char c = key.charAt(start - 1);
+			if (c < '0' || c > '9') {
+				break;
+			}
+			start--;
+		}
+		if (start == end) {
+			return -1;
+		}
+		long id = 0;
+		for (int i = start; i < end; i++) {
+			id = id * 10 + (key.charAt(i) - '0');
+		}
+		return id;
+	}
+}
@@ -0,0 +1,260 @@
+package au.com.funkworks.jmp.cache;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import au.com.funkworks.jmp.MiniProfilerFilter;
+import au.com.funkworks.jmp.codec.CompactProfile;
+import au.com.funkworks.jmp.codec.ProfileCodec;
+import au.com.funkworks.jmp.interfaces.CacheProfilerService;
+import au.com.funkworks.jmp.stats.EndpointStats;
+import au.com.funkworks.jmp.stats.SlidingWindowHistogram;
+
+/**
+ * A {@link CacheProfilerService} that only keeps the slow profiles.
+ * <p>
+ * Every profile goes into a small grace store first, where it stays
+ * readable for a short grace period (long enough for the page that made the
+ * request to fetch it). Only the profiles over the threshold are also put
+ * into the retained store, so fast requests can't push slow ones out of it.
+ * <p>
+ * The threshold is an absolute duration, a percentile of the endpoint's
+ * recent durations (taken from {@link EndpointStats}), or both (in which
+ * case going over either is enough). Until an endpoint has enough recorded
+ * durations for its percentile to mean anything, its profiles are kept (but
+ * not listed as interesting).
+ * <p>
+ * The ids of the retained (interesting) requests are kept in a bounded list
+ * of the most recent ones.
+ */
+public class TailRetentionCacheImpl implements CacheProfilerService, CacheStatistics, Closeable {
+
+	public static final int DEFAULT_GRACE_CAPACITY = 500;
+	public static final long DEFAULT_GRACE_SECONDS = 60;
+
+	/** The window (in stats slots, i.e. minutes) the percentile is read over. */
+	private static final int PERCENTILE_WINDOW_SLOTS = 5;
+
+	/** The fewest durations an endpoint needs for its percentile to be used. */
+	private static final long MIN_PERCENTILE_SAMPLES = 20;
+
+	/** How long a computed percentile threshold is reused for. */
+	private static final long THRESHOLD_REFRESH_MILLIS = 10000;
+
+	private static final int MAX_INTERESTING = 200;
+
+	/** Why a profile was kept. */
+	private enum Reason {
+		/** At least as slow as the absolute threshold. */
+		THRESHOLD,
+		/** Slower than the endpoint's percentile. */
+		PERCENTILE,
+		/** The endpoint's percentile isn't known yet. */
+		WARMING_UP
+	}
+
+	private static final String KEY_PREFIX = String.format(MiniProfilerFilter.CACHE_KEY_FORMAT_STRING, "");
+
+	private final CacheProfilerService retained;
+	private final RingBufferCacheImpl grace;
+	private final long graceMillis;
+
+	private final long thresholdNanos;
+	private final double percentile;
+	private final String percentileLabel;
+	private final EndpointStats endpointStats;
+
+	/** Per endpoint histogram, the percentile (micros) and when it was read. */
+	private final ConcurrentHashMap<SlidingWindowHistogram, long[]> thresholds = new ConcurrentHashMap<SlidingWindowHistogram, long[]>();
+
+	private final LinkedHashMap<String, Interesting> interesting = new LinkedHashMap<String, Interesting>();
+
+	private final AtomicLong kept = new AtomicLong();
+	private final AtomicLong discarded = new AtomicLong();
+
+	/**
+	 * @param retained
+	 *            The store for interesting profiles.
+	 * @param graceCapacity
+	 *            How many recent profiles the grace store holds.
+	 * @param graceSeconds
+	 *            How long profiles stay readable from the grace store.
+	 * @param thresholdMillis
+	 *            Keep profiles at least this slow, or 0 for no absolute
+	 *            threshold.
+	 * @param percentile
+	 *            Keep profiles slower than this percentile of their
+	 *            endpoint, or 0 for no adaptive threshold.
+	 * @param endpointStats
+	 *            The durations the percentile is taken from.
+	 */
+	public TailRetentionCacheImpl(CacheProfilerService retained, int graceCapacity, long graceSeconds, long thresholdMillis, double percentile, EndpointStats endpointStats) {
+		this.retained = retained;
+		this.grace = new RingBufferCacheImpl(graceCapacity);
+		this.graceMillis = TimeUnit.SECONDS.toMillis(graceSeconds);
+		this.thresholdNanos = TimeUnit.MILLISECONDS.toNanos(thresholdMillis);
+		this.percentile = percentile;
+		this.percentileLabel = "p" + (percentile == Math.floor(percentile) ? String.valueOf((long) percentile) : String.valueOf(percentile));
+		this.endpointStats = endpointStats;
+	}
+
+	public void put(String key, Map<String, Object> data) {
+		grace.put(key, data);
+
+		CompactProfile profile = ProfileCodec.fromRequestData(data);
+		if (profile == null) {
+			retained.put(key, data);
+			return;
+		}
+		Reason reason = reasonToKeep(profile);
+		if (reason == null) {
+			discarded.incrementAndGet();
+			return;
+		}
+		kept.incrementAndGet();
+		retained.put(key, data);
+		if (reason == Reason.WARMING_UP) {
+			return;
+		}
+
+		String requestId = key.startsWith(KEY_PREFIX) ? key.substring(KEY_PREFIX.length()) : key;
+		synchronized (interesting) {
+			interesting.put(requestId, new Interesting(requestId, profile, reason == Reason.THRESHOLD ? "threshold" : percentileLabel));
+			if (interesting.size() > MAX_INTERESTING) {
+				interesting.remove(interesting.keySet().iterator().next());
+			}
+		}
+	}
+
+	public Map<String, Object> get(String key) {
+		Map<String, Object> data = retained.get(key);
+		if (data != null) {
+			return data;
+		}
+		data = grace.get(key);
+		if (data != null) {
+			CompactProfile profile = ProfileCodec.fromRequestData(data);
+			if (profile != null && System.currentTimeMillis() - profile.getTimestamp() > graceMillis) {
+				return null;
+			}
+		}
+		return data;
+	}
+
+	/**
+	 * Get the most recent interesting requests, newest first, suitable for
+	 * JSON output.
+	 */
+	public List<Map<String, Object>> getInteresting() {
+		List<Map<String, Object>> result = new ArrayList<Map<String, Object>>();
+		synchronized (interesting) {
+			for (Interesting i : interesting.values()) {
+				result.add(0, i.toMap());
+			}
+		}
+		return result;
+	}
+
+	/** The size of the retained store (if it reports one), plus the grace store. */
+	public long getSize() {
+		return grace.getSize() + (retained instanceof CacheStatistics ? ((CacheStatistics) retained).getSize() : 0);
+	}
+
+	public long getEvictionCount() {
+		return retained instanceof CacheStatistics ? ((CacheStatistics) retained).getEvictionCount() : 0;
+	}
+
+	/**
+	 * Close the retained store, if it can be closed.
+	 */
+	public void close() throws IOException {
+		if (retained instanceof Closeable) {
+			((Closeable) retained).close();
+		}
+	}
+
+	public long getKeptCount() {
+		return kept.get();
+	}
+
+	public long getDiscardedCount() {
+		return discarded.get();
+	}
+
+	/**
+	 * Why a profile should be kept, or {@code null} if it shouldn't.
+	 */
+	private Reason reasonToKeep(CompactProfile profile) {
+		long duration = profile.getTotalDuration();
+		if (thresholdNanos > 0 && duration >= thresholdNanos) {
+			return Reason.THRESHOLD;
+		}
+		if (percentile > 0) {
+			long micros = percentileMicros(profile.getRequestURL());
+			if (micros < 0) {
+				return Reason.WARMING_UP;
+			}
+			if (duration / 1000 > micros) {
+				return Reason.PERCENTILE;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * The endpoint's percentile in microseconds, or -1 if there isn't enough
+	 * data for it yet.
+	 */
+	private long percentileMicros(String requestURL) {
+		int query = requestURL.indexOf('?');
+		SlidingWindowHistogram histogram = endpointStats.getHistogramForURI(query >= 0 ? requestURL.substring(0, query) : requestURL);
+		if (histogram == null) {
+			return -1;
+		}
+		long now = System.currentTimeMillis();
+		long[] threshold = thresholds.get(histogram);
+		if (threshold == null || now - threshold[1] > THRESHOLD_REFRESH_MILLIS) {
+			threshold = new long[] { histogram.getPercentileMicros(PERCENTILE_WINDOW_SLOTS, percentile, MIN_PERCENTILE_SAMPLES), now };
+			if (threshold[0] < 0) {
+				// still warming up, check again next time
+				return -1;
+			}
+			thresholds.put(histogram, threshold);
+		}
+		return threshold[0];
+	}
+
+	private static class Interesting {
+
+		private final String requestId;
+		private final String requestURL;
+		private final long timestamp;
+		private final long duration;
+		private final String reason;
+
+		Interesting(String requestId, CompactProfile profile, String reason) {
+			this.requestId = requestId;
+			this.requestURL = profile.getRequestURL();
+			this.timestamp = profile.getTimestamp();
+			this.duration = profile.getTotalDuration();
+			this.reason = reason;
+		}
+
+		Map<String, Object> toMap() {
+			Map<String, Object> map = new LinkedHashMap<String, Object>();
+			map.put("id", requestId);
+			map.put("requestURL", requestURL);
+			map.put("timestamp", timestamp);
+			map.put("duration", Math.round(duration / 10000.0) / 100.0);
+			map.put("reason", reason);
+			return map;
+		}
+	}
+}
@@ -0,0 +1,257 @@
+package au.com.funkworks.jmp.cluster;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import au.com.funkworks.jmp.codec.CompactProfile;
+
+/**
+ * Node-qualified request ids, and resolving ids captured by other nodes.
+ * <p>
+ * Request ids look like {@code <nodeId>-<n>}, where {@code n} counts up from
+ * the time the node started, in microseconds. That time is an epoch for the
+ * node's ids: the ids stay unique across restarts (so they don't collide with
+ * profiles a persistent store recovers) unless a node profiles more than a
+ * million requests a second on average. The trailing number is all the local
+ * stores look at.
+ * <p>
+ * Ids that belong to other nodes are grouped by node and fetched with one
+ * {@link PeerFetcher} call per node, all nodes in parallel and within a
+ * single timeout. The fetches run on a fixed number of threads with a
+ * bounded queue; when that is full, the nodes that don't fit are skipped
+ * (and counted as rejected) while the others are still fetched, rather than
+ * piling up more work. Fetched profiles are kept in a small local cache,
+ * since the UI tends to ask for the same profiles more than once.
+ */
+public class ClusterProfileResolver {
+
+	private static final Logger logger = LoggerFactory.getLogger(ClusterProfileResolver.class);
+
+	public static final int DEFAULT_TIMEOUT_MILLIS = 500;
+	public static final int DEFAULT_CACHE_SIZE = 500;
+	public static final int DEFAULT_FETCH_THREADS = 4;
+
+	/** The most fetches waiting for a thread, per thread. */
+	private static final int FETCH_QUEUE_PER_THREAD = 16;
+
+	private final String nodeId;
+	private final PeerFetcher fetcher;
+	private final long timeoutMillis;
+	private final Map<String, CompactProfile> cache;
+	private final ExecutorService executor;
+
+	private final AtomicLong counter = new AtomicLong(System.currentTimeMillis() * 1000);
+
+	private final AtomicLong fetched = new AtomicLong();
+	private final AtomicLong cacheHits = new AtomicLong();
+	private final AtomicLong failures = new AtomicLong();
+	private final AtomicLong rejected = new AtomicLong();
+
+	/**
+	 * @param nodeId
+	 *            The id of this node.
+	 * @param fetcher
+	 *            Fetches profiles from the other nodes, or {@code null} if
+	 *            this node doesn't know about any.
+	 * @param timeoutMillis
+	 *            How long to wait for the other nodes.
+	 * @param cacheSize
+	 *            How many fetched profiles to keep.
+	 * @param fetchThreads
+	 *            The most nodes fetched from at once.
+	 */
+	public ClusterProfileResolver(String nodeId, PeerFetcher fetcher, long timeoutMillis, final int cacheSize, int fetchThreads) {
+		this.nodeId = sanitizeNodeId(nodeId);
+		this.fetcher = fetcher;
+		this.timeoutMillis = timeoutMillis;
+		this.cache = new LinkedHashMap<String, CompactProfile>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, CompactProfile> eldest) {
+				return size() > cacheSize;
+			}
+		};
+		int threads = Math.max(1, fetchThreads);
+		this.executor = fetcher == null ? null : new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(threads
+				* FETCH_QUEUE_PER_THREAD), new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "mini-profiler-peer-fetch");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	/**
+	 * The host name (up to the first dot), for when no node id is
+	 * configured.
+	 */
+	public static String defaultNodeId() {
+		try {
+			String host = InetAddress.getLocalHost().getHostName();
+			int dot = host.indexOf('.');
+			return dot > 0 ? host.substring(0, dot) : host;
+		} catch (Exception e) {
+			return "node";
+		}
+	}
+
+	/**
+	 * Node ids end up in HTML ids and URLs, so keep them to letters,
+	 * digits, '-' and '_'.
+	 */
+	static String sanitizeNodeId(String nodeId) {
+		StringBuilder sanitized = new StringBuilder(nodeId.length());
+		for (int i = 0; i < nodeId.length(); i++) {
+			char c = nodeId.charAt(i);
+			boolean ok = (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '-' || c == '_';
+			sanitized.append(ok ? c : '_');
+		}
+		return sanitized.length() > 0 ? sanitized.toString() : "node";
+	}
+
+	public String getNodeId() {
+		return nodeId;
+	}
+
+	/**
+	 * Generate the id of a new profiled request.
+	 */
+	public String nextRequestId() {
+		return nodeId + "-" + counter.incrementAndGet();
+	}
+
+	/**
+	 * The node that captured a request, or {@code null} if the id isn't
+	 * node-qualified.
+	 */
+	public static String ownerOf(String requestId) {
+		int dash = requestId.lastIndexOf('-');
+		return dash > 0 ? requestId.substring(0, dash) : null;
+	}
+
+	/**
+	 * Whether a request was captured by this node (ids that aren't
+	 * node-qualified are treated as local).
+	 */
+	public boolean isLocal(String requestId) {
+		String owner = ownerOf(requestId);
+		return owner == null || owner.equals(nodeId);
+	}
+
+	/**
+	 * Resolve the ids that belong to other nodes.
+	 * 
+	 * @param requestIds
+	 *            The ids to resolve (local ones are skipped).
+	 * @return The profiles that could be fetched in time, by request id.
+	 */
+	public Map<String, CompactProfile> resolveRemote(Collection<String> requestIds) {
+		Map<String, CompactProfile> resolved = new HashMap<String, CompactProfile>();
+		Map<String, List<String>> byNode = new HashMap<String, List<String>>();
+		for (String requestId : requestIds) {
+			if (isLocal(requestId)) {
+				continue;
+			}
+			CompactProfile cached;
+			synchronized (cache) {
+				cached = cache.get(requestId);
+			}
+			if (cached != null) {
+				cacheHits.incrementAndGet();
+				resolved.put(requestId, cached);
+				continue;
+			}
+			String owner = ownerOf(requestId);
+			List<String> ids = byNode.get(owner);
+			if (ids == null) {
+				ids = new ArrayList<String>();
+				byNode.put(owner, ids);
+			}
+			ids.add(requestId);
+		}
+		if (byNode.isEmpty() || fetcher == null) {
+			return resolved;
+		}
+
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+		List<Future<Map<String, CompactProfile>>> futures = new ArrayList<Future<Map<String, CompactProfile>>>();
+		for (final Map.Entry<String, List<String>> node : byNode.entrySet()) {
+			try {
+				futures.add(executor.submit(new Callable<Map<String, CompactProfile>>() {
+					public Map<String, CompactProfile> call() throws Exception {
+						return fetcher.fetch(node.getKey(), node.getValue());
+					}
+				}));
+			} catch (RejectedExecutionException e) {
+				// too many fetches already waiting, skip this node
+				rejected.incrementAndGet();
+			}
+		}
+		for (Future<Map<String, CompactProfile>> future : futures) {
+			try {
+				Map<String, CompactProfile> profiles = future.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+				fetched.addAndGet(profiles.size());
+				synchronized (cache) {
+					cache.putAll(profiles);
+				}
+				resolved.putAll(profiles);
+			} catch (ExecutionException e) {
+				failures.incrementAndGet();
+				logger.debug("Could not fetch profiles from peer", e.getCause());
+			} catch (TimeoutException e) {
+				future.cancel(true);
+				failures.incrementAndGet();
+			} catch (CancellationException e) {
+				failures.incrementAndGet();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				future.cancel(true);
+			}
+		}
+		return resolved;
+	}
+
+	/**
+	 * Stop the fetcher threads.
+	 */
+	public void shutdown() {
+		if (executor != null) {
+			executor.shutdownNow();
+		}
+	}
+
+	/**
+	 * Get the resolver counters, e.g. for reporting as JSON.
+	 */
+	public Map<String, Object> getStats() {
+		Map<String, Object> stats = new HashMap<String, Object>();
+		stats.put("nodeId", nodeId);
+		stats.put("fetched", fetched.get());
+		stats.put("cacheHits", cacheHits.get());
+		stats.put("failures", failures.get());
+		stats.put("rejected", rejected.get());
+		return stats;
+	}
+}
@@ -0,0 +1,88 @@
+package au.com.funkworks.jmp.cluster;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+import au.com.funkworks.jmp.codec.CompactProfile;
+
+/**
+ * Fetches profiles from the {@code export} action of another node's
+ * profiler servlet.
+ */
+public class HttpPeerFetcher implements PeerFetcher {
+
+	private final Map<String, String> peerURLs;
+	private final int timeoutMillis;
+
+	/**
+	 * @param peerURLs
+	 *            The profiler servlet URL of each node, by node id.
+	 * @param timeoutMillis
+	 *            The connect and read timeouts. These are always set, so a
+	 *            value that isn't positive (which would mean waiting forever)
+	 *            falls back to
+	 *            {@link ClusterProfileResolver#DEFAULT_TIMEOUT_MILLIS}.
+	 */
+	public HttpPeerFetcher(Map<String, String> peerURLs, int timeoutMillis) {
+		this.peerURLs = peerURLs;
+		this.timeoutMillis = timeoutMillis > 0 ? timeoutMillis : ClusterProfileResolver.DEFAULT_TIMEOUT_MILLIS;
+	}
+
+	/**
+	 * Parse a {@code nodeId=url,nodeId=url} list of peers.
+	 */
+	public static Map<String, String> parsePeers(String peers) {
+		Map<String, String> peerURLs = new HashMap<String, String>();
+		if (peers == null) {
+			return peerURLs;
+		}
+		for (String peer : peers.split(",")) {
+			int eq = peer.indexOf('=');
+			if (eq > 0) {
+				String url = peer.substring(eq + 1).trim();
+				peerURLs.put(peer.substring(0, eq).trim(), url.endsWith("/") ? url : url + "/");
+			}
+		}
+		return peerURLs;
+	}
+
+	public Map<String, CompactProfile> fetch(String nodeId, Collection<String> requestIds) throws IOException {
+		String baseURL = peerURLs.get(nodeId);
+		if (baseURL == null) {
+			throw new IOException("Unknown node " + nodeId);
+		}
+		StringBuilder ids = new StringBuilder();
+		for (String requestId : requestIds) {
+			if (ids.length() > 0) {
+				ids.append(',');
+			}
+			ids.append(requestId);
+		}
+
+		HttpURLConnection conn = (HttpURLConnection) new URL(baseURL + "export?ids=" + URLEncoder.encode(ids.toString(), "UTF-8")).openConnection();
+		conn.setConnectTimeout(timeoutMillis);
+		conn.setReadTimeout(timeoutMillis);
+		conn.setUseCaches(false);
+		try {
+			if (conn.getResponseCode() != HttpURLConnection.HTTP_OK) {
+				throw new IOException("Node " + nodeId + " returned " + conn.getResponseCode());
+			}
+			InputStream in = new BufferedInputStream(conn.getInputStream());
+			try {
+				return ProfileExport.read(new DataInputStream(in));
+			} finally {
+				in.close();
+			}
+		} finally {
+			conn.disconnect();
+		}
+	}
+}
@@ -0,0 +1,27 @@
+package au.com.funkworks.jmp.cluster;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Map;
+
+import au.com.funkworks.jmp.codec.CompactProfile;
+
+/**
+ * Fetches profiles from the node that captured them.
+ * <p>
+ * {@link HttpPeerFetcher} asks the other nodes' profiler servlets; tests (or
+ * a deployment with a shared store) can plug in anything else.
+ */
+public interface PeerFetcher {
+
+	/**
+	 * Fetch a batch of profiles from one node.
+	 * 
+	 * @param nodeId
+	 *            The node that captured the profiles.
+	 * @param requestIds
+	 *            The ids of the profiled requests.
+	 * @return The profiles that the node still has, by request id.
+	 */
+	Map<String, CompactProfile> fetch(String nodeId, Collection<String> requestIds) throws IOException;
+}
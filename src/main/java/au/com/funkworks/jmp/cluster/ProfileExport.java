@@ -0,0 +1,69 @@
+package au.com.funkworks.jmp.cluster;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import au.com.funkworks.jmp.codec.CompactProfile;
+import au.com.funkworks.jmp.codec.ProfileCodec;
+
+/**
+ * The format profiles are exchanged between nodes in: a sequence of
+ * {@code true, id, length, profile} entries (the profile in the
+ * {@link ProfileCodec} binary format) ended by {@code false}.
+ * <p>
+ * Each profile is read in full before it is decoded, in chunks, so that a
+ * bad length from a peer can only make us buffer what it actually sends.
+ */
+public final class ProfileExport {
+
+	private static final int CHUNK_SIZE = 64 * 1024;
+
+	private ProfileExport() {
+	}
+
+	public static void write(String requestId, CompactProfile profile, DataOutput out) throws IOException {
+		byte[] bytes = ProfileCodec.toBytes(profile);
+		out.writeBoolean(true);
+		out.writeUTF(requestId);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	public static void end(DataOutput out) throws IOException {
+		out.writeBoolean(false);
+	}
+
+	public static Map<String, CompactProfile> read(DataInput in) throws IOException {
+		Map<String, CompactProfile> profiles = new HashMap<String, CompactProfile>();
+		while (in.readBoolean()) {
+			String requestId = in.readUTF();
+			int length = in.readInt();
+			if (length < 0) {
+				throw new IOException("Malformed profile length " + length);
+			}
+			try {
+				profiles.put(requestId, ProfileCodec.decode(readBytes(in, length)));
+			} catch (IllegalArgumentException e) {
+				throw new IOException(e.getMessage());
+			}
+		}
+		return profiles;
+	}
+
+	private static byte[] readBytes(DataInput in, int length) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(Math.min(length, CHUNK_SIZE));
+		byte[] chunk = new byte[Math.min(length, CHUNK_SIZE)];
+		for (int remaining = length; remaining > 0; remaining -= chunk.length) {
+			if (remaining < chunk.length) {
+				chunk = new byte[remaining];
+			}
+			in.readFully(chunk);
+			bytes.write(chunk);
+		}
+		return bytes.toByteArray();
+	}
+}
@@ -0,0 +1,184 @@
+package au.com.funkworks.jmp.codec;
+
+import java.io.Serializable;
+
+/**
+ * A captured request profile flattened into parallel primitive arrays.
+ * <p>
+ * Nodes are stored in pre-order (a node's descendants directly follow it),
+ * so node 0 is the root and every parent index is smaller than the index of
+ * its children. Step names and tags are dictionary encoded into a single
+ * string table; a tag index of -1 means the step has no tag.
+ * <p>
+ * A step may stand for a run of coalesced steps (see {@link ProfileLimits}),
+ * with their number and longest duration. Those are only stored for
+ * profiles that have coalesced steps.
+ * <p>
+ * The per tag {@link TagRollups} and the {@link RepeatedCalls} are computed
+ * once, when the profile is captured, and kept with it (in its binary form
+ * too, so they aren't computed again when it is decoded).
+ * <p>
+ * Instances are immutable once built by {@link ProfileCodec}.
+ */
+public class CompactProfile implements Serializable {
+
+	private static final long serialVersionUID = -3208347615207387314L;
+
+	private final String requestURL;
+	private final long timestamp;
+
+	private final long[] offsets;
+	private final long[] durations;
+	private final int[] parents;
+	private final int[] names;
+	private final int[] tags;
+	/** The number of steps each node stands for, or {@code null} if all 1. */
+	private final int[] counts;
+	/** The longest of the steps each node stands for, or {@code null}. */
+	private final long[] maxes;
+
+	private final String[] strings;
+
+	private final TagRollups rollups;
+
+	private final RepeatedCalls repeatedCalls;
+
+	CompactProfile(String requestURL, long timestamp, long[] offsets, long[] durations, int[] parents, int[] names, int[] tags, int[] counts, long[] maxes,
+			String[] strings, TagRollups rollups, RepeatedCalls repeatedCalls) {
+		this.requestURL = requestURL;
+		this.timestamp = timestamp;
+		this.offsets = offsets;
+		this.durations = durations;
+		this.parents = parents;
+		this.names = names;
+		this.tags = tags;
+		this.counts = counts;
+		this.maxes = maxes;
+		this.strings = strings;
+		this.rollups = rollups;
+		this.repeatedCalls = repeatedCalls;
+	}
+
+	public String getRequestURL() {
+		return requestURL;
+	}
+
+	/** The time (in milliseconds) at which the request started. */
+	public long getTimestamp() {
+		return timestamp;
+	}
+
+	public int getNodeCount() {
+		return durations.length;
+	}
+
+	/** The offset (in nanoseconds) of a step from the start of the request. */
+	public long getOffset(int node) {
+		return offsets[node];
+	}
+
+	/** The duration (in nanoseconds) of a step. */
+	public long getDuration(int node) {
+		return durations[node];
+	}
+
+	/**
+	 * The number of steps a node stands for: more than 1 for coalesced steps,
+	 * and the number of steps left out for a
+	 * {@link ProfileLimits#PRUNED_STEP_NAME} marker.
+	 */
+	public int getCount(int node) {
+		return counts != null ? counts[node] : 1;
+	}
+
+	/** The duration (in nanoseconds) of the longest step a node stands for. */
+	public long getMaxDuration(int node) {
+		return maxes != null ? maxes[node] : durations[node];
+	}
+
+	/** The index of a step's parent, or -1 for the root. */
+	public int getParent(int node) {
+		return parents[node];
+	}
+
+	public String getName(int node) {
+		return strings[names[node]];
+	}
+
+	/** The tag of a step, or {@code null} if it isn't tagged. */
+	public String getTag(int node) {
+		return tags[node] >= 0 ? strings[tags[node]] : null;
+	}
+
+	/** The string table index of a step's tag, or -1 if it isn't tagged. */
+	public int getTagIndex(int node) {
+		return tags[node];
+	}
+
+	public int getStringCount() {
+		return strings.length;
+	}
+
+	public String getString(int index) {
+		return strings[index];
+	}
+
+	/** The per tag call statistics of the profile. */
+	public TagRollups getRollups() {
+		return rollups;
+	}
+
+	/** The steps that were run many times under the same parent. */
+	public RepeatedCalls getRepeatedCalls() {
+		return repeatedCalls;
+	}
+
+	/** The total duration (in nanoseconds) of the request. */
+	public long getTotalDuration() {
+		return durations.length > 0 ? durations[0] : 0;
+	}
+
+	/**
+	 * Compute the self time (duration minus the duration of direct children)
+	 * of every step.
+	 */
+	public long[] computeSelfTimes() {
+		long[] self = durations.clone();
+		for (int i = 1; i < self.length; i++) {
+			self[parents[i]] -= durations[i];
+		}
+		return self;
+	}
+
+	long[] offsets() {
+		return offsets;
+	}
+
+	long[] durations() {
+		return durations;
+	}
+
+	int[] parents() {
+		return parents;
+	}
+
+	int[] names() {
+		return names;
+	}
+
+	int[] tags() {
+		return tags;
+	}
+
+	int[] counts() {
+		return counts;
+	}
+
+	long[] maxes() {
+		return maxes;
+	}
+
+	String[] strings() {
+		return strings;
+	}
+}
@@ -0,0 +1,666 @@
+package au.com.funkworks.jmp.codec;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.ListIterator;
+import java.util.Map;
+
+import au.com.funkworks.jmp.Profile;
+
+/**
+ * Converts {@link Profile} trees (and the {@link ProfileSegments} of
+ * asynchronous requests) into {@link CompactProfile}s, and
+ * {@link CompactProfile}s to and from a compact binary form.
+ * <p>
+ * The binary form is the wire format for any {@link
+ * au.com.funkworks.jmp.interfaces.CacheProfilerService} that has to move
+ * profiles out of the JVM, so that they don't have to rely on Java
+ * serialization. See {@link #toBytes(Map)} and {@link #fromBytes(byte[])}.
+ * <p>
+ * The binary form holds the profile's {@link TagRollups} and
+ * {@link RepeatedCalls} as well, so that they are only ever computed when a
+ * profile is captured.
+ * <p>
+ * The binary form may come from another node, so decoding never trusts it:
+ * every count is checked against the bytes that are left before anything is
+ * allocated for it, and every index against what it indexes.
+ */
+public class ProfileCodec {
+
+	/** The key of the {@link CompactProfile} in a stored request data map. */
+	public static final String PROFILE_KEY = "profile";
+
+	private static final int MAGIC = 0x4A4D5003; // "JMP" + format version 3
+
+	/** The fewest bytes a node takes up. */
+	private static final int MIN_NODE_BYTES = 5;
+
+	/** The fewest bytes a tag rollup takes up. */
+	private static final int MIN_ROLLUP_BYTES = 6;
+
+	/** The fewest bytes a group of repeated calls takes up. */
+	private static final int MIN_REPEATED_BYTES = 6;
+
+	private static final String UTF8 = "UTF-8";
+
+	private ProfileCodec() {
+	}
+
+	/**
+	 * Flatten a profile tree, with a single iterative pre-order walk.
+	 *
+	 * @param root
+	 *            The root of the profile tree (may be {@code null}).
+	 * @param requestURL
+	 *            The URL of the profiled request.
+	 * @param timestamp
+	 *            The time (in milliseconds) at which the request started.
+	 * @return The flattened profile.
+	 */
+	public static CompactProfile encode(Profile root, String requestURL, long timestamp) {
+		return encode(root, requestURL, timestamp, ProfileLimits.NONE);
+	}
+
+	/**
+	 * Flatten a profile tree, applying limits to its size.
+	 *
+	 * @param limits
+	 *            The limits to apply.
+	 * @see #encode(Profile, String, long)
+	 */
+	public static CompactProfile encode(Profile root, String requestURL, long timestamp, ProfileLimits limits) {
+		Builder builder = new Builder();
+		if (root != null) {
+			if (limits.isUnlimited()) {
+				addTree(builder, root, -1, 0);
+			} else {
+				StepTree tree = new StepTree();
+				addTree(tree, root, -1, 0);
+				tree.writeTo(builder, limits);
+			}
+		}
+		return builder.build(requestURL, timestamp);
+	}
+
+	/**
+	 * Merge the profiles of the dispatches of an asynchronous request into
+	 * one, applying limits to its size. The root spans the whole request and
+	 * holds the steps of the first dispatch; each later dispatch is added
+	 * under it as an {@code "async dispatch"} step, shifted to when it ran. A
+	 * request that timed out or failed gets a zero length
+	 * {@code "async <outcome>"} step at its end.
+	 *
+	 * @param segments
+	 *            The profiles of the dispatches.
+	 * @param requestURL
+	 *            The URL of the profiled request.
+	 * @param timestamp
+	 *            The time (in milliseconds) at which the request started.
+	 * @param limits
+	 *            The limits to apply.
+	 * @return The flattened profile.
+	 */
+	public static CompactProfile encode(ProfileSegments segments, String requestURL, long timestamp, ProfileLimits limits) {
+		Builder builder = new Builder();
+		if (limits.isUnlimited()) {
+			addSegments(builder, segments);
+		} else {
+			StepTree tree = new StepTree();
+			addSegments(tree, segments);
+			tree.writeTo(builder, limits);
+		}
+		return builder.build(requestURL, timestamp);
+	}
+
+	private static void addSegments(StepSink builder, ProfileSegments segments) {
+		List<Profile> profiles = segments.getSegments();
+		if (!profiles.isEmpty()) {
+			Profile first = profiles.get(0);
+			int root = builder.add(-1, first.getOffset(), segments.getDuration(), first.getName(), first.getTag());
+			for (int i = 0; i < profiles.size(); i++) {
+				Profile segment = profiles.get(i);
+				long shift = segments.getOffset(i);
+				int parent = root;
+				if (i > 0) {
+					parent = builder.add(root, segment.getOffset() + shift, segment.getDuration(), "async dispatch", null);
+				}
+				List<Profile> children = segment.getChildren();
+				if (children != null) {
+					for (Profile child : children) {
+						addTree(builder, child, parent, shift);
+					}
+				}
+			}
+			if (segments.getOutcome() != null) {
+				builder.add(root, segments.getDuration(), 0, "async " + segments.getOutcome(), null);
+			}
+		}
+	}
+
+	/**
+	 * Add a profile tree to a builder, with a single iterative pre-order
+	 * walk.
+	 *
+	 * @param shift
+	 *            The time (in nanoseconds) to add to every offset.
+	 */
+	private static void addTree(StepSink builder, Profile root, int rootParent, long shift) {
+		List<Profile> stack = new ArrayList<Profile>();
+		IntStack parentStack = new IntStack();
+		stack.add(root);
+		parentStack.push(rootParent);
+		while (!stack.isEmpty()) {
+			Profile node = stack.remove(stack.size() - 1);
+			int parent = parentStack.pop();
+			int index = builder.add(parent, node.getOffset() + shift, node.getDuration(), node.getName(), node.getTag());
+
+			List<Profile> children = node.getChildren();
+			if (children != null && !children.isEmpty()) {
+				// push in reverse so that children come out in order
+				ListIterator<Profile> it = children.listIterator(children.size());
+				while (it.hasPrevious()) {
+					stack.add(it.previous());
+					parentStack.push(index);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Wrap a profile in the request data map handed to a
+	 * {@link au.com.funkworks.jmp.interfaces.CacheProfilerService}.
+	 */
+	public static Map<String, Object> toRequestData(CompactProfile profile) {
+		return Collections.<String, Object> singletonMap(PROFILE_KEY, profile);
+	}
+
+	/**
+	 * Get the profile out of a stored request data map.
+	 *
+	 * @return The profile, or {@code null} if the map doesn't hold one.
+	 */
+	public static CompactProfile fromRequestData(Map<String, Object> requestData) {
+		if (requestData == null) {
+			return null;
+		}
+		Object profile = requestData.get(PROFILE_KEY);
+		return profile instanceof CompactProfile ? (CompactProfile) profile : null;
+	}
+
+	/**
+	 * Encode a stored request data map into its binary form.
+	 *
+	 * @throws IllegalArgumentException
+	 *             If the map doesn't hold a {@link CompactProfile}.
+	 */
+	public static byte[] toBytes(Map<String, Object> requestData) {
+		CompactProfile profile = fromRequestData(requestData);
+		if (profile == null) {
+			throw new IllegalArgumentException("Request data does not hold a compact profile");
+		}
+		return toBytes(profile);
+	}
+
+	/**
+	 * Decode a stored request data map from its binary form.
+	 */
+	public static Map<String, Object> fromBytes(byte[] bytes) {
+		return toRequestData(decode(bytes));
+	}
+
+	public static byte[] toBytes(CompactProfile profile) {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 + profile.getNodeCount() * 8);
+		try {
+			write(profile, new DataOutputStream(bytes));
+		} catch (IOException e) {
+			// can't happen with an in-memory stream
+			throw new IllegalStateException(e.getMessage());
+		}
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * Decode a profile from its binary form.
+	 *
+	 * @throws IllegalArgumentException
+	 *             If the bytes don't hold a well formed profile.
+	 */
+	public static CompactProfile decode(byte[] bytes) {
+		try {
+			return read(ByteBuffer.wrap(bytes));
+		} catch (IOException e) {
+			throw new IllegalArgumentException("Malformed profile: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Write a profile in binary form.
+	 */
+	private static void write(CompactProfile profile, DataOutput out) throws IOException {
+		out.writeInt(MAGIC);
+		writeString(out, profile.getRequestURL());
+		out.writeLong(profile.getTimestamp());
+
+		String[] strings = profile.strings();
+		writeVarLong(out, strings.length);
+		for (String s : strings) {
+			writeString(out, s);
+		}
+
+		int count = profile.getNodeCount();
+		long[] offsets = profile.offsets();
+		long[] durations = profile.durations();
+		int[] parents = profile.parents();
+		int[] names = profile.names();
+		int[] tags = profile.tags();
+		int[] counts = profile.counts();
+		long[] maxes = profile.maxes();
+		writeVarLong(out, count);
+		out.writeBoolean(counts != null);
+		for (int i = 0; i < count; i++) {
+			// parents always precede their children, so store the (small) distance
+			writeVarLong(out, i - parents[i]);
+			writeVarLong(out, offsets[i]);
+			writeVarLong(out, durations[i]);
+			writeVarLong(out, names[i]);
+			writeVarLong(out, tags[i] + 1);
+			if (counts != null) {
+				writeVarLong(out, counts[i]);
+				if (counts[i] > 1) {
+					writeVarLong(out, maxes[i]);
+				}
+			}
+		}
+
+		TagRollups rollups = profile.getRollups();
+		writeVarLong(out, rollups.size());
+		for (int i = 0; i < rollups.size(); i++) {
+			writeVarLong(out, rollups.getTagIndex(i));
+			writeVarLong(out, rollups.getCalls(i));
+			writeVarLong(out, rollups.getTotalTime(i));
+			// child steps can (just) outlast their parent
+			writeSignedVarLong(out, rollups.getSelfTime(i));
+			writeVarLong(out, rollups.getMinTime(i));
+			writeVarLong(out, rollups.getMaxTime(i));
+		}
+
+		RepeatedCalls repeatedCalls = profile.getRepeatedCalls();
+		writeVarLong(out, repeatedCalls.size());
+		for (int i = 0; i < repeatedCalls.size(); i++) {
+			writeVarLong(out, repeatedCalls.getOwner(i));
+			writeVarLong(out, repeatedCalls.getKeyIndex(i));
+			out.writeBoolean(repeatedCalls.isByTag(i));
+			writeVarLong(out, repeatedCalls.getCount(i));
+			writeVarLong(out, repeatedCalls.getTotalTime(i));
+			writeVarLong(out, repeatedCalls.getMaxTime(i));
+		}
+	}
+
+	/**
+	 * Read a profile in binary form, from the buffer's position up to its
+	 * limit.
+	 *
+	 * @throws IOException
+	 *             If the buffer doesn't hold a well formed profile.
+	 */
+	public static CompactProfile read(ByteBuffer in) throws IOException {
+		try {
+			return readProfile(in);
+		} catch (BufferUnderflowException e) {
+			throw new IOException("Truncated profile");
+		} catch (IndexOutOfBoundsException e) {
+			throw new IOException("Truncated profile");
+		}
+	}
+
+	private static CompactProfile readProfile(ByteBuffer in) throws IOException {
+		int magic = in.getInt();
+		if (magic != MAGIC) {
+			throw new IOException("Unknown profile format");
+		}
+		String requestURL = readString(in);
+		long timestamp = in.getLong();
+
+		// each string takes at least a byte
+		String[] strings = new String[readCount(in, 1)];
+		for (int i = 0; i < strings.length; i++) {
+			strings[i] = readString(in);
+		}
+
+		int count = readCount(in, MIN_NODE_BYTES);
+		long[] offsets = new long[count];
+		long[] durations = new long[count];
+		int[] parents = new int[count];
+		int[] names = new int[count];
+		int[] tags = new int[count];
+		int[] counts = null;
+		long[] maxes = null;
+		if (readBoolean(in)) {
+			counts = new int[count];
+			maxes = new long[count];
+		}
+		for (int i = 0; i < count; i++) {
+			parents[i] = i - readIndex(in, i + 1);
+			offsets[i] = readVarLong(in);
+			durations[i] = readVarLong(in);
+			names[i] = readIndex(in, strings.length - 1);
+			tags[i] = readIndex(in, strings.length) - 1;
+			if (counts != null) {
+				counts[i] = readIndex(in, Integer.MAX_VALUE);
+				maxes[i] = counts[i] > 1 ? readVarLong(in) : durations[i];
+			}
+			if ((i == 0) != (parents[i] < 0)) {
+				throw new IOException("Malformed profile tree");
+			}
+		}
+		return new CompactProfile(requestURL, timestamp, offsets, durations, parents, names, tags, counts, maxes, strings, readRollups(in, strings.length),
+				readRepeatedCalls(in, count, strings.length));
+	}
+
+	private static TagRollups readRollups(ByteBuffer in, int stringCount) throws IOException {
+		int size = readCount(in, MIN_ROLLUP_BYTES);
+		int[] tags = new int[size];
+		int[] calls = new int[size];
+		long[] totals = new long[size];
+		long[] selfs = new long[size];
+		long[] mins = new long[size];
+		long[] maxes = new long[size];
+		for (int i = 0; i < size; i++) {
+			tags[i] = readIndex(in, stringCount - 1);
+			calls[i] = readIndex(in, Integer.MAX_VALUE);
+			totals[i] = readVarLong(in);
+			selfs[i] = readSignedVarLong(in);
+			mins[i] = readVarLong(in);
+			maxes[i] = readVarLong(in);
+		}
+		return new TagRollups(tags, calls, totals, selfs, mins, maxes);
+	}
+
+	private static RepeatedCalls readRepeatedCalls(ByteBuffer in, int nodeCount, int stringCount) throws IOException {
+		int size = readCount(in, MIN_REPEATED_BYTES);
+		int[] owners = new int[size];
+		int[] keys = new int[size];
+		boolean[] byTag = new boolean[size];
+		int[] counts = new int[size];
+		long[] totals = new long[size];
+		long[] maxes = new long[size];
+		for (int i = 0; i < size; i++) {
+			owners[i] = readIndex(in, nodeCount - 1);
+			keys[i] = readIndex(in, stringCount - 1);
+			byTag[i] = readBoolean(in);
+			counts[i] = readIndex(in, Integer.MAX_VALUE);
+			totals[i] = readVarLong(in);
+			maxes[i] = readVarLong(in);
+		}
+		return new RepeatedCalls(owners, keys, byTag, counts, totals, maxes);
+	}
+
+	/**
+	 * Build a profile from its flattened arrays, computing its rollups and
+	 * repeated calls.
+	 */
+	static CompactProfile analyse(String requestURL, long timestamp, long[] offsets, long[] durations, int[] parents, int[] names, int[] tags, int[] counts,
+			long[] maxes, String[] strings) {
+		TagRollups rollups = TagRollups.compute(durations, parents, tags, counts, maxes, strings.length);
+		RepeatedCalls repeatedCalls = RepeatedCalls.compute(durations, parents, names, tags, counts, maxes, indexOf(strings, ProfileLimits.PRUNED_STEP_NAME));
+		return new CompactProfile(requestURL, timestamp, offsets, durations, parents, names, tags, counts, maxes, strings, rollups, repeatedCalls);
+	}
+
+	private static int indexOf(String[] strings, String s) {
+		for (int i = 0; i < strings.length; i++) {
+			if (s.equals(strings[i])) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Write a string as its length and UTF-8 bytes ({@code writeUTF} can't
+	 * write strings that take more than 64KB, like some SQL).
+	 */
+	private static void writeString(DataOutput out, String s) throws IOException {
+		out.writeBoolean(s != null);
+		if (s != null) {
+			byte[] bytes = s.getBytes(UTF8);
+			writeVarLong(out, bytes.length);
+			out.write(bytes);
+		}
+	}
+
+	private static String readString(ByteBuffer in) throws IOException {
+		if (!readBoolean(in)) {
+			return null;
+		}
+		byte[] bytes = new byte[readCount(in, 1)];
+		in.get(bytes);
+		return new String(bytes, UTF8);
+	}
+
+	private static boolean readBoolean(ByteBuffer in) {
+		return in.get() != 0;
+	}
+
+	/**
+	 * Read the number of things that follow, checking that there are enough
+	 * bytes left for them (so a corrupt count can't allocate huge arrays).
+	 *
+	 * @param minBytes
+	 *            The fewest bytes each of them takes.
+	 */
+	private static int readCount(ByteBuffer in, int minBytes) throws IOException {
+		long count = readVarLong(in);
+		if (count < 0 || count > in.remaining() / minBytes) {
+			throw new IOException("Count " + count + " exceeds the remaining " + in.remaining() + " bytes");
+		}
+		return (int) count;
+	}
+
+	/**
+	 * Read an index, checking that it is in range.
+	 *
+	 * @param max
+	 *            The largest valid value.
+	 */
+	private static int readIndex(ByteBuffer in, int max) throws IOException {
+		long index = readVarLong(in);
+		if (index < 0 || index > max) {
+			throw new IOException("Index " + index + " out of range");
+		}
+		return (int) index;
+	}
+
+	/**
+	 * Write a non-negative value 7 bits at a time (negative values, which
+	 * shouldn't occur, are clamped to 0).
+	 */
+	private static void writeVarLong(DataOutput out, long value) throws IOException {
+		value = Math.max(0, value);
+		while ((value & ~0x7FL) != 0) {
+			out.writeByte((int) ((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+		out.writeByte((int) value);
+	}
+
+	/**
+	 * Write a value that may be negative, zig-zag encoded so that small
+	 * negative values stay small.
+	 */
+	private static void writeSignedVarLong(DataOutput out, long value) throws IOException {
+		long zigzag = (value << 1) ^ (value >> 63);
+		while ((zigzag & ~0x7FL) != 0) {
+			out.writeByte((int) ((zigzag & 0x7F) | 0x80));
+			zigzag >>>= 7;
+		}
+		out.writeByte((int) zigzag);
+	}
+
+	private static long readSignedVarLong(ByteBuffer in) throws IOException {
+		long zigzag = readVarLong(in);
+		return (zigzag >>> 1) ^ -(zigzag & 1);
+	}
+
+	/**
+	 * Read a value written by {@link #writeVarLong(DataOutput, long)}, or the
+	 * zig-zag encoding of a signed one (whose top bit may be set, so the
+	 * result may be negative).
+	 */
+	private static long readVarLong(ByteBuffer in) throws IOException {
+		long value = 0;
+		for (int shift = 0; shift < 64; shift += 7) {
+			int b = in.get() & 0xFF;
+			// the 10th byte only has the top bit of a long left to hold
+			if (shift == 63 && b > 1) {
+				break;
+			}
+			value |= (long) (b & 0x7F) << shift;
+			if ((b & 0x80) == 0) {
+				return value;
+			}
+		}
+		throw new IOException("Malformed variable length value");
+	}
+
+	/**
+	 * Something profile nodes can be added to, in pre-order.
+	 */
+	interface StepSink {
+
+		/**
+		 * @return The index of the added node.
+		 */
+		int add(int parent, long offset, long duration, String name, String tag);
+	}
+
+	/**
+	 * Accumulates nodes into growable primitive arrays. The counts and
+	 * longest durations of coalesced steps are only kept once there are
+	 * some.
+	 */
+	static class Builder implements StepSink {
+
+		private long[] offsets = new long[16];
+		private long[] durations = new long[16];
+		private int[] parents = new int[16];
+		private int[] names = new int[16];
+		private int[] tags = new int[16];
+		private int[] counts;
+		private long[] maxes;
+		private int count;
+
+		private final Map<String, Integer> stringIndex = new HashMap<String, Integer>();
+		private final List<String> strings = new ArrayList<String>();
+
+		public int add(int parent, long offset, long duration, String name, String tag) {
+			if (count == durations.length) {
+				grow();
+			}
+			offsets[count] = offset;
+			durations[count] = duration;
+			parents[count] = parent;
+			names[count] = intern(name != null ? name : "");
+			tags[count] = tag != null && tag.length() > 0 ? intern(tag) : -1;
+			if (counts != null) {
+				counts[count] = 1;
+				maxes[count] = duration;
+			}
+			return count++;
+		}
+
+		/**
+		 * Add a node that stands for a number of steps.
+		 *
+		 * @param stepCount
+		 *            The number of steps.
+		 * @param maxDuration
+		 *            The longest of them.
+		 */
+		int add(int parent, long offset, long duration, String name, String tag, int stepCount, long maxDuration) {
+			int index = add(parent, offset, duration, name, tag);
+			if (stepCount != 1 && counts == null) {
+				counts = new int[durations.length];
+				maxes = new long[durations.length];
+				for (int i = 0; i < index; i++) {
+					counts[i] = 1;
+					maxes[i] = durations[i];
+				}
+			}
+			if (counts != null) {
+				counts[index] = stepCount;
+				maxes[index] = maxDuration;
+			}
+			return index;
+		}
+
+		private int intern(String s) {
+			Integer index = stringIndex.get(s);
+			if (index == null) {
+				index = strings.size();
+				strings.add(s);
+				stringIndex.put(s, index);
+			}
+			return index;
+		}
+
+		private void grow() {
+			int size = durations.length * 2;
+			offsets = copy(offsets, size);
+			durations = copy(durations, size);
+			parents = copy(parents, size);
+			names = copy(names, size);
+			tags = copy(tags, size);
+			if (counts != null) {
+				counts = copy(counts, size);
+				maxes = copy(maxes, size);
+			}
+		}
+
+		CompactProfile build(String requestURL, long timestamp) {
+			return analyse(requestURL, timestamp, copy(offsets, count), copy(durations, count), copy(parents, count), copy(names, count), copy(tags, count),
+					counts != null ? copy(counts, count) : null, maxes != null ? copy(maxes, count) : null, strings.toArray(new String[strings.size()]));
+		}
+
+		private static long[] copy(long[] src, int size) {
+			long[] dst = new long[size];
+			System.arraycopy(src, 0, dst, 0, Math.min(src.length, size));
+			return dst;
+		}
+
+		private static int[] copy(int[] src, int size) {
+			int[] dst = new int[size];
+			System.arraycopy(src, 0, dst, 0, Math.min(src.length, size));
+			return dst;
+		}
+	}
+
+	/**
+	 * A minimal growable stack of ints.
+	 */
+	private static class IntStack {
+
+		private int[] values = new int[16];
+		private int size;
+
+		void push(int value) {
+			if (size == values.length) {
+				int[] bigger = new int[size * 2];
+				System.arraycopy(values, 0, bigger, 0, size);
+				values = bigger;
+			}
+			values[size++] = value;
+		}
+
+		int pop() {
+			return values[--size];
+		}
+	}
+}
@@ -0,0 +1,66 @@
+package au.com.funkworks.jmp.codec;
+
+/**
+ * Limits on the size of a profile, applied when it is flattened:
+ * <ul>
+ * <li>Runs of at least {@code coalesceRunLength} same named (and tagged)
+ * sibling steps are coalesced into one step, with the number of runs, their
+ * total duration and the longest single run. The children of coalesced
+ * steps are merged by name.
+ * <li>Steps quicker than {@code minStepNanos} are folded into their parent's
+ * self time (after coalescing, so a thousand quick calls still show up).
+ * <li>If there are still more than {@code maxSteps} steps, only the longest
+ * ones (and their ancestors) are kept.
+ * </ul>
+ * Wherever steps were left out, a {@value #PRUNED_STEP_NAME} marker step
+ * (with no duration) is added to their parent, counting the steps left out.
+ * A limit of zero turns it off.
+ */
+public class ProfileLimits {
+
+	/** The name of the steps that mark where steps were left out. */
+	public static final String PRUNED_STEP_NAME = "(pruned steps)";
+
+	/** No limits at all. */
+	public static final ProfileLimits NONE = new ProfileLimits(0, 0, 0);
+
+	private final int maxSteps;
+	private final long minStepNanos;
+	private final int coalesceRunLength;
+
+	/**
+	 * @param maxSteps
+	 *            The most steps to keep (not counting markers).
+	 * @param minStepNanos
+	 *            The shortest step to keep, in nanoseconds.
+	 * @param coalesceRunLength
+	 *            The shortest run of same named siblings to coalesce.
+	 */
+	public ProfileLimits(int maxSteps, long minStepNanos, int coalesceRunLength) {
+		this.maxSteps = Math.max(0, maxSteps);
+		this.minStepNanos = Math.max(0, minStepNanos);
+		this.coalesceRunLength = coalesceRunLength > 1 ? coalesceRunLength : 0;
+	}
+
+	public int getMaxSteps() {
+		return maxSteps;
+	}
+
+	public long getMinStepNanos() {
+		return minStepNanos;
+	}
+
+	public int getCoalesceRunLength() {
+		return coalesceRunLength;
+	}
+
+	/** Whether none of the limits are turned on. */
+	public boolean isUnlimited() {
+		return maxSteps == 0 && minStepNanos == 0 && coalesceRunLength == 0;
+	}
+
+	@Override
+	public String toString() {
+		return "maxSteps=" + maxSteps + ", minStepNanos=" + minStepNanos + ", coalesceRunLength=" + coalesceRunLength;
+	}
+}
@@ -0,0 +1,68 @@
+package au.com.funkworks.jmp.codec;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import au.com.funkworks.jmp.Profile;
+
+/**
+ * The pieces of an asynchronous request's profile: one {@link Profile} per
+ * dispatch (the profiler is bound to a thread, so each dispatch is
+ * profiled separately), with the time each dispatch started, plus the
+ * duration of the whole request and how it ended.
+ * <p>
+ * {@link ProfileCodec#encode(ProfileSegments, String, long, ProfileLimits)}
+ * merges them into a single profile.
+ */
+public class ProfileSegments {
+
+	private final List<Profile> segments = new ArrayList<Profile>();
+	private final List<Long> offsets = new ArrayList<Long>();
+	private long duration;
+	private String outcome;
+
+	/**
+	 * @param segment
+	 *            The profile of a dispatch (may be {@code null}).
+	 * @param offset
+	 *            The time (in nanoseconds) from the start of the request to
+	 *            the start of the dispatch.
+	 */
+	public void add(Profile segment, long offset) {
+		if (segment != null) {
+			segments.add(segment);
+			offsets.add(offset);
+		}
+	}
+
+	/**
+	 * @param duration
+	 *            The duration (in nanoseconds) of the whole request.
+	 * @param outcome
+	 *            How the request ended abnormally (such as {@code "timeout"}),
+	 *            or {@code null} if it completed.
+	 */
+	public void end(long duration, String outcome) {
+		this.duration = duration;
+		this.outcome = outcome;
+	}
+
+	public List<Profile> getSegments() {
+		return Collections.unmodifiableList(segments);
+	}
+
+	public long getOffset(int segment) {
+		return offsets.get(segment);
+	}
+
+	/** The duration (in nanoseconds) of the whole request. */
+	public long getDuration() {
+		return duration;
+	}
+
+	/** How the request ended abnormally, or {@code null} if it completed. */
+	public String getOutcome() {
+		return outcome;
+	}
+}
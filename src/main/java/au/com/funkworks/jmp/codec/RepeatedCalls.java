@@ -0,0 +1,257 @@
+package au.com.funkworks.jmp.codec;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Steps of a profile that were run many times under the same parent (such as
+ * the queries of an N+1 pattern): the parent, the repeated step name (or
+ * tag), the number of runs, and their total and longest duration.
+ * <p>
+ * Repeats are counted among siblings, and also among descendants of a
+ * repeated step: in {@code page > (item > query) x 100} both the
+ * {@code item} steps and the {@code query} steps are counted 100 times under
+ * {@code page}, since a repeated step doesn't make a parent of its own. Steps
+ * are grouped by name, and (when a tag covers more than one name) by tag.
+ * A coalesced step counts for all of its runs, and the
+ * {@link ProfileLimits#PRUNED_STEP_NAME} markers aren't counted.
+ * <p>
+ * Computed once, when a profile is captured, with a couple of linear passes
+ * over its flattened arrays, and stored with it by {@link ProfileCodec}. Groups with fewer than
+ * {@link #MIN_REPEATS} runs aren't kept; readers pick their own (higher)
+ * threshold.
+ */
+public class RepeatedCalls implements Serializable {
+
+	private static final long serialVersionUID = -6425370312795183187L;
+
+	/** The fewest runs kept for a group. */
+	public static final int MIN_REPEATS = 3;
+
+	/** The default number of runs from which a group is reported. */
+	public static final int DEFAULT_THRESHOLD = 10;
+
+	private static final RepeatedCalls EMPTY = new RepeatedCalls(new int[0], new int[0], new boolean[0], new int[0], new long[0], new long[0]);
+
+	/** The node index of the parent of each group. */
+	private final int[] owners;
+	/** String table index of the name (or tag) of each group. */
+	private final int[] keys;
+	private final boolean[] byTag;
+	private final int[] counts;
+	private final long[] totals;
+	private final long[] maxes;
+
+	RepeatedCalls(int[] owners, int[] keys, boolean[] byTag, int[] counts, long[] totals, long[] maxes) {
+		this.owners = owners;
+		this.keys = keys;
+		this.byTag = byTag;
+		this.counts = counts;
+		this.totals = totals;
+		this.maxes = maxes;
+	}
+
+	/**
+	 * @param counts
+	 *            The number of runs of each (coalesced) step, or {@code null}
+	 *            if none were coalesced.
+	 * @param maxes
+	 *            The longest run of each step, or {@code null} with counts.
+	 * @param excludedName
+	 *            The string table index of a name not to count, or -1.
+	 */
+	static RepeatedCalls compute(long[] durations, int[] parents, int[] names, int[] tags, int[] counts, long[] maxes, int excludedName) {
+		if (durations.length <= MIN_REPEATS && counts == null) {
+			return EMPTY;
+		}
+		int[] owners = computeOwners(parents, names, counts);
+
+		Map<Long, Group> groups = new HashMap<Long, Group>();
+		int kept = 0;
+		for (int i = 1; i < durations.length; i++) {
+			if (names[i] == excludedName) {
+				continue;
+			}
+			int runs = counts != null ? counts[i] : 1;
+			long max = maxes != null ? maxes[i] : durations[i];
+			kept += addTo(groups, owners[i], names[i], false, names[i], runs, durations[i], max);
+			if (tags[i] >= 0) {
+				kept += addTo(groups, owners[i], tags[i], true, names[i], runs, durations[i], max);
+			}
+		}
+		if (kept == 0) {
+			return EMPTY;
+		}
+
+		int size = 0;
+		Group[] found = new Group[kept];
+		for (Group group : groups.values()) {
+			// a tag that only ever covers one name repeats the name's group
+			if (group.count >= MIN_REPEATS && (!group.byTag || group.mixedNames)) {
+				found[size++] = group;
+			}
+		}
+		Arrays.sort(found, 0, size);
+
+		int[] resultOwners = new int[size];
+		int[] resultKeys = new int[size];
+		boolean[] resultByTag = new boolean[size];
+		int[] resultCounts = new int[size];
+		long[] resultTotals = new long[size];
+		long[] resultMaxes = new long[size];
+		for (int i = 0; i < size; i++) {
+			resultOwners[i] = found[i].owner;
+			resultKeys[i] = found[i].key;
+			resultByTag[i] = found[i].byTag;
+			resultCounts[i] = found[i].count;
+			resultTotals[i] = found[i].total;
+			resultMaxes[i] = found[i].max;
+		}
+		return new RepeatedCalls(resultOwners, resultKeys, resultByTag, resultCounts, resultTotals, resultMaxes);
+	}
+
+	/**
+	 * Add a step (of one or more runs) to its group.
+	 *
+	 * @return 1 if the group has just reached {@link #MIN_REPEATS} runs.
+	 */
+	private static int addTo(Map<Long, Group> groups, int owner, int key, boolean byTag, int name, int runs, long duration, long max) {
+		Long id = Long.valueOf(((long) owner << 32) | ((long) key << 1) | (byTag ? 1 : 0));
+		Group group = groups.get(id);
+		if (group == null) {
+			group = new Group(owner, key, byTag, name);
+			groups.put(id, group);
+		}
+		int before = group.count;
+		group.count += runs;
+		group.total += duration;
+		group.max = Math.max(group.max, max);
+		if (name != group.firstName) {
+			group.mixedNames = true;
+		}
+		return before < MIN_REPEATS && group.count >= MIN_REPEATS ? 1 : 0;
+	}
+
+	/**
+	 * Find the parent that each step is counted under: its own parent, unless
+	 * that is one of a run of same named siblings, in which case it is the
+	 * parent's owner (a coalesced step is a run of its own). Nodes are in
+	 * pre-order, so a parent's owner is always known by the time its children
+	 * come along.
+	 */
+	static int[] computeOwners(int[] parents, int[] names, int[] counts) {
+		int count = parents.length;
+
+		// the number of siblings with the same name as each node
+		Map<Long, int[]> siblings = new HashMap<Long, int[]>();
+		int[][] siblingCounts = new int[count][];
+		for (int i = 1; i < count; i++) {
+			Long id = Long.valueOf(((long) parents[i] << 32) | names[i]);
+			int[] counter = siblings.get(id);
+			if (counter == null) {
+				counter = new int[1];
+				siblings.put(id, counter);
+			}
+			counter[0] += counts != null ? counts[i] : 1;
+			siblingCounts[i] = counter;
+		}
+
+		// the node that the children of each node are counted under
+		int[] lifts = new int[count];
+		int[] owners = new int[count];
+		owners[0] = -1;
+		for (int i = 1; i < count; i++) {
+			owners[i] = lifts[parents[i]];
+			lifts[i] = siblingCounts[i][0] > 1 ? owners[i] : i;
+		}
+		return owners;
+	}
+
+	/**
+	 * Mark the steps that belong to the groups reported at a threshold.
+	 */
+	public boolean[] markRepeated(CompactProfile profile, int threshold) {
+		boolean[] marked = new boolean[profile.getNodeCount()];
+		if (owners.length == 0) {
+			return marked;
+		}
+		int[] nodeOwners = computeOwners(profile.parents(), profile.names(), profile.counts());
+		for (int g = 0; g < owners.length; g++) {
+			if (counts[g] < threshold) {
+				continue;
+			}
+			for (int i = 1; i < marked.length; i++) {
+				if (nodeOwners[i] == owners[g] && (byTag[g] ? profile.getTagIndex(i) : profile.names()[i]) == keys[g]) {
+					marked[i] = true;
+				}
+			}
+		}
+		return marked;
+	}
+
+	/** The number of groups (ordered by total time, longest first). */
+	public int size() {
+		return owners.length;
+	}
+
+	public boolean isEmpty() {
+		return owners.length == 0;
+	}
+
+	/** The node index of the parent the steps were repeated under. */
+	public int getOwner(int group) {
+		return owners[group];
+	}
+
+	/** The string table index of the repeated name (or tag). */
+	public int getKeyIndex(int group) {
+		return keys[group];
+	}
+
+	/** Whether the steps were grouped by tag rather than by name. */
+	public boolean isByTag(int group) {
+		return byTag[group];
+	}
+
+	public int getCount(int group) {
+		return counts[group];
+	}
+
+	/** Total time (in nanoseconds) of the repeated steps. */
+	public long getTotalTime(int group) {
+		return totals[group];
+	}
+
+	/** Duration (in nanoseconds) of the slowest of the repeated steps. */
+	public long getMaxTime(int group) {
+		return maxes[group];
+	}
+
+	/**
+	 * A group of steps being counted.
+	 */
+	private static class Group implements Comparable<Group> {
+
+		private final int owner;
+		private final int key;
+		private final boolean byTag;
+		private final int firstName;
+		private boolean mixedNames;
+		private int count;
+		private long total;
+		private long max;
+
+		Group(int owner, int key, boolean byTag, int firstName) {
+			this.owner = owner;
+			this.key = key;
+			this.byTag = byTag;
+			this.firstName = firstName;
+		}
+
+		public int compareTo(Group other) {
+			return total < other.total ? 1 : (total == other.total ? 0 : -1);
+		}
+	}
+}
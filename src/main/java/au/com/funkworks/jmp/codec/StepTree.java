@@ -0,0 +1,255 @@
+package au.com.funkworks.jmp.codec;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * A mutable copy of a profile tree, used to apply {@link ProfileLimits}
+ * before the tree is flattened. Only built when some limit is turned on.
+ * <p>
+ * All the walks are iterative, since a profile can be arbitrarily deep.
+ */
+class StepTree implements ProfileCodec.StepSink {
+
+	/** Orders steps by duration, longest first. */
+	private static final Comparator<Node> BY_DURATION = new Comparator<Node>() {
+		public int compare(Node a, Node b) {
+			return a.duration < b.duration ? 1 : (a.duration == b.duration ? 0 : -1);
+		}
+	};
+
+	/** The nodes in the order they were added (the root first). */
+	private final List<Node> nodes = new ArrayList<Node>();
+
+	public int add(int parent, long offset, long duration, String name, String tag) {
+		Node node = new Node(name, tag, offset, duration);
+		if (parent >= 0) {
+			nodes.get(parent).children.add(node);
+		}
+		nodes.add(node);
+		return nodes.size() - 1;
+	}
+
+	/**
+	 * Apply the limits, then add the (pruned) tree to a sink.
+	 */
+	void writeTo(ProfileCodec.Builder builder, ProfileLimits limits) {
+		if (nodes.isEmpty()) {
+			return;
+		}
+		Node root = nodes.get(0);
+		if (limits.getCoalesceRunLength() > 1) {
+			coalesce(root, limits.getCoalesceRunLength());
+		}
+		if (limits.getMinStepNanos() > 0) {
+			fold(root, limits.getMinStepNanos());
+		}
+		if (limits.getMaxSteps() > 0) {
+			limit(root, limits.getMaxSteps());
+		}
+
+		List<Node> stack = new ArrayList<Node>();
+		List<Integer> parentStack = new ArrayList<Integer>();
+		stack.add(root);
+		parentStack.add(-1);
+		while (!stack.isEmpty()) {
+			Node node = stack.remove(stack.size() - 1);
+			int parent = parentStack.remove(parentStack.size() - 1);
+			int index = builder.add(parent, node.offset, node.duration, node.name, node.tag, node.count, node.max);
+			if (node.dropped > 0) {
+				// the marker is the last child, so it goes onto the stack first
+				stack.add(new Node(ProfileLimits.PRUNED_STEP_NAME, null, node.offset, 0, node.dropped));
+				parentStack.add(index);
+			}
+			for (int i = node.children.size() - 1; i >= 0; i--) {
+				stack.add(node.children.get(i));
+				parentStack.add(index);
+			}
+		}
+	}
+
+	/**
+	 * Coalesce runs of same named siblings. The children of a coalesced node
+	 * are all merged by name, since they came from separate calls.
+	 */
+	private static void coalesce(Node root, int runLength) {
+		List<Node> stack = new ArrayList<Node>();
+		stack.add(root);
+		while (!stack.isEmpty()) {
+			Node node = stack.remove(stack.size() - 1);
+			if (node.children.size() > 1) {
+				node.children = node.count > 1 ? mergeAll(node.children) : mergeRuns(node.children, runLength);
+			}
+			stack.addAll(node.children);
+		}
+	}
+
+	private static List<Node> mergeRuns(List<Node> children, int runLength) {
+		List<Node> result = new ArrayList<Node>(children.size());
+		int start = 0;
+		while (start < children.size()) {
+			int end = start + 1;
+			while (end < children.size() && children.get(start).sameStep(children.get(end))) {
+				end++;
+			}
+			if (end - start >= runLength) {
+				result.add(merge(children.subList(start, end)));
+			} else {
+				result.addAll(children.subList(start, end));
+			}
+			start = end;
+		}
+		return result;
+	}
+
+	private static List<Node> mergeAll(List<Node> children) {
+		Map<String, List<Node>> groups = new LinkedHashMap<String, List<Node>>();
+		for (Node child : children) {
+			String key = child.tag + "\u0000" + child.name;
+			List<Node> group = groups.get(key);
+			if (group == null) {
+				group = new ArrayList<Node>(1);
+				groups.put(key, group);
+			}
+			group.add(child);
+		}
+		if (groups.size() == children.size()) {
+			return children;
+		}
+		List<Node> result = new ArrayList<Node>(groups.size());
+		for (List<Node> group : groups.values()) {
+			result.add(group.size() > 1 ? merge(group) : group.get(0));
+		}
+		return result;
+	}
+
+	private static Node merge(List<Node> run) {
+		Node first = run.get(0);
+		Node merged = new Node(first.name, first.tag, first.offset, 0, 0);
+		for (Node node : run) {
+			merged.duration += node.duration;
+			merged.count += node.count;
+			merged.max = Math.max(merged.max, node.max);
+			merged.dropped += node.dropped;
+			merged.children.addAll(node.children);
+		}
+		return merged;
+	}
+
+	/**
+	 * Fold steps quicker than the minimum (and everything under them) into
+	 * their parents.
+	 */
+	private static void fold(Node root, long minNanos) {
+		List<Node> stack = new ArrayList<Node>();
+		stack.add(root);
+		while (!stack.isEmpty()) {
+			Node node = stack.remove(stack.size() - 1);
+			List<Node> kept = null;
+			for (int i = 0; i < node.children.size(); i++) {
+				Node child = node.children.get(i);
+				if (child.duration < minNanos) {
+					if (kept == null) {
+						kept = new ArrayList<Node>(node.children.subList(0, i));
+					}
+					node.dropped += weight(child);
+				} else if (kept != null) {
+					kept.add(child);
+				}
+			}
+			if (kept != null) {
+				node.children = kept;
+			}
+			stack.addAll(node.children);
+		}
+	}
+
+	/**
+	 * Keep only the longest steps (and their ancestors): starting from the
+	 * root, repeatedly keep the longest step whose parent has been kept.
+	 */
+	private static void limit(Node root, int maxSteps) {
+		PriorityQueue<Node> frontier = new PriorityQueue<Node>(64, BY_DURATION);
+		List<Node> kept = new ArrayList<Node>();
+		root.kept = true;
+		kept.add(root);
+		frontier.addAll(root.children);
+		while (!frontier.isEmpty() && kept.size() < maxSteps) {
+			Node node = frontier.poll();
+			node.kept = true;
+			kept.add(node);
+			frontier.addAll(node.children);
+		}
+		if (frontier.isEmpty()) {
+			return;
+		}
+		for (Node node : kept) {
+			List<Node> children = new ArrayList<Node>(node.children.size());
+			for (Node child : node.children) {
+				if (child.kept) {
+					children.add(child);
+				} else {
+					node.dropped += weight(child);
+				}
+			}
+			node.children = children;
+		}
+	}
+
+	/**
+	 * The number of steps in a subtree (counting coalesced runs, and steps
+	 * already left out of it).
+	 */
+	private static int weight(Node root) {
+		int weight = 0;
+		List<Node> stack = new ArrayList<Node>();
+		stack.add(root);
+		while (!stack.isEmpty()) {
+			Node node = stack.remove(stack.size() - 1);
+			weight += node.count + node.dropped;
+			stack.addAll(node.children);
+		}
+		return weight;
+	}
+
+	private static class Node {
+
+		private final String name;
+		private final String tag;
+		private final long offset;
+		private long duration;
+		private int count;
+		private long max;
+
+		/** The number of steps left out from under this one. */
+		private int dropped;
+		private boolean kept;
+
+		private List<Node> children = new ArrayList<Node>(0);
+
+		Node(String name, String tag, long offset, long duration) {
+			this(name, tag, offset, duration, 1);
+		}
+
+		Node(String name, String tag, long offset, long duration, int count) {
+			this.name = name;
+			this.tag = tag;
+			this.offset = offset;
+			this.duration = duration;
+			this.count = count;
+			this.max = duration;
+		}
+
+		boolean sameStep(Node other) {
+			return eq(name, other.name) && eq(tag, other.tag);
+		}
+
+		private static boolean eq(String a, String b) {
+			return a == null ? b == null : a.equals(b);
+		}
+	}
+}
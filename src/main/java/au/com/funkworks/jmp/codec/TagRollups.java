@@ -0,0 +1,150 @@
+package au.com.funkworks.jmp.codec;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * Per tag call statistics of a profile: the number of calls, total time,
+ * self time (excluding child steps) and the min/max duration of a single
+ * call.
+ * <p>
+ * Computed once, when a profile is captured, with a single linear pass over
+ * its flattened arrays, and stored with it by {@link ProfileCodec}. The root step is the request itself
+ * so it is not counted as a call. Tags are listed in the order they first
+ * appear in the profile.
+ * <p>
+ * A coalesced step counts as all of its calls. Only its longest call is
+ * known, so its average stands in for its quickest.
+ */
+public class TagRollups implements Serializable {
+
+	private static final long serialVersionUID = 5815542286924961553L;
+
+	private static final TagRollups EMPTY = new TagRollups(new int[0], new int[0], new long[0], new long[0], new long[0], new long[0]);
+
+	/** String table index of each tag. */
+	private final int[] tags;
+	private final int[] calls;
+	private final long[] totals;
+	private final long[] selfs;
+	private final long[] mins;
+	private final long[] maxes;
+
+	TagRollups(int[] tags, int[] calls, long[] totals, long[] selfs, long[] mins, long[] maxes) {
+		this.tags = tags;
+		this.calls = calls;
+		this.totals = totals;
+		this.selfs = selfs;
+		this.mins = mins;
+		this.maxes = maxes;
+	}
+
+	/**
+	 * @param counts
+	 *            The number of calls of each (coalesced) step, or
+	 *            {@code null} if none were coalesced.
+	 * @param nodeMaxes
+	 *            The longest call of each step, or {@code null} with counts.
+	 */
+	static TagRollups compute(long[] durations, int[] parents, int[] nodeTags, int[] counts, long[] nodeMaxes, int stringCount) {
+		// rollup slot for each string table entry, -1 until the tag is seen
+		int[] slots = null;
+		int count = 0;
+		int[] tags = null;
+		int[] calls = null;
+		long[] totals = null;
+		long[] selfs = null;
+		long[] mins = null;
+		long[] maxes = null;
+
+		for (int i = 1; i < durations.length; i++) {
+			int tag = nodeTags[i];
+			long duration = durations[i];
+			if (tag >= 0) {
+				if (slots == null) {
+					slots = new int[stringCount];
+					Arrays.fill(slots, -1);
+					tags = new int[Math.min(stringCount, durations.length)];
+					calls = new int[tags.length];
+					totals = new long[tags.length];
+					selfs = new long[tags.length];
+					mins = new long[tags.length];
+					maxes = new long[tags.length];
+				}
+				int runs = counts != null ? counts[i] : 1;
+				long min = runs > 1 ? duration / runs : duration;
+				int slot = slots[tag];
+				if (slot < 0) {
+					slot = count++;
+					slots[tag] = slot;
+					tags[slot] = tag;
+					mins[slot] = min;
+				}
+				calls[slot] += runs;
+				totals[slot] += duration;
+				selfs[slot] += duration;
+				mins[slot] = Math.min(mins[slot], min);
+				maxes[slot] = Math.max(maxes[slot], nodeMaxes != null ? nodeMaxes[i] : duration);
+			}
+			int parent = parents[i];
+			if (parent > 0 && nodeTags[parent] >= 0) {
+				selfs[slots[nodeTags[parent]]] -= duration;
+			}
+		}
+
+		if (count == 0) {
+			return EMPTY;
+		}
+		return new TagRollups(trim(tags, count), trim(calls, count), trim(totals, count), trim(selfs, count), trim(mins, count), trim(maxes, count));
+	}
+
+	/** The number of distinct tags. */
+	public int size() {
+		return tags.length;
+	}
+
+	public boolean isEmpty() {
+		return tags.length == 0;
+	}
+
+	/** The string table index of a tag. */
+	public int getTagIndex(int rollup) {
+		return tags[rollup];
+	}
+
+	public int getCalls(int rollup) {
+		return calls[rollup];
+	}
+
+	/** Total time (in nanoseconds) of the calls with a tag. */
+	public long getTotalTime(int rollup) {
+		return totals[rollup];
+	}
+
+	/** Total time (in nanoseconds) of the calls with a tag, excluding their child steps. */
+	public long getSelfTime(int rollup) {
+		return selfs[rollup];
+	}
+
+	/** Duration (in nanoseconds) of the quickest call with a tag. */
+	public long getMinTime(int rollup) {
+		return mins[rollup];
+	}
+
+	/** Duration (in nanoseconds) of the slowest call with a tag. */
+	public long getMaxTime(int rollup) {
+		return maxes[rollup];
+	}
+
+	private static int[] trim(int[] src, int size) {
+		int[] dst = new int[size];
+		System.arraycopy(src, 0, dst, 0, size);
+		return dst;
+	}
+
+	private static long[] trim(long[] src, int size) {
+		long[] dst = new long[size];
+		System.arraycopy(src, 0, dst, 0, size);
+		return dst;
+	}
+}
@@ -0,0 +1,242 @@
+package au.com.funkworks.jmp.events;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Routes the ids of completed profiles to the page that is waiting for them.
+ * <p>
+ * A page picks a random channel id and sends it (in the
+ * {@code X-Mini-Profile-Channel} header) with its Ajax requests. When one of
+ * those requests has been profiled, the filter publishes its request id to
+ * the channel, and the servlet's {@code events} stream pushes it to the
+ * page. Ids published before the page's stream connects are kept until it
+ * does.
+ * <p>
+ * Everything is bounded: the number of channels, the ids pending on a
+ * channel, and the number of streams open at once (each holds a request
+ * thread while it is open, since the servlet serves the stream
+ * synchronously). Channels that haven't been used for a while are dropped.
+ * <p>
+ * Ids are counted as {@code published} when they are queued on a channel,
+ * as {@code dropped} when there was no room for their channel, and as
+ * {@code overflowed} when they were pushed out of a full channel before the
+ * page collected them.
+ */
+public class ProfileEventChannels {
+
+	public static final String CHANNEL_HEADER = "X-Mini-Profile-Channel";
+
+	public static final int DEFAULT_MAX_CHANNELS = 1000;
+	public static final int DEFAULT_MAX_STREAMS = 50;
+	public static final long DEFAULT_STREAM_MILLIS = 25000;
+	public static final long DEFAULT_COALESCE_MILLIS = 100;
+
+	/** The most ids kept waiting on one channel. */
+	private static final int MAX_PENDING = 100;
+
+	/** How long an unused channel is kept for. */
+	private static final long IDLE_MILLIS = 2 * 60 * 1000;
+
+	private static final int MAX_CHANNEL_ID_LENGTH = 64;
+
+	private final ConcurrentHashMap<String, Channel> channels = new ConcurrentHashMap<String, Channel>();
+	private final int maxChannels;
+	private final int maxStreams;
+	private final long streamMillis;
+	private final long coalesceMillis;
+
+	private final AtomicInteger openStreams = new AtomicInteger();
+
+	private final AtomicLong published = new AtomicLong();
+	private final AtomicLong dropped = new AtomicLong();
+	private final AtomicLong overflowed = new AtomicLong();
+	private final AtomicLong rejectedStreams = new AtomicLong();
+
+	public ProfileEventChannels(int maxChannels, int maxStreams, long streamMillis, long coalesceMillis) {
+		this.maxChannels = Math.max(1, maxChannels);
+		this.maxStreams = Math.max(1, maxStreams);
+		this.streamMillis = streamMillis;
+		this.coalesceMillis = coalesceMillis;
+	}
+
+	/**
+	 * Whether a (client supplied) channel id is acceptable: short, and made
+	 * of letters, digits, '-' and '_' only.
+	 */
+	public static boolean isValidChannelId(String channelId) {
+		if (channelId == null || channelId.length() == 0 || channelId.length() > MAX_CHANNEL_ID_LENGTH) {
+			return false;
+		}
+		for (int i = 0; i < channelId.length(); i++) {
+			char c = channelId.charAt(i);
+			if (!((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '-' || c == '_')) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Publish the id of a completed profile to a channel.
+	 */
+	public void publish(String channelId, String requestId) {
+		Channel channel = getChannel(channelId);
+		if (channel == null) {
+			dropped.incrementAndGet();
+			return;
+		}
+		published.incrementAndGet();
+		if (!channel.publish(requestId)) {
+			// queued, at the cost of the oldest id waiting on the channel
+			overflowed.incrementAndGet();
+		}
+	}
+
+	/**
+	 * Get (creating if need be) a channel.
+	 * 
+	 * @return The channel, or {@code null} if there is no room for another
+	 *         one.
+	 */
+	public Channel getChannel(String channelId) {
+		Channel channel = channels.get(channelId);
+		if (channel == null) {
+			if (channels.size() >= maxChannels) {
+				expireIdleChannels();
+				if (channels.size() >= maxChannels) {
+					return null;
+				}
+			}
+			channel = new Channel();
+			Channel existing = channels.putIfAbsent(channelId, channel);
+			if (existing != null) {
+				channel = existing;
+			}
+		}
+		channel.touch();
+		return channel;
+	}
+
+	/**
+	 * Claim one of the stream slots.
+	 * 
+	 * @return Whether a stream may be opened. If so, {@link #closeStream()}
+	 *         must be called when it ends.
+	 */
+	public boolean openStream() {
+		while (true) {
+			int open = openStreams.get();
+			if (open >= maxStreams) {
+				rejectedStreams.incrementAndGet();
+				return false;
+			}
+			if (openStreams.compareAndSet(open, open + 1)) {
+				return true;
+			}
+		}
+	}
+
+	public void closeStream() {
+		openStreams.decrementAndGet();
+	}
+
+	/** How long (in milliseconds) a stream is held open for. */
+	public long getStreamMillis() {
+		return streamMillis;
+	}
+
+	/** How long (in milliseconds) to wait for more ids once one arrives. */
+	public long getCoalesceMillis() {
+		return coalesceMillis;
+	}
+
+	/**
+	 * Get the channel counters, e.g. for reporting as JSON.
+	 */
+	public Map<String, Object> getStats() {
+		Map<String, Object> stats = new HashMap<String, Object>();
+		stats.put("channels", channels.size());
+		stats.put("openStreams", openStreams.get());
+		stats.put("published", published.get());
+		stats.put("dropped", dropped.get());
+		stats.put("overflowed", overflowed.get());
+		stats.put("rejectedStreams", rejectedStreams.get());
+		return stats;
+	}
+
+	private void expireIdleChannels() {
+		long cutoff = System.currentTimeMillis() - IDLE_MILLIS;
+		Iterator<Channel> it = channels.values().iterator();
+		while (it.hasNext()) {
+			if (it.next().lastUsed < cutoff) {
+				it.remove();
+			}
+		}
+	}
+
+	/**
+	 * The ids waiting to be pushed to one page.
+	 */
+	public static class Channel {
+
+		private final LinkedList<String> pending = new LinkedList<String>();
+		private volatile long lastUsed;
+
+		void touch() {
+			lastUsed = System.currentTimeMillis();
+		}
+
+		/**
+		 * @return Whether the id was added without dropping an older one.
+		 */
+		synchronized boolean publish(String requestId) {
+			boolean full = pending.size() >= MAX_PENDING;
+			if (full) {
+				pending.removeFirst();
+			}
+			pending.add(requestId);
+			notifyAll();
+			return !full;
+		}
+
+		/**
+		 * Wait for ids to be published. Once the first one arrives, wait a
+		 * little longer so that profiles finishing close together are sent
+		 * together.
+		 * 
+		 * @param waitMillis
+		 *            The longest time to wait for the first id.
+		 * @param coalesceMillis
+		 *            How long to wait for more ids after the first.
+		 * @return The ids, or an empty list if none arrived in time.
+		 */
+		public synchronized List<String> await(long waitMillis, long coalesceMillis) throws InterruptedException {
+			touch();
+			long end = System.currentTimeMillis() + waitMillis;
+			long left;
+			while (pending.isEmpty() && (left = end - System.currentTimeMillis()) > 0) {
+				wait(left);
+			}
+			if (pending.isEmpty()) {
+				return Collections.emptyList();
+			}
+			end = System.currentTimeMillis() + coalesceMillis;
+			while (pending.size() < MAX_PENDING && (left = end - System.currentTimeMillis()) > 0) {
+				wait(left);
+			}
+			List<String> ids = new ArrayList<String>(pending);
+			pending.clear();
+			touch();
+			return ids;
+		}
+	}
+}
@@ -0,0 +1,63 @@
+package au.com.funkworks.jmp.export;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+
+/**
+ * Posts batches of spans to a collector, such as Zipkin's
+ * {@code /api/v2/spans} endpoint or the zipkin receiver of an OpenTelemetry
+ * collector.
+ */
+public class HttpSpanSender implements SpanSender {
+
+	public static final int DEFAULT_TIMEOUT_MILLIS = 5000;
+
+	private final URL url;
+	private final int timeoutMillis;
+
+	/**
+	 * @param url
+	 *            The URL to post the spans to.
+	 * @param timeoutMillis
+	 *            The connect and read timeouts.
+	 */
+	public HttpSpanSender(URL url, int timeoutMillis) {
+		this.url = url;
+		this.timeoutMillis = timeoutMillis;
+	}
+
+	public void send(byte[] spans) throws IOException {
+		HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+		conn.setConnectTimeout(timeoutMillis);
+		conn.setReadTimeout(timeoutMillis);
+		conn.setUseCaches(false);
+		conn.setDoOutput(true);
+		conn.setRequestMethod("POST");
+		conn.setRequestProperty("Content-Type", "application/json");
+		conn.setFixedLengthStreamingMode(spans.length);
+		try {
+			OutputStream out = conn.getOutputStream();
+			try {
+				out.write(spans);
+			} finally {
+				out.close();
+			}
+			int status = conn.getResponseCode();
+			if (status < 200 || status >= 300) {
+				throw new IOException("Collector " + url + " returned " + status);
+			}
+		} finally {
+			conn.disconnect();
+		}
+	}
+
+	public void close() {
+	}
+
+	@Override
+	public String toString() {
+		return url.toString();
+	}
+}
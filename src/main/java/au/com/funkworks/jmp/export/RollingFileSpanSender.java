@@ -0,0 +1,86 @@
+package au.com.funkworks.jmp.export;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * Appends batches of spans to a local file, one JSON array per line. When
+ * the file would grow past its size limit it is rolled over to
+ * {@code <file>.1} (and {@code .1} to {@code .2}, and so on), keeping a
+ * fixed number of old files.
+ */
+public class RollingFileSpanSender implements SpanSender {
+
+	public static final long DEFAULT_MAX_BYTES = 10 * 1024 * 1024L;
+	public static final int DEFAULT_MAX_FILES = 5;
+
+	private final File file;
+	private final long maxBytes;
+	private final int maxFiles;
+
+	/**
+	 * @param file
+	 *            The file to append to.
+	 * @param maxBytes
+	 *            The size from which the file is rolled over.
+	 * @param maxFiles
+	 *            The number of rolled over files to keep.
+	 */
+	public RollingFileSpanSender(File file, long maxBytes, int maxFiles) {
+		this.file = file;
+		this.maxBytes = maxBytes;
+		this.maxFiles = Math.max(0, maxFiles);
+	}
+
+	public synchronized void send(byte[] spans) throws IOException {
+		long length = file.length();
+		if (length > 0 && length + spans.length + 1 > maxBytes) {
+			roll();
+		}
+		FileOutputStream out = new FileOutputStream(file, true);
+		try {
+			out.write(spans);
+			out.write('\n');
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Shift the rolled over files along, dropping the oldest.
+	 */
+	private void roll() throws IOException {
+		if (maxFiles == 0) {
+			if (!file.delete()) {
+				throw new IOException("Could not delete " + file);
+			}
+			return;
+		}
+		File oldest = rolled(maxFiles);
+		if (oldest.exists() && !oldest.delete()) {
+			throw new IOException("Could not delete " + oldest);
+		}
+		for (int i = maxFiles - 1; i >= 1; i--) {
+			File older = rolled(i);
+			if (older.exists() && !older.renameTo(rolled(i + 1))) {
+				throw new IOException("Could not roll over " + older);
+			}
+		}
+		if (!file.renameTo(rolled(1))) {
+			throw new IOException("Could not roll over " + file);
+		}
+	}
+
+	private File rolled(int index) {
+		return new File(file.getPath() + "." + index);
+	}
+
+	public void close() {
+	}
+
+	@Override
+	public String toString() {
+		return file.getPath();
+	}
+}
@@ -0,0 +1,28 @@
+package au.com.funkworks.jmp.export;
+
+import java.io.IOException;
+
+/**
+ * Ships encoded batches of spans somewhere.
+ * <p>
+ * {@link HttpSpanSender} posts them to a collector and
+ * {@link RollingFileSpanSender} appends them to a local file; tests can plug
+ * in anything else.
+ */
+public interface SpanSender {
+
+	/**
+	 * Send a batch of spans.
+	 *
+	 * @param spans
+	 *            A JSON array of spans (UTF-8).
+	 * @throws IOException
+	 *             If the batch could not be sent (it may be retried).
+	 */
+	void send(byte[] spans) throws IOException;
+
+	/**
+	 * Release anything held by the sender.
+	 */
+	void close();
+}
@@ -0,0 +1,225 @@
+package au.com.funkworks.jmp.export;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import au.com.funkworks.jmp.ProfileStoreListener;
+import au.com.funkworks.jmp.codec.CompactProfile;
+
+/**
+ * Exports stored profiles as trace spans, so they show up next to other
+ * traces rather than only in the in-page widget.
+ * <p>
+ * Stored profiles are put onto a bounded queue (and dropped, and counted,
+ * when it is full). A background thread collects them into batches of up to
+ * {@code maxBatchSpans} spans (more only for a single profile with more steps
+ * than that), or whatever has arrived within {@code flushMillis} of the first
+ * one, encodes them with a {@link ZipkinSpanEncoder} and hands them to a
+ * {@link SpanSender}. A batch
+ * that fails to send is retried with exponential backoff, and dropped (and
+ * counted) after {@code maxRetries}. While a batch is being retried the queue
+ * keeps filling up, so a collector that is down can never take more than the
+ * queue's worth of memory.
+ */
+public class TraceExporter implements ProfileStoreListener {
+
+	private static final Logger logger = LoggerFactory.getLogger(TraceExporter.class);
+
+	public static final int DEFAULT_QUEUE_SIZE = 1024;
+	public static final int DEFAULT_MAX_BATCH_SPANS = 5000;
+	public static final long DEFAULT_FLUSH_MILLIS = 5000;
+	public static final int DEFAULT_MAX_RETRIES = 3;
+	public static final long DEFAULT_BACKOFF_MILLIS = 500;
+
+	/** The longest wait between retries. */
+	private static final long MAX_BACKOFF_MILLIS = 30 * 1000L;
+
+	private final SpanSender sender;
+	private final ZipkinSpanEncoder encoder;
+	private final BlockingQueue<CompactProfile> queue;
+	private final int maxBatchSpans;
+	private final long flushMillis;
+	private final int maxRetries;
+	private final long backoffMillis;
+
+	private final AtomicLong enqueued = new AtomicLong();
+	private final AtomicLong dropped = new AtomicLong();
+	private final AtomicLong exportedBatches = new AtomicLong();
+	private final AtomicLong exportedSpans = new AtomicLong();
+	private final AtomicLong retries = new AtomicLong();
+	private final AtomicLong failedBatches = new AtomicLong();
+	private final AtomicLong failedSpans = new AtomicLong();
+
+	private final Thread exporter;
+	private volatile boolean running = true;
+
+	/**
+	 * @param sender
+	 *            Where to send the spans.
+	 * @param encoder
+	 *            How to encode them.
+	 * @param queueSize
+	 *            The most profiles waiting to be exported.
+	 * @param maxBatchSpans
+	 *            The most spans to send at once.
+	 * @param flushMillis
+	 *            The longest a profile waits for a batch to fill up.
+	 * @param maxRetries
+	 *            The number of times to retry a batch that failed to send.
+	 * @param backoffMillis
+	 *            The wait before the first retry (doubled for each one after).
+	 */
+	public TraceExporter(SpanSender sender, ZipkinSpanEncoder encoder, int queueSize, int maxBatchSpans, long flushMillis, int maxRetries, long backoffMillis) {
+		this.sender = sender;
+		this.encoder = encoder;
+		this.queue = new ArrayBlockingQueue<CompactProfile>(queueSize);
+		this.maxBatchSpans = Math.max(1, maxBatchSpans);
+		this.flushMillis = flushMillis;
+		this.maxRetries = Math.max(0, maxRetries);
+		this.backoffMillis = Math.max(1, backoffMillis);
+
+		exporter = new Thread(new Runnable() {
+			public void run() {
+				export();
+			}
+		}, "mini-profiler-trace-exporter");
+		exporter.setDaemon(true);
+		exporter.start();
+	}
+
+	/**
+	 * Queue a stored profile for export. Never blocks.
+	 */
+	public void profileStored(String requestURI, CompactProfile profile) {
+		if (profile.getNodeCount() == 0) {
+			return;
+		}
+		if (queue.offer(profile)) {
+			enqueued.incrementAndGet();
+		} else {
+			dropped.incrementAndGet();
+		}
+	}
+
+	/**
+	 * Stop the exporter, sending whatever is still queued (without retries).
+	 */
+	public void shutdown() {
+		running = false;
+		exporter.interrupt();
+		try {
+			exporter.join(5000);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Get the counters, suitable for JSON output.
+	 */
+	public Map<String, Object> getStats() {
+		Map<String, Object> stats = new LinkedHashMap<String, Object>();
+		stats.put("sender", sender.toString());
+		stats.put("enqueued", enqueued.get());
+		stats.put("dropped", dropped.get());
+		stats.put("queued", queue.size());
+		stats.put("exportedBatches", exportedBatches.get());
+		stats.put("exportedSpans", exportedSpans.get());
+		stats.put("retries", retries.get());
+		stats.put("failedBatches", failedBatches.get());
+		stats.put("failedSpans", failedSpans.get());
+		return stats;
+	}
+
+	private void export() {
+		List<CompactProfile> batch = new ArrayList<CompactProfile>();
+		int spans = 0;
+		long deadline = 0;
+		while (running || !queue.isEmpty()) {
+			CompactProfile profile;
+			try {
+				long wait = batch.isEmpty() ? 1000 : deadline - System.currentTimeMillis();
+				profile = running && wait > 0 ? queue.poll(wait, TimeUnit.MILLISECONDS) : queue.poll();
+			} catch (InterruptedException e) {
+				// shutting down, send what is left
+				continue;
+			}
+			if (profile != null) {
+				int profileSpans = ZipkinSpanEncoder.spanCount(profile);
+				// only a single profile can make a batch go over the limit
+				if (!batch.isEmpty() && spans + profileSpans > maxBatchSpans) {
+					send(batch, spans);
+					batch = new ArrayList<CompactProfile>();
+					spans = 0;
+				}
+				if (batch.isEmpty()) {
+					deadline = System.currentTimeMillis() + flushMillis;
+				}
+				batch.add(profile);
+				spans += profileSpans;
+			}
+			boolean full = spans >= maxBatchSpans;
+			boolean due = running ? System.currentTimeMillis() >= deadline : queue.isEmpty();
+			if (!batch.isEmpty() && (full || due)) {
+				send(batch, spans);
+				batch = new ArrayList<CompactProfile>();
+				spans = 0;
+			}
+		}
+		if (!batch.isEmpty()) {
+			send(batch, spans);
+		}
+		sender.close();
+	}
+
+	/**
+	 * Send a batch, retrying with exponential backoff.
+	 */
+	private void send(List<CompactProfile> batch, int spans) {
+		byte[] body;
+		try {
+			body = encoder.encode(batch);
+		} catch (IOException e) {
+			fail(spans, e);
+			return;
+		}
+		long backoff = backoffMillis;
+		for (int attempt = 0;; attempt++) {
+			try {
+				sender.send(body);
+				exportedBatches.incrementAndGet();
+				exportedSpans.addAndGet(spans);
+				return;
+			} catch (IOException e) {
+				if (attempt >= maxRetries || !running) {
+					fail(spans, e);
+					return;
+				}
+				retries.incrementAndGet();
+				logger.debug("Could not export spans to {}, retrying in {} ms: {}", new Object[] { sender, backoff, e.getMessage() });
+			}
+			try {
+				Thread.sleep(backoff);
+			} catch (InterruptedException e) {
+				// shutting down, one last try
+			}
+			backoff = Math.min(backoff * 2, MAX_BACKOFF_MILLIS);
+		}
+	}
+
+	private void fail(int spans, IOException e) {
+		failedBatches.incrementAndGet();
+		failedSpans.addAndGet(spans);
+		logger.warn("Could not export " + spans + " spans to " + sender + ": " + e.getMessage());
+	}
+}
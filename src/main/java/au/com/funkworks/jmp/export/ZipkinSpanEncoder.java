@@ -0,0 +1,129 @@
+package au.com.funkworks.jmp.export;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.List;
+import java.util.Random;
+
+import org.codehaus.jackson.JsonEncoding;
+import org.codehaus.jackson.JsonFactory;
+import org.codehaus.jackson.JsonGenerator;
+
+import au.com.funkworks.jmp.codec.CompactProfile;
+import au.com.funkworks.jmp.codec.ProfileLimits;
+
+/**
+ * Encodes profiles as Zipkin v2 JSON spans, which Zipkin and the zipkin
+ * receiver of an OpenTelemetry collector both accept.
+ * <p>
+ * Each profile becomes one trace: the root step is a {@code SERVER} span
+ * tagged with the request URL, and every other step is a child span of its
+ * parent step, tagged with its profiler tag (and the number of runs, for
+ * coalesced steps). The {@link ProfileLimits#PRUNED_STEP_NAME} markers aren't
+ * sent as spans; their counts are tagged on their parents instead.
+ * <p>
+ * Not thread safe: each exporter has its own.
+ */
+public class ZipkinSpanEncoder {
+
+	private final JsonFactory jsonFactory = new JsonFactory();
+	private final Random random = new Random();
+	private final String serviceName;
+
+	/**
+	 * @param serviceName
+	 *            The name of the service the spans come from.
+	 */
+	public ZipkinSpanEncoder(String serviceName) {
+		this.serviceName = serviceName;
+	}
+
+	/**
+	 * The most spans a profile is encoded as.
+	 */
+	public static int spanCount(CompactProfile profile) {
+		return profile.getNodeCount();
+	}
+
+	/**
+	 * Encode profiles as a single JSON array of spans.
+	 */
+	public byte[] encode(List<CompactProfile> profiles) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(1024);
+		JsonGenerator json = jsonFactory.createJsonGenerator(bytes, JsonEncoding.UTF8);
+		json.writeStartArray();
+		for (CompactProfile profile : profiles) {
+			writeSpans(json, profile);
+		}
+		json.writeEndArray();
+		json.close();
+		return bytes.toByteArray();
+	}
+
+	private void writeSpans(JsonGenerator json, CompactProfile profile) throws IOException {
+		int count = profile.getNodeCount();
+		if (count == 0) {
+			return;
+		}
+		String traceId = hex(random.nextLong()) + hex(random.nextLong());
+		String[] spanIds = new String[count];
+		int[] pruned = new int[count];
+		for (int i = 1; i < count; i++) {
+			if (isMarker(profile, i)) {
+				pruned[profile.getParent(i)] += profile.getCount(i);
+			}
+		}
+		// the profile's offsets are relative to the request start
+		long startMicros = profile.getTimestamp() * 1000;
+
+		for (int i = 0; i < count; i++) {
+			if (i > 0 && isMarker(profile, i)) {
+				continue;
+			}
+			spanIds[i] = hex(random.nextLong());
+			json.writeStartObject();
+			json.writeStringField("traceId", traceId);
+			json.writeStringField("id", spanIds[i]);
+			if (i > 0) {
+				json.writeStringField("parentId", spanIds[profile.getParent(i)]);
+			} else {
+				json.writeStringField("kind", "SERVER");
+			}
+			json.writeStringField("name", profile.getName(i));
+			json.writeNumberField("timestamp", startMicros + profile.getOffset(i) / 1000);
+			json.writeNumberField("duration", Math.max(1, profile.getDuration(i) / 1000));
+			json.writeObjectFieldStart("localEndpoint");
+			json.writeStringField("serviceName", serviceName);
+			json.writeEndObject();
+
+			json.writeObjectFieldStart("tags");
+			if (i == 0) {
+				json.writeStringField("http.url", profile.getRequestURL());
+			}
+			if (profile.getTag(i) != null) {
+				json.writeStringField("jmp.tag", profile.getTag(i));
+			}
+			if (profile.getCount(i) > 1) {
+				json.writeStringField("jmp.count", Integer.toString(profile.getCount(i)));
+				json.writeStringField("jmp.maxMicros", Long.toString(profile.getMaxDuration(i) / 1000));
+			}
+			if (pruned[i] > 0) {
+				json.writeStringField("jmp.prunedSteps", Integer.toString(pruned[i]));
+			}
+			json.writeEndObject();
+			json.writeEndObject();
+		}
+	}
+
+	private static boolean isMarker(CompactProfile profile, int node) {
+		return profile.getDuration(node) == 0 && ProfileLimits.PRUNED_STEP_NAME.equals(profile.getName(node));
+	}
+
+	/**
+	 * Format an id as 16 lower case hex digits (never all zeros).
+	 */
+	private static String hex(long id) {
+		String digits = Long.toHexString(id == 0 ? 1 : id);
+		return "0000000000000000".substring(digits.length()) + digits;
+	}
+}
@@ -0,0 +1,102 @@
+package au.com.funkworks.jmp.matching;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A bounded cache of per URL yes/no decisions (such as whether a URL should
+ * be profiled), so the work behind a decision is only done once for the
+ * URLs an application sees over and over.
+ * <p>
+ * The cache is direct mapped: a URL can only live in the slot its hash
+ * picks, and a new URL simply replaces whatever was there. Lookups and
+ * updates are a single array read or write, with no locking and no
+ * allocation on a hit, and the memory used never grows past the capacity.
+ */
+public class UrlDecisionCache {
+
+	public static final int DEFAULT_CAPACITY = 1024;
+
+	private final AtomicReferenceArray<Entry> entries;
+	private final int mask;
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+
+	/**
+	 * @param capacity
+	 *            The maximum number of decisions kept (rounded up to a power
+	 *            of two).
+	 */
+	public UrlDecisionCache(int capacity) {
+		int size = Integer.highestOneBit(Math.max(1, capacity - 1)) << 1;
+		this.entries = new AtomicReferenceArray<Entry>(size);
+		this.mask = size - 1;
+	}
+
+	/**
+	 * Get the cached decision for a URL.
+	 * 
+	 * @return The decision, or {@code null} if it isn't cached.
+	 */
+	public Boolean get(String url) {
+		Entry entry = entries.get(slot(url));
+		if (entry != null && entry.url.equals(url)) {
+			hits.incrementAndGet();
+			return entry.decision;
+		}
+		misses.incrementAndGet();
+		return null;
+	}
+
+	/**
+	 * Cache the decision for a URL.
+	 */
+	public void put(String url, boolean decision) {
+		entries.set(slot(url), new Entry(url, decision));
+	}
+
+	public int getCapacity() {
+		return entries.length();
+	}
+
+	public long getHitCount() {
+		return hits.get();
+	}
+
+	public long getMissCount() {
+		return misses.get();
+	}
+
+	/**
+	 * Get the cache counters (and hit rate), e.g. for reporting as JSON.
+	 */
+	public Map<String, Object> getStats() {
+		long h = hits.get();
+		long m = misses.get();
+		Map<String, Object> stats = new HashMap<String, Object>();
+		stats.put("capacity", getCapacity());
+		stats.put("hits", h);
+		stats.put("misses", m);
+		stats.put("hitRate", h + m > 0 ? (double) h / (h + m) : 0.0);
+		return stats;
+	}
+
+	private int slot(String url) {
+		int h = url.hashCode();
+		return (h ^ (h >>> 16)) & mask;
+	}
+
+	private static class Entry {
+
+		private final String url;
+		private final Boolean decision;
+
+		Entry(String url, boolean decision) {
+			this.url = url;
+			this.decision = decision;
+		}
+	}
+}
@@ -0,0 +1,247 @@
+package au.com.funkworks.jmp.matching;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.regex.Pattern;
+
+/**
+ * A set of URL patterns compiled into a single matcher.
+ * <p>
+ * The patterns have the same meaning as before (a URL matches if any
+ * pattern is found in it), but they are split by how cheaply they can be
+ * checked:
+ * <ul>
+ * <li>anchored literals ({@code ^/admin/}) go into a prefix trie, which is
+ * walked once no matter how many prefixes there are;
+ * <li>unanchored literals ({@code /api/}) are checked with {@code indexOf};
+ * <li>everything else is combined into one alternation and checked with a
+ * single regex {@code find()}, apart from patterns with back references,
+ * which are checked on their own (so that their group numbers and names
+ * still mean the same).
+ * </ul>
+ * Checking stops at the first match.
+ */
+public class UrlPatternMatcher {
+
+	private static final String META_CHARS = "\\^$.|?*+()[]{}";
+
+	private final TrieNode prefixes;
+	private final String[] literals;
+	private final Pattern combined;
+	private final Pattern[] separate;
+
+	private UrlPatternMatcher(TrieNode prefixes, String[] literals, Pattern combined, Pattern[] separate) {
+		this.prefixes = prefixes;
+		this.literals = literals;
+		this.combined = combined;
+		this.separate = separate;
+	}
+
+	/**
+	 * Compile a set of patterns.
+	 * 
+	 * @param patterns
+	 *            The regular expressions to match URLs against.
+	 */
+	public static UrlPatternMatcher compile(Iterable<String> patterns) {
+		TrieBuilder prefixes = new TrieBuilder();
+		List<String> literals = new ArrayList<String>();
+		StringBuilder combined = new StringBuilder();
+		List<Pattern> separate = new ArrayList<Pattern>();
+
+		for (String pattern : patterns) {
+			String literal;
+			if (pattern.startsWith("^") && (literal = unescapeLiteral(pattern.substring(1))) != null) {
+				prefixes.add(literal);
+			} else if ((literal = unescapeLiteral(pattern)) != null) {
+				literals.add(literal);
+			} else {
+				// compile on its own first so that a bad pattern gets a sensible error
+				Pattern compiled = Pattern.compile(pattern);
+				String renumbered = renumberGroups(pattern);
+				if (renumbered == null) {
+					separate.add(compiled);
+					continue;
+				}
+				if (combined.length() > 0) {
+					combined.append('|');
+				}
+				combined.append("(?:").append(renumbered).append(')');
+			}
+		}
+		return new UrlPatternMatcher(prefixes.build(), literals.toArray(new String[literals.size()]), combined.length() > 0 ? Pattern.compile(combined.toString()) : null,
+				separate.toArray(new Pattern[separate.size()]));
+	}
+
+	/**
+	 * Whether any of the patterns is found in a URL.
+	 */
+	public boolean matches(String url) {
+		if (prefixes != null && prefixes.matchesPrefixOf(url)) {
+			return true;
+		}
+		for (String literal : literals) {
+			if (url.indexOf(literal) >= 0) {
+				return true;
+			}
+		}
+		if (combined != null && combined.matcher(url).find()) {
+			return true;
+		}
+		for (Pattern pattern : separate) {
+			if (pattern.matcher(url).find()) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Get the literal text a pattern matches, or {@code null} if it uses any
+	 * regex features beyond escaped characters.
+	 */
+	static String unescapeLiteral(String pattern) {
+		StringBuilder literal = new StringBuilder(pattern.length());
+		for (int i = 0; i < pattern.length(); i++) {
+			char c = pattern.charAt(i);
+			if (c == '\\') {
+				if (i + 1 >= pattern.length()) {
+					return null;
+				}
+				char next = pattern.charAt(++i);
+				if (Character.isLetterOrDigit(next)) {
+					// \d, \w, \1, \Q... are all regex features
+					return null;
+				}
+				literal.append(next);
+			} else if (META_CHARS.indexOf(c) >= 0) {
+				return null;
+			} else {
+				literal.append(c);
+			}
+		}
+		return literal.length() > 0 ? literal.toString() : null;
+	}
+
+	/**
+	 * Turn capturing groups (numbered and named) into non-capturing ones, so
+	 * that combining patterns can't clash over group names, or change what a
+	 * back reference refers to.
+	 *
+	 * @return The rewritten pattern, or {@code null} if it has back
+	 *         references (and has to be compiled on its own).
+	 */
+	static String renumberGroups(String pattern) {
+		StringBuilder result = new StringBuilder(pattern.length() + 8);
+		boolean inClass = false;
+		for (int i = 0; i < pattern.length(); i++) {
+			char c = pattern.charAt(i);
+			if (c == '\\' && i + 1 < pattern.length()) {
+				char next = pattern.charAt(++i);
+				if ((next >= '1' && next <= '9') || next == 'k') {
+					return null;
+				}
+				if (next == 'Q') {
+					// quoted up to \E (or the end), so copy it as it is
+					int end = pattern.indexOf("\\E", i + 1);
+					end = end < 0 ? pattern.length() : end + 2;
+					result.append(pattern, i - 1, end);
+					i = end - 1;
+					continue;
+				}
+				result.append(c).append(next);
+				continue;
+			}
+			if (c == '[') {
+				inClass = true;
+			} else if (c == ']') {
+				inClass = false;
+			}
+			if (c != '(' || inClass) {
+				result.append(c);
+			} else if (pattern.startsWith("?<", i + 1) && i + 3 < pattern.length() && Character.isLetter(pattern.charAt(i + 3))) {
+				// a named group, (?<name>
+				result.append("(?:");
+				i = pattern.indexOf('>', i);
+			} else if (i + 1 >= pattern.length() || pattern.charAt(i + 1) != '?') {
+				result.append("(?:");
+			} else {
+				result.append(c);
+			}
+		}
+		return result.toString();
+	}
+
+	/**
+	 * A node of the (immutable) prefix trie. Children are kept in arrays
+	 * sorted by character.
+	 */
+	private static class TrieNode {
+
+		private final char[] keys;
+		private final TrieNode[] children;
+		private final boolean terminal;
+
+		TrieNode(char[] keys, TrieNode[] children, boolean terminal) {
+			this.keys = keys;
+			this.children = children;
+			this.terminal = terminal;
+		}
+
+		boolean matchesPrefixOf(String url) {
+			TrieNode node = this;
+			for (int i = 0; i < url.length(); i++) {
+				if (node.terminal) {
+					return true;
+				}
+				int idx = Arrays.binarySearch(node.keys, url.charAt(i));
+				if (idx < 0) {
+					return false;
+				}
+				node = node.children[idx];
+			}
+			return node.terminal;
+		}
+	}
+
+	private static class TrieBuilder {
+
+		private final TreeMap<Character, TrieBuilder> children = new TreeMap<Character, TrieBuilder>();
+		private boolean terminal;
+		private boolean empty = true;
+
+		void add(String prefix) {
+			empty = false;
+			TrieBuilder node = this;
+			for (int i = 0; i < prefix.length(); i++) {
+				Character c = prefix.charAt(i);
+				TrieBuilder child = node.children.get(c);
+				if (child == null) {
+					child = new TrieBuilder();
+					node.children.put(c, child);
+				}
+				node = child;
+			}
+			node.terminal = true;
+		}
+
+		TrieNode build() {
+			return empty ? null : toNode();
+		}
+
+		private TrieNode toNode() {
+			char[] keys = new char[children.size()];
+			TrieNode[] nodes = new TrieNode[children.size()];
+			int i = 0;
+			for (Map.Entry<Character, TrieBuilder> e : children.entrySet()) {
+				keys[i] = e.getKey();
+				nodes[i] = e.getValue().toNode();
+				i++;
+			}
+			return new TrieNode(keys, nodes, terminal);
+		}
+	}
+}
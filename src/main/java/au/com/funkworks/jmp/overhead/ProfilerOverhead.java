@@ -0,0 +1,228 @@
+package au.com.funkworks.jmp.overhead;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.Method;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import au.com.funkworks.jmp.cache.CacheStatistics;
+import au.com.funkworks.jmp.interfaces.CacheProfilerService;
+
+/**
+ * What the profiler itself costs: the time spent in each of its phases, the
+ * bytes it allocates on the threads of profiled requests, and the size of
+ * its store.
+ * <p>
+ * Timings are a couple of {@code System.nanoTime()} calls and atomic adds
+ * per phase. Allocations are read from the JVM's per thread allocation
+ * counter (a HotSpot extension, found by reflection), which costs a little
+ * more, so they are only tracked when asked for.
+ */
+public class ProfilerOverhead implements ProfilerOverheadMBean {
+
+	/**
+	 * The phases of the profiler's work.
+	 */
+	public enum Phase {
+		/** Deciding whether to profile a request (run for every request). */
+		SHOULD_PROFILE,
+		/** Rendering the UI includes for a profiled request. */
+		ADD_INCLUDES,
+		/** Starting and stopping the profiler, and recording the duration. */
+		CAPTURE,
+		/** Handing the profile to the (async) store. */
+		STORE,
+		/** Serializing profiles for the UI. */
+		RESULTS,
+		/** Serving the UI's static resources. */
+		RESOURCE
+	}
+
+	private static final Phase[] PHASES = Phase.values();
+
+	private final AtomicLongArray counts = new AtomicLongArray(PHASES.length);
+	private final AtomicLongArray totalNanos = new AtomicLongArray(PHASES.length);
+	private final AtomicLongArray maxNanos = new AtomicLongArray(PHASES.length);
+
+	private final AtomicLong profiledRequests = new AtomicLong();
+	private final AtomicLong allocatedBytes = new AtomicLong();
+
+	private final CacheProfilerService store;
+
+	/** {@code getThreadAllocatedBytes(long)}, or {@code null} if not tracked. */
+	private final Method allocatedBytesMethod;
+	private final ThreadMXBean threadBean;
+
+	/**
+	 * @param store
+	 *            The profile store (reported on if it implements
+	 *            {@link CacheStatistics}).
+	 * @param trackAllocations
+	 *            Whether to track the bytes allocated by the profiler.
+	 */
+	public ProfilerOverhead(CacheProfilerService store, boolean trackAllocations) {
+		this.store = store;
+		this.threadBean = ManagementFactory.getThreadMXBean();
+		this.allocatedBytesMethod = trackAllocations ? findAllocatedBytesMethod(threadBean) : null;
+	}
+
+	private static Method findAllocatedBytesMethod(ThreadMXBean threadBean) {
+		try {
+			Class<?> sunBean = Class.forName("com.sun.management.ThreadMXBean");
+			if (!sunBean.isInstance(threadBean)) {
+				return null;
+			}
+			if (!(Boolean) sunBean.getMethod("isThreadAllocatedMemorySupported").invoke(threadBean)) {
+				return null;
+			}
+			if (!(Boolean) sunBean.getMethod("isThreadAllocatedMemoryEnabled").invoke(threadBean)) {
+				sunBean.getMethod("setThreadAllocatedMemoryEnabled", boolean.class).invoke(threadBean, true);
+			}
+			return sunBean.getMethod("getThreadAllocatedBytes", long.class);
+		} catch (Exception e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Record the time spent in a phase.
+	 */
+	public void record(Phase phase, long nanos) {
+		int i = phase.ordinal();
+		counts.incrementAndGet(i);
+		totalNanos.addAndGet(i, nanos);
+		long max = maxNanos.get(i);
+		while (nanos > max && !maxNanos.compareAndSet(i, max, nanos)) {
+			max = maxNanos.get(i);
+		}
+	}
+
+	/**
+	 * The bytes allocated so far by the current thread, or -1 if allocations
+	 * aren't tracked.
+	 */
+	public long allocatedBytes() {
+		if (allocatedBytesMethod == null) {
+			return -1;
+		}
+		try {
+			return (Long) allocatedBytesMethod.invoke(threadBean, Thread.currentThread().getId());
+		} catch (Exception e) {
+			return -1;
+		}
+	}
+
+	/**
+	 * Record a profiled request, with the allocation counter read before the
+	 * profiler's work, around the application's work and after the
+	 * profiler's work (so the application's allocations can be left out).
+	 */
+	public void recordProfiledRequest(long before, long appStart, long appEnd, long after) {
+		profiledRequests.incrementAndGet();
+		if (before >= 0 && appStart >= 0 && appEnd >= 0 && after >= 0) {
+			allocatedBytes.addAndGet((appStart - before) + (after - appEnd));
+		}
+	}
+
+	public long getRequestCount() {
+		return counts.get(Phase.SHOULD_PROFILE.ordinal());
+	}
+
+	public long getProfiledRequestCount() {
+		return profiledRequests.get();
+	}
+
+	public double getShouldProfileMeanMicros() {
+		return meanMicros(Phase.SHOULD_PROFILE);
+	}
+
+	public double getAddIncludesMeanMicros() {
+		return meanMicros(Phase.ADD_INCLUDES);
+	}
+
+	public double getCaptureMeanMicros() {
+		return meanMicros(Phase.CAPTURE);
+	}
+
+	public double getStoreMeanMicros() {
+		return meanMicros(Phase.STORE);
+	}
+
+	public double getResultsMeanMicros() {
+		return meanMicros(Phase.RESULTS);
+	}
+
+	public double getResourceMeanMicros() {
+		return meanMicros(Phase.RESOURCE);
+	}
+
+	public double getOverheadPerProfiledRequestMicros() {
+		long profiled = profiledRequests.get();
+		if (profiled == 0) {
+			return 0;
+		}
+		long nanos = totalNanos.get(Phase.ADD_INCLUDES.ordinal()) + totalNanos.get(Phase.CAPTURE.ordinal()) + totalNanos.get(Phase.STORE.ordinal());
+		return round(nanos / 1000.0 / profiled + getShouldProfileMeanMicros());
+	}
+
+	public double getAllocatedBytesPerProfiledRequest() {
+		if (allocatedBytesMethod == null) {
+			return -1;
+		}
+		long profiled = profiledRequests.get();
+		return profiled > 0 ? round((double) allocatedBytes.get() / profiled) : 0;
+	}
+
+	public long getStoreSize() {
+		return store instanceof CacheStatistics ? ((CacheStatistics) store).getSize() : -1;
+	}
+
+	public long getStoreEvictionCount() {
+		return store instanceof CacheStatistics ? ((CacheStatistics) store).getEvictionCount() : -1;
+	}
+
+	public void reset() {
+		for (int i = 0; i < PHASES.length; i++) {
+			counts.set(i, 0);
+			totalNanos.set(i, 0);
+			maxNanos.set(i, 0);
+		}
+		profiledRequests.set(0);
+		allocatedBytes.set(0);
+	}
+
+	/**
+	 * Get all the counters, suitable for JSON output.
+	 */
+	public Map<String, Object> getStats() {
+		Map<String, Object> stats = new LinkedHashMap<String, Object>();
+		stats.put("requests", getRequestCount());
+		stats.put("profiledRequests", getProfiledRequestCount());
+		Map<String, Object> phases = new LinkedHashMap<String, Object>();
+		for (Phase phase : PHASES) {
+			Map<String, Object> p = new LinkedHashMap<String, Object>();
+			p.put("count", counts.get(phase.ordinal()));
+			p.put("meanMicros", meanMicros(phase));
+			p.put("maxMicros", round(maxNanos.get(phase.ordinal()) / 1000.0));
+			phases.put(phase.name().toLowerCase(), p);
+		}
+		stats.put("phases", phases);
+		stats.put("overheadPerProfiledRequestMicros", getOverheadPerProfiledRequestMicros());
+		stats.put("allocatedBytesPerProfiledRequest", getAllocatedBytesPerProfiledRequest());
+		stats.put("storeSize", getStoreSize());
+		stats.put("storeEvictions", getStoreEvictionCount());
+		return stats;
+	}
+
+	private double meanMicros(Phase phase) {
+		long count = counts.get(phase.ordinal());
+		return count > 0 ? round(totalNanos.get(phase.ordinal()) / 1000.0 / count) : 0;
+	}
+
+	private static double round(double value) {
+		return Math.round(value * 100) / 100.0;
+	}
+}
@@ -0,0 +1,46 @@
+package au.com.funkworks.jmp.overhead;
+
+/**
+ * JMX view of {@link ProfilerOverhead}. Times are in microseconds.
+ */
+public interface ProfilerOverheadMBean {
+
+	long getRequestCount();
+
+	long getProfiledRequestCount();
+
+	/** Mean time spent deciding whether to profile a request. */
+	double getShouldProfileMeanMicros();
+
+	double getAddIncludesMeanMicros();
+
+	/** Mean time spent starting and stopping the profiler around a request. */
+	double getCaptureMeanMicros();
+
+	/** Mean time spent handing a profile to the store. */
+	double getStoreMeanMicros();
+
+	double getResultsMeanMicros();
+
+	double getResourceMeanMicros();
+
+	/**
+	 * Mean time the profiler adds to a profiled request (all of the above
+	 * apart from results and resources).
+	 */
+	double getOverheadPerProfiledRequestMicros();
+
+	/**
+	 * Mean bytes allocated by the profiler on the thread of a profiled
+	 * request, or -1 if allocations aren't tracked.
+	 */
+	double getAllocatedBytesPerProfiledRequest();
+
+	/** Profiles in the store, or -1 if the store doesn't say. */
+	long getStoreSize();
+
+	/** Profiles pushed out of the store, or -1 if the store doesn't say. */
+	long getStoreEvictionCount();
+
+	void reset();
+}
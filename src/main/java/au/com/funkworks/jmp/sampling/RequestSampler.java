@@ -0,0 +1,218 @@
+package au.com.funkworks.jmp.sampling;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+/**
+ * Decides which of the requests that are eligible for profiling actually get
+ * profiled.
+ * <p>
+ * Each request is first matched against a list of URL patterns, each with its
+ * own sample rate (the first matching pattern wins, otherwise the default
+ * rate applies). Requests that pass the rate check then have to take a permit
+ * from a global {@link TokenBucket}, which caps the total number of profiles
+ * per second regardless of traffic.
+ * <p>
+ * All decisions are counted so that the sampled numbers can be scaled back up
+ * (and trusted).
+ */
+public class RequestSampler {
+
+	/** The sample rate rules, in the order they were configured. */
+	private final List<SampleRule> rules;
+
+	/** The sample rate used when no rule matches. */
+	private final double defaultRate;
+
+	/** Cap on profiles per second, or {@code null} if there is no cap. */
+	private final TokenBucket rateLimiter;
+
+	private final AtomicLong considered = new AtomicLong();
+	private final AtomicLong sampled = new AtomicLong();
+	private final AtomicLong skippedByRate = new AtomicLong();
+	private final AtomicLong droppedByRateLimit = new AtomicLong();
+
+	private final ThreadLocal<Random> random;
+
+	/**
+	 * @param rules
+	 *            The per URL pattern rules.
+	 * @param defaultRate
+	 *            The sample rate (0 - 1) for URLs that don't match a rule.
+	 * @param maxPerSecond
+	 *            The maximum number of profiles per second, or a value <= 0
+	 *            for no cap.
+	 */
+	public RequestSampler(List<SampleRule> rules, double defaultRate, double maxPerSecond) {
+		this(rules, defaultRate, maxPerSecond > 0 ? new TokenBucket(maxPerSecond, (int) Math.ceil(maxPerSecond)) : null, null);
+	}
+
+	/**
+	 * @param rateLimiter
+	 *            The cap on profiles per second, or {@code null} for no cap.
+	 * @param sharedRandom
+	 *            The random source for the rate check, or {@code null} for one
+	 *            per thread.
+	 */
+	RequestSampler(List<SampleRule> rules, double defaultRate, TokenBucket rateLimiter, final Random sharedRandom) {
+		this.rules = new ArrayList<SampleRule>(rules);
+		this.defaultRate = clamp(defaultRate);
+		this.rateLimiter = rateLimiter;
+		this.random = new ThreadLocal<Random>() {
+			@Override
+			protected Random initialValue() {
+				return sharedRandom != null ? sharedRandom : new Random();
+			}
+		};
+	}
+
+	/**
+	 * Parse a list of sample rules in the form
+	 * {@code pattern=rate,pattern=rate}. Like {@code restrictToURLs}, the
+	 * patterns are regular expressions matched with {@code find()}.
+	 *
+	 * @param config
+	 *            The rules to parse.
+	 * @return The parsed rules, never {@code null}.
+	 */
+	public static List<SampleRule> parseRules(String config) {
+		List<SampleRule> result = new ArrayList<SampleRule>();
+		if (config != null) {
+			for (String rule : config.split(",")) {
+				rule = rule.trim();
+				int idx = rule.lastIndexOf('=');
+				if (idx <= 0) {
+					if (rule.length() > 0) {
+						throw new IllegalArgumentException("Invalid sample rate rule (expected pattern=rate): " + rule);
+					}
+					continue;
+				}
+				String pattern = rule.substring(0, idx).trim();
+				double rate = Double.parseDouble(rule.substring(idx + 1).trim());
+				result.add(new SampleRule(Pattern.compile(pattern), clamp(rate)));
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Decide whether the specified (already eligible) URL should be profiled.
+	 *
+	 * @param url
+	 *            The request URI.
+	 * @return Whether the request should be profiled.
+	 */
+	public boolean sample(String url) {
+		considered.incrementAndGet();
+
+		double rate = defaultRate;
+		SampleRule matched = null;
+		for (int i = 0; i < rules.size(); i++) {
+			SampleRule rule = rules.get(i);
+			if (rule.pattern.matcher(url).find()) {
+				matched = rule;
+				rate = rule.rate;
+				break;
+			}
+		}
+		if (matched != null) {
+			matched.considered.incrementAndGet();
+		}
+
+		if (rate <= 0 || (rate < 1 && random.get().nextDouble() >= rate)) {
+			skippedByRate.incrementAndGet();
+			return false;
+		}
+		if (rateLimiter != null && !rateLimiter.tryAcquire()) {
+			droppedByRateLimit.incrementAndGet();
+			if (matched != null) {
+				matched.rateLimited.incrementAndGet();
+			}
+			return false;
+		}
+
+		sampled.incrementAndGet();
+		if (matched != null) {
+			matched.sampled.incrementAndGet();
+		}
+		return true;
+	}
+
+	/**
+	 * Get a snapshot of the sampling counters, suitable for JSON output.
+	 */
+	public Map<String, Object> getStats() {
+		Map<String, Object> stats = new LinkedHashMap<String, Object>();
+		stats.put("considered", considered.get());
+		stats.put("sampled", sampled.get());
+		stats.put("skippedByRate", skippedByRate.get());
+		stats.put("droppedByRateLimit", droppedByRateLimit.get());
+		stats.put("defaultRate", defaultRate);
+		stats.put("maxPerSecond", rateLimiter != null ? rateLimiter.getPermitsPerSecond() : null);
+
+		List<Map<String, Object>> ruleStats = new ArrayList<Map<String, Object>>();
+		for (SampleRule rule : rules) {
+			Map<String, Object> r = new LinkedHashMap<String, Object>();
+			r.put("pattern", rule.pattern.pattern());
+			r.put("rate", rule.rate);
+			r.put("considered", rule.considered.get());
+			r.put("sampled", rule.sampled.get());
+			r.put("rateLimited", rule.rateLimited.get());
+			ruleStats.add(r);
+		}
+		stats.put("rules", ruleStats);
+		return stats;
+	}
+
+	public long getSampledCount() {
+		return sampled.get();
+	}
+
+	public long getSkippedByRateCount() {
+		return skippedByRate.get();
+	}
+
+	public long getDroppedByRateLimitCount() {
+		return droppedByRateLimit.get();
+	}
+
+	private static double clamp(double rate) {
+		return Math.max(0.0, Math.min(1.0, rate));
+	}
+
+	/**
+	 * A sample rate for the URLs matching a pattern.
+	 */
+	public static class SampleRule {
+
+		private final Pattern pattern;
+		private final double rate;
+
+		private final AtomicLong considered = new AtomicLong();
+		private final AtomicLong sampled = new AtomicLong();
+		private final AtomicLong rateLimited = new AtomicLong();
+
+		public SampleRule(Pattern pattern, double rate) {
+			this.pattern = pattern;
+			this.rate = rate;
+		}
+
+		public Pattern getPattern() {
+			return pattern;
+		}
+
+		public double getRate() {
+			return rate;
+		}
+
+		@Override
+		public String toString() {
+			return pattern.pattern() + "=" + rate;
+		}
+	}
+}
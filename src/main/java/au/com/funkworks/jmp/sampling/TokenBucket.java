@@ -0,0 +1,82 @@
+package au.com.funkworks.jmp.sampling;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A lock-free token bucket used to cap the number of profiles taken per
+ * second.
+ * <p>
+ * Rather than refilling a token count, the bucket tracks the theoretical
+ * arrival time of the next permit (GCRA), so acquiring a permit is a single
+ * CAS on one {@link AtomicLong} and never allocates.
+ */
+public class TokenBucket {
+
+	/** Nanoseconds between two permits at the sustained rate. */
+	private final long intervalNanos;
+
+	/** How far ahead of "now" the bucket may be drawn down (burst size). */
+	private final long burstNanos;
+
+	/** The time at which all permits handed out so far are paid off. */
+	private final AtomicLong theoreticalArrival;
+
+	private final Clock clock;
+
+	/**
+	 * @param permitsPerSecond
+	 *            The sustained number of permits per second (must be > 0).
+	 * @param burst
+	 *            The maximum number of permits that can be taken at once.
+	 */
+	public TokenBucket(double permitsPerSecond, int burst) {
+		this(permitsPerSecond, burst, Clock.SYSTEM);
+	}
+
+	TokenBucket(double permitsPerSecond, int burst, Clock clock) {
+		if (permitsPerSecond <= 0) {
+			throw new IllegalArgumentException("permitsPerSecond must be > 0");
+		}
+		intervalNanos = Math.max(1L, (long) (1000000000L / permitsPerSecond));
+		burstNanos = intervalNanos * Math.max(1, burst);
+		this.clock = clock;
+		theoreticalArrival = new AtomicLong(clock.nanoTime());
+	}
+
+	/**
+	 * Try to take a single permit without blocking.
+	 * 
+	 * @return Whether a permit was available.
+	 */
+	public boolean tryAcquire() {
+		long now = clock.nanoTime();
+		while (true) {
+			long tat = theoreticalArrival.get();
+			long next = Math.max(tat, now) + intervalNanos;
+			if (next - now > burstNanos) {
+				return false;
+			}
+			if (theoreticalArrival.compareAndSet(tat, next)) {
+				return true;
+			}
+		}
+	}
+
+	public double getPermitsPerSecond() {
+		return 1000000000.0 / intervalNanos;
+	}
+
+	/**
+	 * The source of {@code nanoTime()}, so tests can drive the bucket.
+	 */
+	interface Clock {
+
+		Clock SYSTEM = new Clock() {
+			public long nanoTime() {
+				return System.nanoTime();
+			}
+		};
+
+		long nanoTime();
+	}
+}
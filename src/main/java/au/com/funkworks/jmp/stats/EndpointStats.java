@@ -0,0 +1,136 @@
+package au.com.funkworks.jmp.stats;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Latency distributions of profiled requests, per endpoint.
+ * <p>
+ * Request URIs are grouped by their {@link UrlNormalizer normalized} pattern.
+ * Each URI seen is remembered (in a bounded map) along with its endpoint's
+ * histogram, so recording a request to a URI that has been seen before is
+ * a map lookup plus a few atomic increments, with no allocation. The number
+ * of endpoints is also bounded; requests beyond that are counted under
+ * {@value #OTHER_ENDPOINT}.
+ */
+public class EndpointStats {
+
+	public static final String OTHER_ENDPOINT = "(other)";
+
+	public static final int DEFAULT_MAX_ENDPOINTS = 500;
+
+	/** One minute slots. */
+	private static final long SLOT_MILLIS = 60 * 1000L;
+
+	/** The windows reported, in slots. */
+	private static final int[] WINDOWS = { 1, 5, 15 };
+	private static final String[] WINDOW_NAMES = { "1m", "5m", "15m" };
+
+	private final int maxEndpoints;
+	private final int maxUris;
+
+	private final UrlNormalizer normalizer = new UrlNormalizer();
+
+	private final ConcurrentHashMap<String, SlidingWindowHistogram> endpoints = new ConcurrentHashMap<String, SlidingWindowHistogram>();
+	private final ConcurrentHashMap<String, SlidingWindowHistogram> uris = new ConcurrentHashMap<String, SlidingWindowHistogram>();
+
+	public EndpointStats() {
+		this(DEFAULT_MAX_ENDPOINTS);
+	}
+
+	public EndpointStats(int maxEndpoints) {
+		this.maxEndpoints = maxEndpoints;
+		this.maxUris = maxEndpoints * 20;
+	}
+
+	/**
+	 * Record the total duration of a profiled request.
+	 *
+	 * @param uri
+	 *            The request URI (without the query string).
+	 * @param nanos
+	 *            The duration in nanoseconds.
+	 */
+	public void record(String uri, long nanos) {
+		SlidingWindowHistogram histogram = uris.get(uri);
+		if (histogram == null) {
+			histogram = histogramFor(uri);
+		}
+		histogram.record(nanos);
+	}
+
+	/**
+	 * Get the histogram for a URI's endpoint, creating it if required.
+	 */
+	private SlidingWindowHistogram histogramFor(String uri) {
+		String endpoint = normalizer.normalize(uri);
+		SlidingWindowHistogram histogram = endpoints.get(endpoint);
+		if (histogram == null) {
+			if (endpoints.size() >= maxEndpoints) {
+				endpoint = OTHER_ENDPOINT;
+			}
+			histogram = endpoints.get(endpoint);
+			if (histogram == null) {
+				SlidingWindowHistogram created = new SlidingWindowHistogram(SLOT_MILLIS, WINDOWS[WINDOWS.length - 1]);
+				histogram = endpoints.putIfAbsent(endpoint, created);
+				if (histogram == null) {
+					histogram = created;
+				}
+			}
+		}
+		if (uris.size() >= maxUris) {
+			// a crude bound - the URIs will be learned again as they're seen
+			uris.clear();
+		}
+		uris.put(uri, histogram);
+		return histogram;
+	}
+
+	/**
+	 * Get the histogram for an endpoint pattern (as returned by
+	 * {@link #getEndpoint(String)}), or {@code null} if nothing has been
+	 * recorded for it.
+	 */
+	public SlidingWindowHistogram getHistogram(String endpoint) {
+		return endpoints.get(endpoint);
+	}
+
+	/**
+	 * Get the histogram for the endpoint a request URI is grouped under, or
+	 * {@code null} if nothing has been recorded for it.
+	 */
+	public SlidingWindowHistogram getHistogramForURI(String uri) {
+		SlidingWindowHistogram histogram = uris.get(uri);
+		return histogram != null ? histogram : endpoints.get(normalizer.normalize(uri));
+	}
+
+	/**
+	 * Get the endpoint pattern that a request URI is grouped under.
+	 */
+	public String getEndpoint(String uri) {
+		return normalizer.normalize(uri);
+	}
+
+	/**
+	 * Summarize every endpoint over each window, suitable for JSON output.
+	 */
+	public Map<String, Object> summarize() {
+		List<String> names = new ArrayList<String>(endpoints.keySet());
+		Collections.sort(names);
+
+		Map<String, Object> result = new LinkedHashMap<String, Object>();
+		for (String name : names) {
+			SlidingWindowHistogram histogram = endpoints.get(name);
+			Map<String, Object> windows = new LinkedHashMap<String, Object>();
+			for (int i = 0; i < WINDOWS.length; i++) {
+				windows.put(WINDOW_NAMES[i], histogram.summarize(WINDOWS[i]));
+			}
+			result.put(name, windows);
+		}
+		return result;
+	}
+}
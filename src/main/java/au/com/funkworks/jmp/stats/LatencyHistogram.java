@@ -0,0 +1,133 @@
+package au.com.funkworks.jmp.stats;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock-free, fixed-memory log-linear latency histogram.
+ * <p>
+ * Values are recorded in microseconds. Each power of two is split into
+ * {@value #SUB_BUCKETS} linear sub-buckets, which bounds the relative error
+ * of any percentile to about 12.5% while covering 1 microsecond to over an
+ * hour in a few hundred counters. Recording is a handful of atomic
+ * increments and never allocates.
+ */
+public class LatencyHistogram {
+
+	private static final int SUB_BUCKET_BITS = 3;
+	static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+	/** Largest power of two tracked (2^32 microseconds is about 71 minutes). */
+	private static final int MAX_EXPONENT = 32;
+
+	static final int BUCKET_COUNT = SUB_BUCKETS + (MAX_EXPONENT - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+	private final AtomicLong count = new AtomicLong();
+	private final AtomicLong totalMicros = new AtomicLong();
+	private final AtomicLong maxMicros = new AtomicLong();
+
+	/**
+	 * Record a single duration.
+	 *
+	 * @param nanos
+	 *            The duration in nanoseconds.
+	 */
+	public void record(long nanos) {
+		long micros = Math.max(0, nanos / 1000);
+		counts.incrementAndGet(bucketFor(micros));
+		count.incrementAndGet();
+		totalMicros.addAndGet(micros);
+
+		long max = maxMicros.get();
+		while (micros > max && !maxMicros.compareAndSet(max, micros)) {
+			max = maxMicros.get();
+		}
+	}
+
+	public long getCount() {
+		return count.get();
+	}
+
+	public long getTotalMicros() {
+		return totalMicros.get();
+	}
+
+	public long getMaxMicros() {
+		return maxMicros.get();
+	}
+
+	/**
+	 * Clear the histogram. Records that race with a reset may be lost or
+	 * partially counted, which is acceptable for statistics.
+	 */
+	public void reset() {
+		for (int i = 0; i < BUCKET_COUNT; i++) {
+			counts.set(i, 0);
+		}
+		count.set(0);
+		totalMicros.set(0);
+		maxMicros.set(0);
+	}
+
+	/**
+	 * Add this histogram's bucket counts to an accumulator.
+	 */
+	void addTo(long[] accumulator) {
+		for (int i = 0; i < BUCKET_COUNT; i++) {
+			accumulator[i] += counts.get(i);
+		}
+	}
+
+	/**
+	 * Get the value (in microseconds) at the given percentile of a set of
+	 * bucket counts.
+	 *
+	 * @param buckets
+	 *            The bucket counts.
+	 * @param total
+	 *            The sum of the bucket counts.
+	 * @param percentile
+	 *            The percentile (0 - 100).
+	 */
+	static long valueAtPercentile(long[] buckets, long total, double percentile) {
+		if (total == 0) {
+			return 0;
+		}
+		long rank = (long) Math.ceil(total * percentile / 100.0);
+		rank = Math.max(1, Math.min(total, rank));
+		long seen = 0;
+		for (int i = 0; i < buckets.length; i++) {
+			seen += buckets[i];
+			if (seen >= rank) {
+				return upperBoundOf(i);
+			}
+		}
+		return upperBoundOf(buckets.length - 1);
+	}
+
+	static int bucketFor(long micros) {
+		if (micros < SUB_BUCKETS) {
+			return (int) micros;
+		}
+		int exponent = 63 - Long.numberOfLeadingZeros(micros);
+		if (exponent > MAX_EXPONENT) {
+			return BUCKET_COUNT - 1;
+		}
+		int sub = (int) (micros >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+		return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + sub;
+	}
+
+	/**
+	 * The largest value (in microseconds) that falls into a bucket.
+	 */
+	static long upperBoundOf(int bucket) {
+		if (bucket < SUB_BUCKETS) {
+			return bucket;
+		}
+		int exponent = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+		long sub = bucket % SUB_BUCKETS;
+		long width = 1L << (exponent - SUB_BUCKET_BITS);
+		return (1L << exponent) + (sub + 1) * width - 1;
+	}
+}
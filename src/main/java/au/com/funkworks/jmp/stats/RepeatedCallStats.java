@@ -0,0 +1,168 @@
+package au.com.funkworks.jmp.stats;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+
+import au.com.funkworks.jmp.ProfileStoreListener;
+import au.com.funkworks.jmp.codec.CompactProfile;
+import au.com.funkworks.jmp.codec.RepeatedCalls;
+
+/**
+ * Repeated calls (such as N+1 queries) found in stored profiles, per
+ * endpoint, so the endpoints with the most of them can be listed.
+ * <p>
+ * Only the counters are kept: the number of profiles, how many of them had
+ * a step repeated at least {@link #getThreshold() threshold} times, the
+ * number and total time of those repeated steps, and the worst repeat seen
+ * (with the URL of a request it was seen in). Endpoints are grouped and
+ * bounded like {@link EndpointStats}.
+ */
+public class RepeatedCallStats implements ProfileStoreListener {
+
+	public static final int DEFAULT_MAX_ENDPOINTS = EndpointStats.DEFAULT_MAX_ENDPOINTS;
+
+	/** Orders endpoints by the number of repeated calls, most first. */
+	private static final Comparator<Map.Entry<String, Counters>> BY_REPEATED_CALLS = new Comparator<Map.Entry<String, Counters>>() {
+		public int compare(Map.Entry<String, Counters> a, Map.Entry<String, Counters> b) {
+			long x = a.getValue().repeatedCalls;
+			long y = b.getValue().repeatedCalls;
+			return x < y ? 1 : (x == y ? 0 : -1);
+		}
+	};
+
+	private final int threshold;
+	private final int maxEndpoints;
+
+	private final UrlNormalizer normalizer = new UrlNormalizer();
+
+	private final ConcurrentHashMap<String, Counters> endpoints = new ConcurrentHashMap<String, Counters>();
+
+	/**
+	 * @param threshold
+	 *            The number of runs under one parent from which a step counts
+	 *            as repeated (at least {@link RepeatedCalls#MIN_REPEATS}).
+	 * @param maxEndpoints
+	 *            The most endpoints to keep counters for.
+	 */
+	public RepeatedCallStats(int threshold, int maxEndpoints) {
+		this.threshold = Math.max(RepeatedCalls.MIN_REPEATS, threshold);
+		this.maxEndpoints = maxEndpoints;
+	}
+
+	/** The number of runs under one parent from which a step is reported. */
+	public int getThreshold() {
+		return threshold;
+	}
+
+	public void profileStored(String requestURI, CompactProfile profile) {
+		RepeatedCalls repeated = profile.getRepeatedCalls();
+		int calls = 0;
+		long nanos = 0;
+		int worst = -1;
+		for (int g = 0; g < repeated.size(); g++) {
+			if (repeated.getCount(g) >= threshold) {
+				calls += repeated.getCount(g);
+				nanos += repeated.getTotalTime(g);
+				if (worst < 0 || repeated.getCount(g) > repeated.getCount(worst)) {
+					worst = g;
+				}
+			}
+		}
+
+		Counters counters = countersFor(requestURI);
+		synchronized (counters) {
+			counters.profiles++;
+			if (worst >= 0) {
+				counters.profilesWithRepeats++;
+				counters.repeatedCalls += calls;
+				counters.repeatedNanos += nanos;
+				if (repeated.getCount(worst) > counters.worstCount) {
+					counters.worstCount = repeated.getCount(worst);
+					counters.worstStep = profile.getString(repeated.getKeyIndex(worst));
+					counters.worstParent = profile.getName(repeated.getOwner(worst));
+					counters.worstRequestURL = profile.getRequestURL();
+				}
+			}
+		}
+	}
+
+	/**
+	 * List the endpoints that had repeated calls, most repeated calls first,
+	 * suitable for JSON output.
+	 *
+	 * @param endpointPattern
+	 *            Only list endpoints matching this pattern (see
+	 *            {@link UrlNormalizer#toPattern(String)}), or {@code null} for
+	 *            all of them.
+	 * @param limit
+	 *            The most endpoints to list.
+	 */
+	public List<Map<String, Object>> summarize(Pattern endpointPattern, int limit) {
+		List<Map.Entry<String, Counters>> entries = new ArrayList<Map.Entry<String, Counters>>();
+		for (Map.Entry<String, Counters> entry : endpoints.entrySet()) {
+			if (entry.getValue().repeatedCalls > 0 && (endpointPattern == null || endpointPattern.matcher(entry.getKey()).matches())) {
+				entries.add(entry);
+			}
+		}
+		Collections.sort(entries, BY_REPEATED_CALLS);
+
+		List<Map<String, Object>> result = new ArrayList<Map<String, Object>>();
+		for (Map.Entry<String, Counters> entry : entries.subList(0, Math.min(limit, entries.size()))) {
+			Counters counters = entry.getValue();
+			Map<String, Object> summary = new LinkedHashMap<String, Object>();
+			synchronized (counters) {
+				summary.put("endpoint", entry.getKey());
+				summary.put("profiles", counters.profiles);
+				summary.put("profilesWithRepeats", counters.profilesWithRepeats);
+				summary.put("repeatedCalls", counters.repeatedCalls);
+				summary.put("repeatedTime", Math.round(counters.repeatedNanos / 10000.0) / 100.0);
+				summary.put("worstCount", counters.worstCount);
+				summary.put("worstStep", counters.worstStep);
+				summary.put("worstParent", counters.worstParent);
+				summary.put("worstRequestURL", counters.worstRequestURL);
+			}
+			result.add(summary);
+		}
+		return result;
+	}
+
+	/**
+	 * Get the counters for a URI's endpoint, creating them if required.
+	 */
+	private Counters countersFor(String uri) {
+		String endpoint = normalizer.normalize(uri);
+		Counters counters = endpoints.get(endpoint);
+		if (counters == null) {
+			if (endpoints.size() >= maxEndpoints) {
+				endpoint = EndpointStats.OTHER_ENDPOINT;
+			}
+			counters = endpoints.get(endpoint);
+			if (counters == null) {
+				Counters created = new Counters();
+				counters = endpoints.putIfAbsent(endpoint, created);
+				if (counters == null) {
+					counters = created;
+				}
+			}
+		}
+		return counters;
+	}
+
+	private static class Counters {
+
+		private long profiles;
+		private long profilesWithRepeats;
+		private long repeatedCalls;
+		private long repeatedNanos;
+		private int worstCount;
+		private String worstStep;
+		private String worstParent;
+		private String worstRequestURL;
+	}
+}
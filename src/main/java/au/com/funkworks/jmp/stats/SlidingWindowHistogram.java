@@ -0,0 +1,149 @@
+package au.com.funkworks.jmp.stats;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A latency distribution over a sliding window of time.
+ * <p>
+ * Time is split into fixed slots, each with its own {@link LatencyHistogram},
+ * arranged in a ring. A slot is cleared the first time it is written to in a
+ * new period, so memory stays fixed and recording never allocates. Windows
+ * of any whole number of slots (up to the ring size) can be read by merging
+ * the most recent slots.
+ */
+public class SlidingWindowHistogram {
+
+	private final long slotMillis;
+	private final LatencyHistogram[] slots;
+
+	/** The period each slot currently holds data for. */
+	private final AtomicLongArray slotPeriods;
+
+	/**
+	 * @param slotMillis
+	 *            The length of each slot in milliseconds.
+	 * @param slotCount
+	 *            The number of slots (the longest window that can be read).
+	 */
+	public SlidingWindowHistogram(long slotMillis, int slotCount) {
+		this.slotMillis = slotMillis;
+		this.slots = new LatencyHistogram[slotCount];
+		this.slotPeriods = new AtomicLongArray(slotCount);
+		for (int i = 0; i < slotCount; i++) {
+			slots[i] = new LatencyHistogram();
+			slotPeriods.set(i, -1);
+		}
+	}
+
+	public void record(long nanos) {
+		record(nanos, System.currentTimeMillis());
+	}
+
+	public void record(long nanos, long nowMillis) {
+		long period = nowMillis / slotMillis;
+		int slot = (int) (period % slots.length);
+		long slotPeriod = slotPeriods.get(slot);
+		if (slotPeriod != period && slotPeriod < period && slotPeriods.compareAndSet(slot, slotPeriod, period)) {
+			slots[slot].reset();
+		}
+		slots[slot].record(nanos);
+	}
+
+	/**
+	 * Summarize the most recent slots.
+	 *
+	 * @param slotCount
+	 *            The number of slots (including the current one) to read.
+	 * @return The summary, with durations in milliseconds.
+	 */
+	public Map<String, Object> summarize(int slotCount) {
+		long[] buckets = new long[LatencyHistogram.BUCKET_COUNT];
+		long[] totals = merge(slotCount, buckets);
+		long count = totals[0];
+		long total = totals[1];
+		long max = totals[2];
+
+		// the bucket counts are the source of truth for the percentiles, which
+		// are the upper bound of their bucket (capped at the real maximum)
+		long bucketTotal = 0;
+		for (long b : buckets) {
+			bucketTotal += b;
+		}
+
+		Map<String, Object> summary = new LinkedHashMap<String, Object>();
+		summary.put("count", count);
+		summary.put("mean", count > 0 ? millis(total / count) : 0.0);
+		summary.put("p50", millis(Math.min(max, LatencyHistogram.valueAtPercentile(buckets, bucketTotal, 50))));
+		summary.put("p90", millis(Math.min(max, LatencyHistogram.valueAtPercentile(buckets, bucketTotal, 90))));
+		summary.put("p99", millis(Math.min(max, LatencyHistogram.valueAtPercentile(buckets, bucketTotal, 99))));
+		summary.put("p999", millis(Math.min(max, LatencyHistogram.valueAtPercentile(buckets, bucketTotal, 99.9))));
+		summary.put("max", millis(max));
+		return summary;
+	}
+
+	/**
+	 * Get a percentile of the most recent slots.
+	 *
+	 * @param slotCount
+	 *            The number of slots (including the current one) to read.
+	 * @param percentile
+	 *            The percentile (0 - 100).
+	 * @param minCount
+	 *            The fewest recorded durations the percentile is worth
+	 *            anything with.
+	 * @return The percentile in microseconds, or -1 if fewer than
+	 *         {@code minCount} durations have been recorded.
+	 */
+	public long getPercentileMicros(int slotCount, double percentile, long minCount) {
+		long[] buckets = new long[LatencyHistogram.BUCKET_COUNT];
+		long[] totals = merge(slotCount, buckets);
+		long bucketTotal = 0;
+		for (long b : buckets) {
+			bucketTotal += b;
+		}
+		if (bucketTotal < Math.max(1, minCount)) {
+			return -1;
+		}
+		return Math.min(totals[2], LatencyHistogram.valueAtPercentile(buckets, bucketTotal, percentile));
+	}
+
+	/**
+	 * Merge the bucket counts of the most recent slots.
+	 *
+	 * @return The count, total and maximum (in microseconds).
+	 */
+	private long[] merge(int slotCount, long[] buckets) {
+		long period = System.currentTimeMillis() / slotMillis;
+		slotCount = Math.min(slotCount, slots.length);
+
+		long count = 0;
+		long total = 0;
+		long max = 0;
+		for (int i = 0; i < slotCount; i++) {
+			long p = period - i;
+			if (p < 0) {
+				break;
+			}
+			int slot = (int) (p % slots.length);
+			if (slotPeriods.get(slot) != p) {
+				continue;
+			}
+			LatencyHistogram histogram = slots[slot];
+			histogram.addTo(buckets);
+			count += histogram.getCount();
+			total += histogram.getTotalMicros();
+			max = Math.max(max, histogram.getMaxMicros());
+		}
+		return new long[] { count, total, max };
+	}
+
+	public long getSlotMillis() {
+		return slotMillis;
+	}
+
+	private static double millis(long micros) {
+		return Math.round(micros / 10.0) / 100.0;
+	}
+}
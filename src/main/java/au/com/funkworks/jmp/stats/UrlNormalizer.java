@@ -0,0 +1,97 @@
+package au.com.funkworks.jmp.stats;
+
+import java.util.regex.Pattern;
+
+/**
+ * Collapses the variable parts of a request URI so that requests to the same
+ * endpoint are grouped together, e.g. {@code /users/1234/orders/9f8e7d6c5b4a}
+ * becomes {@code /users/{id}/orders/{id}}.
+ * <p>
+ * A path segment is treated as an id if it is numeric, a UUID, a long hex
+ * string, or a long token mixing letters and digits. Matrix parameters
+ * ({@code ;jsessionid=...}) are dropped.
+ */
+public class UrlNormalizer {
+
+	public static final String ID_PLACEHOLDER = "{id}";
+
+	private static final int MIN_HEX_ID_LENGTH = 8;
+	private static final int MIN_TOKEN_ID_LENGTH = 16;
+
+	public String normalize(String uri) {
+		if (uri == null || uri.length() == 0) {
+			return "/";
+		}
+		int semicolon = uri.indexOf(';');
+		if (semicolon >= 0) {
+			uri = uri.substring(0, semicolon);
+		}
+
+		StringBuilder result = new StringBuilder(uri.length());
+		int start = 0;
+		while (start <= uri.length()) {
+			int end = uri.indexOf('/', start);
+			if (end < 0) {
+				end = uri.length();
+			}
+			if (start > 0) {
+				result.append('/');
+			}
+			if (isId(uri, start, end)) {
+				result.append(ID_PLACEHOLDER);
+			} else {
+				result.append(uri, start, end);
+			}
+			start = end + 1;
+		}
+		return result.toString();
+	}
+
+	/**
+	 * Get a pattern that matches an endpoint literally, so that it can be
+	 * taken from a request parameter. The endpoint is normalized first, so
+	 * either a URI or the endpoint it is grouped under can be given, and a
+	 * trailing {@code *} matches any endpoint starting with the rest.
+	 *
+	 * @param endpoint
+	 *            The endpoint to match.
+	 * @return The pattern to match endpoints against.
+	 */
+	public Pattern toPattern(String endpoint) {
+		String prefix = endpoint.endsWith("*") ? endpoint.substring(0, endpoint.length() - 1) : null;
+		if (prefix != null) {
+			return Pattern.compile(Pattern.quote(prefix.length() > 0 ? normalize(prefix) : "") + ".*", Pattern.DOTALL);
+		}
+		return Pattern.compile(Pattern.quote(normalize(endpoint)));
+	}
+
+	private static boolean isId(String s, int start, int end) {
+		int length = end - start;
+		if (length == 0) {
+			return false;
+		}
+		boolean allDigits = true;
+		boolean allHex = true;
+		boolean hasDigit = false;
+		boolean hasLetter = false;
+		boolean tokenChars = true;
+		for (int i = start; i < end; i++) {
+			char c = s.charAt(i);
+			boolean digit = c >= '0' && c <= '9';
+			boolean hex = digit || (c >= 'a' && c <= 'f') || (c >= 'A' && c <= 'F');
+			boolean letter = (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z');
+			allDigits &= digit;
+			allHex &= hex || c == '-';
+			hasDigit |= digit;
+			hasLetter |= letter;
+			tokenChars &= digit || letter || c == '-' || c == '_';
+		}
+		if (allDigits) {
+			return true;
+		}
+		if (allHex && hasDigit && length >= MIN_HEX_ID_LENGTH) {
+			return true;
+		}
+		return tokenChars && hasDigit && hasLetter && length >= MIN_TOKEN_ID_LENGTH;
+	}
+}
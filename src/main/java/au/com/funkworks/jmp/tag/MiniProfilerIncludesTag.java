@@ -0,0 +1,33 @@
+package au.com.funkworks.jmp.tag;
+
+import java.io.IOException;
+
+import javax.servlet.jsp.JspException;
+import javax.servlet.jsp.tagext.TagSupport;
+
+import au.com.funkworks.jmp.IncludesTemplate;
+import au.com.funkworks.jmp.MiniProfilerFilter;
+
+/**
+ * Writes the profiler UI includes for the current request (if it is being
+ * profiled) straight to the page.
+ */
+@SuppressWarnings("serial")
+public class MiniProfilerIncludesTag extends TagSupport {
+
+	@Override
+	public int doEndTag() throws JspException {
+		Object includes = pageContext.getRequest().getAttribute(MiniProfilerFilter.INCLUDES_ATTRIBUTE);
+		try {
+			if (includes instanceof IncludesTemplate.Includes) {
+				((IncludesTemplate.Includes) includes).writeTo(pageContext.getOut());
+			} else if (includes != null) {
+				pageContext.getOut().write(includes.toString());
+			}
+		} catch (IOException e) {
+			throw new JspException(e);
+		}
+		return EVAL_PAGE;
+	}
+
+}
@@ -1,6 +1,17 @@
 /** The Mini Profiler! */
 var MiniProfiler = ( function() {
   var requestData = {}, baseURL;
+
+  // Ajax request ids still waiting for their profile, and whether the event
+  // stream is delivering profiles (otherwise they are polled for in batches)
+  var awaiting = {}, channel, streaming = false, pollTimer = null, pollDue = 0;
+  var POLL_DELAY = 250, STREAM_GRACE = 5000;
+
+  // The profile being displayed, and its steps that are showing (in order,
+  // expanded steps followed by their children); only the rows scrolled into
+  // view are rendered
+  var tree = null;
+  var ROW_HEIGHT = 22, OVERSCAN = 10, VIEW_HEIGHT = 400;
   /**
    * Initializes the Mini Profiler.
    */
@@ -12,19 +23,38 @@ var MiniProfiler = ( function() {
     // Initialize the HTML templates
     $.template( 'requestTemplate', $( '#@@prefix@@-request-tmpl' ).html() );
     $.template( 'resultTemplate', $( '#@@prefix@@-result-tmpl' ).html() );
-    $.template( 'resultTreeTemplate', $( '#@@prefix@@-result-tree-tmpl' ).html() );
+    $.template( 'resultRowTemplate', $( '#@@prefix@@-result-row-tmpl' ).html() );
 
     var requestIds = getRedirectRequests( window.location.href );
     requestIds.push( options.requestId );
     getProfileInformation( requestIds, 'normal' );
 
+    // Tag this page's Ajax requests with its event channel, so their
+    // profiles are pushed to it as they are stored
+    if ( options.eventStream ) {
+      channel = new Date().getTime().toString( 36 ) + '-' + Math.random().toString( 36 ).substring( 2, 10 );
+      $( document ).ajaxSend( function( e, xhr, settings ) {
+        if ( xhr && !settings.crossDomain ) {
+          xhr.setRequestHeader( 'X-Mini-Profile-Channel', channel );
+        }
+      } );
+      openEventStream();
+    }
+
     // Dynamically add profile information for any Ajax requets that happen on
     // this page
     $( document ).ajaxComplete( function( e, xhr, settings ) {
       if ( xhr ) {
         var requestId = xhr.getResponseHeader( 'X-Mini-Profile-Request-Id' );
         if ( requestId ) {
-          getProfileInformation( requestId.split( ',' ), "ajax" );
+          var ids = requestId.split( ',' );
+          for ( var i = 0; i < ids.length; i++ ) {
+            if ( !requestData[ '@@prefix@@-req-' + ids[ i ] ] ) {
+              awaiting[ ids[ i ] ] = true;
+            }
+          }
+          // the stream should deliver these, poll only for any it misses
+          schedulePoll( streaming ? STREAM_GRACE : POLL_DELAY );
         }
       }
     } );
@@ -51,6 +81,62 @@ var MiniProfiler = ( function() {
     return result;
   }
 
+  /**
+   * Open the server-sent event stream that pushes the profiles of this page's
+   * Ajax requests (when the server has it turned on). If the browser can't do
+   * it, or the server refuses it, the profiles are polled for instead.
+   */
+  function openEventStream() {
+    if ( !window.EventSource ) {
+      return;
+    }
+    var source = new EventSource( baseURL + 'events?channel=' + channel );
+    source.onopen = function() {
+      streaming = true;
+    };
+    source.onerror = function() {
+      // the server closes streams after a while and the browser reconnects,
+      // unless the stream was refused
+      if ( source.readyState === 2 ) {
+        streaming = false;
+        schedulePoll( POLL_DELAY );
+      }
+    };
+    source.addEventListener( 'profiles', function( e ) {
+      addRequests( $.parseJSON( e.data ), 'ajax' );
+    }, false );
+  }
+
+  /**
+   * Fetch the profiles of all awaited requests in one go, after a delay (so
+   * that requests completing together are fetched together). A poll that is
+   * already pending is left alone, unless this one is due sooner, so a steady
+   * stream of requests can't keep putting it off.
+   */
+  function schedulePoll( delay ) {
+    var due = new Date().getTime() + delay;
+    if ( pollTimer ) {
+      if ( pollDue <= due ) {
+        return;
+      }
+      clearTimeout( pollTimer );
+    }
+    pollDue = due;
+    pollTimer = setTimeout( function() {
+      pollTimer = null;
+      var ids = [];
+      for ( var id in awaiting ) {
+        if ( awaiting.hasOwnProperty( id ) ) {
+          ids.push( id );
+        }
+      }
+      awaiting = {};
+      if ( ids.length ) {
+        getProfileInformation( ids, 'ajax' );
+      }
+    }, delay );
+  }
+
   /**
    * Get profile information for the specified request id via an Ajax request.
    */
@@ -58,27 +144,39 @@ var MiniProfiler = ( function() {
     $.get( baseURL + 'results', {
       ids : requestIds.join( ',' )
     }, function( data ) {
-      if ( data.ok ) {
-        var requests = data.requests;
-        if ( requests && requests.length ) {
-          for ( var i = 0; i < requests.length; i++ ) {
-            var request = requests[ i ];
-            request.timestampFormatted = new Date( request.timestamp ).toString();
-            // Store the request data for later
-            requestData[ '@@prefix@@-req-' + request.id ] = request;
-            // Add the request to the display
-            $( '#@@prefix@@' ).show().append( $.tmpl( 'requestTemplate', {
-              type : request.redirect ? 'redirect' : type, requestId : request.id, totalTime : ( request.profile.duration / 1000000 ).toFixed( 2 )
-            } ) );
-          }
-        }
-      }
+      addRequests( data, type );
       if ( callback ) {
         callback();
       }
     }, 'json' );
   }
 
+  /**
+   * Add the requests of a results response to the display.
+   */
+  function addRequests( data, type ) {
+    if ( data.ok ) {
+      var requests = data.requests;
+      if ( requests && requests.length ) {
+        for ( var i = 0; i < requests.length; i++ ) {
+          var request = requests[ i ];
+          delete awaiting[ request.id ];
+          // an empty profile has nothing to show
+          if ( !request.profile || requestData[ '@@prefix@@-req-' + request.id ] ) {
+            continue;
+          }
+          request.timestampFormatted = new Date( request.timestamp ).toString();
+          // Store the request data for later
+          requestData[ '@@prefix@@-req-' + request.id ] = request;
+          // Add the request to the display
+          $( '#@@prefix@@' ).show().append( $.tmpl( 'requestTemplate', {
+            type : request.redirect ? 'redirect' : type, requestId : request.id, totalTime : ( request.profile.duration / 1000000 ).toFixed( 2 )
+          } ) );
+        }
+      }
+    }
+  }
+
   /**
    * Toggles an expand/collapse link
    */
@@ -96,6 +194,101 @@ var MiniProfiler = ( function() {
     }
   }
 
+  /**
+   * Render the profile rows that are scrolled into view (and a few either
+   * side of them), sizing the list to hold all the rows that are showing.
+   */
+  function renderRows() {
+    if ( !tree ) {
+      return;
+    }
+    var container = $( '#@@prefix@@-req-profile-rows' ), rows = tree.rows;
+    var scrollTop = container.scrollTop(), height = container.height() || VIEW_HEIGHT;
+    var first = Math.max( 0, Math.floor( scrollTop / ROW_HEIGHT ) - OVERSCAN );
+    var last = Math.min( rows.length, Math.ceil( ( scrollTop + height ) / ROW_HEIGHT ) + OVERSCAN );
+    var visible = [];
+    for ( var i = first; i < last; i++ ) {
+      rows[ i ].row = i;
+      rows[ i ].top = i * ROW_HEIGHT;
+      visible.push( rows[ i ] );
+    }
+    container.children( '.rows' ).height( rows.length * ROW_HEIGHT ).html( $.tmpl( 'resultRowTemplate', visible ) );
+  }
+
+  /**
+   * Expands or collapses a step of the profile being displayed.
+   */
+  function toggleRow( e ) {
+    e.preventDefault();
+    e.stopPropagation();
+    var index = parseInt( $( this ).attr( 'data-row' ), 10 ), node = tree.rows[ index ];
+    if ( !node ) {
+      return;
+    }
+    if ( node.expanded ) {
+      var end = index + 1;
+      while ( end < tree.rows.length && tree.rows[ end ].depth > node.depth ) {
+        end++;
+      }
+      tree.rows.splice( index + 1, end - index - 1 );
+      node.expanded = false;
+      renderRows();
+    }
+    else {
+      expandRow( node );
+    }
+  }
+
+  /**
+   * Shows the children of a step, fetching its subtree first if they weren't
+   * sent with the profile.
+   */
+  function expandRow( node ) {
+    if ( node.children.length >= node.childCount ) {
+      showChildren( node );
+      return;
+    }
+    if ( node.loading ) {
+      return;
+    }
+    node.loading = true;
+    var request = tree.request;
+    $.get( baseURL + 'subtree', {
+      id : request.id, node : node.id
+    }, function( data ) {
+      node.loading = false;
+      if ( data.ok ) {
+        node.children = data.node.children;
+        if ( tree && tree.request === request ) {
+          showChildren( node );
+        }
+      }
+    }, 'json' );
+  }
+
+  /**
+   * Inserts the rows of a step's children (and of their expanded children)
+   * after the step's row.
+   */
+  function showChildren( node ) {
+    var index = $.inArray( node, tree.rows );
+    if ( index < 0 ) {
+      // hidden by a collapse while its children were loading
+      return;
+    }
+    node.expanded = true;
+    var added = [], stack = node.children.slice( 0 ).reverse();
+    while ( stack.length ) {
+      var child = stack.pop();
+      added.push( child );
+      if ( child.expanded ) {
+        stack = stack.concat( child.children.slice( 0 ).reverse() );
+      }
+    }
+    tree.rows.splice.apply( tree.rows, [ index + 1, 0 ].concat( added ) );
+    renderRows();
+  }
+
   /**
    * Display detailed profile information for a request.
    */
@@ -105,13 +298,23 @@ var MiniProfiler = ( function() {
     var data = requestData[ this.id ];
     var resultDiv = $( '#@@prefix@@-req' );
     resultDiv.undelegate();
-    resultDiv.html( $.tmpl( 'resultTemplate', data ) ).slideDown();
+    resultDiv.html( $.tmpl( 'resultTemplate', data ) ).slideDown( renderRows );
+    tree = {
+      request : data, rows : [ data.profile ]
+    };
+    $( '#@@prefix@@-req-profile-rows' ).scroll( renderRows );
+    if ( data.profile ) {
+      // open with the top level steps showing (and any steps under them
+      // that were expanded the last time it was open)
+      expandRow( data.profile );
+    }
     resultDiv.delegate( '#@@prefix@@-req-close', 'click', function( e ) {
       e.preventDefault();
       e.stopPropagation();
       resultDiv.slideUp();
+      tree = null;
     } );
-    resultDiv.delegate( '#@@prefix@@-req-profile a', 'click', toggleLinkDetails );
+    resultDiv.delegate( '#@@prefix@@-req-profile-rows a', 'click', toggleRow );
     resultDiv.delegate( '#@@prefix@@-req-as a', 'click', toggleLinkDetails );
   }
 
@@ -0,0 +1,241 @@
+package au.com.funkworks.jmp.cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import au.com.funkworks.jmp.Profile;
+import au.com.funkworks.jmp.codec.CompactProfile;
+import au.com.funkworks.jmp.codec.ProfileCodec;
+
+public class MappedFileCacheImplTest {
+
+	private File directory;
+	private MappedFileCacheImpl cache;
+
+	@Before
+	public void createDirectory() throws IOException {
+		directory = File.createTempFile("jmp-test", "");
+		directory.delete();
+	}
+
+	@After
+	public void deleteDirectory() {
+		if (cache != null) {
+			cache.close();
+		}
+		File[] files = directory.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				file.delete();
+			}
+		}
+		directory.delete();
+	}
+
+	private static String key(long id) {
+		return "mini_profile_request_" + id;
+	}
+
+	/** A profile that records the key it was stored under as its URL. */
+	private static Map<String, Object> data(String key) {
+		return ProfileCodec.toRequestData(ProfileCodec.encode((Profile) null, key, 1));
+	}
+
+	private static String urlOf(Map<String, Object> data) {
+		CompactProfile profile = ProfileCodec.fromRequestData(data);
+		return profile != null ? profile.getRequestURL() : null;
+	}
+
+	/**
+	 * Wait for the maintenance thread to bring the number of segment files
+	 * down to the specified number.
+	 */
+	private void awaitFiles(int max) throws InterruptedException {
+		long end = System.currentTimeMillis() + 10000;
+		while (directory.listFiles().length > max && System.currentTimeMillis() < end) {
+			Thread.sleep(10);
+		}
+		assertTrue(directory.listFiles().length <= max);
+	}
+
+	@Test
+	public void getsWhatWasPutAcrossSegments() throws IOException {
+		cache = new MappedFileCacheImpl(directory, 4096, 100, 0);
+		for (int id = 0; id < 500; id++) {
+			cache.put(key(id), data(key(id)));
+		}
+		for (int id = 0; id < 500; id++) {
+			assertEquals(key(id), urlOf(cache.get(key(id))));
+		}
+	}
+
+	@Test
+	public void recoversSegmentsOnRestart() throws IOException {
+		cache = new MappedFileCacheImpl(directory, 4096, 100, 0);
+		for (int id = 0; id < 100; id++) {
+			cache.put(key(id), data(key(id)));
+		}
+		cache.close();
+
+		cache = new MappedFileCacheImpl(directory, 4096, 100, 0);
+		assertEquals(key(42), urlOf(cache.get(key(42))));
+	}
+
+	@Test
+	public void dropsTheOldestSegments() throws Exception {
+		cache = new MappedFileCacheImpl(directory, 4096, 2, 0);
+		for (int id = 0; id < 500; id++) {
+			cache.put(key(id), data(key(id)));
+		}
+		// two segments, and the spare
+		awaitFiles(3);
+		assertNull(cache.get(key(0)));
+		assertEquals(key(499), urlOf(cache.get(key(499))));
+		assertTrue(cache.getEvictionCount() > 0);
+	}
+
+	@Test
+	public void createsTheNextSegmentAheadOfTime() throws Exception {
+		cache = new MappedFileCacheImpl(directory, 4096, 100, 0);
+		long end = System.currentTimeMillis() + 10000;
+		while (directory.listFiles().length < 2 && System.currentTimeMillis() < end) {
+			Thread.sleep(10);
+		}
+		assertEquals(2, directory.listFiles().length);
+
+		// the spare is deleted on close, as it holds nothing
+		cache.close();
+		assertEquals(1, directory.listFiles().length);
+		cache = null;
+	}
+
+	@Test
+	public void expiresOldSegmentsOnRead() throws Exception {
+		cache = new MappedFileCacheImpl(directory, 4096, 100, 50);
+		cache.put(key(1), data(key(1)));
+		assertEquals(key(1), urlOf(cache.get(key(1))));
+		Thread.sleep(100);
+		assertNull(cache.get(key(1)));
+	}
+
+	@Test(timeout = 30000)
+	public void dropsProfilesWhenTheNextSegmentCannotBeCreated() throws Exception {
+		cache = new MappedFileCacheImpl(directory, 4096, 100, 0);
+		for (File file : directory.listFiles()) {
+			file.delete();
+		}
+		directory.delete();
+
+		List<Thread> threads = new ArrayList<Thread>();
+		final AtomicLong ids = new AtomicLong();
+		for (int t = 0; t < 4; t++) {
+			threads.add(new Thread(new Runnable() {
+				public void run() {
+					for (int i = 0; i < 200; i++) {
+						long id = ids.incrementAndGet();
+						cache.put(key(id), data(key(id)));
+					}
+				}
+			}));
+		}
+		for (Thread thread : threads) {
+			thread.start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		assertNull(cache.get(key(800)));
+	}
+
+	@Test
+	public void concurrentPutsAndGetsNeverMismatch() throws Exception {
+		cache = new MappedFileCacheImpl(directory, 64 * 1024, 4, 0);
+		final int writers = 4;
+		final int readers = 4;
+		final int idsPerWriter = 20000;
+		final AtomicLong highest = new AtomicLong();
+		final AtomicInteger hits = new AtomicInteger();
+		final AtomicReference<String> failure = new AtomicReference<String>();
+		final CountDownLatch start = new CountDownLatch(1);
+		final CountDownLatch written = new CountDownLatch(writers);
+
+		List<Thread> threads = new ArrayList<Thread>();
+		for (int w = 0; w < writers; w++) {
+			final int first = w;
+			threads.add(new Thread(new Runnable() {
+				public void run() {
+					await(start);
+					for (long id = first; id < (long) writers * idsPerWriter; id += writers) {
+						cache.put(key(id), data(key(id)));
+						if (id > highest.get()) {
+							highest.set(id);
+						}
+					}
+					written.countDown();
+				}
+			}));
+		}
+		for (int r = 0; r < readers; r++) {
+			threads.add(new Thread(new Runnable() {
+				public void run() {
+					Random random = new Random();
+					await(start);
+					while (written.getCount() > 0 && failure.get() == null) {
+						String key = key(Math.max(0, highest.get() - random.nextInt(2000)));
+						try {
+							Map<String, Object> data = cache.get(key);
+							if (data != null) {
+								hits.incrementAndGet();
+								if (!key.equals(urlOf(data))) {
+									failure.set("Got " + urlOf(data) + " for " + key);
+								}
+							}
+						} catch (RuntimeException e) {
+							failure.set("Reading " + key + " failed: " + e);
+						}
+					}
+				}
+			}));
+		}
+		for (Thread thread : threads) {
+			thread.start();
+		}
+		start.countDown();
+		for (Thread thread : threads) {
+			thread.join(60000);
+		}
+
+		assertNull(failure.get(), failure.get());
+		assertTrue("readers should have found some profiles", hits.get() > 0);
+		// writers finish at different times, so their last profiles may
+		// have been rolled out already; the store must still be usable
+		long last = (long) writers * idsPerWriter;
+		cache.put(key(last), data(key(last)));
+		assertEquals(key(last), urlOf(cache.get(key(last))));
+		awaitFiles(5);
+	}
+
+	private static void await(CountDownLatch latch) {
+		try {
+			latch.await();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+}
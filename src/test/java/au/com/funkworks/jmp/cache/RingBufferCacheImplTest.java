@@ -0,0 +1,159 @@
+package au.com.funkworks.jmp.cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+public class RingBufferCacheImplTest {
+
+	private static String key(long id) {
+		return "mini_profile_request_" + id;
+	}
+
+	private static Map<String, Object> data(String key) {
+		Map<String, Object> data = new HashMap<String, Object>();
+		data.put("key", key);
+		return data;
+	}
+
+	@Test
+	public void getsWhatWasPut() {
+		RingBufferCacheImpl cache = new RingBufferCacheImpl(4);
+		Map<String, Object> data = data(key(1));
+		cache.put(key(1), data);
+		assertSame(data, cache.get(key(1)));
+		assertNull(cache.get(key(2)));
+		assertEquals(1, cache.getSize());
+	}
+
+	@Test
+	public void overwritesTheProfileCapacityRequestsEarlier() {
+		RingBufferCacheImpl cache = new RingBufferCacheImpl(4);
+		cache.put(key(1), data(key(1)));
+		cache.put(key(5), data(key(5)));
+		assertNull(cache.get(key(1)));
+		assertEquals(key(5), cache.get(key(5)).get("key"));
+		assertEquals(1, cache.getEvictionCount());
+	}
+
+	@Test
+	public void slowWriterDoesNotClobberANewerProfile() {
+		RingBufferCacheImpl cache = new RingBufferCacheImpl(4);
+		cache.put(key(5), data(key(5)));
+		cache.put(key(1), data(key(1)));
+		assertNull(cache.get(key(1)));
+		assertEquals(key(5), cache.get(key(5)).get("key"));
+	}
+
+	@Test
+	public void concurrentPutsAndGetsNeverMismatch() throws Exception {
+		final RingBufferCacheImpl cache = new RingBufferCacheImpl(64);
+		final int writers = 4;
+		final int readers = 4;
+		final int idsPerWriter = 50000;
+		final AtomicLong highest = new AtomicLong();
+		final AtomicInteger hits = new AtomicInteger();
+		final AtomicReference<String> failure = new AtomicReference<String>();
+		final CountDownLatch start = new CountDownLatch(1);
+		final CountDownLatch written = new CountDownLatch(writers);
+
+		List<Thread> threads = new ArrayList<Thread>();
+		for (int w = 0; w < writers; w++) {
+			final int first = w;
+			threads.add(new Thread(new Runnable() {
+				public void run() {
+					await(start);
+					for (long id = first; id < (long) writers * idsPerWriter; id += writers) {
+						cache.put(key(id), data(key(id)));
+						if (id > highest.get()) {
+							highest.set(id);
+						}
+					}
+					written.countDown();
+				}
+			}));
+		}
+		for (int r = 0; r < readers; r++) {
+			threads.add(new Thread(new Runnable() {
+				public void run() {
+					Random random = new Random();
+					await(start);
+					while (written.getCount() > 0 && failure.get() == null) {
+						String key = key(Math.max(0, highest.get() - random.nextInt(128)));
+						Map<String, Object> data = cache.get(key);
+						if (data != null) {
+							hits.incrementAndGet();
+							if (!key.equals(data.get("key"))) {
+								failure.set("Got " + data.get("key") + " for " + key);
+							}
+						}
+					}
+				}
+			}));
+		}
+		for (Thread thread : threads) {
+			thread.start();
+		}
+		start.countDown();
+		for (Thread thread : threads) {
+			thread.join(60000);
+		}
+
+		assertNull(failure.get(), failure.get());
+		assertTrue("readers should have found some profiles", hits.get() > 0);
+		for (long id = (long) writers * idsPerWriter - 64; id < (long) writers * idsPerWriter; id++) {
+			assertEquals(key(id), cache.get(key(id)).get("key"));
+		}
+	}
+
+	@Test
+	public void aGetDuringAWriteStillFindsTheProfile() throws Exception {
+		final RingBufferCacheImpl cache = new RingBufferCacheImpl(1);
+		final String key = key(7);
+		cache.put(key, data(key));
+		final AtomicInteger misses = new AtomicInteger();
+		final CountDownLatch done = new CountDownLatch(1);
+
+		// keep rewriting the slot while another thread reads it
+		Thread writer = new Thread(new Runnable() {
+			public void run() {
+				while (done.getCount() > 0) {
+					cache.put(key, data(key));
+				}
+			}
+		});
+		writer.start();
+		try {
+			for (int i = 0; i < 200000; i++) {
+				if (cache.get(key) == null) {
+					misses.incrementAndGet();
+				}
+			}
+		} finally {
+			done.countDown();
+			writer.join(60000);
+		}
+		assertEquals(0, misses.get());
+	}
+
+	private static void await(CountDownLatch latch) {
+		try {
+			latch.await();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+}
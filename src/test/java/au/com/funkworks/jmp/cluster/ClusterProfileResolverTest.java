@@ -0,0 +1,212 @@
+package au.com.funkworks.jmp.cluster;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Test;
+
+import au.com.funkworks.jmp.codec.CompactProfile;
+import au.com.funkworks.jmp.codec.ProfileCodec;
+
+public class ClusterProfileResolverTest {
+
+	private final Map<String, Node> nodes = new HashMap<String, Node>();
+
+	@After
+	public void shutdown() {
+		for (Node node : nodes.values()) {
+			node.resolver.shutdown();
+		}
+	}
+
+	/**
+	 * A node of an in-process cluster: its own resolver and store, fetching
+	 * from the other nodes' stores through the export format.
+	 */
+	private class Node implements PeerFetcher {
+
+		final ClusterProfileResolver resolver;
+		final Map<String, CompactProfile> store = new ConcurrentHashMap<String, CompactProfile>();
+		final AtomicInteger fetches = new AtomicInteger();
+		volatile long delayMillis;
+		volatile CountDownLatch gate;
+
+		Node(String nodeId, long timeoutMillis, int fetchThreads) {
+			resolver = new ClusterProfileResolver(nodeId, this, timeoutMillis, ClusterProfileResolver.DEFAULT_CACHE_SIZE, fetchThreads);
+			nodes.put(resolver.getNodeId(), this);
+		}
+
+		String capture(String requestURL) {
+			String requestId = resolver.nextRequestId();
+			store.put(requestId, ProfileCodec.encode(null, requestURL, System.currentTimeMillis()));
+			return requestId;
+		}
+
+		public Map<String, CompactProfile> fetch(String nodeId, Collection<String> requestIds) throws IOException {
+			fetches.incrementAndGet();
+			Node peer = nodes.get(nodeId);
+			if (peer == null) {
+				throw new IOException("Unknown node " + nodeId);
+			}
+			return peer.export(requestIds);
+		}
+
+		Map<String, CompactProfile> export(Collection<String> requestIds) throws IOException {
+			try {
+				if (delayMillis > 0) {
+					Thread.sleep(delayMillis);
+				}
+				if (gate != null) {
+					gate.await();
+				}
+			} catch (InterruptedException e) {
+				throw new IOException("Interrupted");
+			}
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			DataOutputStream out = new DataOutputStream(bytes);
+			for (String requestId : requestIds) {
+				CompactProfile profile = store.get(requestId);
+				if (profile != null) {
+					ProfileExport.write(requestId, profile, out);
+				}
+			}
+			ProfileExport.end(out);
+			return ProfileExport.read(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+		}
+	}
+
+	@Test
+	public void resolvesIdsFromTheNodesThatCapturedThem() {
+		Node a = new Node("a", 2000, 2);
+		Node b = new Node("b", 2000, 2);
+		Node c = new Node("c", 2000, 2);
+		String local = a.capture("/a");
+		String fromB1 = b.capture("/b1");
+		String fromB2 = b.capture("/b2");
+		String fromC = c.capture("/c");
+
+		Map<String, CompactProfile> resolved = a.resolver.resolveRemote(Arrays.asList(local, fromB1, fromB2, fromC, "b-404"));
+		assertEquals(3, resolved.size());
+		assertEquals("/b1", resolved.get(fromB1).getRequestURL());
+		assertEquals("/b2", resolved.get(fromB2).getRequestURL());
+		assertEquals("/c", resolved.get(fromC).getRequestURL());
+		assertNull(resolved.get(local));
+		// one fetch per node
+		assertEquals(2, a.fetches.get());
+
+		assertTrue(c.resolver.isLocal(fromC));
+		assertFalse(c.resolver.isLocal(fromB1));
+		assertEquals(fromB1, c.resolver.resolveRemote(Collections.singletonList(fromB1)).keySet().iterator().next());
+	}
+
+	@Test
+	public void servesRepeatedLookupsFromItsCache() {
+		Node a = new Node("a", 2000, 2);
+		Node b = new Node("b", 2000, 2);
+		String requestId = b.capture("/b");
+
+		assertEquals(1, a.resolver.resolveRemote(Collections.singletonList(requestId)).size());
+		b.store.clear();
+		assertEquals(1, a.resolver.resolveRemote(Collections.singletonList(requestId)).size());
+		assertEquals(1, a.fetches.get());
+		assertEquals(Long.valueOf(1), a.resolver.getStats().get("cacheHits"));
+	}
+
+	@Test
+	public void aSlowNodeDoesNotHoldUpTheOthers() {
+		Node a = new Node("a", 200, 2);
+		Node b = new Node("b", 200, 2);
+		Node c = new Node("c", 200, 2);
+		String fromB = b.capture("/b");
+		String fromC = c.capture("/c");
+		c.delayMillis = 5000;
+
+		long start = System.currentTimeMillis();
+		Map<String, CompactProfile> resolved = a.resolver.resolveRemote(Arrays.asList(fromB, fromC));
+		assertTrue(System.currentTimeMillis() - start < 2000);
+		assertEquals(Collections.singleton(fromB), resolved.keySet());
+		assertEquals(Long.valueOf(1), a.resolver.getStats().get("failures"));
+	}
+
+	@Test
+	public void skipsNodesWhenTheFetchQueueIsFull() throws InterruptedException {
+		Node a = new Node("a", 5000, 1);
+		// more nodes than one thread and its queue can take, all held up
+		// until every fetch has been submitted
+		final CountDownLatch gate = new CountDownLatch(1);
+		int peers = 40;
+		String[] requestIds = new String[peers];
+		for (int i = 0; i < peers; i++) {
+			Node peer = new Node("p" + i, 5000, 1);
+			peer.gate = gate;
+			requestIds[i] = peer.capture("/p" + i);
+		}
+		Thread opener = new Thread(new Runnable() {
+			public void run() {
+				try {
+					Thread.sleep(500);
+				} catch (InterruptedException e) {
+					// open it now
+				}
+				gate.countDown();
+			}
+		});
+		opener.start();
+
+		Map<String, CompactProfile> resolved = a.resolver.resolveRemote(Arrays.asList(requestIds));
+		opener.join();
+		// the running fetch and the 16 queued ones are still resolved
+		assertEquals(1 + 16, resolved.size());
+		assertEquals(Long.valueOf(peers - 17), a.resolver.getStats().get("rejected"));
+		assertEquals(17, a.fetches.get());
+		assertEquals(Long.valueOf(0), a.resolver.getStats().get("failures"));
+	}
+
+	@Test
+	public void waitsForAllNodesWithinOneTimeout() {
+		Node a = new Node("a", 2000, 4);
+		String[] requestIds = new String[4];
+		for (int i = 0; i < requestIds.length; i++) {
+			Node peer = new Node("p" + i, 2000, 4);
+			peer.delayMillis = 400;
+			requestIds[i] = peer.capture("/p" + i);
+		}
+
+		long start = System.currentTimeMillis();
+		assertEquals(4, a.resolver.resolveRemote(Arrays.asList(requestIds)).size());
+		// in parallel, not one after the other
+		assertTrue(System.currentTimeMillis() - start < 1200);
+	}
+
+	@Test
+	public void idsDontRepeatAcrossRestarts() throws InterruptedException {
+		Node before = new Node("a", 500, 1);
+		String last = null;
+		for (int i = 0; i < 100; i++) {
+			last = before.resolver.nextRequestId();
+		}
+		before.resolver.shutdown();
+		// well under a million ids a second
+		Thread.sleep(5);
+		Node after = new Node("a", 500, 1);
+		String first = after.resolver.nextRequestId();
+		assertTrue(Long.parseLong(first.substring(2)) > Long.parseLong(last.substring(2)));
+	}
+}
@@ -0,0 +1,194 @@
+package au.com.funkworks.jmp.codec;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+import au.com.funkworks.jmp.MiniProfiler;
+import au.com.funkworks.jmp.Step;
+
+public class ProfileCodecTest {
+
+	/**
+	 * Capture a profile with a step for each name, nested in the previous
+	 * one when the name starts with a space.
+	 */
+	private static CompactProfile capture(String... names) {
+		MiniProfiler.start();
+		Step open = null;
+		for (String name : names) {
+			if (open != null && !name.startsWith(" ")) {
+				open.close();
+				open = null;
+			}
+			Step step = MiniProfiler.step(name.trim());
+			if (open == null) {
+				open = step;
+			} else {
+				step.close();
+			}
+		}
+		if (open != null) {
+			open.close();
+		}
+		return ProfileCodec.encode(MiniProfiler.stop(), "/page", 1);
+	}
+
+	private static byte[] sample() {
+		return ProfileCodec.toBytes(capture("a", " c", "b"));
+	}
+
+	@Test
+	public void roundTripsStringsLongerThan64KB() {
+		StringBuilder sql = new StringBuilder();
+		while (sql.length() < 100000) {
+			sql.append("select \u00e9 from t; ");
+		}
+		CompactProfile profile = capture(sql.toString());
+
+		CompactProfile decoded = ProfileCodec.decode(ProfileCodec.toBytes(profile));
+		assertEquals(2, decoded.getNodeCount());
+		assertEquals(sql.toString().trim(), decoded.getName(1));
+		assertEquals("/page", decoded.getRequestURL());
+	}
+
+	@Test
+	public void roundTripsRollupsAndRepeatedCalls() {
+		ProfileCodec.Builder builder = new ProfileCodec.Builder();
+		int root = builder.add(-1, 0, 1000, "page", null);
+		int load = builder.add(root, 10, 900, "load", "service");
+		for (int i = 0; i < 12; i++) {
+			builder.add(load, 20 + i * 50, 40 + i, "select ?", "sql");
+		}
+		// a child that outlasts its parent gives a negative self time
+		int render = builder.add(root, 910, 50, "render", "view");
+		builder.add(render, 910, 60, "template", null);
+		CompactProfile profile = builder.build("/page", 1);
+		assertEquals(3, profile.getRollups().size());
+		assertFalse(profile.getRepeatedCalls().isEmpty());
+
+		CompactProfile decoded = ProfileCodec.decode(ProfileCodec.toBytes(profile));
+		TagRollups rollups = profile.getRollups();
+		TagRollups decodedRollups = decoded.getRollups();
+		assertEquals(rollups.size(), decodedRollups.size());
+		for (int i = 0; i < rollups.size(); i++) {
+			assertEquals(rollups.getTagIndex(i), decodedRollups.getTagIndex(i));
+			assertEquals(rollups.getCalls(i), decodedRollups.getCalls(i));
+			assertEquals(rollups.getTotalTime(i), decodedRollups.getTotalTime(i));
+			assertEquals(rollups.getSelfTime(i), decodedRollups.getSelfTime(i));
+			assertEquals(rollups.getMinTime(i), decodedRollups.getMinTime(i));
+			assertEquals(rollups.getMaxTime(i), decodedRollups.getMaxTime(i));
+		}
+		assertEquals(-10, decodedRollups.getSelfTime(2));
+
+		RepeatedCalls repeated = profile.getRepeatedCalls();
+		RepeatedCalls decodedRepeated = decoded.getRepeatedCalls();
+		assertEquals(repeated.size(), decodedRepeated.size());
+		for (int i = 0; i < repeated.size(); i++) {
+			assertEquals(repeated.getOwner(i), decodedRepeated.getOwner(i));
+			assertEquals(repeated.getKeyIndex(i), decodedRepeated.getKeyIndex(i));
+			assertEquals(repeated.isByTag(i), decodedRepeated.isByTag(i));
+			assertEquals(repeated.getCount(i), decodedRepeated.getCount(i));
+			assertEquals(repeated.getTotalTime(i), decodedRepeated.getTotalTime(i));
+			assertEquals(repeated.getMaxTime(i), decodedRepeated.getMaxTime(i));
+		}
+	}
+
+	@Test
+	public void rejectsTruncatedProfiles() {
+		byte[] bytes = sample();
+		for (int length = 0; length < bytes.length; length++) {
+			try {
+				ProfileCodec.decode(Arrays.copyOf(bytes, length));
+				fail("decoded a profile truncated to " + length + " bytes");
+			} catch (IllegalArgumentException e) {
+				// expected
+			}
+		}
+	}
+
+	@Test
+	public void rejectsCountsLargerThanTheInput() throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeInt(0x4A4D5003);
+		out.writeBoolean(false);
+		out.writeLong(0);
+		// a string count of about 2^34
+		out.write(new byte[] { (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 0x7F });
+		try {
+			ProfileCodec.decode(bytes.toByteArray());
+			fail("decoded a profile with a bogus string count");
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+	}
+
+	/** A varint that decodes to -1 when its 10th byte isn't checked. */
+	private static final byte[] NEGATIVE = { -1, -1, -1, -1, -1, -1, -1, -1, -1, 0x01 };
+
+	/** A varint whose 10th byte holds more than the last bit of a long. */
+	private static final byte[] OVERLONG = { -1, -1, -1, -1, -1, -1, -1, -1, -1, 0x7F };
+
+	/**
+	 * Write a profile of one step named {@code "a"}, with the specified
+	 * string count and name index (as raw varint bytes).
+	 */
+	private static byte[] handBuilt(byte[] stringCount, byte[] nameIndex) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeInt(0x4A4D5003);
+		out.writeBoolean(false);
+		out.writeLong(0);
+		out.write(stringCount);
+		out.writeBoolean(true);
+		out.write(new byte[] { 1, 'a' });
+		// one node, not coalesced: parent delta, offset, duration, name, tag
+		out.write(new byte[] { 1, 0, 1, 0, 5 });
+		out.write(nameIndex);
+		out.write(new byte[] { 0 });
+		// no rollups or repeated calls
+		out.write(new byte[] { 0, 0 });
+		return bytes.toByteArray();
+	}
+
+	private static void assertRejected(byte[] bytes) {
+		try {
+			ProfileCodec.decode(bytes);
+			fail("decoded a profile with a bogus varint");
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void corruptProfilesOnlyFailWithIllegalArgument() throws IOException {
+		assertEquals("a", ProfileCodec.decode(handBuilt(new byte[] { 1 }, new byte[] { 0 })).getName(0));
+		assertRejected(handBuilt(NEGATIVE, new byte[] { 0 }));
+		assertRejected(handBuilt(OVERLONG, new byte[] { 0 }));
+		assertRejected(handBuilt(new byte[] { 1 }, NEGATIVE));
+		assertRejected(handBuilt(new byte[] { 1 }, OVERLONG));
+
+		byte[] bytes = sample();
+		Random random = new Random(42);
+		for (int i = 0; i < 10000; i++) {
+			byte[] corrupt = bytes.clone();
+			for (int j = 0; j < 3; j++) {
+				corrupt[random.nextInt(corrupt.length)] = (byte) random.nextInt();
+			}
+			try {
+				ProfileCodec.decode(corrupt);
+			} catch (IllegalArgumentException e) {
+				// expected for most
+			}
+		}
+	}
+}
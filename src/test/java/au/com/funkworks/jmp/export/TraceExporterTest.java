@@ -0,0 +1,219 @@
+package au.com.funkworks.jmp.export;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.codehaus.jackson.JsonNode;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import au.com.funkworks.jmp.MiniProfiler;
+import au.com.funkworks.jmp.Step;
+import au.com.funkworks.jmp.codec.CompactProfile;
+import au.com.funkworks.jmp.codec.ProfileCodec;
+import au.com.funkworks.jmp.codec.ProfileLimits;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+public class TraceExporterTest {
+
+	private static final ObjectMapper mapper = new ObjectMapper();
+
+	private HttpServer collector;
+	private final List<JsonNode> batches = new CopyOnWriteArrayList<JsonNode>();
+	private volatile int status = 202;
+	private TraceExporter exporter;
+
+	@Before
+	public void startCollector() throws IOException {
+		collector = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		collector.createContext("/api/v2/spans", new HttpHandler() {
+			public void handle(HttpExchange exchange) throws IOException {
+				byte[] body = readFully(exchange.getRequestBody());
+				if (status < 300) {
+					batches.add(mapper.readTree(new String(body, "UTF-8")));
+				}
+				exchange.sendResponseHeaders(status, -1);
+				exchange.close();
+			}
+		});
+		collector.start();
+	}
+
+	@After
+	public void stop() {
+		if (exporter != null) {
+			exporter.shutdown();
+		}
+		collector.stop(0);
+	}
+
+	private static byte[] readFully(InputStream in) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		byte[] buffer = new byte[4096];
+		int read;
+		while ((read = in.read(buffer)) > 0) {
+			bytes.write(buffer, 0, read);
+		}
+		return bytes.toByteArray();
+	}
+
+	private URL collectorURL() throws IOException {
+		return new URL("http://127.0.0.1:" + collector.getAddress().getPort() + "/api/v2/spans");
+	}
+
+	private TraceExporter startExporter(URL url, int queueSize, int maxBatchSpans, long flushMillis, int maxRetries) {
+		exporter = new TraceExporter(new HttpSpanSender(url, 1000), new ZipkinSpanEncoder("test-service"), queueSize, maxBatchSpans, flushMillis, maxRetries, 10);
+		return exporter;
+	}
+
+	/**
+	 * Capture a profile of a {@code load} step running a number of
+	 * {@code query} steps.
+	 */
+	private static CompactProfile capture(int queries, ProfileLimits limits) {
+		MiniProfiler.start();
+		Step load = MiniProfiler.step("load");
+		for (int i = 0; i < queries; i++) {
+			MiniProfiler.step("query").close();
+		}
+		load.close();
+		return ProfileCodec.encode(MiniProfiler.stop(), "/page?id=1", System.currentTimeMillis(), limits);
+	}
+
+	private static long stat(TraceExporter exporter, String name) {
+		return ((Long) exporter.getStats().get(name)).longValue();
+	}
+
+	private static void awaitAtLeast(TraceExporter exporter, String name, long expected) throws InterruptedException {
+		long end = System.currentTimeMillis() + 10000;
+		while (stat(exporter, name) < expected && System.currentTimeMillis() < end) {
+			Thread.sleep(10);
+		}
+	}
+
+	private static void awaitStat(TraceExporter exporter, String name, long expected) throws InterruptedException {
+		awaitAtLeast(exporter, name, expected);
+		assertEquals(expected, stat(exporter, name));
+	}
+
+	@Test
+	public void exportsStepsAsNestedSpans() throws Exception {
+		TraceExporter exporter = startExporter(collectorURL(), 10, 100, 10, 0);
+		exporter.profileStored("/page", capture(2, ProfileLimits.NONE));
+		exporter.profileStored("/page", capture(5, new ProfileLimits(0, 0, 3)));
+		awaitStat(exporter, "exportedSpans", 4 + 3);
+
+		List<JsonNode> spans = new ArrayList<JsonNode>();
+		for (JsonNode batch : batches) {
+			for (JsonNode span : batch) {
+				spans.add(span);
+			}
+		}
+		assertEquals(7, spans.size());
+
+		Map<String, JsonNode> byId = new HashMap<String, JsonNode>();
+		for (JsonNode span : spans) {
+			byId.put(span.get("id").getTextValue(), span);
+		}
+		int roots = 0;
+		for (JsonNode span : spans) {
+			assertEquals("test-service", span.get("localEndpoint").get("serviceName").getTextValue());
+			assertTrue(span.get("duration").getLongValue() >= 1);
+			String name = span.get("name").getTextValue();
+			if (span.get("parentId") == null) {
+				roots++;
+				assertEquals("SERVER", span.get("kind").getTextValue());
+				assertEquals("/page?id=1", span.get("tags").get("http.url").getTextValue());
+				continue;
+			}
+			JsonNode parent = byId.get(span.get("parentId").getTextValue());
+			assertEquals(span.get("traceId"), parent.get("traceId"));
+			assertNull(span.get("kind"));
+			assertNull(span.get("tags").get("http.url"));
+			if ("query".equals(name)) {
+				assertEquals("load", parent.get("name").getTextValue());
+			} else {
+				assertEquals("load", name);
+				assertNull(parent.get("parentId"));
+			}
+			if ("query".equals(name) && span.get("tags").get("jmp.count") != null) {
+				assertEquals("5", span.get("tags").get("jmp.count").getTextValue());
+			}
+		}
+		assertEquals(2, roots);
+	}
+
+	@Test
+	public void keepsBatchesWithinTheSpanLimit() throws Exception {
+		// 4 spans a profile, so at most 2 fit in a batch of 10
+		TraceExporter exporter = startExporter(collectorURL(), 100, 10, 60000, 0);
+		for (int i = 0; i < 9; i++) {
+			exporter.profileStored("/page", capture(2, ProfileLimits.NONE));
+		}
+		awaitStat(exporter, "exportedBatches", 4);
+		assertEquals(32, stat(exporter, "exportedSpans"));
+		for (JsonNode batch : batches) {
+			assertEquals(8, batch.size());
+		}
+
+		// a profile bigger than the limit sends the one waiting, and goes in
+		// a batch of its own
+		exporter.profileStored("/page", capture(20, ProfileLimits.NONE));
+		awaitStat(exporter, "exportedBatches", 6);
+		assertEquals(4, batches.get(4).size());
+		assertEquals(22, batches.get(5).size());
+		assertEquals(0, stat(exporter, "failedBatches"));
+	}
+
+	@Test
+	public void countsWhatIsLostWhileTheCollectorIsDown() throws Exception {
+		status = 503;
+		TraceExporter exporter = startExporter(collectorURL(), 2, 4, 10, 2);
+		int profiles = 50;
+		for (int i = 0; i < profiles; i++) {
+			exporter.profileStored("/page", capture(2, ProfileLimits.NONE));
+		}
+		// let a batch use up its retries before shutting down
+		awaitAtLeast(exporter, "failedBatches", 1);
+		exporter.shutdown();
+
+		long enqueued = stat(exporter, "enqueued");
+		assertTrue(stat(exporter, "dropped") > 0);
+		assertEquals(profiles, enqueued + stat(exporter, "dropped"));
+		assertTrue(stat(exporter, "retries") > 0);
+		assertEquals(0, stat(exporter, "exportedSpans"));
+		assertEquals(enqueued, stat(exporter, "failedBatches"));
+		assertEquals(enqueued * 4, stat(exporter, "failedSpans"));
+		assertTrue(batches.isEmpty());
+	}
+
+	@Test
+	public void countsFailuresWhenTheCollectorIsUnreachable() throws Exception {
+		URL url = collectorURL();
+		collector.stop(0);
+		TraceExporter exporter = startExporter(url, 10, 100, 10, 1);
+		exporter.profileStored("/page", capture(2, ProfileLimits.NONE));
+		awaitStat(exporter, "failedBatches", 1);
+		assertEquals(1, stat(exporter, "retries"));
+		assertEquals(4, stat(exporter, "failedSpans"));
+		assertFalse(stat(exporter, "exportedBatches") > 0);
+	}
+}
@@ -0,0 +1,98 @@
+package au.com.funkworks.jmp.matching;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.regex.PatternSyntaxException;
+
+import org.junit.Test;
+
+public class UrlPatternMatcherTest {
+
+	private static UrlPatternMatcher compile(String... patterns) {
+		return UrlPatternMatcher.compile(Arrays.asList(patterns));
+	}
+
+	@Test
+	public void tellsLiteralsFromRegexes() {
+		assertEquals("/api/", UrlPatternMatcher.unescapeLiteral("/api/"));
+		assertEquals("/a.b", UrlPatternMatcher.unescapeLiteral("/a\\.b"));
+		assertNull(UrlPatternMatcher.unescapeLiteral("/a.b"));
+		assertNull(UrlPatternMatcher.unescapeLiteral("/a\\d"));
+		assertNull(UrlPatternMatcher.unescapeLiteral("/a$"));
+		assertNull(UrlPatternMatcher.unescapeLiteral("/a\\"));
+		assertNull(UrlPatternMatcher.unescapeLiteral(""));
+	}
+
+	@Test
+	public void anchoredLiteralsOnlyMatchPrefixes() {
+		UrlPatternMatcher matcher = compile("^/admin/", "^/adm\\.x", "^/api");
+		assertTrue(matcher.matches("/admin/users"));
+		assertTrue(matcher.matches("/adm.x"));
+		assertTrue(matcher.matches("/api"));
+		assertTrue(matcher.matches("/apis"));
+		assertFalse(matcher.matches("/site/admin/users"));
+		assertFalse(matcher.matches("/admin"));
+		assertFalse(matcher.matches("/ap"));
+	}
+
+	@Test
+	public void unanchoredLiteralsMatchAnywhere() {
+		UrlPatternMatcher matcher = compile("/api/", "\\.json");
+		assertTrue(matcher.matches("/v2/api/users"));
+		assertTrue(matcher.matches("/users.json"));
+		assertFalse(matcher.matches("/users.xml"));
+	}
+
+	@Test
+	public void regexesMatchLikeFind() {
+		UrlPatternMatcher matcher = compile("^/static/.*\\.(css|js)$", "/users/\\d+", "^/admin/");
+		assertTrue(matcher.matches("/static/a/b.css"));
+		assertTrue(matcher.matches("/users/42/edit"));
+		assertTrue(matcher.matches("/admin/"));
+		assertFalse(matcher.matches("/static/a/b.png"));
+		assertFalse(matcher.matches("/x/static/a.js"));
+		assertFalse(matcher.matches("/users/me"));
+		assertFalse(compile().matches("/"));
+	}
+
+	@Test
+	public void groupsInDifferentPatternsDontClash() {
+		UrlPatternMatcher matcher = compile("/(?<id>\\d+)/a$", "/(?<id>[a-z]+)/b$", "/(x)(y)/c");
+		assertTrue(matcher.matches("/12/a"));
+		assertTrue(matcher.matches("/ab/b"));
+		assertTrue(matcher.matches("/xy/c"));
+		assertFalse(matcher.matches("/ab/a"));
+	}
+
+	@Test
+	public void backReferencesKeepTheirMeaning() {
+		UrlPatternMatcher matcher = compile("/(a)(b)/x", "/(\\w+)/\\1$", "/(?<p>\\w+)-\\k<p>$");
+		assertTrue(matcher.matches("/same/same"));
+		assertTrue(matcher.matches("/ab-ab"));
+		assertFalse(matcher.matches("/same/other"));
+		assertFalse(matcher.matches("/ab-ba"));
+	}
+
+	@Test
+	public void renumbersGroups() {
+		assertEquals("/(?:a)(?:b)", UrlPatternMatcher.renumberGroups("/(a)(b)"));
+		assertEquals("/(?:\\d+)", UrlPatternMatcher.renumberGroups("/(?<id>\\d+)"));
+		// already non-capturing, lookarounds and flags
+		assertEquals("(?:a)(?=b)(?<=c)(?<!d)(?i)e", UrlPatternMatcher.renumberGroups("(?:a)(?=b)(?<=c)(?<!d)(?i)e"));
+		// escaped and in a character class
+		assertEquals("\\(a[(]", UrlPatternMatcher.renumberGroups("\\(a[(]"));
+		// quoted
+		assertEquals("\\Q(a)\\E(?:b)", UrlPatternMatcher.renumberGroups("\\Q(a)\\E(b)"));
+		assertNull(UrlPatternMatcher.renumberGroups("(a)\\1"));
+		assertNull(UrlPatternMatcher.renumberGroups("(?<a>x)\\k<a>"));
+	}
+
+	@Test(expected = PatternSyntaxException.class)
+	public void rejectsABadPattern() {
+		compile("/ok", "/bad(");
+	}
+}
@@ -0,0 +1,134 @@
+package au.com.funkworks.jmp.sampling;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+import au.com.funkworks.jmp.sampling.RequestSampler.SampleRule;
+import au.com.funkworks.jmp.sampling.TokenBucketTest.FakeClock;
+
+public class RequestSamplerTest {
+
+	/**
+	 * A random source that returns the given values in turn.
+	 */
+	private static class ScriptedRandom extends Random {
+
+		private static final long serialVersionUID = 1L;
+
+		private final double[] values;
+		private int next;
+
+		ScriptedRandom(double... values) {
+			this.values = values;
+		}
+
+		@Override
+		public double nextDouble() {
+			return values[next++ % values.length];
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private static Map<String, Object> ruleStats(RequestSampler sampler, int rule) {
+		return ((List<Map<String, Object>>) sampler.getStats().get("rules")).get(rule);
+	}
+
+	@Test
+	public void theFirstMatchingRuleWins() {
+		List<SampleRule> rules = RequestSampler.parseRules("/api/health=0, /api/=1, /admin=0");
+		RequestSampler sampler = new RequestSampler(rules, 0, null, new ScriptedRandom(0.5));
+
+		assertFalse(sampler.sample("/api/health"));
+		assertTrue(sampler.sample("/api/users"));
+		assertTrue(sampler.sample("/v2/api/users"));
+		// matches /admin too, but /api/ comes first
+		assertTrue(sampler.sample("/admin/api/x"));
+		assertFalse(sampler.sample("/admin/x"));
+		assertFalse(sampler.sample("/home"));
+
+		assertEquals(Long.valueOf(1), ruleStats(sampler, 0).get("considered"));
+		assertEquals(Long.valueOf(3), ruleStats(sampler, 1).get("considered"));
+		assertEquals(Long.valueOf(3), ruleStats(sampler, 1).get("sampled"));
+		assertEquals(Long.valueOf(1), ruleStats(sampler, 2).get("considered"));
+		assertEquals(3, sampler.getSampledCount());
+		assertEquals(3, sampler.getSkippedByRateCount());
+		assertEquals(Long.valueOf(6), sampler.getStats().get("considered"));
+	}
+
+	@Test
+	public void samplesAtTheRuleOrDefaultRate() {
+		List<SampleRule> rules = RequestSampler.parseRules("/search=0.25");
+		RequestSampler sampler = new RequestSampler(rules, 0.5, null, new ScriptedRandom(0.1, 0.3, 0.6));
+
+		assertTrue(sampler.sample("/search"));
+		assertFalse(sampler.sample("/search"));
+		assertFalse(sampler.sample("/search"));
+		assertTrue(sampler.sample("/home"));
+		assertTrue(sampler.sample("/home"));
+		assertFalse(sampler.sample("/home"));
+		assertEquals(3, sampler.getSampledCount());
+		assertEquals(3, sampler.getSkippedByRateCount());
+	}
+
+	@Test
+	public void countsRateLimitedDropsAgainstTheRule() {
+		FakeClock clock = new FakeClock();
+		List<SampleRule> rules = RequestSampler.parseRules("/api/=1");
+		RequestSampler sampler = new RequestSampler(rules, 1, new TokenBucket(2, 2, clock), null);
+
+		for (int i = 0; i < 5; i++) {
+			sampler.sample("/api/users");
+		}
+		sampler.sample("/home");
+		assertEquals(2, sampler.getSampledCount());
+		assertEquals(4, sampler.getDroppedByRateLimitCount());
+		assertEquals(Long.valueOf(2), ruleStats(sampler, 0).get("sampled"));
+		assertEquals(Long.valueOf(3), ruleStats(sampler, 0).get("rateLimited"));
+
+		clock.advanceMillis(500);
+		assertTrue(sampler.sample("/home"));
+		assertFalse(sampler.sample("/api/users"));
+		assertEquals(Long.valueOf(4), ruleStats(sampler, 0).get("rateLimited"));
+		assertEquals(2.0, sampler.getStats().get("maxPerSecond"));
+	}
+
+	@Test
+	public void requestsSkippedByRateDoNotUseAPermit() {
+		FakeClock clock = new FakeClock();
+		RequestSampler sampler = new RequestSampler(Collections.<SampleRule> emptyList(), 0.5, new TokenBucket(1, 1, clock), new ScriptedRandom(0.9, 0.9, 0.1));
+
+		assertFalse(sampler.sample("/a"));
+		assertFalse(sampler.sample("/a"));
+		assertTrue(sampler.sample("/a"));
+		assertEquals(0, sampler.getDroppedByRateLimitCount());
+	}
+
+	@Test
+	public void parsesAndClampsRules() {
+		List<SampleRule> rules = RequestSampler.parseRules(" /a=b=0.5 , , /c=2, /d=-1 ");
+		assertEquals(3, rules.size());
+		assertEquals("/a=b", rules.get(0).getPattern().pattern());
+		assertEquals(0.5, rules.get(0).getRate(), 0);
+		assertEquals(1.0, rules.get(1).getRate(), 0);
+		assertEquals(0.0, rules.get(2).getRate(), 0);
+		assertTrue(RequestSampler.parseRules(null).isEmpty());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void rejectsARuleWithoutARate() {
+		RequestSampler.parseRules("/a=1,/b");
+	}
+
+	@Test(expected = NumberFormatException.class)
+	public void rejectsARuleWithABadRate() {
+		RequestSampler.parseRules("/a=often");
+	}
+}
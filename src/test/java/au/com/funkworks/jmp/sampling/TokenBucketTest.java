@@ -0,0 +1,84 @@
+package au.com.funkworks.jmp.sampling;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class TokenBucketTest {
+
+	/**
+	 * A clock that only moves when the test moves it.
+	 */
+	static class FakeClock implements TokenBucket.Clock {
+
+		long now = 1000000000L;
+
+		public long nanoTime() {
+			return now;
+		}
+
+		void advanceMillis(long millis) {
+			now += millis * 1000000L;
+		}
+	}
+
+	private static int acquireAll(TokenBucket bucket) {
+		int acquired = 0;
+		while (bucket.tryAcquire()) {
+			acquired++;
+		}
+		return acquired;
+	}
+
+	@Test
+	public void handsOutTheBurstAtOnce() {
+		FakeClock clock = new FakeClock();
+		TokenBucket bucket = new TokenBucket(10, 5, clock);
+		assertEquals(5, acquireAll(bucket));
+		assertFalse(bucket.tryAcquire());
+	}
+
+	@Test
+	public void refillsAtTheSustainedRate() {
+		FakeClock clock = new FakeClock();
+		TokenBucket bucket = new TokenBucket(10, 5, clock);
+		acquireAll(bucket);
+
+		clock.advanceMillis(99);
+		assertFalse(bucket.tryAcquire());
+		clock.advanceMillis(1);
+		assertTrue(bucket.tryAcquire());
+		assertFalse(bucket.tryAcquire());
+
+		clock.advanceMillis(300);
+		assertEquals(3, acquireAll(bucket));
+	}
+
+	@Test
+	public void idleTimeOnlyRefillsUpToTheBurst() {
+		FakeClock clock = new FakeClock();
+		TokenBucket bucket = new TokenBucket(10, 5, clock);
+		acquireAll(bucket);
+		clock.advanceMillis(60000);
+		assertEquals(5, acquireAll(bucket));
+	}
+
+	@Test
+	public void burstIsAtLeastOne() {
+		FakeClock clock = new FakeClock();
+		TokenBucket bucket = new TokenBucket(0.5, 0, clock);
+		assertEquals(1, acquireAll(bucket));
+		clock.advanceMillis(1999);
+		assertFalse(bucket.tryAcquire());
+		clock.advanceMillis(1);
+		assertTrue(bucket.tryAcquire());
+		assertEquals(0.5, bucket.getPermitsPerSecond(), 0.0001);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void rejectsANonPositiveRate() {
+		new TokenBucket(0, 1);
+	}
+}
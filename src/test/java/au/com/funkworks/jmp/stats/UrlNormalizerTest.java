@@ -0,0 +1,38 @@
+package au.com.funkworks.jmp.stats;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.regex.Pattern;
+
+import org.junit.Test;
+
+public class UrlNormalizerTest {
+
+	private final UrlNormalizer normalizer = new UrlNormalizer();
+
+	@Test
+	public void matchesAnEndpointLiterally() {
+		Pattern byEndpoint = normalizer.toPattern("/users/{id}/orders");
+		assertTrue(byEndpoint.matcher("/users/{id}/orders").matches());
+		assertFalse(byEndpoint.matcher("/users/{id}/orders/{id}").matches());
+		// or by a URI grouped under it
+		assertTrue(normalizer.toPattern("/users/1234/orders").matcher("/users/{id}/orders").matches());
+	}
+
+	@Test
+	public void doesNotTreatTheEndpointAsARegex() {
+		assertFalse(normalizer.toPattern("/users/.*").matcher("/users/{id}").matches());
+		assertTrue(normalizer.toPattern("(a+)+$").matcher("(a+)+$").matches());
+		assertTrue(normalizer.toPattern("/a\\E.*\\Q").matcher("/a\\E.*\\Q").matches());
+	}
+
+	@Test
+	public void aTrailingStarMatchesAPrefix() {
+		Pattern prefix = normalizer.toPattern("/users/*");
+		assertTrue(prefix.matcher("/users/{id}").matches());
+		assertTrue(prefix.matcher("/users/").matches());
+		assertFalse(prefix.matcher("/orders/{id}").matches());
+		assertTrue(normalizer.toPattern("*").matcher("/anything").matches());
+	}
+}